@@ -0,0 +1,57 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JAXB unmarshal/marshal round trip of the test model, shared by all generation mode benchmarks.
+ * Subclasses only provide the generated root class of the package they measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractRoundTripBenchmark {
+
+    private byte[] modelXml;
+    private Unmarshaller unmarshaller;
+    private Marshaller marshaller;
+    private Object model;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    protected abstract Class<?> modelClass();
+
+    @Setup
+    public void setUpRoundTrip() throws JAXBException, IOException {
+        try (InputStream in = AbstractRoundTripBenchmark.class.getResourceAsStream("/model.xml")) {
+            modelXml = in.readAllBytes();
+        }
+        JAXBContext context = JAXBContext.newInstance(modelClass());
+        unmarshaller = context.createUnmarshaller();
+        marshaller = context.createMarshaller();
+        model = unmarshaller.unmarshal(new ByteArrayInputStream(modelXml));
+    }
+
+    @Benchmark
+    public Object unmarshal() throws JAXBException {
+        return unmarshaller.unmarshal(new ByteArrayInputStream(modelXml));
+    }
+
+    @Benchmark
+    public int marshal() throws JAXBException {
+        out.reset();
+        marshaller.marshal(model, out);
+        return out.size();
+    }
+}
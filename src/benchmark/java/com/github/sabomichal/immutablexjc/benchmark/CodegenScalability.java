@@ -0,0 +1,154 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import com.sun.tools.xjc.Driver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Runs XJC with the plugin on synthetic schemas of growing size and reports wall time and peak heap
+ * for each option. Fails (exit code 1) when the time of a plugin run grows faster than
+ * {@code n^maxExponent} between two consecutive sizes.
+ * <p>
+ * Usage: {@code CodegenScalability [typeCount...]}, defaults to 100 1000 10000 50000. The shape of the
+ * schemas and the threshold are set with the system properties {@code inheritanceDepth},
+ * {@code fieldsPerType}, {@code collectionRatio}, {@code attributeCasing} and {@code maxExponent}.
+ */
+public final class CodegenScalability {
+
+    private static final String[][] OPTIONS = {
+            {},
+            {"-Ximm"},
+            {"-Ximm", "-Ximm-builder"},
+            {"-Ximm", "-Ximm-builder", "-Ximm-cc"},
+            {"-Ximm", "-Ximm-inheritbuilder", "-Ximm-cc"},
+            {"-Ximm", "-Ximm-builder", "-Ximm-ifnotnull"},
+            {"-Ximm", "-Ximm-optionalgetter"},
+            {"-Ximm", "-Ximm-skipcollections"},
+            {"-Ximm", "-Ximm-constructordefaults"},
+            {"-Ximm", "-Ximm-nofinalclasses"},
+    };
+
+    private CodegenScalability() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{100, 1000, 10000, 50000};
+        double maxExponent = Double.parseDouble(System.getProperty("maxExponent", "1.3"));
+
+        Path workDir = Files.createTempDirectory("immutable-xjc-scalability");
+        boolean superlinear = false;
+        try {
+            // warm up XJC and the plugin on the smallest schema
+            run(synthesizer(sizes[0]), new String[]{"-Ximm", "-Ximm-builder", "-Ximm-cc"}, workDir);
+
+            System.out.printf(Locale.ROOT, "%-45s %8s %12s %12s %9s%n", "options", "types", "time [ms]", "peak [MB]", "exponent");
+            for (String[] options : OPTIONS) {
+                Result previous = null;
+                for (int size : sizes) {
+                    Result result = run(synthesizer(size), options, workDir);
+                    String exponent = "";
+                    if (previous != null) {
+                        double e = Math.log((double) result.nanos / previous.nanos) / Math.log((double) size / previous.types);
+                        exponent = String.format(Locale.ROOT, "%.2f", e);
+                        // the baseline without the plugin is reported, but XJC itself is not under test
+                        if (options.length > 0 && e > maxExponent) {
+                            superlinear = true;
+                            exponent += " !";
+                        }
+                    }
+                    System.out.printf(Locale.ROOT, "%-45s %8d %12d %12d %9s%n",
+                            options.length == 0 ? "(xjc only)" : String.join(" ", options),
+                            size, result.nanos / 1_000_000, result.peakHeapBytes / (1024 * 1024), exponent);
+                    previous = result;
+                }
+            }
+        } finally {
+            delete(workDir);
+        }
+        // exits only after the work directory is deleted, System.exit would skip the finally block
+        if (superlinear) {
+            System.out.printf(Locale.ROOT, "Code generation time grows faster than n^%.2f for runs marked with '!'%n", maxExponent);
+            System.exit(1);
+        }
+    }
+
+    private static SchemaSynthesizer synthesizer(int size) {
+        return new SchemaSynthesizer()
+                .typeCount(size)
+                .inheritanceDepth(Integer.getInteger("inheritanceDepth", 3))
+                .fieldsPerType(Integer.getInteger("fieldsPerType", 6))
+                .collectionRatio(Double.parseDouble(System.getProperty("collectionRatio", "0.25")))
+                .attributeCasing(SchemaSynthesizer.AttributeCasing.valueOf(System.getProperty("attributeCasing", "MIXED")));
+    }
+
+    private static Result run(SchemaSynthesizer synthesizer, String[] options, Path workDir) throws Exception {
+        Path xsd = workDir.resolve("synthetic.xsd");
+        Path out = workDir.resolve("out");
+        delete(out);
+        Files.createDirectories(out);
+        synthesizer.write(xsd);
+
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.addAll(Arrays.asList("-quiet", "-npa", "-no-header", "-d", out.toString(), xsd.toString()));
+
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heapPools.add(pool);
+            }
+        }
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        PrintStream nullStream = new PrintStream(OutputStream.nullOutputStream());
+        long start = System.nanoTime();
+        int exitCode = Driver.run(args.toArray(new String[0]), nullStream, nullStream);
+        long nanos = System.nanoTime() - start;
+        if (exitCode != 0) {
+            throw new IllegalStateException("XJC failed with exit code " + exitCode + " for " + args);
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return new Result(synthesizer.getTypeCount(), nanos, peak);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    private static final class Result {
+        private final int types;
+        private final long nanos;
+        private final long peakHeapBytes;
+
+        private Result(int types, long nanos, long peakHeapBytes) {
+            this.types = types;
+            this.nanos = nanos;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import com.github.sabomichal.immutablexjc.test.inheritbuilder.Declaration;
+import com.github.sabomichal.immutablexjc.test.inheritbuilder.Model;
+import com.github.sabomichal.immutablexjc.test.inheritbuilder.NameExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Generated with -Ximm -Ximm-inheritbuilder -Ximm-cc -Ximm-simplebuildername.
+ */
+public class InheritBuilderBenchmark extends AbstractRoundTripBenchmark {
+
+    private Declaration.Builder builder;
+    private Declaration declaration;
+
+    @Override
+    protected Class<?> modelClass() {
+        return Model.class;
+    }
+
+    @Setup
+    public void setUp() {
+        builder = Declaration.builder()
+                .withType("Double").withName("x").withComment("comment").withDocumentation("doc")
+                .addTags("t1").addTags("t2")
+                .addBy(NameExpression.builder().withName("a").build())
+                .addBy(NameExpression.builder().withName("b").build())
+                .addBy(NameExpression.builder().withName("c").build())
+                .addUri("http://example.com/1");
+        declaration = builder.build();
+    }
+
+    @Benchmark
+    public int collectionGetter() {
+        return declaration.getBy().size();
+    }
+
+    @Benchmark
+    public Object build() {
+        return builder.build();
+    }
+
+    @Benchmark
+    public Object copy() {
+        return Declaration.builder(declaration).build();
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import com.github.sabomichal.immutablexjc.test.basic.Model;
+import com.github.sabomichal.immutablexjc.test.lazy.LazyXml;
+import com.github.sabomichal.immutablexjc.test.lazy.ObjectFactory;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generated with -Ximm -Ximm-builder -Ximm-cc -Ximm-lazy=Model.metadata,Model.configuration, compared with -Ximm.
+ * Unmarshals the test model extended by a configuration with many labels, which the lazy model copies as a single
+ * slice of XML instead of unmarshalling it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyBenchmark {
+
+    @Param({"10", "500"})
+    private int labels;
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+    private byte[] modelXml;
+    private Unmarshaller eagerUnmarshaller;
+    private Unmarshaller lazyUnmarshaller;
+
+    @Setup
+    public void setUp() throws JAXBException, IOException {
+        String xml;
+        try (InputStream in = LazyBenchmark.class.getResourceAsStream("/model.xml")) {
+            xml = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        StringBuilder configuration = new StringBuilder("<configuration><name>c</name><enabled>true</enabled><maxRetries>3</maxRetries><status>ACTIVE</status>");
+        for (int i = 0; i < labels; i++) {
+            configuration.append("<labels>label ").append(i).append("</labels>");
+        }
+        configuration.append("</configuration></model>");
+        modelXml = xml.replace("</model>", configuration).getBytes(StandardCharsets.UTF_8);
+        eagerUnmarshaller = JAXBContext.newInstance(Model.class).createUnmarshaller();
+        lazyUnmarshaller = JAXBContext.newInstance(ObjectFactory.class).createUnmarshaller();
+    }
+
+    @Benchmark
+    public Object eagerUnmarshal() throws JAXBException, XMLStreamException {
+        return eagerUnmarshaller.unmarshal(inputFactory.createXMLStreamReader(new ByteArrayInputStream(modelXml)));
+    }
+
+    @Benchmark
+    public Object lazyUnmarshal() throws JAXBException, XMLStreamException {
+        return LazyXml.unmarshal(lazyUnmarshaller, inputFactory.createXMLStreamReader(new ByteArrayInputStream(modelXml)));
+    }
+}
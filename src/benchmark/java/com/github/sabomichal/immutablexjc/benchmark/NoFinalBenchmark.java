@@ -0,0 +1,41 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import com.github.sabomichal.immutablexjc.test.nofinal.Declaration;
+import com.github.sabomichal.immutablexjc.test.nofinal.Model;
+import com.github.sabomichal.immutablexjc.test.nofinal.NameExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Generated with -Ximm -Ximm-nofinalclasses.
+ */
+public class NoFinalBenchmark extends AbstractRoundTripBenchmark {
+
+    private Declaration declaration;
+
+    @Override
+    protected Class<?> modelClass() {
+        return Model.class;
+    }
+
+    @Setup
+    public void setUp() {
+        List<NameExpression> by = Arrays.asList(new NameExpression("a"), new NameExpression("b"), new NameExpression("c"));
+        declaration = new Declaration(Arrays.asList("t1", "t2"), "x", null, null, new HashMap<>(),
+                by, Arrays.asList("http://example.com/1"), "comment", "doc", "Double");
+    }
+
+    @Benchmark
+    public int collectionGetter() {
+        return declaration.getBy().size();
+    }
+
+    @Benchmark
+    public Object scalarGetter() {
+        return declaration.getComment();
+    }
+}
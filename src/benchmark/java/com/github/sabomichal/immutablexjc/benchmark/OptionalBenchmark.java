@@ -0,0 +1,53 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import com.github.sabomichal.immutablexjc.test.optional.Declaration;
+import com.github.sabomichal.immutablexjc.test.optional.Model;
+import com.github.sabomichal.immutablexjc.test.optional.NameExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Generated with -Ximm -Ximm-builder -Ximm-cc -Ximm-optionalgetter.
+ */
+public class OptionalBenchmark extends AbstractRoundTripBenchmark {
+
+    private Declaration.DeclarationBuilder builder;
+    private Declaration declaration;
+
+    @Override
+    protected Class<?> modelClass() {
+        return Model.class;
+    }
+
+    @Setup
+    public void setUp() {
+        builder = Declaration.declarationBuilder()
+                .withType("Double").withName("x").withComment("comment").withDocumentation("doc")
+                .addTags("t1").addTags("t2")
+                .addBy(NameExpression.nameExpressionBuilder().withName("a").build())
+                .addBy(NameExpression.nameExpressionBuilder().withName("b").build())
+                .addBy(NameExpression.nameExpressionBuilder().withName("c").build())
+                .addUri("http://example.com/1");
+        declaration = builder.build();
+    }
+
+    @Benchmark
+    public int collectionGetter() {
+        return declaration.getBy().size();
+    }
+
+    @Benchmark
+    public Object scalarGetter() {
+        return declaration.getComment().orElse(null);
+    }
+
+    @Benchmark
+    public Object build() {
+        return builder.build();
+    }
+
+    @Benchmark
+    public Object copy() {
+        return Declaration.declarationBuilder(declaration).build();
+    }
+}
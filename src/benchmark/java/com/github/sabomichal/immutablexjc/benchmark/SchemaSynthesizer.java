@@ -0,0 +1,132 @@
+package com.github.sabomichal.immutablexjc.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes synthetic XML schemas of tunable size and shape. The output only depends on the
+ * configuration (including the seed), so two runs with the same settings compile the same schema.
+ */
+public final class SchemaSynthesizer {
+
+    /**
+     * Casing of generated attribute names. Upper and mixed case names exercise the getter lookup
+     * fallbacks of the plugin, which XJC naming does not match directly.
+     */
+    public enum AttributeCasing {
+        CAMEL, UPPER, MIXED
+    }
+
+    private static final String NAMESPACE = "http://immutablexjc.sabomichal.github.com/synthetic";
+    private static final String[] SIMPLE_TYPES = {"xs:string", "xs:int", "xs:boolean", "xs:decimal", "xs:dateTime"};
+
+    private int typeCount = 100;
+    private int inheritanceDepth = 3;
+    private int fieldsPerType = 6;
+    private double collectionRatio = 0.25;
+    private AttributeCasing attributeCasing = AttributeCasing.MIXED;
+    private long seed = 42L;
+
+    public SchemaSynthesizer typeCount(int typeCount) {
+        this.typeCount = typeCount;
+        return this;
+    }
+
+    /**
+     * @param inheritanceDepth length of the extension chains, 1 means no inheritance
+     */
+    public SchemaSynthesizer inheritanceDepth(int inheritanceDepth) {
+        this.inheritanceDepth = Math.max(1, inheritanceDepth);
+        return this;
+    }
+
+    public SchemaSynthesizer fieldsPerType(int fieldsPerType) {
+        this.fieldsPerType = fieldsPerType;
+        return this;
+    }
+
+    /**
+     * @param collectionRatio share of element fields with maxOccurs="unbounded", between 0 and 1
+     */
+    public SchemaSynthesizer collectionRatio(double collectionRatio) {
+        this.collectionRatio = collectionRatio;
+        return this;
+    }
+
+    public SchemaSynthesizer attributeCasing(AttributeCasing attributeCasing) {
+        this.attributeCasing = attributeCasing;
+        return this;
+    }
+
+    public SchemaSynthesizer seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getTypeCount() {
+        return typeCount;
+    }
+
+    public void write(Path xsd) throws IOException {
+        Random random = new Random(seed);
+        try (Writer w = Files.newBufferedWriter(xsd, StandardCharsets.UTF_8)) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            w.write("<xs:schema targetNamespace=\"" + NAMESPACE + "\" elementFormDefault=\"qualified\"\n");
+            w.write("           xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns=\"" + NAMESPACE + "\">\n");
+            w.write("    <xs:element name=\"root\" type=\"Type0\"/>\n");
+            for (int i = 0; i < typeCount; i++) {
+                writeType(w, i, random);
+            }
+            w.write("</xs:schema>\n");
+        }
+    }
+
+    private void writeType(Writer w, int index, Random random) throws IOException {
+        int elements = (fieldsPerType + 1) / 2;
+        int attributes = fieldsPerType / 2;
+        boolean extension = index % inheritanceDepth != 0;
+
+        w.write("    <xs:complexType name=\"Type" + index + "\">\n");
+        String indent = "        ";
+        if (extension) {
+            w.write("        <xs:complexContent>\n");
+            w.write("            <xs:extension base=\"Type" + (index - 1) + "\">\n");
+            indent = "                ";
+        }
+        w.write(indent + "<xs:sequence>\n");
+        for (int j = 0; j < elements; j++) {
+            String type = random.nextInt(3) == 0 && typeCount > 1
+                    ? "Type" + random.nextInt(typeCount)
+                    : SIMPLE_TYPES[random.nextInt(SIMPLE_TYPES.length)];
+            boolean collection = random.nextDouble() < collectionRatio;
+            w.write(indent + "    <xs:element name=\"t" + index + "Field" + j + "\" type=\"" + type + "\" minOccurs=\"0\""
+                    + (collection ? " maxOccurs=\"unbounded\"" : "") + "/>\n");
+        }
+        w.write(indent + "</xs:sequence>\n");
+        for (int j = 0; j < attributes; j++) {
+            w.write(indent + "<xs:attribute name=\"" + attributeName(index, j) + "\" type=\""
+                    + SIMPLE_TYPES[random.nextInt(SIMPLE_TYPES.length)] + "\""
+                    + (random.nextBoolean() ? " use=\"required\"" : "") + "/>\n");
+        }
+        if (extension) {
+            w.write("            </xs:extension>\n");
+            w.write("        </xs:complexContent>\n");
+        }
+        w.write("    </xs:complexType>\n");
+    }
+
+    private String attributeName(int typeIndex, int attributeIndex) {
+        switch (attributeCasing) {
+            case UPPER:
+                return "T" + typeIndex + "ATTR" + attributeIndex;
+            case MIXED:
+                return attributeIndex % 2 == 0 ? "t" + typeIndex + "Attr" + attributeIndex : "T" + typeIndex + "URI" + attributeIndex;
+            default:
+                return "t" + typeIndex + "Attr" + attributeIndex;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.sabomichal.immutablexjc;
+
+import com.sun.codemodel.JDefinedClass;
+import com.sun.codemodel.JMethod;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Collects per-phase wall time and allocation and per-class counters of a single plugin run
+ * and writes them as JSON. All recording methods are no-ops when the collector is disabled.
+ *
+ * @author <a href="mailto:sabo.michal@gmail.com">Michal Sabo</a>
+ */
+final class CodegenStats {
+
+    enum Phase {
+        SORTING("sorting"),
+        CONSTRUCTORS("constructors"),
+        SETTER_REMOVAL("setterRemoval"),
+        GETTER_REPLACEMENT("getterReplacement"),
+        BUILDER_GENERATION("builderGeneration"),
+        COPY_CONSTRUCTORS("copyConstructors");
+
+        private final String jsonName;
+
+        Phase(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    private final boolean enabled;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final Map<Phase, PhaseStats> phases = new EnumMap<>(Phase.class);
+    private final Map<String, ClassStats> classes = new TreeMap<>();
+    private ClassStats currentClass;
+
+    CodegenStats(boolean enabled) {
+        this.enabled = enabled;
+        this.threadBean = enabled ? getAllocationCountingThreadBean() : null;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new PhaseStats());
+        }
+    }
+
+    void beginPhase(Phase phase) {
+        if (enabled) {
+            PhaseStats stats = phases.get(phase);
+            stats.startBytes = allocatedBytes();
+            stats.startNanos = System.nanoTime();
+        }
+    }
+
+    void endPhase(Phase phase) {
+        if (enabled) {
+            long endNanos = System.nanoTime();
+            long endBytes = allocatedBytes();
+            PhaseStats stats = phases.get(phase);
+            stats.invocations++;
+            stats.wallTimeNanos += endNanos - stats.startNanos;
+            if (endBytes >= 0 && stats.startBytes >= 0) {
+                stats.allocatedBytes += endBytes - stats.startBytes;
+            }
+        }
+    }
+
+    void beginClass(JDefinedClass clazz, int fields) {
+        if (enabled) {
+            currentClass = new ClassStats(clazz, fields, collectMembers(clazz, Collections.newSetFromMap(new IdentityHashMap<>())));
+            classes.put(clazz.fullName(), currentClass);
+        }
+    }
+
+    void endClass() {
+        currentClass = null;
+    }
+
+    /**
+     * Counts the methods generated into each class since {@link #beginClass}, including the ones added by options
+     * after the per-class pass. Called once all code is generated.
+     */
+    void endRun() {
+        if (enabled) {
+            for (ClassStats stats : classes.values()) {
+                Set<Object> members = collectMembers(stats.clazz, Collections.newSetFromMap(new IdentityHashMap<>()));
+                members.removeAll(stats.initialMembers);
+                stats.generatedMethods = members.size();
+                stats.initialMembers = null;
+            }
+        }
+    }
+
+    void collectionWrapper() {
+        if (enabled && currentClass != null) {
+            currentClass.collectionWrappers++;
+        }
+    }
+
+    void write(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write("{\n");
+            w.write("  \"allocationTracking\": " + (threadBean != null) + ",\n");
+            w.write("  \"phases\": {\n");
+            Iterator<Map.Entry<Phase, PhaseStats>> phaseIterator = phases.entrySet().iterator();
+            while (phaseIterator.hasNext()) {
+                Map.Entry<Phase, PhaseStats> entry = phaseIterator.next();
+                PhaseStats stats = entry.getValue();
+                w.write("    " + quote(entry.getKey().jsonName) + ": {"
+                        + "\"invocations\": " + stats.invocations
+                        + ", \"wallTimeNanos\": " + stats.wallTimeNanos
+                        + ", \"allocatedBytes\": " + (threadBean != null ? String.valueOf(stats.allocatedBytes) : "null")
+                        + "}" + (phaseIterator.hasNext() ? "," : "") + "\n");
+            }
+            w.write("  },\n");
+            w.write("  \"classes\": [\n");
+            Iterator<Map.Entry<String, ClassStats>> classIterator = classes.entrySet().iterator();
+            while (classIterator.hasNext()) {
+                Map.Entry<String, ClassStats> entry = classIterator.next();
+                ClassStats stats = entry.getValue();
+                w.write("    {\"name\": " + quote(entry.getKey())
+                        + ", \"fields\": " + stats.fields
+                        + ", \"generatedMethods\": " + stats.generatedMethods
+                        + ", \"collectionWrappers\": " + stats.collectionWrappers
+                        + "}" + (classIterator.hasNext() ? "," : "") + "\n");
+            }
+            w.write("  ]\n");
+            w.write("}\n");
+        }
+    }
+
+    private long allocatedBytes() {
+        return threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationCountingThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+                    sunBean.setThreadAllocatedMemoryEnabled(true);
+                }
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    private static Set<Object> collectMembers(JDefinedClass clazz, Set<Object> members) {
+        members.addAll(clazz.methods());
+        for (Iterator<JMethod> i = clazz.constructors(); i.hasNext(); ) {
+            members.add(i.next());
+        }
+        for (Iterator<JDefinedClass> i = clazz.classes(); i.hasNext(); ) {
+            collectMembers(i.next(), members);
+        }
+        return members;
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class PhaseStats {
+        private long invocations;
+        private long wallTimeNanos;
+        private long allocatedBytes;
+        private long startNanos;
+        private long startBytes;
+    }
+
+    private static class ClassStats {
+        private final JDefinedClass clazz;
+        private final int fields;
+        private Set<Object> initialMembers;
+        private int generatedMethods;
+        private int collectionWrappers;
+
+        ClassStats(JDefinedClass clazz, int fields, Set<Object> initialMembers) {
+            this.clazz = clazz;
+            this.fields = fields;
+            this.initialMembers = initialMembers;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.github.sabomichal.immutablexjc;
+
+import com.sun.tools.xjc.model.CAttributePropertyInfo;
+import com.sun.tools.xjc.model.CClassInfo;
+import com.sun.tools.xjc.model.CElementPropertyInfo;
+import com.sun.tools.xjc.model.CPropertyInfo;
+import com.sun.tools.xjc.model.CTypeRef;
+import com.sun.xml.xsom.XSComplexType;
+import com.sun.xml.xsom.XSComponent;
+import com.sun.xml.xsom.XSElementDecl;
+import com.sun.xml.xsom.XSIdentityConstraint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identity constraints (xs:key, xs:unique, xs:keyref) of schema elements bound to classes, with their selector
+ * and field XPaths resolved against the properties of the bound classes.
+ * <p>
+ * Only the restricted XPath subset of XML Schema without the descendant axis is supported, i.e. selectors like
+ * {@code a/b | c} with wildcard steps and a single attribute or simple child element field like {@code @name}. Namespace
+ * prefixes are ignored, names are matched by their local part.
+ *
+ * @author <a href="mailto:sabo.michal@gmail.com">Michal Sabo</a>
+ */
+final class IdentityConstraints {
+
+    private IdentityConstraints() {
+    }
+
+    /**
+     * Returns the identity constraints declared on the element the class is bound to.
+     *
+     * @param classInfo bound class
+     * @return constraints in declaration order, empty if class is not bound to an element or no constraint is declared
+     */
+    static List<Constraint> of(CClassInfo classInfo) {
+        XSComponent component = classInfo.getSchemaComponent();
+        XSElementDecl element = null;
+        if (component instanceof XSElementDecl) {
+            element = (XSElementDecl) component;
+        } else if (component instanceof XSComplexType && ((XSComplexType) component).getScope() != null) {
+            // anonymous complex type of a local element
+            element = ((XSComplexType) component).getScope();
+        }
+        if (element == null || element.getIdentityConstraints().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Constraint> constraints = new ArrayList<>();
+        for (XSIdentityConstraint source : element.getIdentityConstraints()) {
+            constraints.add(new Constraint(source, resolve(classInfo, source)));
+        }
+        return constraints;
+    }
+
+    private static List<Path> resolve(CClassInfo classInfo, XSIdentityConstraint source) {
+        if (source.getFields().size() != 1) {
+            return Collections.emptyList();
+        }
+        String field = source.getFields().get(0).getXPath().value.trim();
+        if (field.startsWith("child::")) {
+            field = field.substring("child::".length());
+        } else if (field.startsWith("attribute::")) {
+            field = "@" + field.substring("attribute::".length());
+        }
+        if (field.contains("/") || field.contains("|")) {
+            return Collections.emptyList();
+        }
+
+        List<Path> paths = new ArrayList<>();
+        for (String selector : source.getSelector().getXPath().value.split("\\|")) {
+            selector = selector.trim();
+            if (selector.startsWith(".//")) {
+                return Collections.emptyList();
+            }
+            List<List<Step>> stepLists = new ArrayList<>();
+            stepLists.add(new ArrayList<>());
+            for (String nameTest : selector.split("/")) {
+                nameTest = nameTest.trim();
+                if (nameTest.startsWith("child::")) {
+                    nameTest = nameTest.substring("child::".length());
+                }
+                if (nameTest.equals(".")) {
+                    continue;
+                }
+                List<List<Step>> next = new ArrayList<>();
+                for (List<Step> steps : stepLists) {
+                    CClassInfo current = steps.isEmpty() ? classInfo : steps.get(steps.size() - 1).getTarget();
+                    for (Step step : findSteps(current, localName(nameTest))) {
+                        List<Step> extended = new ArrayList<>(steps);
+                        extended.add(step);
+                        next.add(extended);
+                    }
+                }
+                stepLists = next;
+            }
+            for (List<Step> steps : stepLists) {
+                if (steps.isEmpty()) {
+                    continue;
+                }
+                CClassInfo target = steps.get(steps.size() - 1).getTarget();
+                Field keyField = findField(target, field);
+                if (keyField != null) {
+                    paths.add(new Path(steps, keyField));
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static List<Step> findSteps(CClassInfo owner, String localName) {
+        List<Step> steps = new ArrayList<>();
+        for (CClassInfo c = owner; c != null; c = c.getBaseClass()) {
+            for (CPropertyInfo property : c.getProperties()) {
+                if (property instanceof CElementPropertyInfo) {
+                    for (CTypeRef typeRef : ((CElementPropertyInfo) property).getTypes()) {
+                        if (typeRef.getTarget() instanceof CClassInfo
+                                && (localName.equals("*") || localName.equals(typeRef.getTagName().getLocalPart()))) {
+                            steps.add(new Step(c, property, typeRef.getTagName().getLocalPart(), (CClassInfo) typeRef.getTarget()));
+                        }
+                    }
+                }
+            }
+        }
+        return steps;
+    }
+
+    private static Field findField(CClassInfo target, String field) {
+        boolean attribute = field.startsWith("@");
+        String localName = localName(attribute ? field.substring(1) : field);
+        for (CClassInfo c = target; c != null; c = c.getBaseClass()) {
+            for (CPropertyInfo property : c.getProperties()) {
+                if (attribute && property instanceof CAttributePropertyInfo
+                        && ((CAttributePropertyInfo) property).getXmlName().getLocalPart().equals(localName)) {
+                    return new Field(c, property);
+                }
+                if (!attribute && property instanceof CElementPropertyInfo && !property.isCollection()) {
+                    List<CTypeRef> types = ((CElementPropertyInfo) property).getTypes();
+                    if (types.size() == 1 && !(types.get(0).getTarget() instanceof CClassInfo)
+                            && types.get(0).getTagName().getLocalPart().equals(localName)) {
+                        return new Field(c, property);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String localName(String qName) {
+        // 'prefix:*' becomes '*', namespaces are not distinguished
+        return qName.substring(qName.indexOf(':') + 1);
+    }
+
+    /**
+     * Identity constraint with the property paths its selector resolves to.
+     */
+    static final class Constraint {
+        private final XSIdentityConstraint source;
+        private final List<Path> paths;
+
+        private Constraint(XSIdentityConstraint source, List<Path> paths) {
+            this.source = source;
+            this.paths = Collections.unmodifiableList(paths);
+        }
+
+        String getName() {
+            return source.getName();
+        }
+
+        boolean isKey() {
+            return source.getCategory() == XSIdentityConstraint.KEY;
+        }
+
+        boolean isKeyRef() {
+            return source.getCategory() == XSIdentityConstraint.KEYREF;
+        }
+
+        XSIdentityConstraint getSource() {
+            return source;
+        }
+
+        /**
+         * @return resolved paths, empty if the selector or field could not be resolved
+         */
+        List<Path> getPaths() {
+            return paths;
+        }
+    }
+
+    /**
+     * Selector path from the constrained class to the selected class and the key field of the selected class.
+     */
+    static final class Path {
+        private final List<Step> steps;
+        private final Field field;
+
+        private Path(List<Step> steps, Field field) {
+            this.steps = Collections.unmodifiableList(steps);
+            this.field = field;
+        }
+
+        List<Step> getSteps() {
+            return steps;
+        }
+
+        Step getLastStep() {
+            return steps.get(steps.size() - 1);
+        }
+
+        Field getField() {
+            return field;
+        }
+    }
+
+    /**
+     * Single selector step, i.e. an element property of the owner class holding instances of the target class.
+     */
+    static final class Step {
+        private final CClassInfo owner;
+        private final CPropertyInfo property;
+        private final String tagName;
+        private final CClassInfo target;
+
+        private Step(CClassInfo owner, CPropertyInfo property, String tagName, CClassInfo target) {
+            this.owner = owner;
+            this.property = property;
+            this.tagName = tagName;
+            this.target = target;
+        }
+
+        CClassInfo getOwner() {
+            return owner;
+        }
+
+        CPropertyInfo getProperty() {
+            return property;
+        }
+
+        String getTagName() {
+            return tagName;
+        }
+
+        CClassInfo getTarget() {
+            return target;
+        }
+    }
+
+    /**
+     * Key field, i.e. an attribute or simple element property of the owner class.
+     */
+    static final class Field {
+        private final CClassInfo owner;
+        private final CPropertyInfo property;
+
+        private Field(CClassInfo owner, CPropertyInfo property) {
+            this.owner = owner;
+            this.property = property;
+        }
+
+        CClassInfo getOwner() {
+            return owner;
+        }
+
+        CPropertyInfo getProperty() {
+            return property;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.sabomichal.immutablexjc;
+
+import com.sun.tools.xjc.model.CBuiltinLeafInfo;
+import com.sun.xml.xsom.XSFacet;
+import com.sun.xml.xsom.XSSimpleType;
+
+import javax.xml.XMLConstants;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Computes the value range of integer schema types from the built-in type they derive from and from the facets
+ * of all restriction steps, and picks the smallest primitive type the whole range fits in.
+ *
+ * @author <a href="mailto:sabo.michal@gmail.com">Michal Sabo</a>
+ */
+final class NumericRanges {
+
+    private static final BigInteger INT_MIN = BigInteger.valueOf(Integer.MIN_VALUE);
+    private static final BigInteger INT_MAX = BigInteger.valueOf(Integer.MAX_VALUE);
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private BigInteger min;
+    private BigInteger max;
+
+    private NumericRanges() {
+    }
+
+    /**
+     * Returns the primitive type, which is able to hold all values of given type derived from xs:integer.
+     *
+     * @param type simple type bound to {@link java.math.BigInteger}
+     * @return {@link CBuiltinLeafInfo#INT}, {@link CBuiltinLeafInfo#LONG} or null, if the range is not bounded
+     * within long
+     */
+    static CBuiltinLeafInfo narrowedType(XSSimpleType type) {
+        NumericRanges range = new NumericRanges();
+        for (XSSimpleType t = type; t != null; t = t.getSimpleBaseType()) {
+            if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(t.getTargetNamespace())) {
+                // built-in types are not restricted any further than their name says
+                range.restrictBuiltin(t.getName());
+                break;
+            }
+            if (!t.isRestriction()) {
+                // list and union types are not bound to BigInteger
+                return null;
+            }
+            for (XSFacet facet : t.asRestriction().getDeclaredFacets()) {
+                range.restrict(facet);
+            }
+            BigInteger enumerationMin = null;
+            BigInteger enumerationMax = null;
+            for (XSFacet facet : t.asRestriction().getDeclaredFacets(XSFacet.FACET_ENUMERATION)) {
+                BigInteger value = new BigDecimal(facet.getValue().value.trim()).toBigInteger();
+                enumerationMin = enumerationMin == null ? value : enumerationMin.min(value);
+                enumerationMax = enumerationMax == null ? value : enumerationMax.max(value);
+            }
+            range.restrictMin(enumerationMin);
+            range.restrictMax(enumerationMax);
+        }
+        if (range.min == null || range.max == null) {
+            return null;
+        }
+        if (range.min.compareTo(INT_MIN) >= 0 && range.max.compareTo(INT_MAX) <= 0) {
+            return CBuiltinLeafInfo.INT;
+        }
+        if (range.min.compareTo(LONG_MIN) >= 0 && range.max.compareTo(LONG_MAX) <= 0) {
+            return CBuiltinLeafInfo.LONG;
+        }
+        return null;
+    }
+
+    private void restrictBuiltin(String name) {
+        switch (name) {
+            case "nonNegativeInteger":
+                restrictMin(BigInteger.ZERO);
+                break;
+            case "positiveInteger":
+                restrictMin(BigInteger.ONE);
+                break;
+            case "nonPositiveInteger":
+                restrictMax(BigInteger.ZERO);
+                break;
+            case "negativeInteger":
+                restrictMax(BigInteger.ONE.negate());
+                break;
+            case "unsignedLong":
+                restrictMin(BigInteger.ZERO);
+                restrictMax(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void restrict(XSFacet facet) {
+        String value = facet.getValue().value.trim();
+        switch (facet.getName()) {
+            case XSFacet.FACET_MININCLUSIVE:
+                restrictMin(new BigDecimal(value).setScale(0, RoundingMode.CEILING).toBigInteger());
+                break;
+            case XSFacet.FACET_MINEXCLUSIVE:
+                restrictMin(new BigDecimal(value).setScale(0, RoundingMode.FLOOR).toBigInteger().add(BigInteger.ONE));
+                break;
+            case XSFacet.FACET_MAXINCLUSIVE:
+                restrictMax(new BigDecimal(value).setScale(0, RoundingMode.FLOOR).toBigInteger());
+                break;
+            case XSFacet.FACET_MAXEXCLUSIVE:
+                restrictMax(new BigDecimal(value).setScale(0, RoundingMode.CEILING).toBigInteger().subtract(BigInteger.ONE));
+                break;
+            case XSFacet.FACET_TOTALDIGITS:
+                BigInteger limit = BigInteger.TEN.pow(Integer.parseInt(value)).subtract(BigInteger.ONE);
+                restrictMin(limit.negate());
+                restrictMax(limit);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void restrictMin(BigInteger value) {
+        if (value != null && (min == null || value.compareTo(min) > 0)) {
+            min = value;
+        }
+    }
+
+    private void restrictMax(BigInteger value) {
+        if (value != null && (max == null || value.compareTo(max) < 0)) {
+            max = value;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.sabomichal.immutablexjc;
+
+import com.sun.tools.xjc.model.CClassInfo;
+import com.sun.tools.xjc.model.CElementPropertyInfo;
+import com.sun.tools.xjc.model.CPropertyInfo;
+import com.sun.xml.xsom.XSComplexType;
+import com.sun.xml.xsom.XSComponent;
+import com.sun.xml.xsom.XSElementDecl;
+import com.sun.xml.xsom.XSParticle;
+import com.sun.xml.xsom.XSTerm;
+
+import javax.xml.namespace.QName;
+import java.math.BigInteger;
+
+/**
+ * Computes the maximum number of occurrences of an element within the content model of a complex type, taking
+ * the repetition of all enclosing model groups and other particles of the same element into account.
+ *
+ * @author <a href="mailto:sabo.michal@gmail.com">Michal Sabo</a>
+ */
+final class Occurrences {
+
+    static final int UNBOUNDED = -1;
+
+    private final XSParticle particle;
+    private final QName tagName;
+    private boolean found;
+    private BigInteger total = BigInteger.ZERO;
+
+    private Occurrences(XSParticle particle, QName tagName) {
+        this.particle = particle;
+        this.tagName = tagName;
+    }
+
+    /**
+     * Returns the maximum number of values of given repeated element property. The property is bound either to a
+     * repeated element or to a repeated model group holding the element.
+     *
+     * @param classInfo class declaring the property
+     * @param property  element property
+     * @return upper bound or {@link #UNBOUNDED}, if the element may occur any number of times or the bound could not
+     * be determined
+     */
+    static int maxOccurs(CClassInfo classInfo, CPropertyInfo property) {
+        XSComponent component = property.getSchemaComponent();
+        if (!(property instanceof CElementPropertyInfo) || ((CElementPropertyInfo) property).getTypes().size() != 1
+                || !(component instanceof XSParticle)) {
+            return UNBOUNDED;
+        }
+        XSComplexType type = null;
+        XSComponent typeComponent = classInfo.getSchemaComponent();
+        if (typeComponent instanceof XSComplexType) {
+            type = (XSComplexType) typeComponent;
+        } else if (typeComponent instanceof XSElementDecl && ((XSElementDecl) typeComponent).getType().isComplexType()) {
+            type = ((XSElementDecl) typeComponent).getType().asComplexType();
+        }
+        if (type == null || type.getContentType().asParticle() == null) {
+            return UNBOUNDED;
+        }
+        Occurrences occurrences = new Occurrences((XSParticle) component,
+                ((CElementPropertyInfo) property).getTypes().get(0).getTagName());
+        occurrences.visit(type.getContentType().asParticle(), BigInteger.ONE);
+        if (!occurrences.found || occurrences.total == null || occurrences.total.bitLength() >= Integer.SIZE) {
+            return UNBOUNDED;
+        }
+        return occurrences.total.intValue();
+    }
+
+    // null stands for unbounded
+    private void visit(XSParticle p, BigInteger enclosingMaxOccurs) {
+        BigInteger maxOccurs = enclosingMaxOccurs == null || p.getMaxOccurs().signum() < 0
+                ? null : p.getMaxOccurs().multiply(enclosingMaxOccurs);
+        found |= p == particle;
+        XSTerm term = p.getTerm();
+        if (term.isModelGroupDecl()) {
+            term = term.asModelGroupDecl().getModelGroup();
+        }
+        if (term.isModelGroup()) {
+            for (XSParticle child : term.asModelGroup()) {
+                visit(child, maxOccurs);
+            }
+        } else if (term.isElementDecl() && isSameElement(term.asElementDecl())) {
+            total = total == null || maxOccurs == null ? null : total.add(maxOccurs);
+        }
+    }
+
+    private boolean isSameElement(XSElementDecl element) {
+        return element.getName().equals(tagName.getLocalPart()) && element.getTargetNamespace().equals(tagName.getNamespaceURI());
+    }
+}
@@ -1,21 +1,128 @@
 package com.github.sabomichal.immutablexjc;
 
 import com.sun.codemodel.*;
+import com.sun.tools.xjc.BadCommandLineException;
 import com.sun.tools.xjc.Options;
 import com.sun.tools.xjc.Plugin;
+import com.sun.tools.xjc.model.CAdapter;
+import com.sun.tools.xjc.model.CAttributePropertyInfo;
+import com.sun.tools.xjc.model.CBuiltinLeafInfo;
+import com.sun.tools.xjc.model.CClassInfo;
+import com.sun.tools.xjc.model.CElement;
+import com.sun.tools.xjc.model.CElementInfo;
+import com.sun.tools.xjc.model.CElementPropertyInfo;
+import com.sun.tools.xjc.model.CPropertyInfo;
+import com.sun.tools.xjc.model.CReferencePropertyInfo;
+import com.sun.tools.xjc.model.CTypeInfo;
+import com.sun.tools.xjc.model.CTypeRef;
+import com.sun.tools.xjc.model.Model;
+import com.sun.tools.xjc.model.TypeUse;
+import com.sun.tools.xjc.model.TypeUseFactory;
+import com.sun.tools.xjc.outline.Aspect;
 import com.sun.tools.xjc.outline.ClassOutline;
+import com.sun.tools.xjc.outline.EnumOutline;
 import com.sun.tools.xjc.outline.Outline;
+import com.sun.xml.xsom.XSAttributeUse;
+import com.sun.xml.xsom.XSComponent;
+import com.sun.xml.xsom.XSElementDecl;
+import com.sun.xml.xsom.XSParticle;
+import com.sun.xml.xsom.XSSimpleType;
+import jakarta.xml.bind.DataBindingException;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.MarshalException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import jakarta.xml.bind.ValidationEventHandler;
+import jakarta.xml.bind.annotation.DomHandler;
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlAnyElement;
+import jakarta.xml.bind.annotation.XmlAnyAttribute;
 import jakarta.xml.bind.annotation.XmlAttribute;
 import jakarta.xml.bind.annotation.XmlElement;
+import jakarta.xml.bind.annotation.XmlElementRef;
+import jakarta.xml.bind.annotation.XmlMixed;
+import jakarta.xml.bind.annotation.XmlTransient;
+import jakarta.xml.bind.annotation.XmlType;
 import jakarta.xml.bind.annotation.XmlValue;
+import jakarta.xml.bind.annotation.adapters.XmlAdapter;
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
+import org.glassfish.jaxb.core.api.impl.NameConverter;
+import org.glassfish.jaxb.core.v2.model.core.ID;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
 
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 import java.beans.Introspector;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.Temporal;
+import java.time.temporal.TemporalAccessor;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -41,11 +148,58 @@ public final class PluginImpl extends Plugin {
     private static final String CONSTRUCTORDEFAULTS_OPTION_NAME = "-Ximm-constructordefaults";
     private static final String OPTIONAL_GETTER_OPTION_NAME = "-Ximm-optionalgetter";
     private static final String NOFINALCLASSES_OPTION_NAME = "-Ximm-nofinalclasses";
+    private static final String STATS_OPTION_NAME = "-Ximm-stats";
+    private static final String SUPPORTCLASS_OPTION_NAME = "-Ximm-supportclass";
+    private static final String KEYINDEX_OPTION_NAME = "-Ximm-keyindex";
+    private static final String KEYREF_OPTION_NAME = "-Ximm-keyref";
+    private static final String CHOICEVIEWS_OPTION_NAME = "-Ximm-choiceviews";
+    private static final String NARROWNUMBERS_OPTION_NAME = "-Ximm-narrownumbers";
+    private static final String JAVATIME_OPTION_NAME = "-Ximm-javatime";
+    private static final String BINARYVIEWS_OPTION_NAME = "-Ximm-binaryviews";
+    private static final String BOUNDEDLISTS_OPTION_NAME = "-Ximm-boundedlists";
+    private static final String ENUMLOOKUP_OPTION_NAME = "-Ximm-enumlookup";
+    private static final String COMPACTANYATTR_OPTION_NAME = "-Ximm-compactanyattr";
+    private static final String ELEMENTVALUES_OPTION_NAME = "-Ximm-elementvalues";
+    private static final String STREAMREADERS_OPTION_NAME = "-Ximm-streamreaders";
+    private static final String STREAMWRITERS_OPTION_NAME = "-Ximm-streamwriters";
+    private static final String XMLCACHE_OPTION_NAME = "-Ximm-xmlcache";
+    private static final String STRUCTURALDIFF_OPTION_NAME = "-Ximm-structuraldiff";
+    private static final String SNAPSHOT_OPTION_NAME = "-Ximm-snapshot";
+    private static final String FLATVIEWS_OPTION_NAME = "-Ximm-flatviews";
+    private static final String COLUMNS_OPTION_NAME = "-Ximm-columns";
+    private static final String TRANSFORM_OPTION_NAME = "-Ximm-transform";
+    private static final String JFR_OPTION_NAME = "-Ximm-jfr";
+    private static final String LAZY_OPTION_NAME = "-Ximm-lazy";
 
     private static final String UNSET_PREFIX = "unset";
     private static final String SET_PREFIX = "set";
     private static final String MESSAGE_PREFIX = "IMMUTABLE-XJC";
+    private static final String SUPPORT_CLASS_NAME = "ImmutableSupport";
+    private static final String OPEN_ELEMENT_WRITER_CLASS_NAME = "OpenElementWriter";
+    private static final String CACHED_XML_CLASS_NAME = "CachedXml";
+    private static final String SPLICED_XML_CLASS_NAME = "SplicedXml";
+    private static final String DIFFABLE_CLASS_NAME = "Diffable";
+    private static final String DIFFERENCE_CLASS_NAME = "Difference";
+    private static final String SNAPSHOT_CLASS_NAME = "Snapshot";
+    private static final String[] SNAPSHOT_TAGS = {"NULL", "STRING", "BOOLEAN", "BYTE", "SHORT", "INT", "LONG", "FLOAT", "DOUBLE",
+            "BIG_INTEGER", "BIG_DECIMAL", "BYTES", "QNAME", "CALENDAR", "DURATION", "OFFSET_DATE_TIME", "LOCAL_DATE_TIME", "LOCAL_DATE", "LIST", "MAP",
+            "ELEMENT", "ENUM", "OBJECT", "REFERENCE"};
+    private static final String FLAT_VIEWS_CLASS_NAME = "FlatViews";
+    private static final String FLAT_PREFIX = "Flat";
+    private static final String VIEW_SUFFIX = "View";
+    private static final String COLUMNS_SUFFIX = "Columns";
+    private static final String TRANSFORMABLE_CLASS_NAME = "Transformable";
+    private static final String TREE_TRANSFORMER_CLASS_NAME = "TreeTransformer";
+    private static final String BUILD_EVENT_CLASS_NAME = "BuildEvent";
+    private static final String COPY_EVENT_CLASS_NAME = "CopyEvent";
+    private static final String COLLECTION_COPY_EVENT_CLASS_NAME = "CollectionCopyEvent";
+    private static final String LAZY_XML_CLASS_NAME = "LazyXml";
+    private static final String RAW_XML_CLASS_NAME = "RawXml";
+    private static final String LAZY_XML_ADAPTER_CLASS_NAME = "LazyXmlAdapter";
+    private static final long DEFAULT_XML_CACHE_BUDGET = 16 * 1024 * 1024;
+    private static final int DEFAULT_JFR_THRESHOLD = 100;
     private static final JType[] NO_ARGS = new JType[0];
+    private static final int MAX_BOUNDED_LIST_SIZE = 8;
 
     private final ResourceBundle resourceBundle = ResourceBundle.getBundle(PluginImpl.class.getCanonicalName());
 
@@ -60,15 +214,75 @@ public final class PluginImpl extends Plugin {
     private boolean useSimpleBuilderName;
     private boolean optionalGetter;
     private boolean noFinalClasses;
+    private Path statsFile;
+    private boolean useSupportClass;
+    private boolean createKeyIndex;
+    private boolean createKeyRef;
+    private boolean createChoiceViews;
+    private boolean narrowNumbers;
+    private boolean useJavaTime;
+    private boolean createBinaryViews;
+    private boolean copyBinaryGetters;
+    private boolean boundedLists;
+    private boolean fastEnumLookup;
+    private boolean compactAnyAttributes;
+    private boolean addElementValues;
+    private boolean createStreamReaders;
+    private boolean createStreamWriters;
+    private boolean cacheXml;
+    private long xmlCacheBudget = DEFAULT_XML_CACHE_BUDGET;
+    private Set<JDefinedClass> xmlCachedClasses = Collections.emptySet();
+    private boolean spliceXml;
+    private boolean createStructuralDiff;
+    private boolean createSnapshots;
+    private boolean createFlatViews;
+    private boolean createColumns;
+    private Set<String> columnClassNames = Collections.emptySet();
+    private boolean createTransform;
+    private boolean recordFlightEvents;
+    private int flightRecorderThreshold = DEFAULT_JFR_THRESHOLD;
+    private Set<String> lazyFieldNames = Collections.emptySet();
+    private Map<JDefinedClass, List<IdentityConstraints.Constraint>> keyIndexes = Collections.emptyMap();
+    private Map<JDefinedClass, List<IdentityConstraints.Constraint>> keyRefs = Collections.emptyMap();
+    private Map<JFieldVar, Integer> listBounds = Collections.emptyMap();
+    private Map<JFieldVar, ElementFactory> elementFactories = Collections.emptyMap();
+    private Set<JFieldVar> elementNilFlags = Collections.emptySet();
+    private final Map<String, JDefinedClass> javaTimeAdapters = new HashMap<>();
+    private JDefinedClass[] flightRecorderEvents;
+    private Set<JFieldVar> lazyFields = Collections.emptySet();
+    private JDefinedClass[] lazyClasses;
     private Options options;
+    private CodegenStats stats;
+
+    @Override
+    public void postProcessModel(final Model model, final ErrorHandler errorHandler) {
+        if (narrowNumbers || useJavaTime) {
+            for (CClassInfo classInfo : model.beans().values()) {
+                for (CPropertyInfo property : classInfo.getProperties()) {
+                    XSSimpleType simpleType = getSimpleType(property);
+                    if (simpleType == null) {
+                        continue;
+                    }
+                    if (narrowNumbers) {
+                        narrowNumericProperty(property, simpleType);
+                    }
+                    if (useJavaTime) {
+                        bindJavaTimeProperty(model, classInfo, property, simpleType);
+                    }
+                }
+            }
+        }
+    }
 
     @Override
     public boolean run(final Outline model, final Options options, final ErrorHandler errorHandler) {
         boolean success = true;
         this.options = options;
+        this.stats = new CodegenStats(statsFile != null);
 
         this.log(Level.INFO, "title");
 
+        stats.beginPhase(CodegenStats.Phase.SORTING);
         List<? extends ClassOutline> classes = new ArrayList<ClassOutline>(model.getClasses());
         if (builderInheritance) {
             classes.sort(new Comparator<ClassOutline>() {
@@ -86,16 +300,42 @@ public final class PluginImpl extends Plugin {
                 }
             });
         }
+        stats.endPhase(CodegenStats.Phase.SORTING);
+        if (createKeyIndex) {
+            keyIndexes = collectIdentityConstraints(classes, false);
+        }
+        if (createKeyRef) {
+            keyRefs = collectIdentityConstraints(classes, true);
+        }
+        if (boundedLists && !leaveCollectionsMutable) {
+            listBounds = collectListBounds(classes);
+        }
+        if (addElementValues) {
+            elementFactories = collectElementFactories(model, classes);
+            elementNilFlags = new HashSet<>();
+        }
+        if (recordFlightEvents) {
+            flightRecorderEvents = addFlightRecorderEventClasses(model);
+        }
+        if (!lazyFieldNames.isEmpty()) {
+            lazyFields = collectLazyFields(model, classes);
+            lazyClasses = lazyFields.isEmpty() ? null : addLazyXmlClasses(model);
+            if (lazyClasses == null) {
+                lazyFields = Collections.emptySet();
+            }
+        }
         for (ClassOutline clazz : classes) {
             JDefinedClass implClass = clazz.implClass;
 
             JFieldVar[] declaredFields = getDeclaredFields(implClass);
+            stats.beginClass(implClass, declaredFields.length);
             ClassField[] superclassFieldsWithOwners = getSuperclassFields(implClass);
             JFieldVar[] superclassFields = Arrays.stream(superclassFieldsWithOwners).map(ClassField::getField).toArray(JFieldVar[]::new);
 
             makePropertiesPrivate(implClass);
             makePropertiesFinal(implClass, declaredFields);
 
+            stats.beginPhase(CodegenStats.Phase.CONSTRUCTORS);
             int declaredFieldsLength = declaredFields.length;
             int superclassFieldsLength = superclassFields.length;
             JMethod propertyContructor = null;
@@ -115,28 +355,114 @@ public final class PluginImpl extends Plugin {
             if (propertyContructor == null || !propertyContructor.params().isEmpty()) {
                 addStandardConstructor(implClass, declaredFields, superclassFields);
             }
+            if (compactAnyAttributes) {
+                freezeAnyAttributesAfterUnmarshal(implClass, declaredFields);
+            }
+            stats.endPhase(CodegenStats.Phase.CONSTRUCTORS);
 
             makeClassFinal(implClass);
+
+            stats.beginPhase(CodegenStats.Phase.SETTER_REMOVAL);
             removeSetters(implClass);
+            stats.endPhase(CodegenStats.Phase.SETTER_REMOVAL);
+
+            stats.beginPhase(CodegenStats.Phase.GETTER_REPLACEMENT);
             replaceCollectionGetters(implClass, declaredFields);
 
+            if (createBinaryViews) {
+                replaceBinaryGetters(implClass, declaredFields);
+            }
+
             if (optionalGetter) {
                 replaceOptionalGetters(implClass, declaredFields);
             }
 
+            if (addElementValues) {
+                unwrapElementFields(implClass, declaredFields);
+            }
+            stats.endPhase(CodegenStats.Phase.GETTER_REPLACEMENT);
+
             if (createBuilder) {
                 if (!clazz.implClass.isAbstract()) {
                     JFieldVar[] unhandledSuperclassFields = getUnhandledSuperclassFields(superclassFieldsWithOwners);
+                    stats.beginPhase(CodegenStats.Phase.BUILDER_GENERATION);
                     JDefinedClass builderClass;
                     if ((builderClass = addBuilderClass(clazz, declaredFields, unhandledSuperclassFields, superclassFields)) == null) {
                         log(Level.WARNING, "couldNotAddClassBuilder", implClass.binaryName());
                     }
+                    stats.endPhase(CodegenStats.Phase.BUILDER_GENERATION);
 
                     if (createCConstructor && builderClass != null) {
+                        stats.beginPhase(CodegenStats.Phase.COPY_CONSTRUCTORS);
                         addCopyConstructor(clazz.implClass, builderClass, declaredFields, unhandledSuperclassFields);
+                        stats.endPhase(CodegenStats.Phase.COPY_CONSTRUCTORS);
                     }
                 }
             }
+            stats.endClass();
+        }
+        if (lazyClasses != null) {
+            for (ClassOutline clazz : classes) {
+                makeFieldsLazy(clazz);
+            }
+        }
+
+        JDefinedClass[] diffClasses = createStructuralDiff ? addStructuralDiffClasses(model) : null;
+        JDefinedClass[] transformClasses = createTransform ? addTransformClasses(model) : null;
+        if (createSnapshots) {
+            addSnapshots(model);
+        }
+        if (createFlatViews) {
+            addFlatViews(model);
+        }
+        JDefinedClass cachedXml = cacheXml ? addCachedXmlClass(model) : null;
+        if (cachedXml != null) {
+            xmlCachedClasses = collectXmlCachedClasses(model, classes);
+        }
+        for (ClassOutline clazz : classes) {
+            List<IdentityConstraints.Constraint> constraints = keyIndexes.get(clazz.implClass);
+            if (constraints != null) {
+                for (IdentityConstraints.Constraint constraint : constraints) {
+                    addKeyIndex(model, clazz.implClass, constraint);
+                }
+            }
+            List<IdentityConstraints.Constraint> references = keyRefs.get(clazz.implClass);
+            if (references != null) {
+                for (IdentityConstraints.Constraint reference : references) {
+                    addKeyRefResolver(model, clazz.implClass, reference);
+                }
+            }
+            if (createChoiceViews && !leaveCollectionsMutable) {
+                addChoiceViews(model, clazz);
+            }
+            if (createStreamReaders) {
+                addStreamReaders(model, clazz);
+            }
+            if (createStreamWriters) {
+                addStreamWriters(model, clazz);
+            }
+            if (cachedXml != null) {
+                addXmlCache(model, clazz, cachedXml);
+            }
+            if (diffClasses != null) {
+                addStructuralDiff(model, clazz, diffClasses[0], diffClasses[1]);
+            }
+            if (createColumns) {
+                addColumns(model, clazz);
+            }
+            if (transformClasses != null) {
+                addTransform(model, clazz, transformClasses[0], transformClasses[1]);
+            }
+        }
+
+        if (fastEnumLookup) {
+            for (EnumOutline enumOutline : model.getEnums()) {
+                replaceEnumFromValue(enumOutline.clazz);
+            }
+        }
+
+        for (ClassOutline clazz : model.getClasses()) {
+            linkAfterUnmarshal(clazz.implClass);
         }
 
         // if superclass is a JAXB bound class or an abstract class, revert setting it final
@@ -148,6 +474,27 @@ public final class PluginImpl extends Plugin {
             }
         }
 
+        stats.endRun();
+        if (statsFile != null) {
+            try {
+                stats.write(statsFile);
+                log(Level.INFO, "statsWritten", statsFile);
+            } catch (IOException e) {
+                log(Level.WARNING, "couldNotWriteStats", statsFile, e.getMessage());
+            }
+        }
+
+        this.keyIndexes = Collections.emptyMap();
+        this.keyRefs = Collections.emptyMap();
+        this.listBounds = Collections.emptyMap();
+        this.elementFactories = Collections.emptyMap();
+        this.elementNilFlags = Collections.emptySet();
+        this.xmlCachedClasses = Collections.emptySet();
+        this.spliceXml = false;
+        this.flightRecorderEvents = null;
+        this.lazyFields = Collections.emptySet();
+        this.lazyClasses = null;
+        this.stats = null;
         this.options = null;
 
         return success;
@@ -175,6 +522,28 @@ public final class PluginImpl extends Plugin {
         appendOption(retval, CONSTRUCTORDEFAULTS_OPTION_NAME, getMessage("setDefaultValuesInConstructor"), n, maxOptionLength);
         appendOption(retval, OPTIONAL_GETTER_OPTION_NAME, getMessage("optionalGetterUsage"), n, maxOptionLength);
         appendOption(retval, NOFINALCLASSES_OPTION_NAME, getMessage("noFinalClassesUsage"), n, maxOptionLength);
+        appendOption(retval, STATS_OPTION_NAME, getMessage("statsUsage"), n, maxOptionLength);
+        appendOption(retval, SUPPORTCLASS_OPTION_NAME, getMessage("supportClassUsage"), n, maxOptionLength);
+        appendOption(retval, KEYINDEX_OPTION_NAME, getMessage("keyIndexUsage"), n, maxOptionLength);
+        appendOption(retval, KEYREF_OPTION_NAME, getMessage("keyRefUsage"), n, maxOptionLength);
+        appendOption(retval, CHOICEVIEWS_OPTION_NAME, getMessage("choiceViewsUsage"), n, maxOptionLength);
+        appendOption(retval, NARROWNUMBERS_OPTION_NAME, getMessage("narrowNumbersUsage"), n, maxOptionLength);
+        appendOption(retval, JAVATIME_OPTION_NAME, getMessage("javaTimeUsage"), n, maxOptionLength);
+        appendOption(retval, BINARYVIEWS_OPTION_NAME, getMessage("binaryViewsUsage"), n, maxOptionLength);
+        appendOption(retval, BOUNDEDLISTS_OPTION_NAME, getMessage("boundedListsUsage"), n, maxOptionLength);
+        appendOption(retval, ENUMLOOKUP_OPTION_NAME, getMessage("enumLookupUsage"), n, maxOptionLength);
+        appendOption(retval, COMPACTANYATTR_OPTION_NAME, getMessage("compactAnyAttrUsage"), n, maxOptionLength);
+        appendOption(retval, ELEMENTVALUES_OPTION_NAME, getMessage("elementValuesUsage"), n, maxOptionLength);
+        appendOption(retval, STREAMREADERS_OPTION_NAME, getMessage("streamReadersUsage"), n, maxOptionLength);
+        appendOption(retval, STREAMWRITERS_OPTION_NAME, getMessage("streamWritersUsage"), n, maxOptionLength);
+        appendOption(retval, XMLCACHE_OPTION_NAME, getMessage("xmlCacheUsage"), n, maxOptionLength);
+        appendOption(retval, STRUCTURALDIFF_OPTION_NAME, getMessage("structuralDiffUsage"), n, maxOptionLength);
+        appendOption(retval, SNAPSHOT_OPTION_NAME, getMessage("snapshotUsage"), n, maxOptionLength);
+        appendOption(retval, FLATVIEWS_OPTION_NAME, getMessage("flatViewsUsage"), n, maxOptionLength);
+        appendOption(retval, COLUMNS_OPTION_NAME, getMessage("columnsUsage"), n, maxOptionLength);
+        appendOption(retval, TRANSFORM_OPTION_NAME, getMessage("transformUsage"), n, maxOptionLength);
+        appendOption(retval, JFR_OPTION_NAME, getMessage("jfrUsage"), n, maxOptionLength);
+        appendOption(retval, LAZY_OPTION_NAME, getMessage("lazyUsage"), n, maxOptionLength);
         return retval.toString();
     }
 
@@ -188,7 +557,7 @@ public final class PluginImpl extends Plugin {
     }
 
     @Override
-    public int parseArgument(final Options opt, final String[] args, final int i) {
+    public int parseArgument(final Options opt, final String[] args, final int i) throws BadCommandLineException {
         if (args[i].startsWith(BUILDER_OPTION_NAME)) {
             this.createBuilder = true;
             return 1;
@@ -234,9 +603,252 @@ public final class PluginImpl extends Plugin {
             this.noFinalClasses = true;
             return 1;
         }
+        if (args[i].startsWith(STATS_OPTION_NAME)) {
+            if (!args[i].startsWith(STATS_OPTION_NAME + "=") || args[i].length() == STATS_OPTION_NAME.length() + 1) {
+                throw new BadCommandLineException(getMessage("statsMissingFile", STATS_OPTION_NAME));
+            }
+            this.statsFile = Paths.get(args[i].substring(STATS_OPTION_NAME.length() + 1));
+            return 1;
+        }
+        if (args[i].startsWith(SUPPORTCLASS_OPTION_NAME)) {
+            this.useSupportClass = true;
+            return 1;
+        }
+        if (args[i].startsWith(KEYINDEX_OPTION_NAME)) {
+            this.createKeyIndex = true;
+            return 1;
+        }
+        if (args[i].startsWith(NARROWNUMBERS_OPTION_NAME)) {
+            this.narrowNumbers = true;
+            return 1;
+        }
+        if (args[i].startsWith(JAVATIME_OPTION_NAME)) {
+            this.useJavaTime = true;
+            return 1;
+        }
+        if (args[i].startsWith(BINARYVIEWS_OPTION_NAME)) {
+            this.createBinaryViews = true;
+            this.copyBinaryGetters = args[i].equals(BINARYVIEWS_OPTION_NAME + "=copy");
+            return 1;
+        }
+        if (args[i].startsWith(BOUNDEDLISTS_OPTION_NAME)) {
+            this.boundedLists = true;
+            return 1;
+        }
+        if (args[i].startsWith(ENUMLOOKUP_OPTION_NAME)) {
+            this.fastEnumLookup = true;
+            return 1;
+        }
+        if (args[i].startsWith(COMPACTANYATTR_OPTION_NAME)) {
+            this.compactAnyAttributes = true;
+            return 1;
+        }
+        if (args[i].startsWith(ELEMENTVALUES_OPTION_NAME)) {
+            this.addElementValues = true;
+            return 1;
+        }
+        if (args[i].startsWith(STREAMREADERS_OPTION_NAME)) {
+            this.createStreamReaders = true;
+            return 1;
+        }
+        if (args[i].startsWith(STREAMWRITERS_OPTION_NAME)) {
+            this.createStreamWriters = true;
+            return 1;
+        }
+        if (args[i].startsWith(SNAPSHOT_OPTION_NAME)) {
+            this.createSnapshots = true;
+            return 1;
+        }
+        if (args[i].startsWith(FLATVIEWS_OPTION_NAME)) {
+            this.createFlatViews = true;
+            return 1;
+        }
+        if (args[i].startsWith(LAZY_OPTION_NAME)) {
+            if (args[i].length() > LAZY_OPTION_NAME.length()) {
+                this.lazyFieldNames = new HashSet<>(Arrays.asList(args[i].substring(LAZY_OPTION_NAME.length() + 1).split(",")));
+            }
+            return 1;
+        }
+        if (args[i].startsWith(JFR_OPTION_NAME)) {
+            this.recordFlightEvents = true;
+            if (args[i].length() > JFR_OPTION_NAME.length()) {
+                this.flightRecorderThreshold = Integer.parseInt(args[i].substring(JFR_OPTION_NAME.length() + 1));
+            }
+            return 1;
+        }
+        if (args[i].startsWith(TRANSFORM_OPTION_NAME)) {
+            this.createTransform = true;
+            return 1;
+        }
+        if (args[i].startsWith(COLUMNS_OPTION_NAME)) {
+            this.createColumns = true;
+            if (args[i].length() > COLUMNS_OPTION_NAME.length()) {
+                this.columnClassNames = new HashSet<>(Arrays.asList(args[i].substring(COLUMNS_OPTION_NAME.length() + 1).split(",")));
+            }
+            return 1;
+        }
+        if (args[i].startsWith(STRUCTURALDIFF_OPTION_NAME)) {
+            this.createStructuralDiff = true;
+            return 1;
+        }
+        if (args[i].startsWith(XMLCACHE_OPTION_NAME)) {
+            this.cacheXml = true;
+            if (args[i].length() > XMLCACHE_OPTION_NAME.length()) {
+                this.xmlCacheBudget = Long.parseLong(args[i].substring(XMLCACHE_OPTION_NAME.length() + 1));
+            }
+            return 1;
+        }
+        if (args[i].startsWith(CHOICEVIEWS_OPTION_NAME)) {
+            this.createChoiceViews = true;
+            return 1;
+        }
+        if (args[i].startsWith(KEYREF_OPTION_NAME)) {
+            this.createKeyIndex = true;
+            this.createKeyRef = true;
+            return 1;
+        }
         return 0;
     }
 
+    private void narrowNumericProperty(CPropertyInfo property, XSSimpleType simpleType) {
+        if (getBoundType(property) == CBuiltinLeafInfo.BIG_INTEGER) {
+            CBuiltinLeafInfo narrowed = NumericRanges.narrowedType(simpleType);
+            if (narrowed != null) {
+                setBoundType(property, narrowed);
+            }
+        }
+    }
+
+    private void bindJavaTimeProperty(Model model, CClassInfo classInfo, CPropertyInfo property, XSSimpleType simpleType) {
+        if (getBoundType(property) != CBuiltinLeafInfo.CALENDAR) {
+            return;
+        }
+        String builtinName = null;
+        for (XSSimpleType t = simpleType; t != null; t = t.getSimpleBaseType()) {
+            if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(t.getTargetNamespace())) {
+                builtinName = t.getName();
+                break;
+            }
+        }
+        Class<?> javaTimeType;
+        if ("dateTime".equals(builtinName)) {
+            // values with and without timezone are kept apart, as OffsetDateTime and LocalDateTime
+            javaTimeType = Temporal.class;
+        } else if ("date".equals(builtinName)) {
+            javaTimeType = LocalDate.class;
+        } else {
+            // xs:time, xs:gYear and the like have no lossless java.time counterpart
+            return;
+        }
+        CAdapter adapter = new CAdapter(getJavaTimeAdapter(model.codeModel, classInfo.getOwnerPackage(), javaTimeType));
+        if (property instanceof CElementPropertyInfo) {
+            ((CElementPropertyInfo) property).setAdapter(adapter);
+            setBoundType(property, CBuiltinLeafInfo.STRING);
+        } else {
+            setBoundType(property, TypeUseFactory.adapt(CBuiltinLeafInfo.STRING, adapter));
+        }
+    }
+
+    private JDefinedClass getJavaTimeAdapter(JCodeModel codeModel, JPackage targetPackage, Class<?> javaTimeType) {
+        String key = targetPackage.name() + ':' + javaTimeType.getName();
+        JDefinedClass adapter = javaTimeAdapters.get(key);
+        if (adapter != null) {
+            return adapter;
+        }
+        String baseName = (javaTimeType == LocalDate.class ? "LocalDate" : "DateTime") + "Adapter";
+        String name = baseName;
+        for (int i = 2; adapter == null; i++) {
+            try {
+                adapter = targetPackage._class(JMod.PUBLIC | JMod.FINAL, name);
+            } catch (JClassAlreadyExistsException e) {
+                // the name is taken by a class of the schema
+                name = baseName + i;
+            }
+        }
+        javaTimeAdapters.put(key, adapter);
+        JClass valueType = codeModel.ref(javaTimeType);
+        JClass formatter = codeModel.ref(DateTimeFormatter.class);
+        JExpression offsetSeconds = codeModel.ref(ChronoField.class).staticRef("OFFSET_SECONDS");
+        adapter._extends(codeModel.ref(XmlAdapter.class).narrow(codeModel.ref(String.class), valueType));
+        if (javaTimeType == LocalDate.class) {
+            adapter.javadoc().append("Binds xs:date values to {@link " + LocalDate.class.getName() + "}.");
+        } else {
+            adapter.javadoc().append("Binds xs:dateTime values with timezone to {@link " + OffsetDateTime.class.getName() + "} and values without it to {@link "
+                    + LocalDateTime.class.getName() + "}, so that they are written back as they were read.");
+        }
+
+        JMethod unmarshal = adapter.method(JMod.PUBLIC, valueType, "unmarshal");
+        unmarshal.annotate(Override.class);
+        JVar value = unmarshal.param(JMod.FINAL, String.class, "value");
+        unmarshal.body()._if(value.eq(JExpr._null()))._then()._return(JExpr._null());
+        if (javaTimeType == LocalDate.class) {
+            // the optional timezone of xs:date is parsed, but dropped
+            unmarshal.body()._return(valueType.staticInvoke("from").arg(formatter.staticRef("ISO_DATE").invoke("parse").arg(value.invoke("trim"))));
+        } else {
+            JVar parsed = unmarshal.body().decl(JMod.FINAL, codeModel.ref(TemporalAccessor.class), "parsed",
+                    formatter.staticRef("ISO_DATE_TIME").invoke("parse").arg(value.invoke("trim")));
+            unmarshal.body()._if(parsed.invoke("isSupported").arg(offsetSeconds))._then()
+                    ._return(codeModel.ref(OffsetDateTime.class).staticInvoke("from").arg(parsed));
+            unmarshal.body()._return(codeModel.ref(LocalDateTime.class).staticInvoke("from").arg(parsed));
+        }
+
+        JMethod marshal = adapter.method(JMod.PUBLIC, String.class, "marshal");
+        marshal.annotate(Override.class);
+        value = marshal.param(JMod.FINAL, valueType, "value");
+        marshal.body()._if(value.eq(JExpr._null()))._then()._return(JExpr._null());
+        if (javaTimeType == LocalDate.class) {
+            marshal.body()._return(formatter.staticRef("ISO_LOCAL_DATE").invoke("format").arg(value));
+        } else {
+            marshal.body()._return(JOp.cond(value.invoke("isSupported").arg(offsetSeconds),
+                    formatter.staticRef("ISO_OFFSET_DATE_TIME").invoke("format").arg(value),
+                    formatter.staticRef("ISO_LOCAL_DATE_TIME").invoke("format").arg(value)));
+        }
+        return adapter;
+    }
+
+    private XSSimpleType getSimpleType(CPropertyInfo property) {
+        if (property.getAdapter() != null) {
+            return null;
+        }
+        XSComponent component = property.getSchemaComponent();
+        if (property instanceof CAttributePropertyInfo && component instanceof XSAttributeUse) {
+            return ((XSAttributeUse) component).getDecl().getType();
+        }
+        if (property instanceof CElementPropertyInfo && ((CElementPropertyInfo) property).getTypes().size() == 1) {
+            if (component instanceof XSParticle) {
+                component = ((XSParticle) component).getTerm();
+            }
+            if (component instanceof XSElementDecl && ((XSElementDecl) component).getType().isSimpleType()) {
+                return ((XSElementDecl) component).getType().asSimpleType();
+            }
+        }
+        return null;
+    }
+
+    // bound types are final fields of the model, we really need to read and replace them
+    private TypeUse getBoundType(CPropertyInfo property) {
+        try {
+            if (property instanceof CAttributePropertyInfo) {
+                return (TypeUse) FieldUtils.readField(property, "type", true);
+            }
+            return ((CElementPropertyInfo) property).getTypes().get(0).getTarget();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void setBoundType(CPropertyInfo property, TypeUse type) {
+        try {
+            if (property instanceof CAttributePropertyInfo) {
+                FieldUtils.writeField(property, "type", type, true);
+            } else {
+                FieldUtils.writeField(((CElementPropertyInfo) property).getTypes().get(0), "type", type, true);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private String getMessage(final String key, final Object... args) {
         return MessageFormat.format(resourceBundle.getString(key), args);
     }
@@ -260,6 +872,9 @@ public final class PluginImpl extends Plugin {
                 if (isCollection(inheritedField)) {
                     addAddMethod(builderClass, inheritedField, true);
                 }
+                if (elementFactories.containsKey(inheritedField)) {
+                    addWithValueMethod(builderClass, inheritedField, true);
+                }
             }
         }
         addNewBuilder(clazz, builderClass);
@@ -280,13 +895,21 @@ public final class PluginImpl extends Plugin {
             if (isCollection(field)) {
                 addAddMethod(builderClass, field, false);
             }
+            if (elementFactories.containsKey(field)) {
+                addWithValueMethod(builderClass, field, false);
+            }
         }
     }
 
     private JVar addProperty(JDefinedClass clazz, JFieldVar field) {
         JType jType = getJavaType(field);
         int builderFieldVisibility = builderInheritance ? JMod.PROTECTED : JMod.PRIVATE;
-        if (isCollection(field)) {
+        if (isCollection(field) && listBounds.containsKey(field)) {
+            // bounded lists never grow
+            return clazz.field(builderFieldVisibility, jType, field.name(),
+                    JExpr._new(field.type().owner().ref(ArrayList.class).narrow(Collections.<JClass>emptyList()))
+                            .arg(JExpr.lit(listBounds.get(field))));
+        } else if (isCollection(field)) {
             return clazz.field(builderFieldVisibility, jType, field.name(),
                     getNewCollectionExpression(field.type().owner(), jType));
         } else {
@@ -299,10 +922,15 @@ public final class PluginImpl extends Plugin {
         if (hasSuperClass(builderClass)) {
             method.annotate(Override.class);
         }
+        JVar event = flightRecorderEvents == null ? null : beginFlightRecorderEvent(method.body(), flightRecorderEvents[0], "buildEvent");
+        List<JExpression> collections = new ArrayList<>();
         JInvocation constructorInvocation = JExpr._new(clazz);
         for (JFieldVar field : superclassFields) {
             if (mustAssign(field)) {
                 constructorInvocation.arg(JExpr.ref(field.name()));
+                if (isCollection(field)) {
+                    collections.add(JExpr.ref(field.name()));
+                }
             }
         }
         for (JFieldVar field : declaredFields) {
@@ -314,9 +942,27 @@ public final class PluginImpl extends Plugin {
                             .arg("Required field '" + field.name() + "' have to be assigned a value."));
                 }
                 constructorInvocation.arg(JExpr.ref(field.name()));
+                if (isCollection(field)) {
+                    collections.add(JExpr.ref(field.name()));
+                }
+            }
+        }
+        List<IdentityConstraints.Constraint> constraints = keyIndexes.get(clazz);
+        if (constraints != null || event != null) {
+            JVar result = method.body().decl(clazz, "result", constructorInvocation);
+            if (constraints != null) {
+                // build the key indexes eagerly, so that duplicate keys are reported by the builder
+                for (IdentityConstraints.Constraint constraint : constraints) {
+                    method.body().invoke(result, getKeyIndexName(constraint));
+                }
             }
+            if (event != null) {
+                commitFlightRecorderEvent(method.body(), event, clazz, collections, null);
+            }
+            method.body()._return(result);
+        } else {
+            method.body()._return(constructorInvocation);
         }
-        method.body()._return(constructorInvocation);
         return method;
     }
 
@@ -393,8 +1039,12 @@ public final class PluginImpl extends Plugin {
             generateSuperCall(method);
         } else if(isCollection(field)) {
             final JFieldRef builderCollectionField = JExpr.refthis(field.name());
-            method.body().add(builderCollectionField.invoke("clear"));
             JVar param = generateMethodParameter(method, field);
+            if (listBounds.containsKey(field)) {
+                addListBoundCheck(method.body(), param.ne(JExpr._null()).cand(param.invoke("size").gt(JExpr.lit(listBounds.get(field)))),
+                        IllegalArgumentException.class, field);
+            }
+            method.body().add(builderCollectionField.invoke("clear"));
             JConditional conditional = method.body()._if(param.ne(JExpr._null()));
             conditional._then()
                     .add(builderCollectionField.invoke(isMap(field) ? "putAll" : "addAll").arg(param));
@@ -437,6 +1087,10 @@ public final class PluginImpl extends Plugin {
         if (inherit) {
             generateSuperCall(method);
         } else {
+            if (listBounds.containsKey(field)) {
+                addListBoundCheck(block, JExpr.refthis(fieldName).invoke("size").gte(JExpr.lit(listBounds.get(field))),
+                        IllegalStateException.class, field);
+            }
             String methodName = isMap(field) ? "put" : "add";
             JInvocation invocation = JExpr.refthis(fieldName).invoke(methodName);
             params.forEach(invocation::arg);
@@ -446,6 +1100,42 @@ public final class PluginImpl extends Plugin {
         return method;
     }
 
+    private JMethod addWithValueMethod(JDefinedClass builderClass, JFieldVar field, boolean inherit) {
+        ElementFactory factory = elementFactories.get(field);
+        String methodName = "with" + StringUtils.capitalize(field.name()) + "Value";
+        if (builderClass.getMethod(methodName, new JType[]{factory.getValueType()}) != null) {
+            log(Level.WARNING, "couldNotAddElementValueAccessor", methodName, builderClass.binaryName());
+            return null;
+        }
+        JMethod method = builderClass.method(JMod.PUBLIC, builderClass, methodName);
+        JVar param = method.param(JMod.FINAL, factory.getValueType(), field.name());
+        if (inherit) {
+            generateSuperCall(method);
+        } else {
+            // null stands for an absent element, nil elements are set as JAXBElement
+            method.body().assign(JExpr.refthis(field.name()), JOp.cond(param.eq(JExpr._null()), JExpr._null(),
+                    getObjectFactoryField(builderClass, factory.getObjectFactory()).invoke(factory.getMethod()).arg(param)));
+        }
+        method.body()._return(JExpr._this());
+        return method;
+    }
+
+    /**
+     * Returns static field of given class holding an instance of given object factory, the field is added on first
+     * use. Object factories have no state, so instances share a single one.
+     */
+    private JFieldVar getObjectFactoryField(JDefinedClass clazz, JDefinedClass objectFactory) {
+        String name = "OBJECT_FACTORY";
+        for (int i = 1; clazz.fields().containsKey(name); i++) {
+            JFieldVar field = clazz.fields().get(name);
+            if (field.type().equals(objectFactory) && (field.mods().getValue() & JMod.STATIC) != 0) {
+                return field;
+            }
+            name = "OBJECT_FACTORY" + i;
+        }
+        return clazz.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, objectFactory, name, JExpr._new(objectFactory));
+    }
+
     private List<JVar> createAddParameters(JMethod method, List<JClass> typeParams, String fieldName) {
         return IntStream.range(0, typeParams.size())
                 .mapToObj(i -> createAddParameter(method, typeParams, fieldName, i))
@@ -516,7 +1206,8 @@ public final class PluginImpl extends Plugin {
 
     private void replaceOptionalGetters(JDefinedClass implClass, JFieldVar[] declaredFields) {
         for (JFieldVar field : declaredFields) {
-            if (isCollection(field)) {
+            // JAXB marshals unwrapped elements through their getter, get<Field>Value() returns the Optional
+            if (isCollection(field) || elementFactories.containsKey(field)) {
                 continue;
             }
 
@@ -543,7 +1234,11 @@ public final class PluginImpl extends Plugin {
 
         JVar param = generateMethodParameter(getter, field);
 
-        block._return(getOptionalWrappedExpression(codeModel, param));
+        if (copyBinaryGetters && isBinary(field)) {
+            block._return(getOptionalWrappedExpression(codeModel, getBinaryCopyExpression(param)));
+        } else {
+            block._return(getOptionalWrappedExpression(codeModel, param));
+        }
 
         getter.javadoc().append("Returns optional attribute/element.");
     }
@@ -566,34 +1261,198 @@ public final class PluginImpl extends Plugin {
         JMethod newGetter = ownerClass.method(getter.mods().getValue(), getter.type(), getter.name());
         JBlock block = newGetter.body();
 
-        JVar ret = block.decl(getJavaType(field), "ret");
         JCodeModel codeModel = field.type().owner();
         JVar param = generateMethodParameter(getter, field);
-        JConditional conditional = block._if(param.eq(JExpr._null()));
-        conditional._then().assign(ret, getEmptyCollectionExpression(codeModel, param));
-        conditional._else().assign(ret, getUnmodifiableWrappedExpression(codeModel, param));
-        block._return(ret);
+        JInvocation supportInvocation = getSupportInvocation(ownerClass, field, "unmodifiable");
+        if (supportInvocation != null) {
+            stats.collectionWrapper();
+            block._return(supportInvocation.arg(param));
+        } else {
+            JVar ret = block.decl(getJavaType(field), "ret");
+            JConditional conditional = block._if(param.eq(JExpr._null()));
+            conditional._then().assign(ret, getEmptyCollectionExpression(codeModel, param));
+            conditional._else().assign(ret, getUnmodifiableWrappedExpression(codeModel, param));
+            block._return(ret);
+        }
 
         getter.javadoc().append("Returns unmodifiable collection.");
     }
 
+    /**
+     * Stores the value of elements bound to JAXBElement unwrapped, next to a flag telling nil elements from missing
+     * ones. JAXB reads the element through the getter, which builds a new JAXBElement on each call, and writes it
+     * through a private setter.
+     */
+    private void unwrapElementFields(JDefinedClass implClass, JFieldVar[] declaredFields) {
+        for (JFieldVar field : declaredFields) {
+            ElementFactory factory = elementFactories.get(field);
+            if (factory == null) {
+                continue;
+            }
+            JCodeModel codeModel = implClass.owner();
+            String fieldName = StringUtils.capitalize(field.name());
+            for (JAnnotationUse annotation : new ArrayList<>(field.annotations())) {
+                field.removeAnnotation(annotation);
+            }
+            field.annotate(XmlTransient.class);
+            field.type(factory.getValueType());
+            JFieldVar nilFlag = implClass.field(JMod.PRIVATE, codeModel.BOOLEAN, factory.getNilFlagName());
+            nilFlag.annotate(XmlTransient.class);
+            elementNilFlags.add(nilFlag);
+            JFieldRef value = JExpr._this().ref(field);
+            JFieldRef nil = JExpr._this().ref(nilFlag);
+
+            JMethod getter = getGetterProperty(field, implClass);
+            implClass.methods().remove(getter);
+            JMethod elementGetter = implClass.method(getter.mods().getValue(), factory.getElementType(), getter.name());
+            JAnnotationUse elementRef = elementGetter.annotate(XmlElementRef.class)
+                    .param("name", factory.getElementName().getLocalPart())
+                    .param("namespace", factory.getElementName().getNamespaceURI())
+                    .param("type", JAXBElement.class);
+            if (!factory.isRequired()) {
+                elementRef.param("required", false);
+            }
+            elementGetter.javadoc().append("Returns a new JAXBElement holding the value of the element, null if the element is missing.");
+            elementGetter.body()._return(JOp.cond(value.eq(JExpr._null()).cand(nil.not()), JExpr._null(),
+                    getObjectFactoryField(implClass, factory.getObjectFactory()).invoke(factory.getMethod()).arg(value)));
+
+            JMethod elementSetter = implClass.method(JMod.PRIVATE, codeModel.VOID, "set" + fieldName);
+            elementSetter.javadoc().append("Used by JAX-B");
+            assignElementValue(elementSetter.body(), field, elementSetter.param(JMod.FINAL, factory.getElementType(), field.name()));
+
+            JMethod valueGetter;
+            if (optionalGetter) {
+                valueGetter = implClass.method(JMod.PUBLIC, codeModel.ref(Optional.class).narrow(factory.getValueType()), "get" + fieldName + "Value");
+                valueGetter.body()._return(getOptionalWrappedExpression(codeModel, value));
+            } else {
+                valueGetter = implClass.method(JMod.PUBLIC, factory.getValueType(), "get" + fieldName + "Value");
+                valueGetter.body()._return(value);
+            }
+            valueGetter.javadoc().append("Returns the value of the element, absent for both missing and nil elements.");
+
+            JMethod nilGetter = implClass.method(JMod.PUBLIC, codeModel.BOOLEAN, "is" + fieldName + "Nil");
+            nilGetter.javadoc().append("Returns true, if the element is present and nil.");
+            nilGetter.body()._return(nil);
+        }
+    }
+
+    private void assignElementValue(JBlock block, JFieldVar field, JVar element) {
+        JExpression nil = element.ne(JExpr._null()).cand(element.invoke("isNil"));
+        block.assign(JExpr.refthis(field.name()), JOp.cond(element.eq(JExpr._null()).cor(element.invoke("isNil")), JExpr._null(),
+                element.invoke("getValue")));
+        block.assign(JExpr.refthis(elementFactories.get(field).getNilFlagName()), nil);
+    }
+
+    private void replaceBinaryGetters(JDefinedClass implClass, JFieldVar[] declaredFields) {
+        for (JFieldVar field : declaredFields) {
+            if (isBinary(field)) {
+                JMethod getterMethod = getGetterProperty(field, implClass);
+                if (getterMethod != null) {
+                    replaceBinaryGetter(implClass, field, getterMethod);
+                }
+            }
+        }
+    }
+
+    private void replaceBinaryGetter(JDefinedClass ownerClass, JFieldVar field, final JMethod getter) {
+        String fieldName = StringUtils.capitalize(field.name());
+        if (copyBinaryGetters) {
+            // remove the old getter
+            ownerClass.methods().remove(getter);
+            // and create a new one
+            JMethod newGetter = ownerClass.method(getter.mods().getValue(), getter.type(), getter.name());
+            JVar param = generateMethodParameter(getter, field);
+            newGetter.body()._return(getBinaryCopyExpression(param));
+            newGetter.javadoc().append("Returns a copy of the binary data. Use get" + fieldName + "AsReadOnlyBuffer() or write" + fieldName
+                    + "To(OutputStream) to read the data without copying it.");
+        } else {
+            getter.javadoc().append(" Returns the binary data without copying it, the returned array must not be modified. Use get" + fieldName
+                    + "AsReadOnlyBuffer() for a view, which cannot be modified.");
+        }
+
+        JCodeModel codeModel = field.type().owner();
+        JMethod bufferGetter = ownerClass.method(JMod.PUBLIC, ByteBuffer.class, "get" + fieldName + "AsReadOnlyBuffer");
+        bufferGetter.javadoc().append("Returns a read-only view of the binary data, the data is not copied.");
+        bufferGetter.javadoc().addReturn().append("read-only buffer positioned at the start of the data or null, if not set");
+        bufferGetter.body()._return(JOp.cond(JExpr.refthis(field.name()).eq(JExpr._null()), JExpr._null(),
+                codeModel.ref(ByteBuffer.class).staticInvoke("wrap").arg(JExpr.refthis(field.name())).invoke("asReadOnlyBuffer")));
+
+        JMethod writeTo = ownerClass.method(JMod.PUBLIC, codeModel.VOID, "write" + fieldName + "To");
+        writeTo._throws(IOException.class);
+        writeTo.javadoc().append("Writes the binary data to given stream, the data is not copied. Nothing is written, if not set.");
+        JVar out = writeTo.param(JMod.FINAL, OutputStream.class, "out");
+        writeTo.javadoc().addParam(out).append("target stream");
+        writeTo.body()._if(JExpr.refthis(field.name()).ne(JExpr._null()))._then()
+                .add(out.invoke("write").arg(JExpr.refthis(field.name())));
+    }
+
+    private JExpression getBinaryCopyExpression(JExpression value) {
+        return JOp.cond(value.eq(JExpr._null()), JExpr._null(), value.invoke("clone"));
+    }
+
     private void generatePropertyAssignment(final JMethod method, JFieldVar field) {
-        generatePropertyAssignment(method, field, false);
+        generatePropertyAssignment(null, method, field, false);
     }
 
-    private void generatePropertyAssignment(final JMethod method, JFieldVar field, boolean wrapUnmodifiable) {
+    private void generatePropertyAssignment(final JDefinedClass clazz, final JMethod method, JFieldVar field, boolean wrapUnmodifiable) {
         JBlock block = method.body();
         JCodeModel codeModel = field.type().owner();
         String fieldName = field.name();
         JVar param = generateMethodParameter(method, field);
-        if (isCollection(field) && !leaveCollectionsMutable && wrapUnmodifiable) {
+        JVar event = null;
+        if (flightRecorderEvents != null && isCollection(field) && !leaveCollectionsMutable && wrapUnmodifiable) {
+            event = beginFlightRecorderEvent(block, flightRecorderEvents[2], fieldName + "CopyEvent");
+        }
+        JInvocation supportInvocation;
+        if (wrapUnmodifiable && lazyFields.contains(field)) {
+            block.assign(JExpr.refthis(fieldName), lazyClasses[0].staticInvoke("of").arg(param));
+        } else if (isCollection(field) && !leaveCollectionsMutable && wrapUnmodifiable && listBounds.containsKey(field)) {
+            JConditional conditional = block._if(param.eq(JExpr._null()));
+            conditional._then().assign(JExpr.refthis(fieldName), JExpr._null());
+            addListBoundCheck(conditional._else(), param.invoke("size").gt(JExpr.lit(listBounds.get(field))),
+                    IllegalArgumentException.class, field);
+            // exact-size immutable copy
+            stats.collectionWrapper();
+            conditional._else().assign(JExpr.refthis(fieldName), codeModel.ref(List.class).staticInvoke("copyOf").arg(param));
+        } else if (wrapUnmodifiable && isCompactAnyAttributes(field)) {
+            // empty maps become the shared empty instance, others are stored without the spare capacity of a HashMap
+            stats.collectionWrapper();
+            block.assign(JExpr.refthis(fieldName), JOp.cond(param.eq(JExpr._null()), JExpr._null(),
+                    codeModel.ref(Map.class).staticInvoke("copyOf").arg(param)));
+        } else if (isCollection(field) && !leaveCollectionsMutable && wrapUnmodifiable
+                && (supportInvocation = getSupportInvocation(clazz, field, "copyOf")) != null) {
+            stats.collectionWrapper();
+            block.assign(JExpr.refthis(fieldName), supportInvocation.arg(param));
+        } else if (isCollection(field) && !leaveCollectionsMutable && wrapUnmodifiable) {
             JConditional conditional = block._if(param.eq(JExpr._null()));
             conditional._then().assign(JExpr.refthis(fieldName), JExpr._null());
             conditional._else().assign(JExpr.refthis(fieldName),
                     getDefensiveCopyExpression(codeModel, getJavaType(field), param));
+        } else if (createBinaryViews && isBinary(field) && wrapUnmodifiable) {
+            // builders keep the array they were given until build(), so this is the only copy made
+            block.assign(JExpr.refthis(fieldName), getBinaryCopyExpression(param));
+        } else if (wrapUnmodifiable && elementFactories.containsKey(field)) {
+            assignElementValue(block, field, param);
         } else {
             block.assign(JExpr.refthis(fieldName), JExpr.ref(fieldName));
         }
+        if (event != null) {
+            commitFlightRecorderEvent(block, event, clazz, Collections.singletonList(param), fieldName);
+        }
+    }
+
+    /**
+     * JAXB fills wildcard attribute maps with a HashMap of its own, which is replaced by a compact copy once the
+     * instance is unmarshalled. Map.copyOf rejects null keys and values, which JAXB never puts into the map.
+     */
+    private void freezeAnyAttributesAfterUnmarshal(JDefinedClass clazz, JFieldVar[] declaredFields) {
+        for (JFieldVar field : declaredFields) {
+            if (isCompactAnyAttributes(field)) {
+                JFieldRef ref = JExpr._this().ref(field);
+                getAfterUnmarshalBody(clazz)._if(ref.ne(JExpr._null()))._then()
+                        .assign(ref, clazz.owner().ref(Map.class).staticInvoke("copyOf").arg(ref));
+            }
+        }
     }
 
     private JVar generateMethodParameter(final JMethod method, JFieldVar field) {
@@ -603,6 +1462,7 @@ public final class PluginImpl extends Plugin {
     }
 
     private JExpression getDefensiveCopyExpression(JCodeModel codeModel, JType jType, JVar param) {
+        stats.collectionWrapper();
         List<JClass> typeParams = ((JClass) jType).getTypeParameters();
 
         JClass newClass = null;
@@ -626,6 +1486,7 @@ public final class PluginImpl extends Plugin {
     }
 
     private JExpression getUnmodifiableWrappedExpression(JCodeModel codeModel, JVar param) {
+        stats.collectionWrapper();
         if (param.type().erasure().equals(codeModel.ref(Collection.class))) {
             return codeModel.ref(Collections.class).staticInvoke("unmodifiableCollection").arg(param);
         } else if (param.type().erasure().equals(codeModel.ref(List.class))) {
@@ -683,31 +1544,3488 @@ public final class PluginImpl extends Plugin {
         return newClass == null ? JExpr._null() : JExpr._new(newClass);
     }
 
-    private JExpression getOptionalWrappedExpression(JCodeModel codeModel, JVar param) {
-        return codeModel.ref(Optional.class).staticInvoke("ofNullable").arg(param);
-    }
+    /**
+     * Returns an invocation of a static helper method of the per-package support class for given operation and field
+     * collection type. Support class and its methods are created on first use.
+     *
+     * @param clazz     class, whose package holds the support class
+     * @param field     collection field
+     * @param operation one of 'unmodifiable', 'copyOf' or 'mutableCopyOf'
+     * @return helper method invocation without arguments or null, if support class is not used or collection type is not supported
+     */
+    private JInvocation getSupportInvocation(JDefinedClass clazz, JFieldVar field, String operation) {
+        if (!useSupportClass || clazz == null) {
+            return null;
+        }
+        JCodeModel codeModel = field.type().owner();
+        Class<?> collectionType = getCollectionInterface(codeModel, field.type());
+        if (collectionType == null) {
+            return null;
+        }
+        JDefinedClass supportClass = getSupportClass(clazz._package());
+        String methodName = operation + collectionType.getSimpleName();
+        for (JMethod method : supportClass.methods()) {
+            if (method.name().equals(methodName)) {
+                return supportClass.staticInvoke(method);
+            }
+        }
 
-    private void generateDefaultPropertyAssignment(JMethod method, JFieldVar field) {
-        JBlock block = method.body();
-        String propertyName = field.name();
-        block.assign(JExpr.refthis(propertyName), defaultValue(field));
+        JMethod method = supportClass.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, methodName);
+        boolean map = Map.class.isAssignableFrom(collectionType);
+        JClass type = map
+                ? codeModel.ref(collectionType).narrow(method.generify("K"), method.generify("V"))
+                : codeModel.ref(collectionType).narrow(method.generify("E"));
+        method.type(type);
+        JVar param = method.param(JMod.FINAL, type, "c");
+        JConditional conditional = method.body()._if(param.eq(JExpr._null()));
+        if ("unmodifiable".equals(operation)) {
+            conditional._then()._return(getEmptyCollectionExpression(codeModel, param));
+            conditional._else()._return(codeModel.ref(Collections.class).staticInvoke("unmodifiable" + collectionType.getSimpleName()).arg(param));
+        } else if ("copyOf".equals(operation)) {
+            conditional._then()._return(JExpr._null());
+            conditional._else()._return(JExpr._new(getImplementationClass(codeModel, collectionType).narrow(type.getTypeParameters())).arg(param));
+        } else {
+            JClass implementation = getImplementationClass(codeModel, collectionType).narrow(type.getTypeParameters());
+            conditional._then()._return(JExpr._new(implementation));
+            conditional._else()._return(JExpr._new(implementation).arg(param));
+        }
+        return supportClass.staticInvoke(method);
     }
 
-    private JExpression defaultValue(JFieldVar field) {
-        JType javaType = field.type();
-        if (setDefaultValuesInConstructor) {
-            Optional<JAnnotationUse> xmlElementAnnotation = getAnnotation(field.annotations(), XmlElement.class.getCanonicalName());
-            if (xmlElementAnnotation.isPresent()) {
-                JAnnotationValue annotationValue = xmlElementAnnotation.get().getAnnotationMembers().get("defaultValue");
-                if (annotationValue != null) {
-                    StringWriter sw = new StringWriter();
-                    JFormatter f = new JFormatter(sw);
-                    annotationValue.generate(f);
-                    return JExpr.lit(sw.toString().replaceAll("\"", ""));
-                }
+    private JDefinedClass getSupportClass(JPackage pkg) {
+        JDefinedClass supportClass = pkg._getClass(SUPPORT_CLASS_NAME);
+        if (supportClass == null) {
+            try {
+                supportClass = pkg._class(JMod.PUBLIC | JMod.FINAL, SUPPORT_CLASS_NAME);
+                supportClass.javadoc().append("Collection helpers shared by the immutable classes of this package.");
+                supportClass.constructor(JMod.PRIVATE);
+            } catch (JClassAlreadyExistsException e) {
+                supportClass = e.getExistingClass();
             }
         }
-        if (javaType.isPrimitive()) {
+        return supportClass;
+    }
+
+    private Class<?> getCollectionInterface(JCodeModel codeModel, JType jType) {
+        for (Class<?> collectionType : new Class<?>[]{Collection.class, List.class, Map.class, Set.class, SortedMap.class, SortedSet.class}) {
+            if (jType.erasure().equals(codeModel.ref(collectionType))) {
+                return collectionType;
+            }
+        }
+        return null;
+    }
+
+    private JClass getImplementationClass(JCodeModel codeModel, Class<?> collectionType) {
+        if (collectionType == Map.class) {
+            return codeModel.ref(HashMap.class);
+        } else if (collectionType == Set.class) {
+            return codeModel.ref(HashSet.class);
+        } else if (collectionType == SortedMap.class) {
+            return codeModel.ref(TreeMap.class);
+        } else if (collectionType == SortedSet.class) {
+            return codeModel.ref(TreeSet.class);
+        }
+        return codeModel.ref(ArrayList.class);
+    }
+
+    private Map<JDefinedClass, List<IdentityConstraints.Constraint>> collectIdentityConstraints(List<? extends ClassOutline> classes, boolean keyRef) {
+        Map<JDefinedClass, List<IdentityConstraints.Constraint>> indexes = new HashMap<>();
+        for (ClassOutline clazz : classes) {
+            List<IdentityConstraints.Constraint> constraints = new ArrayList<>();
+            for (IdentityConstraints.Constraint constraint : IdentityConstraints.of(clazz.target)) {
+                if (constraint.isKeyRef() != keyRef) {
+                    continue;
+                }
+                if (constraint.getPaths().isEmpty()) {
+                    log(Level.WARNING, "couldNotResolveIdentityConstraint", constraint.getName(), clazz.implClass.binaryName());
+                } else {
+                    constraints.add(constraint);
+                }
+            }
+            if (!constraints.isEmpty()) {
+                indexes.put(clazz.implClass, constraints);
+            }
+        }
+        return indexes;
+    }
+
+    private void replaceEnumFromValue(JDefinedClass enumClass) {
+        JMethod fromValue = null;
+        for (JMethod method : enumClass.methods()) {
+            if (method.name().equals("fromValue") && method.params().size() == 1 && (method.mods().getValue() & JMod.STATIC) != 0) {
+                fromValue = method;
+            }
+        }
+        JFieldVar valueField = enumClass.fields().get("value");
+        if (fromValue == null || valueField == null) {
+            // constants named after their values are looked up by valueOf, which is already hash based
+            return;
+        }
+        JCodeModel codeModel = enumClass.owner();
+        JType valueType = fromValue.params().get(0).type();
+        Set<String> names = new HashSet<>(enumClass.fields().keySet());
+        names.addAll(enumClass.enumConstants().keySet());
+
+        // remove the old method
+        enumClass.methods().remove(fromValue);
+        // and create a new one
+        JMethod method = enumClass.method(fromValue.mods().getValue(), enumClass, fromValue.name());
+        JVar v = method.param(valueType, fromValue.params().get(0).name());
+        JExpression message;
+        if (valueType.isPrimitive()) {
+            // boxed keys would allocate on each lookup, a scan of the cached constants does not
+            JFieldVar constants = enumClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, enumClass.array(), getUniqueName(names, "VALUES"),
+                    enumClass.staticInvoke("values"));
+            JForEach forEach = method.body().forEach(enumClass, "c", constants);
+            forEach.body()._if(forEach.var().ref(valueField).eq(v))._then()._return(forEach.var());
+            message = codeModel.ref(String.class).staticInvoke("valueOf").arg(v);
+            method.body()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class)).arg(message));
+            return;
+        }
+        JClass mapType = codeModel.ref(Map.class).narrow((JClass) valueType, enumClass);
+        JFieldVar lookup = enumClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, mapType, getUniqueName(names, "BY_VALUE"));
+        JBlock init = enumClass.init();
+        JVar values = init.decl(mapType, "values", JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        JForEach forEach = init.forEach(enumClass, "c", enumClass.staticInvoke("values"));
+        forEach.body().invoke(values, "put").arg(forEach.var().ref(valueField)).arg(forEach.var());
+        init.assign(lookup, codeModel.ref(Collections.class).staticInvoke("unmodifiableMap").arg(values));
+
+        JVar c = method.body().decl(JMod.FINAL, enumClass, "c", lookup.invoke("get").arg(v));
+        message = valueType.equals(codeModel.ref(String.class)) ? v : v.invoke("toString");
+        method.body()._if(c.eq(JExpr._null()))._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class)).arg(message));
+        method.body()._return(c);
+    }
+
+    private Map<JFieldVar, ElementFactory> collectElementFactories(Outline model, List<? extends ClassOutline> classes) {
+        Map<JFieldVar, ElementFactory> factories = new HashMap<>();
+        for (ClassOutline clazz : classes) {
+            for (CPropertyInfo property : clazz.target.getProperties()) {
+                // substitution groups and repeated elements are left wrapped
+                if (!(property instanceof CReferencePropertyInfo) || property.isCollection()
+                        || ((CReferencePropertyInfo) property).getElements().size() != 1
+                        || !(((CReferencePropertyInfo) property).getElements().iterator().next() instanceof CElementInfo)) {
+                    continue;
+                }
+                CElementInfo element = (CElementInfo) ((CReferencePropertyInfo) property).getElements().iterator().next();
+                JFieldVar field = clazz.implClass.fields().get(property.getName(false));
+                if (field == null) {
+                    continue;
+                }
+                String fieldName = StringUtils.capitalize(field.name());
+                String nilFlagName = field.name() + "Nil";
+                for (String member : new String[]{nilFlagName, "get" + fieldName + "Value", "is" + fieldName + "Nil"}) {
+                    if (clazz.implClass.fields().containsKey(member) || clazz.implClass.getMethod(member, NO_ARGS) != null) {
+                        log(Level.WARNING, "couldNotAddElementValueAccessor", member, clazz.implClass.binaryName());
+                        nilFlagName = null;
+                        break;
+                    }
+                }
+                JDefinedClass objectFactory = model.getPackageContext(element._package()).objectFactory();
+                for (JMethod method : objectFactory.methods()) {
+                    if (nilFlagName != null && method.name().equals("create" + element.getSqueezedName()) && method.params().size() == 1) {
+                        factories.put(field, new ElementFactory(objectFactory, method, element.getElementName(),
+                                ((CReferencePropertyInfo) property).isRequired(), nilFlagName));
+                    }
+                }
+            }
+        }
+        return factories;
+    }
+
+    private Map<JFieldVar, Integer> collectListBounds(List<? extends ClassOutline> classes) {
+        Map<JFieldVar, Integer> bounds = new HashMap<>();
+        for (ClassOutline clazz : classes) {
+            for (CPropertyInfo property : clazz.target.getProperties()) {
+                if (!(property instanceof CElementPropertyInfo) || !property.isCollection()) {
+                    continue;
+                }
+                JFieldVar field = clazz.implClass.fields().get(property.getName(false));
+                int maxOccurs = Occurrences.maxOccurs(clazz.target, property);
+                if (field != null && field.type().erasure().equals(field.type().owner().ref(List.class))
+                        && maxOccurs >= 2 && maxOccurs <= MAX_BOUNDED_LIST_SIZE) {
+                    bounds.put(field, maxOccurs);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    private void addListBoundCheck(JBlock block, JExpression overflow, Class<? extends RuntimeException> exception, JFieldVar field) {
+        block._if(overflow)._then()._throw(JExpr._new(field.type().owner().ref(exception))
+                .arg("Field '" + field.name() + "' can hold at most " + listBounds.get(field) + " values."));
+    }
+
+    private String getKeyIndexName(IdentityConstraints.Constraint constraint) {
+        return NameConverter.standard.toVariableName(constraint.getName()) + "Index";
+    }
+
+    private void addKeyIndex(Outline model, JDefinedClass clazz, IdentityConstraints.Constraint constraint) {
+        JCodeModel codeModel = clazz.owner();
+        List<IdentityConstraints.Path> paths = getResolvablePaths(model, constraint);
+        if (paths.size() < constraint.getPaths().size()) {
+            log(Level.WARNING, "couldNotResolveIdentityConstraintPath", constraint.getName(), clazz.binaryName());
+        }
+        JClass keyType = getKeyType(model, paths);
+        JClass valueType = getSelectedType(model, paths);
+        JClass mapType = codeModel.ref(Map.class).narrow(keyType, valueType);
+        String indexName = getKeyIndexName(constraint);
+
+        JFieldVar indexField = addCacheField(clazz, mapType, indexName);
+
+        JMethod indexMethod = clazz.method(JMod.PRIVATE, mapType, indexName);
+        indexMethod.javadoc().append("Returns index of identity constraint '" + constraint.getName() + "', built on first use. "
+                + "Racing threads may build the index more than once, each of them publishes an equal unmodifiable map.");
+        JBlock body = indexMethod.body();
+        JVar index = body.decl(mapType, "index", JExpr._this().ref(indexField));
+        JBlock build = body._if(index.eq(JExpr._null()))._then();
+        JVar entries = build.decl(mapType, "entries", JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        Set<String> names = new HashSet<>(Arrays.asList("index", "entries", "key"));
+        addSelectorPaths(model, build, JExpr._this(), paths, 0, names,
+                (block, current, path) -> addKeyIndexEntry(model, block, current, path, entries, constraint));
+        build.assign(index, codeModel.ref(Collections.class).staticInvoke("unmodifiableMap").arg(entries));
+        build.assign(JExpr._this().ref(indexField), index);
+        body._return(index);
+
+        Map<String, List<IdentityConstraints.Path>> finders = new LinkedHashMap<>();
+        for (IdentityConstraints.Path path : paths) {
+            String finderName = "find" + model.getModel().getNameConverter().toPropertyName(path.getLastStep().getTagName())
+                    + "By" + path.getField().getProperty().getName(true);
+            finders.computeIfAbsent(finderName, k -> new ArrayList<>()).add(path);
+        }
+        for (Map.Entry<String, List<IdentityConstraints.Path>> finder : finders.entrySet()) {
+            JClass type = getSelectedType(model, finder.getValue());
+            IdentityConstraints.Path path = finder.getValue().get(0);
+            JMethod method = clazz.method(JMod.PUBLIC, type, finder.getKey());
+            JVar key = method.param(JMod.FINAL, keyType, path.getField().getProperty().getName(false));
+            if (type.equals(valueType)) {
+                method.body()._return(JExpr.invoke(indexMethod).invoke("get").arg(key));
+            } else {
+                JVar value = method.body().decl(valueType, "value", JExpr.invoke(indexMethod).invoke("get").arg(key));
+                method.body()._return(JOp.cond(value._instanceof(type), JExpr.cast(type, value), JExpr._null()));
+            }
+            method.javadoc().append("Returns the '" + path.getLastStep().getTagName() + "' element with given "
+                    + path.getField().getProperty().getName(false) + " or null, if there is none. "
+                    + "Lookup is backed by the index of identity constraint '" + constraint.getName() + "'.");
+        }
+    }
+
+    private void addSelectorPaths(Outline model, JBlock block, JExpression current, List<IdentityConstraints.Path> paths, int stepIndex,
+                                  Set<String> names, SelectedElementHandler handler) {
+        // paths sharing a selector prefix share the code traversing it
+        Map<CPropertyInfo, List<IdentityConstraints.Path>> byProperty = new LinkedHashMap<>();
+        boolean indexed = false;
+        for (IdentityConstraints.Path path : paths) {
+            if (stepIndex < path.getSteps().size()) {
+                byProperty.computeIfAbsent(path.getSteps().get(stepIndex).getProperty(), k -> new ArrayList<>()).add(path);
+            } else if (!indexed) {
+                handler.handle(block, current, path);
+                indexed = true;
+            }
+        }
+
+        for (List<IdentityConstraints.Path> propertyPaths : byProperty.values()) {
+            IdentityConstraints.Step step = propertyPaths.get(0).getSteps().get(stepIndex);
+            JFieldVar field = getPropertyField(model, step.getOwner(), step.getProperty());
+            JExpression value = getPropertyValue(model, current, step.getOwner(), step.getProperty());
+            JType elementType = step.getProperty().isCollection() ? ((JClass) field.type()).getTypeParameters().get(0) : field.type();
+
+            Map<JClass, List<IdentityConstraints.Path>> byTarget = new LinkedHashMap<>();
+            for (IdentityConstraints.Path path : propertyPaths) {
+                byTarget.computeIfAbsent(model.getClazz(path.getSteps().get(stepIndex).getTarget()).implClass, k -> new ArrayList<>()).add(path);
+            }
+            boolean narrow = byTarget.size() > 1 || !byTarget.containsKey(elementType);
+            String elementName = getUniqueName(names, narrow
+                    ? Introspector.decapitalize(elementType.name())
+                    : model.getModel().getNameConverter().toVariableName(step.getTagName()));
+
+            JBlock body = block;
+            JVar element;
+            if (step.getProperty().isCollection()) {
+                JForEach forEach = block.forEach(elementType, elementName, value);
+                body = forEach.body();
+                element = forEach.var();
+            } else {
+                element = block.decl(elementType, elementName, value);
+            }
+            if (!narrow) {
+                addSelectorPaths(model, body._if(element.ne(JExpr._null()))._then(), element, propertyPaths, stepIndex + 1, names, handler);
+                continue;
+            }
+            // each element is indexed at most once, even if its class extends another selected class
+            JConditional conditional = null;
+            for (Map.Entry<JClass, List<IdentityConstraints.Path>> target : byTarget.entrySet()) {
+                JExpression test = element._instanceof(target.getKey());
+                conditional = conditional == null ? body._if(test) : conditional._elseif(test);
+                String name = model.getModel().getNameConverter().toVariableName(target.getValue().get(0).getSteps().get(stepIndex).getTagName());
+                JVar narrowed = conditional._then().decl(target.getKey(), getUniqueName(names, name), JExpr.cast(target.getKey(), element));
+                addSelectorPaths(model, conditional._then(), narrowed, target.getValue(), stepIndex + 1, names, handler);
+            }
+        }
+    }
+
+    private void addKeyRefResolver(Outline model, JDefinedClass clazz, IdentityConstraints.Constraint keyRef) {
+        JCodeModel codeModel = clazz.owner();
+        IdentityConstraints.Constraint key = keyIndexes.getOrDefault(clazz, Collections.emptyList()).stream()
+                .filter(c -> c.getSource() == keyRef.getSource().getReferencedKey())
+                .findFirst().orElse(null);
+        List<IdentityConstraints.Path> paths = getResolvablePaths(model, keyRef);
+        if (key == null || paths.isEmpty()) {
+            log(Level.WARNING, "couldNotResolveKeyRef", keyRef.getName(), clazz.binaryName());
+            return;
+        }
+        List<IdentityConstraints.Path> keyPaths = getResolvablePaths(model, key);
+        JClass keyType = getKeyType(model, keyPaths);
+        if (!keyType.equals(getKeyType(model, paths)) && !keyType.equals(codeModel.ref(Object.class))) {
+            log(Level.WARNING, "couldNotResolveKeyRef", keyRef.getName(), clazz.binaryName());
+            return;
+        }
+        JClass targetType = getSelectedType(model, keyPaths);
+        JClass referenceType = getSelectedType(model, paths);
+        JClass mapType = codeModel.ref(Map.class).narrow(referenceType, targetType);
+        String targetsName = NameConverter.standard.toVariableName(keyRef.getName()) + "Targets";
+
+        JFieldVar targetsField = addCacheField(clazz, mapType, targetsName);
+
+        JMethod targetsMethod = clazz.method(JMod.PRIVATE, mapType, targetsName);
+        targetsMethod.javadoc().append("Returns targets of all references of keyref '" + keyRef.getName() + "' resolved against the index of '"
+                + key.getName() + "', built on first use. "
+                + "Racing threads may resolve the references more than once, each of them publishes an equal unmodifiable map.");
+        JBlock body = targetsMethod.body();
+        JVar targets = body.decl(mapType, "targets", JExpr._this().ref(targetsField));
+        JBlock build = body._if(targets.eq(JExpr._null()))._then();
+        JVar entries = build.decl(mapType, "entries", JExpr._new(codeModel.ref(IdentityHashMap.class).narrow(Collections.<JClass>emptyList())));
+        Set<String> names = new HashSet<>(Arrays.asList("targets", "entries", "key", "target"));
+        addSelectorPaths(model, build, JExpr._this(), paths, 0, names, (block, reference, path) -> {
+            IdentityConstraints.Field field = path.getField();
+            JFieldVar keyField = getPropertyField(model, field.getOwner(), field.getProperty());
+            JVar keyValue = block.decl(keyField.type(), "key", getPropertyValue(model, reference, field.getOwner(), field.getProperty()));
+            JBlock resolve = keyField.type().isPrimitive() ? block : block._if(keyValue.ne(JExpr._null()))._then();
+            JVar target = resolve.decl(targetType, "target", JExpr.invoke(getKeyIndexName(key)).invoke("get").arg(keyValue));
+            resolve._if(target.ne(JExpr._null()))._then().add(entries.invoke("put").arg(reference).arg(target));
+        });
+        build.assign(targets, codeModel.ref(Collections.class).staticInvoke("unmodifiableMap").arg(entries));
+        build.assign(JExpr._this().ref(targetsField), targets);
+        body._return(targets);
+
+        JMethod method = clazz.method(JMod.PUBLIC, targetType, "resolve" + NameConverter.standard.toPropertyName(keyRef.getName()));
+        JVar reference = method.param(JMod.FINAL, referenceType, "reference");
+        method.body()._return(JExpr.invoke(targetsMethod).invoke("get").arg(reference));
+        method.javadoc().append("Returns the element referenced by given reference of keyref '" + keyRef.getName()
+                + "' or null, if the reference is not part of this document or does not resolve. "
+                + "All references are resolved at most once, on first use.");
+    }
+
+    private void addStreamReaders(Outline model, ClassOutline clazz) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass implClass = clazz.implClass;
+        for (CPropertyInfo property : clazz.target.getProperties()) {
+            if (!(property instanceof CElementPropertyInfo) || !property.isCollection()
+                    || ((CElementPropertyInfo) property).getTypes().size() != 1
+                    || Occurrences.maxOccurs(clazz.target, property) != Occurrences.UNBOUNDED) {
+                continue;
+            }
+            CTypeRef typeRef = ((CElementPropertyInfo) property).getTypes().get(0);
+            if (!(typeRef.getTarget() instanceof CClassInfo) || ((CClassInfo) typeRef.getTarget()).isAbstract()) {
+                continue;
+            }
+            JClass childClass = model.getClazz((CClassInfo) typeRef.getTarget()).implClass;
+            String methodName = "stream" + StringUtils.capitalize(property.getName(false));
+            JType[] paramTypes = {codeModel.ref(XMLStreamReader.class), codeModel.ref(Unmarshaller.class), codeModel.ref(Consumer.class).narrow(childClass)};
+            if (implClass.getMethod(methodName, paramTypes) != null) {
+                log(Level.WARNING, "couldNotAddStreamReader", methodName, implClass.binaryName());
+                continue;
+            }
+            JMethod method = implClass.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, methodName);
+            method._throws(XMLStreamException.class)._throws(JAXBException.class);
+            JVar reader = method.param(JMod.FINAL, paramTypes[0], "reader");
+            JVar unmarshaller = method.param(JMod.FINAL, paramTypes[1], "unmarshaller");
+            JVar consumer = method.param(JMod.FINAL, paramTypes[2], "consumer");
+            method.javadoc().append("Reads the '" + typeRef.getTagName().getLocalPart() + "' child elements of the element the reader is positioned at "
+                    + "one by one, without building the whole list in memory. Other child elements are skipped, the reader is left "
+                    + "positioned at the end of the element.");
+            method.javadoc().addParam(reader).append("reader positioned at the start of an element of this type");
+            method.javadoc().addParam(unmarshaller).append("unmarshaller of a context, which knows {@link " + childClass.fullName() + "}");
+            method.javadoc().addParam(consumer).append("receives each child as soon as its end tag is read");
+
+            JBlock body = method.body();
+            JClass constants = codeModel.ref(XMLStreamConstants.class);
+            body._if(reader.invoke("isStartElement").not())._then()._throw(JExpr._new(codeModel.ref(IllegalStateException.class))
+                    .arg("Reader has to be positioned at the start of an element."));
+            JVar event = body.decl(codeModel.INT, "event", reader.invoke("next"));
+            JBlock loop = body._while(event.ne(constants.staticRef("END_ELEMENT"))).body();
+            JConditional isChild = loop._if(event.eq(constants.staticRef("START_ELEMENT"))
+                    .cand(getTagNameMatch(reader, typeRef.getTagName())));
+            // the unmarshaller leaves the reader at the event following the end of the child
+            isChild._then().add(consumer.invoke("accept").arg(unmarshaller.invoke("unmarshal").arg(reader).arg(childClass.dotclass()).invoke("getValue")));
+            isChild._then().assign(event, reader.invoke("getEventType"));
+            JConditional isOther = isChild._elseif(event.eq(constants.staticRef("START_ELEMENT")));
+            JVar depth = isOther._then().decl(codeModel.INT, "depth", JExpr.lit(1));
+            JBlock skip = isOther._then()._while(depth.gt(JExpr.lit(0))).body();
+            skip.assign(event, reader.invoke("next"));
+            JConditional nested = skip._if(event.eq(constants.staticRef("START_ELEMENT")));
+            nested._then().assign(depth, depth.plus(JExpr.lit(1)));
+            nested._elseif(event.eq(constants.staticRef("END_ELEMENT")))._then().assign(depth, depth.minus(JExpr.lit(1)));
+            isOther._then().assign(event, reader.invoke("next"));
+            isOther._else().assign(event, reader.invoke("next"));
+        }
+    }
+
+    private void addStreamWriters(Outline model, ClassOutline clazz) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass implClass = clazz.implClass;
+        if (clazz.target.isAbstract()) {
+            return;
+        }
+        // children can only be appended after the rest of the content
+        CPropertyInfo lastElementProperty = null;
+        for (CPropertyInfo property : clazz.target.getProperties()) {
+            if (property instanceof CElementPropertyInfo || property instanceof CReferencePropertyInfo) {
+                lastElementProperty = property;
+            }
+        }
+        if (!(lastElementProperty instanceof CElementPropertyInfo) || !lastElementProperty.isCollection()
+                || ((CElementPropertyInfo) lastElementProperty).getTypes().size() != 1
+                || Occurrences.maxOccurs(clazz.target, lastElementProperty) != Occurrences.UNBOUNDED) {
+            return;
+        }
+        CTypeRef typeRef = ((CElementPropertyInfo) lastElementProperty).getTypes().get(0);
+        if (!(typeRef.getTarget() instanceof CClassInfo)) {
+            return;
+        }
+        JClass childClass = model.getClazz((CClassInfo) typeRef.getTarget()).implClass;
+        String methodName = "write" + StringUtils.capitalize(lastElementProperty.getName(false));
+        JType[] paramTypes = {codeModel.ref(XMLStreamWriter.class), codeModel.ref(Marshaller.class), codeModel.ref(QName.class), implClass,
+                codeModel.ref(Iterator.class).narrow(childClass)};
+        if (implClass.getMethod(methodName, paramTypes) != null) {
+            log(Level.WARNING, "couldNotAddStreamWriter", methodName, implClass.binaryName());
+            return;
+        }
+        JMethod method = implClass.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, methodName);
+        method._throws(XMLStreamException.class)._throws(JAXBException.class);
+        JVar writer = method.param(JMod.FINAL, paramTypes[0], "writer");
+        JVar marshaller = method.param(JMod.FINAL, paramTypes[1], "marshaller");
+        JVar name = method.param(JMod.FINAL, paramTypes[2], "name");
+        JVar parent = method.param(JMod.FINAL, paramTypes[3], "parent");
+        JVar children = method.param(JMod.FINAL, paramTypes[4], "children");
+        method.javadoc().append("Writes an element with the content of given instance followed by '" + typeRef.getTagName().getLocalPart()
+                + "' child elements marshalled one by one as they are taken from the iterator, without holding them all in memory. "
+                + "The marshaller is switched to fragment mode while writing, and its previous mode is restored.");
+        method.javadoc().addParam(writer).append("writer to write the element to");
+        method.javadoc().addParam(marshaller).append("marshaller of a context, which knows this class");
+        method.javadoc().addParam(name).append("name of the written element");
+        method.javadoc().addParam(parent).append("instance holding the other fields, values of its '" + lastElementProperty.getName(false)
+                + "' list are written before the streamed ones");
+        method.javadoc().addParam(children).append("children to append to the content of the element");
+
+        JExpression fragmentProperty = codeModel.ref(Marshaller.class).staticRef("JAXB_FRAGMENT");
+        JVar fragment = method.body().decl(JMod.FINAL, codeModel.ref(Object.class), "fragment", marshaller.invoke("getProperty").arg(fragmentProperty));
+        JTryBlock tryBlock = method.body()._try();
+        tryBlock._finally().add(marshaller.invoke("setProperty").arg(fragmentProperty).arg(fragment));
+        JBlock body = tryBlock.body();
+        body.add(marshaller.invoke("setProperty").arg(fragmentProperty).arg(JExpr.TRUE));
+        body.add(marshaller.invoke("marshal").arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(implClass)).arg(name).arg(implClass.dotclass()).arg(parent))
+                .arg(JExpr._new(getOpenElementWriterClass(codeModel, implClass._package())).arg(writer)));
+        JExpression childName = JExpr._new(codeModel.ref(QName.class)).arg(typeRef.getTagName().getNamespaceURI()).arg(typeRef.getTagName().getLocalPart());
+        JVar childNameVar = body.decl(JMod.FINAL, codeModel.ref(QName.class), "childName", childName);
+        JBlock loop = body._while(children.invoke("hasNext")).body();
+        loop.add(marshaller.invoke("marshal").arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(childClass)).arg(childNameVar).arg(childClass.dotclass()).arg(children.invoke("next")))
+                .arg(writer));
+        body.add(writer.invoke("writeEndElement"));
+
+        JMethod streamMethod = implClass.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, methodName);
+        streamMethod._throws(XMLStreamException.class)._throws(JAXBException.class);
+        JInvocation invocation = JExpr.invoke(method);
+        for (int i = 0; i < paramTypes.length - 1; i++) {
+            invocation.arg(streamMethod.param(JMod.FINAL, paramTypes[i], method.params().get(i).name()));
+        }
+        JVar stream = streamMethod.param(JMod.FINAL, codeModel.ref(Stream.class).narrow(childClass), "children");
+        streamMethod.javadoc().append("Writes an element with the content of given instance followed by the children taken from the stream.");
+        streamMethod.javadoc().append("\n\n@see #" + methodName + "(XMLStreamWriter, Marshaller, QName, " + implClass.name() + ", Iterator)");
+        streamMethod.body().add(invocation.arg(stream.invoke("iterator")));
+    }
+
+    /**
+     * Returns the non-abstract classes, which get the XML cache, leaving out the ones with clashing members.
+     */
+    private Set<JDefinedClass> collectXmlCachedClasses(Outline model, List<? extends ClassOutline> classes) {
+        JCodeModel codeModel = model.getCodeModel();
+        JType[] paramTypes = {codeModel.ref(JAXBContext.class), codeModel.ref(QName.class)};
+        JType[] writeParamTypes = {codeModel.ref(OutputStream.class), paramTypes[0], paramTypes[1]};
+        Set<JDefinedClass> cachedClasses = new HashSet<>();
+        for (ClassOutline clazz : classes) {
+            JDefinedClass implClass = clazz.implClass;
+            if (clazz.target.isAbstract()) {
+                continue;
+            }
+            if (implClass.getMethod("toXml", paramTypes) != null || implClass.getMethod("writeXml", writeParamTypes) != null
+                    || implClass.getMethod("xmlBytes", paramTypes) != null || implClass.fields().containsKey("cachedXml")) {
+                log(Level.WARNING, "couldNotAddXmlCache", implClass.binaryName());
+                continue;
+            }
+            cachedClasses.add(implClass);
+        }
+        // spliced fragments declare their own namespaces, but cannot undeclare the default namespace of the parent
+        spliceXml = model.getClasses().stream().flatMap(c -> c.target.getProperties().stream()).noneMatch(property ->
+                property instanceof CElementPropertyInfo && ((CElementPropertyInfo) property).getTypes().stream()
+                        .anyMatch(t -> t.getTagName().getNamespaceURI().isEmpty() || t.getTarget() == CBuiltinLeafInfo.ANYTYPE)
+                        || property instanceof CReferencePropertyInfo && (((CReferencePropertyInfo) property).getWildcard() != null
+                        || ((CReferencePropertyInfo) property).getElements().stream().anyMatch(e -> e.getElementName().getNamespaceURI().isEmpty())));
+        return cachedClasses;
+    }
+
+    private void addXmlCache(Outline model, ClassOutline clazz, JDefinedClass cacheClass) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass implClass = clazz.implClass;
+        if (!xmlCachedClasses.contains(implClass)) {
+            return;
+        }
+        JType[] paramTypes = {codeModel.ref(JAXBContext.class), codeModel.ref(QName.class)};
+        JFieldVar cacheField = addCacheField(implClass, cacheClass, "cachedXml");
+
+        JMethod bytesMethod = implClass.method(JMod.NONE, codeModel.BYTE.array(), "xmlBytes");
+        bytesMethod._throws(JAXBException.class);
+        JVar context = bytesMethod.param(JMod.FINAL, paramTypes[0], "context");
+        JVar name = bytesMethod.param(JMod.FINAL, paramTypes[1], "name");
+        bytesMethod.javadoc().append("Returns the marshalled form of this instance, cached on first use as long as it fits into the budget of "
+                + xmlCacheBudget + " bytes shared by all classes. Racing threads may marshal the instance more than once, each of them publishes equal bytes. "
+                + "The returned array must not be modified.");
+        JBlock body = bytesMethod.body();
+        JVar cached = body.decl(cacheClass, "cached", JExpr._this().ref(cacheField));
+        JVar bytes = body.decl(codeModel.BYTE.array(), "bytes", JOp.cond(cached.eq(JExpr._null()), JExpr._null(), cached.invoke("get").arg(context).arg(name)));
+        JBlock marshal = body._if(bytes.eq(JExpr._null()))._then();
+        Map<JFieldVar, CTypeRef> elements = getSplicedElements(model, clazz);
+        JInvocation shell = elements == null ? null : getXmlShell(implClass, elements.keySet());
+        if (shell != null) {
+            addSplicedMarshal(model, implClass, marshal, bytes, context, name, shell, elements);
+        } else {
+            JVar out = marshal.decl(codeModel.ref(ByteArrayOutputStream.class), "out", JExpr._new(codeModel.ref(ByteArrayOutputStream.class)));
+            JVar marshaller = marshal.decl(codeModel.ref(Marshaller.class), "marshaller", context.invoke("createMarshaller"));
+            marshal.add(marshaller.invoke("setProperty").arg(codeModel.ref(Marshaller.class).staticRef("JAXB_ENCODING")).arg("UTF-8"));
+            marshal.add(marshaller.invoke("setProperty").arg(codeModel.ref(Marshaller.class).staticRef("JAXB_FRAGMENT")).arg(JExpr.TRUE));
+            marshal.add(marshaller.invoke("marshal").arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(implClass)).arg(name).arg(implClass.dotclass()).arg(JExpr._this()))
+                    .arg(out));
+            marshal.assign(bytes, out.invoke("toByteArray"));
+        }
+        marshal.assign(JExpr._this().ref(cacheField), cacheClass.staticInvoke("of").arg(context).arg(name).arg(bytes));
+        body._return(bytes);
+
+        JMethod toXml = implClass.method(JMod.PUBLIC, ByteBuffer.class, "toXml");
+        toXml._throws(JAXBException.class);
+        toXml.javadoc().append("Returns this instance marshalled as UTF-8 encoded XML fragment without XML declaration. "
+                + "The result is cached per instance, so repeated calls with the same context and name do not marshal the instance again. "
+                + (shell != null ? "Children, whose XML is cached, are copied into the fragment instead of being marshalled again." : ""));
+        toXml.javadoc().addParam("context").append("context, which knows this class");
+        toXml.javadoc().addParam("name").append("name of the element");
+        toXml.javadoc().addReturn().append("read-only view of the XML, the bytes are not copied");
+        toXml.body()._return(codeModel.ref(ByteBuffer.class).staticInvoke("wrap").arg(JExpr.invoke(bytesMethod).arg(toXml.param(JMod.FINAL, paramTypes[0], "context"))
+                .arg(toXml.param(JMod.FINAL, paramTypes[1], "name"))).invoke("asReadOnlyBuffer"));
+
+        JMethod writeXml = implClass.method(JMod.PUBLIC, codeModel.VOID, "writeXml");
+        writeXml._throws(JAXBException.class)._throws(IOException.class);
+        JVar stream = writeXml.param(JMod.FINAL, OutputStream.class, "out");
+        writeXml.javadoc().append("Writes this instance marshalled as UTF-8 encoded XML fragment without XML declaration to given stream, "
+                + "e.g. into a larger document being written. The result is cached per instance, "
+                + "so repeated calls with the same context and name only copy the cached bytes.");
+        writeXml.javadoc().addParam(stream).append("stream to write to");
+        writeXml.javadoc().addParam("context").append("context, which knows this class");
+        writeXml.javadoc().addParam("name").append("name of the element");
+        writeXml.body().add(stream.invoke("write").arg(JExpr.invoke(bytesMethod).arg(writeXml.param(JMod.FINAL, paramTypes[0], "context"))
+                .arg(writeXml.param(JMod.FINAL, paramTypes[1], "name"))));
+    }
+
+    /**
+     * Returns the element fields of the class and its superclasses in the order of their content, together with the
+     * type reference they are marshalled with, or null if the class cannot be marshalled piece by piece, or none of its
+     * children has cached XML to splice.
+     */
+    private Map<JFieldVar, CTypeRef> getSplicedElements(Outline model, ClassOutline clazz) {
+        if (!spliceXml) {
+            return null;
+        }
+        List<ClassOutline> hierarchy = new ArrayList<>();
+        for (ClassOutline c = clazz; c != null; c = c.getSuperClass()) {
+            hierarchy.add(0, c);
+        }
+        Map<JFieldVar, CTypeRef> elements = new LinkedHashMap<>();
+        boolean spliced = false;
+        for (ClassOutline c : hierarchy) {
+            for (CPropertyInfo property : c.target.getProperties()) {
+                if (property instanceof CAttributePropertyInfo) {
+                    continue;
+                }
+                if (!(property instanceof CElementPropertyInfo)) {
+                    // mixed content, wildcards, element references and simple content are marshalled as a whole
+                    return null;
+                }
+                CElementPropertyInfo element = (CElementPropertyInfo) property;
+                JFieldVar field = c.implClass.fields().get(property.getName(false));
+                if (element.getTypes().size() != 1 || element.getAdapter() != null || element.isValueList() || element.id() != ID.NONE
+                        || element.getExpectedMimeType() != null || field == null || field.type().isPrimitive()
+                        || lazyFields.contains(field) || elementFactories.containsKey(field)
+                        || c != clazz && getGetterProperty(field, c.implClass) == null) {
+                    return null;
+                }
+                CTypeRef typeRef = element.getTypes().get(0);
+                JClass type = typeRef.getTarget().toType(model, Aspect.EXPOSED).boxify();
+                JType valueType = isCollection(field) ? ((JClass) field.type()).getTypeParameters().get(0) : field.type();
+                if (!type.equals(valueType)) {
+                    return null;
+                }
+                spliced |= xmlCachedClasses.contains(type) && ((JDefinedClass) type)._package() == clazz.implClass._package();
+                elements.put(field, typeRef);
+            }
+        }
+        return spliced ? elements : null;
+    }
+
+    /**
+     * Returns a copy of this instance without element content, which JAXB marshals into the start tag of the spliced
+     * element, or null if the property constructor cannot be called with the values of the attributes.
+     */
+    private JInvocation getXmlShell(JDefinedClass implClass, Set<JFieldVar> elementFields) {
+        Map<String, JExpression> values = new HashMap<>();
+        for (JFieldVar field : getPropertyFields(implClass)) {
+            values.put(field.name(), JExpr._this().ref(field));
+        }
+        for (JDefinedClass type : getSuperClasses(implClass)) {
+            for (JFieldVar field : getPropertyFields(type)) {
+                if (!values.containsKey(field.name()) && getGetterProperty(field, type) != null) {
+                    values.put(field.name(), getterValue(type, field));
+                }
+            }
+        }
+        for (JFieldVar field : elementFields) {
+            values.put(field.name(), JExpr._null());
+        }
+        JInvocation shell = JExpr._new(implClass);
+        for (JVar param : getPropertyConstructorParams(implClass)) {
+            JExpression value = values.get(param.name());
+            if (value == null) {
+                return null;
+            }
+            shell.arg(value);
+        }
+        return shell;
+    }
+
+    private void addSplicedMarshal(Outline model, JDefinedClass implClass, JBlock block, JVar bytes, JVar context, JVar name, JInvocation shell,
+                                   Map<JFieldVar, CTypeRef> elements) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass splicedClass = getSplicedXmlClass(codeModel, implClass._package());
+        JVar xml = block.decl(JMod.FINAL, splicedClass, "xml", JExpr._new(splicedClass).arg(context)
+                .arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(implClass)).arg(name).arg(implClass.dotclass()).arg(shell)));
+        for (Map.Entry<JFieldVar, CTypeRef> element : elements.entrySet()) {
+            JFieldVar field = element.getKey();
+            CTypeRef typeRef = element.getValue();
+            JClass type = typeRef.getTarget().toType(model, Aspect.EXPOSED).boxify();
+            JExpression value = implClass.fields().get(field.name()) == field ? JExpr._this().ref(field) : getterValue(implClass, field);
+            JVar tag = block.decl(JMod.FINAL, codeModel.ref(QName.class), "_" + field.name() + "Name", JExpr._new(codeModel.ref(QName.class))
+                    .arg(typeRef.getTagName().getNamespaceURI()).arg(typeRef.getTagName().getLocalPart()));
+            JBlock itemBlock;
+            JVar item;
+            if (isCollection(field)) {
+                JVar list = block.decl(JMod.FINAL, field.type(), "_" + field.name(), value);
+                JForEach forEach = block._if(list.ne(JExpr._null()))._then().forEach(type, "_" + field.name() + "Item", list);
+                itemBlock = forEach.body();
+                item = forEach.var();
+            } else {
+                itemBlock = block;
+                item = block.decl(JMod.FINAL, type, "_" + field.name(), value);
+            }
+            JConditional present = itemBlock._if(item.ne(JExpr._null()));
+            JInvocation marshalled = xml.invoke("marshal").arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(type)).arg(tag).arg(type.dotclass()).arg(item));
+            if (xmlCachedClasses.contains(type) && ((JDefinedClass) type)._package() == implClass._package()) {
+                // instances of subclasses are marshalled with xsi:type, which their own cached XML lacks
+                JConditional exact = present._then()._if(item.invoke("getClass").eq(type.dotclass()));
+                exact._then().add(xml.invoke("splice").arg(item.invoke("xmlBytes").arg(context).arg(tag)));
+                exact._else().add(marshalled);
+            } else {
+                present._then().add(marshalled);
+            }
+            if (typeRef.isNillable()) {
+                present._else().add(xml.invoke("marshal").arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(type)).arg(tag).arg(type.dotclass()).arg(JExpr._null())));
+            }
+        }
+        block.assign(bytes, xml.invoke("toByteArray"));
+    }
+
+    private JExpression getterValue(JDefinedClass clazz, JFieldVar field) {
+        JInvocation value = JExpr.invoke(getGetterProperty(field, clazz));
+        return isCollection(field) || !optionalGetter || isRequired(field) ? value : value.invoke("orElse").arg(JExpr._null());
+    }
+
+    private void addStructuralDiff(Outline model, ClassOutline clazz, JDefinedClass diffable, JDefinedClass difference) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass implClass = clazz.implClass;
+        boolean root = clazz.getSuperClass() == null;
+        JFieldVar[] fields = getPropertyFields(implClass);
+        JClass pathType = codeModel.ref(List.class).narrow(Object.class);
+        JClass differencesType = codeModel.ref(List.class).narrow(difference);
+
+        if (root) {
+            implClass._implements(diffable);
+            JFieldVar hashField = addCacheField(implClass, codeModel.LONG, getUniqueName(new HashSet<>(implClass.fields().keySet()), "structuralHash"));
+            JMethod hashMethod = implClass.method(JMod.PUBLIC, codeModel.LONG, "structuralHash");
+            hashMethod.annotate(Override.class);
+            hashMethod.javadoc().append("Returns hash of the content of this instance, computed on first use from the hashes of its children. "
+                    + "Racing threads may compute the hash more than once, each of them publishes the same value.");
+            JVar h = hashMethod.body().decl(codeModel.LONG, "h", JExpr._this().ref(hashField));
+            JBlock compute = hashMethod.body()._if(h.eq(JExpr.lit(0L)))._then();
+            compute.assign(h, JExpr.invoke("computeStructuralHash"));
+            compute.assign(JExpr._this().ref(hashField), h);
+            hashMethod.body()._return(h);
+        }
+
+        JMethod computeMethod = implClass.method(JMod.PROTECTED, codeModel.LONG, "computeStructuralHash");
+        JVar h = computeMethod.body().decl(codeModel.LONG, "h", root
+                ? JExpr.invoke("getClass").invoke("getName").invoke("hashCode")
+                : JExpr._super().invoke(computeMethod));
+        for (JFieldVar field : fields) {
+            computeMethod.body().assign(h, JExpr.lit(31L).mul(h).plus(difference.staticInvoke("hash").arg(JExpr._this().ref(field))));
+        }
+        computeMethod.body()._return(h);
+
+        JMethod sameMethod = implClass.method(JMod.PUBLIC, codeModel.BOOLEAN, "sameContent");
+        sameMethod.annotate(Override.class);
+        JVar sameOther = sameMethod.param(JMod.FINAL, Object.class, "other");
+        if (!root) {
+            sameMethod.body()._if(JExpr._super().invoke(sameMethod).arg(sameOther).not())._then()._return(JExpr.FALSE);
+        }
+        JExpression sameFields = JExpr.TRUE;
+        if (fields.length > 0) {
+            JVar that = sameMethod.body().decl(JMod.FINAL, implClass, "that", JExpr.cast(implClass, sameOther));
+            for (int i = 0; i < fields.length; i++) {
+                JExpression sameField = difference.staticInvoke("same").arg(JExpr._this().ref(fields[i])).arg(that.ref(fields[i]));
+                sameFields = i == 0 ? sameField : sameFields.cand(sameField);
+            }
+        }
+        sameMethod.body()._return(sameFields);
+
+        JMethod collectMethod = implClass.method(JMod.PUBLIC, codeModel.VOID, "collectDifferences");
+        collectMethod.annotate(Override.class);
+        JVar other = collectMethod.param(JMod.FINAL, Object.class, "other");
+        JVar path = collectMethod.param(JMod.FINAL, pathType, "path");
+        JVar differences = collectMethod.param(JMod.FINAL, differencesType, "differences");
+        if (!root) {
+            collectMethod.body().add(JExpr._super().invoke(collectMethod).arg(other).arg(path).arg(differences));
+        }
+        if (fields.length > 0) {
+            JVar that = collectMethod.body().decl(JMod.FINAL, implClass, "that", JExpr.cast(implClass, other));
+            for (JFieldVar field : fields) {
+                collectMethod.body().add(difference.staticInvoke("compare").arg(path).arg(JExpr.lit(field.name()))
+                        .arg(JExpr._this().ref(field)).arg(that.ref(field)).arg(differences));
+            }
+        }
+
+        JMethod valueMethod = implClass.method(JMod.PROTECTED, Object.class, "patchedValue");
+        JVar name = valueMethod.param(JMod.FINAL, String.class, "name");
+        differences = valueMethod.param(JMod.FINAL, differencesType, "differences");
+        for (JFieldVar field : fields) {
+            valueMethod.body()._if(JExpr.lit(field.name()).invoke("equals").arg(name))._then()
+                    ._return(difference.staticInvoke("patchValue").arg(JExpr._this().ref(field)).arg(differences).arg(name));
+        }
+        if (root) {
+            valueMethod.body()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class)).arg(name));
+        } else {
+            valueMethod.body()._return(JExpr._super().invoke(valueMethod).arg(name).arg(differences));
+        }
+
+        JMethod patchMethod = implClass.method(implClass.isAbstract() ? JMod.PUBLIC | JMod.ABSTRACT : JMod.PUBLIC, implClass, "patch");
+        patchMethod.annotate(Override.class);
+        differences = patchMethod.param(JMod.FINAL, differencesType, "differences");
+        if (implClass.isAbstract()) {
+            return;
+        }
+        List<JVar> params = getPropertyConstructorParams(implClass);
+        if (!params.isEmpty()) {
+            patchMethod.annotate(SuppressWarnings.class).param("value", "unchecked");
+            patchMethod.body()._if(differences.invoke("isEmpty"))._then()._return(JExpr._this());
+            JInvocation instance = JExpr._new(implClass);
+            for (JVar param : params) {
+                instance.arg(JExpr.cast(param.type(), JExpr.invoke(valueMethod).arg(param.name()).arg(differences)));
+            }
+            patchMethod.body()._return(instance);
+        } else {
+            patchMethod.body()._return(JExpr._this());
+        }
+    }
+
+    /**
+     * Adds snapshot methods to all classes and creates the Snapshot class, which writes and reads them. Classes, whose
+     * property constructor does not take the fields in declaration order, are left out and cannot be written.
+     */
+    private void addSnapshots(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return;
+        }
+        JDefinedClass snapshot;
+        try {
+            snapshot = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, SNAPSHOT_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddSnapshot", e.getExistingClass().fullName());
+            return;
+        }
+
+        List<ClassOutline> classes = new ArrayList<>(model.getClasses());
+        classes.sort(Comparator.comparing(c -> c.implClass.fullName()));
+        List<JDefinedClass> enums = model.getEnums().stream().map(e -> e.clazz)
+                .sorted(Comparator.comparing(JDefinedClass::fullName)).collect(Collectors.toList());
+        StringBuilder fingerprint = new StringBuilder();
+        Map<JDefinedClass, JMethod> readers = new LinkedHashMap<>();
+        for (ClassOutline clazz : classes) {
+            JMethod reader = addSnapshotMethods(codeModel, clazz, snapshot);
+            fingerprint.append(clazz.implClass.fullName()).append(':').append(clazz.implClass._extends().fullName()).append('(');
+            if (reader != null) {
+                readers.put(clazz.implClass, reader);
+                for (JVar param : getPropertyConstructorParams(clazz.implClass)) {
+                    fingerprint.append(param.type().fullName()).append(' ').append(param.name()).append(',');
+                }
+            }
+            fingerprint.append(")\n");
+        }
+        for (JDefinedClass enumClass : enums) {
+            fingerprint.append(enumClass.fullName()).append(enumClass.enumConstants().keySet()).append('\n');
+        }
+        generateSnapshotClass(codeModel, snapshot, readers, enums, getFingerprint(fingerprint.toString()));
+    }
+
+    /**
+     * Adds writeSnapshot method to the class and readSnapshot method to non-abstract classes.
+     *
+     * @return the readSnapshot method or null, if instances of the class cannot be read
+     */
+    private JMethod addSnapshotMethods(JCodeModel codeModel, ClassOutline clazz, JDefinedClass snapshot) {
+        JDefinedClass implClass = clazz.implClass;
+        JMethod write = implClass.method(JMod.PUBLIC, codeModel.VOID, "writeSnapshot");
+        write._throws(IOException.class);
+        write.javadoc().append("Writes fields of this instance. Used by {@link " + snapshot.fullName() + "}.");
+        JVar out = write.param(JMod.FINAL, snapshot, "snapshot");
+        if (clazz.getSuperClass() != null) {
+            write.annotate(Override.class);
+            write.body().add(JExpr._super().invoke(write).arg(out));
+        }
+        for (JFieldVar field : getPropertyFields(implClass)) {
+            write.body().add(out.invoke("writeValue").arg(JExpr._this().ref(field)));
+        }
+        if (implClass.isAbstract()) {
+            return null;
+        }
+
+        // fields are written root class first, which is the order of the property constructor
+        List<String> fieldNames = new ArrayList<>();
+        for (JDefinedClass type : getSuperClasses(implClass)) {
+            fieldNames.addAll(0, Arrays.stream(getPropertyFields(type)).map(JFieldVar::name).collect(Collectors.toList()));
+        }
+        fieldNames.addAll(Arrays.stream(getPropertyFields(implClass)).map(JFieldVar::name).collect(Collectors.toList()));
+        List<JVar> params = getPropertyConstructorParams(implClass);
+        if (!fieldNames.equals(params.stream().map(JVar::name).collect(Collectors.toList()))) {
+            log(Level.WARNING, "couldNotAddSnapshotReader", implClass.binaryName());
+            return null;
+        }
+        JMethod read = implClass.method(JMod.PUBLIC | JMod.STATIC, implClass, "readSnapshot");
+        read.javadoc().append("Reads an instance written by {@link #writeSnapshot}. Used by {@link " + snapshot.fullName() + "}.");
+        JVar in = read.param(JMod.FINAL, snapshot, "snapshot");
+        JInvocation instance = JExpr._new(implClass);
+        for (JVar param : params) {
+            instance.arg(JExpr.cast(param.type(), in.invoke("readValue")));
+        }
+        if (!params.isEmpty()) {
+            read.annotate(SuppressWarnings.class).param("value", "unchecked");
+        }
+        read.body()._return(instance);
+        return read;
+    }
+
+    /**
+     * Adds field caching a value computed on first use. Such fields are transient, so they are neither bound by JAXB
+     * nor returned by {@link #getPropertyFields}.
+     */
+    private JFieldVar addCacheField(JDefinedClass clazz, JType type, String name) {
+        return clazz.field(JMod.PRIVATE | JMod.TRANSIENT | JMod.VOLATILE, type, name);
+    }
+
+    private JFieldVar[] getPropertyFields(JDefinedClass clazz) {
+        return Arrays.stream(getDeclaredFields(clazz))
+                .filter(f -> (f.mods().getValue() & JMod.TRANSIENT) == 0)
+                .toArray(JFieldVar[]::new);
+    }
+
+    private List<JVar> getPropertyConstructorParams(JDefinedClass clazz) {
+        JMethod ctor = null;
+        for (Iterator<JMethod> it = clazz.constructors(); it.hasNext(); ) {
+            JMethod candidate = it.next();
+            if (ctor == null || candidate.params().size() > ctor.params().size()) {
+                ctor = candidate;
+            }
+        }
+        return ctor == null ? Collections.emptyList() : ctor.params();
+    }
+
+    private long getFingerprint(String description) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void generateSnapshotClass(JCodeModel codeModel, JDefinedClass snapshot, Map<JDefinedClass, JMethod> readers,
+                                       List<JDefinedClass> enums, long fingerprint) {
+        snapshot.javadoc().append("Compact binary snapshot of an immutable object tree. Snapshots are written once and read back "
+                + "much faster than XML, e.g. from a memory mapped file. Instances referenced more than once are written once and "
+                + "shared after reading. A snapshot can only be read by classes generated from the same schema.");
+        JFieldVar fingerprintField = snapshot.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, codeModel.LONG, "SCHEMA_FINGERPRINT", JExpr.lit(fingerprint));
+        fingerprintField.javadoc().append("Hash of the generated classes and their fields, written into and checked on reading of each snapshot.");
+        JFieldVar magic = snapshot.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.INT, "MAGIC", JExpr.lit(0x494d4d53));
+        Map<String, JFieldVar> tags = new HashMap<>();
+        for (int i = 0; i < SNAPSHOT_TAGS.length; i++) {
+            tags.put(SNAPSHOT_TAGS[i], snapshot.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.BYTE, SNAPSHOT_TAGS[i], JExpr.cast(codeModel.BYTE, JExpr.lit(i))));
+        }
+        JClass objectType = codeModel.ref(Object.class);
+        JClass classType = codeModel.ref(Class.class).narrow(codeModel.wildcard());
+        JClass idsType = codeModel.ref(Map.class).narrow(classType, codeModel.ref(Integer.class));
+        JFieldVar ids = snapshot.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, idsType, "CLASS_IDS",
+                JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        List<JDefinedClass> idClasses = new ArrayList<>(readers.keySet());
+        idClasses.addAll(enums);
+        for (int i = 0; i < idClasses.size(); i++) {
+            snapshot.init().add(ids.invoke("put").arg(idClasses.get(i).dotclass()).arg(JExpr.lit(i)));
+        }
+
+        JFieldVar outField = snapshot.field(JMod.PRIVATE | JMod.FINAL, DataOutputStream.class, "out");
+        JFieldVar inField = snapshot.field(JMod.PRIVATE | JMod.FINAL, ByteBuffer.class, "in");
+        JFieldVar written = snapshot.field(JMod.PRIVATE | JMod.FINAL, codeModel.ref(Map.class).narrow(objectType, codeModel.ref(Integer.class)), "written",
+                JExpr._new(codeModel.ref(IdentityHashMap.class).narrow(Collections.<JClass>emptyList())));
+        JFieldVar read = snapshot.field(JMod.PRIVATE | JMod.FINAL, codeModel.ref(List.class).narrow(objectType), "read",
+                JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+        snapshot.field(JMod.PRIVATE, codeModel.INT, "objects");
+        JFieldVar datatypes = snapshot.field(JMod.PRIVATE, DatatypeFactory.class, "datatypes");
+        JMethod ctor = snapshot.constructor(JMod.PRIVATE);
+        ctor.body().assign(JExpr._this().ref(outField), ctor.param(JMod.FINAL, DataOutputStream.class, "out"));
+        ctor.body().assign(JExpr._this().ref(inField), ctor.param(JMod.FINAL, ByteBuffer.class, "in"));
+
+        // write(root, stream)
+        JMethod writeStream = snapshot.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "write");
+        writeStream._throws(IOException.class);
+        writeStream.javadoc().append("Writes snapshot of given instance to the stream.");
+        JVar root = writeStream.param(JMod.FINAL, objectType, "root");
+        JVar stream = writeStream.param(JMod.FINAL, OutputStream.class, "stream");
+        JVar out = writeStream.body().decl(JMod.FINAL, codeModel.ref(DataOutputStream.class), "out",
+                JExpr._new(codeModel.ref(DataOutputStream.class)).arg(JExpr._new(codeModel.ref(BufferedOutputStream.class)).arg(stream)));
+        writeStream.body().add(out.invoke("writeInt").arg(magic));
+        writeStream.body().add(out.invoke("writeLong").arg(fingerprintField));
+        writeStream.body().add(JExpr._new(snapshot).arg(out).arg(JExpr._null()).invoke("writeValue").arg(root));
+        writeStream.body().add(out.invoke("flush"));
+
+        // write(root, file)
+        JMethod writeFile = snapshot.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "write");
+        writeFile._throws(IOException.class);
+        writeFile.javadoc().append("Writes snapshot of given instance to the file.");
+        root = writeFile.param(JMod.FINAL, objectType, "root");
+        JVar file = writeFile.param(JMod.FINAL, Path.class, "file");
+        stream = writeFile.body().decl(JMod.FINAL, codeModel.ref(OutputStream.class), "stream", codeModel.ref(Files.class).staticInvoke("newOutputStream").arg(file));
+        JTryBlock tryWrite = writeFile.body()._try();
+        tryWrite.body().invoke(writeStream).arg(root).arg(stream);
+        tryWrite._finally().add(stream.invoke("close"));
+
+        // read(buffer, type)
+        JMethod readBuffer = snapshot.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "read");
+        JTypeVar t = readBuffer.generify("T");
+        readBuffer.type(t);
+        readBuffer.javadoc().append("Reads snapshot from the remaining bytes of given buffer, without changing its position.");
+        JVar buffer = readBuffer.param(JMod.FINAL, ByteBuffer.class, "buffer");
+        JVar type = readBuffer.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        JVar in = readBuffer.body().decl(JMod.FINAL, codeModel.ref(ByteBuffer.class), "in",
+                buffer.invoke("duplicate").invoke("order").arg(codeModel.ref(ByteOrder.class).staticRef("BIG_ENDIAN")));
+        readBuffer.body()._if(in.invoke("remaining").lt(JExpr.lit(12)).cor(in.invoke("getInt").ne(magic)))._then()
+                ._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Not a snapshot."));
+        readBuffer.body()._if(in.invoke("getLong").ne(fingerprintField))._then()
+                ._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Snapshot was written by classes generated from a different schema."));
+        readBuffer.body()._return(type.invoke("cast").arg(JExpr._new(snapshot).arg(JExpr._null()).arg(in).invoke("readValue")));
+
+        // read(file, type)
+        JMethod readFile = snapshot.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "read");
+        t = readFile.generify("T");
+        readFile.type(t);
+        readFile._throws(IOException.class);
+        readFile.javadoc().append("Reads snapshot from given file mapped into memory.");
+        file = readFile.param(JMod.FINAL, Path.class, "file");
+        type = readFile.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        JVar channel = readFile.body().decl(JMod.FINAL, codeModel.ref(FileChannel.class), "channel",
+                codeModel.ref(FileChannel.class).staticInvoke("open").arg(file).arg(codeModel.ref(StandardOpenOption.class).staticRef("READ")));
+        JTryBlock tryRead = readFile.body()._try();
+        tryRead.body()._return(JExpr.invoke(readBuffer).arg(channel.invoke("map")
+                .arg(codeModel.ref(FileChannel.MapMode.class).staticRef("READ_ONLY")).arg(JExpr.lit(0L)).arg(channel.invoke("size"))).arg(type));
+        tryRead._finally().add(channel.invoke("close"));
+
+        generateSnapshotWriteValue(codeModel, snapshot, tags, ids, written, idClasses, readers.size());
+        generateSnapshotReadValue(codeModel, snapshot, tags, read, datatypes, idClasses, readers);
+    }
+
+    private void generateSnapshotWriteValue(JCodeModel codeModel, JDefinedClass snapshot, Map<String, JFieldVar> tags, JFieldVar ids,
+                                            JFieldVar written, List<JDefinedClass> idClasses, int objectClasses) {
+        JFieldVar out = snapshot.fields().get("out");
+        JMethod writeString = snapshot.method(JMod.PRIVATE, codeModel.VOID, "writeString");
+        writeString._throws(IOException.class);
+        JVar string = writeString.param(JMod.FINAL, String.class, "value");
+        JVar bytes = writeString.body().decl(JMod.FINAL, codeModel.BYTE.array(), "bytes",
+                string.invoke("getBytes").arg(codeModel.ref(StandardCharsets.class).staticRef("UTF_8")));
+        writeString.body().add(out.invoke("writeInt").arg(bytes.ref("length")));
+        writeString.body().add(out.invoke("write").arg(bytes));
+
+        JMethod method = snapshot.method(JMod.PUBLIC, codeModel.VOID, "writeValue");
+        method._throws(IOException.class);
+        method.javadoc().append("Writes a field value. Used by the generated classes.");
+        JVar value = method.param(JMod.FINAL, Object.class, "value");
+        JBlock body = method.body();
+        body._if(value.eq(JExpr._null()))._then().add(out.invoke("writeByte").arg(tags.get("NULL")))._return();
+        Object[][] simpleTypes = {
+                {String.class, "STRING", null},
+                {Boolean.class, "BOOLEAN", "writeBoolean"},
+                {Byte.class, "BYTE", "writeByte"},
+                {Short.class, "SHORT", "writeShort"},
+                {Integer.class, "INT", "writeInt"},
+                {Long.class, "LONG", "writeLong"},
+                {Float.class, "FLOAT", "writeFloat"},
+                {Double.class, "DOUBLE", "writeDouble"}};
+        for (Object[] simpleType : simpleTypes) {
+            JClass javaType = codeModel.ref((Class<?>) simpleType[0]);
+            JBlock block = body._if(value._instanceof(javaType))._then();
+            block.add(out.invoke("writeByte").arg(tags.get((String) simpleType[1])));
+            if (simpleType[2] == null) {
+                block.invoke(writeString).arg(JExpr.cast(javaType, value));
+            } else {
+                block.add(out.invoke((String) simpleType[2]).arg(JExpr.cast(javaType, value)));
+            }
+            block._return();
+        }
+        // values written through their lexical or byte representation
+        Object[][] stringTypes = {
+                {BigInteger.class, "BIG_INTEGER"},
+                {XMLGregorianCalendar.class, "CALENDAR"},
+                {Duration.class, "DURATION"},
+                {OffsetDateTime.class, "OFFSET_DATE_TIME"},
+                {LocalDateTime.class, "LOCAL_DATE_TIME"},
+                {LocalDate.class, "LOCAL_DATE"}};
+        for (Object[] stringType : stringTypes) {
+            JBlock block = body._if(value._instanceof(codeModel.ref((Class<?>) stringType[0])))._then();
+            block.add(out.invoke("writeByte").arg(tags.get((String) stringType[1])));
+            block.invoke(writeString).arg(value.invoke("toString"));
+            block._return();
+        }
+        JBlock block = body._if(value._instanceof(codeModel.ref(BigDecimal.class)))._then();
+        block.add(out.invoke("writeByte").arg(tags.get("BIG_DECIMAL")));
+        block.add(out.invoke("writeInt").arg(JExpr.cast(codeModel.ref(BigDecimal.class), value).invoke("scale")));
+        block.invoke(writeString).arg(JExpr.cast(codeModel.ref(BigDecimal.class), value).invoke("unscaledValue").invoke("toString"));
+        block._return();
+        block = body._if(value._instanceof(codeModel.BYTE.array()))._then();
+        block.add(out.invoke("writeByte").arg(tags.get("BYTES")));
+        block.add(out.invoke("writeInt").arg(JExpr.cast(codeModel.BYTE.array(), value).ref("length")));
+        block.add(out.invoke("write").arg(JExpr.cast(codeModel.BYTE.array(), value)));
+        block._return();
+        block = body._if(value._instanceof(codeModel.ref(QName.class)))._then();
+        JVar qName = block.decl(JMod.FINAL, codeModel.ref(QName.class), "qName", JExpr.cast(codeModel.ref(QName.class), value));
+        block.add(out.invoke("writeByte").arg(tags.get("QNAME")));
+        block.invoke(writeString).arg(qName.invoke("getNamespaceURI"));
+        block.invoke(writeString).arg(qName.invoke("getLocalPart"));
+        block.invoke(writeString).arg(qName.invoke("getPrefix"));
+        block._return();
+        block = body._if(value._instanceof(codeModel.ref(List.class)))._then();
+        JClass listType = codeModel.ref(List.class).narrow(codeModel.wildcard());
+        JVar list = block.decl(JMod.FINAL, listType, "list", JExpr.cast(listType, value));
+        block.add(out.invoke("writeByte").arg(tags.get("LIST")));
+        block.add(out.invoke("writeInt").arg(list.invoke("size")));
+        JForEach items = block.forEach(codeModel.ref(Object.class), "item", list);
+        items.body().invoke(method).arg(items.var());
+        block._return();
+        block = body._if(value._instanceof(codeModel.ref(Map.class)))._then();
+        JClass mapType = codeModel.ref(Map.class).narrow(codeModel.wildcard(), codeModel.wildcard());
+        JVar map = block.decl(JMod.FINAL, mapType, "map", JExpr.cast(mapType, value));
+        block.add(out.invoke("writeByte").arg(tags.get("MAP")));
+        block.add(out.invoke("writeInt").arg(map.invoke("size")));
+        JForEach entries = block.forEach(codeModel.ref(Map.Entry.class).narrow(codeModel.wildcard(), codeModel.wildcard()), "entry", map.invoke("entrySet"));
+        entries.body().invoke(method).arg(entries.var().invoke("getKey"));
+        entries.body().invoke(method).arg(entries.var().invoke("getValue"));
+        block._return();
+        block = body._if(value._instanceof(codeModel.ref(JAXBElement.class)))._then();
+        JClass elementType = codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard());
+        JVar element = block.decl(JMod.FINAL, elementType, "element", JExpr.cast(elementType, value));
+        block.add(out.invoke("writeByte").arg(tags.get("ELEMENT")));
+        block.invoke(method).arg(element.invoke("getName"));
+        block.invoke(writeString).arg(element.invoke("getDeclaredType").invoke("getName"));
+        block.invoke(writeString).arg(element.invoke("getScope").invoke("getName"));
+        block.add(out.invoke("writeBoolean").arg(element.invoke("isNil")));
+        block.invoke(method).arg(element.invoke("getValue"));
+        block._return();
+
+        JVar id = body.decl(JMod.FINAL, codeModel.ref(Integer.class), "id", ids.invoke("get").arg(value.invoke("getClass")));
+        body._if(id.eq(JExpr._null()))._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class))
+                .arg(JExpr.lit("Cannot write value of ").plus(value.invoke("getClass"))));
+        block = body._if(value._instanceof(codeModel.ref(Enum.class)))._then();
+        block.add(out.invoke("writeByte").arg(tags.get("ENUM")));
+        block.add(out.invoke("writeShort").arg(id));
+        block.add(out.invoke("writeInt").arg(JExpr.cast(codeModel.ref(Enum.class).narrow(codeModel.wildcard()), value).invoke("ordinal")));
+        block._return();
+        JVar index = body.decl(JMod.FINAL, codeModel.ref(Integer.class), "index", written.invoke("get").arg(value));
+        JBlock reference = body._if(index.ne(JExpr._null()))._then();
+        reference._if(index.lt(JExpr.lit(0)))._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class))
+                .arg(JExpr.lit("Cannot write cyclic reference to ").plus(value)));
+        reference.add(out.invoke("writeByte").arg(tags.get("REFERENCE")));
+        reference.add(out.invoke("writeInt").arg(index));
+        reference._return();
+        // objects get their index once written, which is when the reader creates them
+        body.add(written.invoke("put").arg(value).arg(JExpr.lit(-1)));
+        body.add(out.invoke("writeByte").arg(tags.get("OBJECT")));
+        body.add(out.invoke("writeShort").arg(id));
+        JSwitch dispatch = body._switch(id);
+        for (int i = 0; i < objectClasses; i++) {
+            JBlock caseBody = dispatch._case(JExpr.lit(i)).body();
+            caseBody.add(JExpr.cast(idClasses.get(i), value).invoke("writeSnapshot").arg(JExpr._this()));
+            caseBody._break();
+        }
+        body.add(written.invoke("put").arg(value).arg(snapshot.fields().get("objects").incr()));
+    }
+
+    private void generateSnapshotReadValue(JCodeModel codeModel, JDefinedClass snapshot, Map<String, JFieldVar> tags, JFieldVar read,
+                                           JFieldVar datatypes, List<JDefinedClass> idClasses, Map<JDefinedClass, JMethod> readers) {
+        JFieldVar in = snapshot.fields().get("in");
+        JMethod readString = snapshot.method(JMod.PRIVATE, String.class, "readString");
+        JVar bytes = readString.body().decl(JMod.FINAL, codeModel.BYTE.array(), "bytes", JExpr.newArray(codeModel.BYTE, in.invoke("getInt")));
+        readString.body().add(in.invoke("get").arg(bytes));
+        readString.body()._return(JExpr._new(codeModel.ref(String.class)).arg(bytes).arg(codeModel.ref(StandardCharsets.class).staticRef("UTF_8")));
+
+        JMethod readClass = snapshot.method(JMod.PRIVATE, codeModel.ref(Class.class).narrow(codeModel.wildcard()), "readClass");
+        JVar className = readClass.body().decl(JMod.FINAL, codeModel.ref(String.class), "name", JExpr.invoke(readString));
+        JTryBlock tryClass = readClass.body()._try();
+        tryClass.body()._return(codeModel.ref(Class.class).staticInvoke("forName").arg(className).arg(JExpr.FALSE)
+                .arg(snapshot.dotclass().invoke("getClassLoader")));
+        JCatchBlock notFound = tryClass._catch(codeModel.ref(ClassNotFoundException.class));
+        notFound.body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(notFound.param("e")));
+
+        JMethod getDatatypes = snapshot.method(JMod.PRIVATE, DatatypeFactory.class, "datatypes");
+        JBlock create = getDatatypes.body()._if(datatypes.eq(JExpr._null()))._then();
+        JTryBlock tryFactory = create._try();
+        tryFactory.body().assign(datatypes, codeModel.ref(DatatypeFactory.class).staticInvoke("newInstance"));
+        JCatchBlock configuration = tryFactory._catch(codeModel.ref(DatatypeConfigurationException.class));
+        configuration.body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(configuration.param("e")));
+        getDatatypes.body()._return(datatypes);
+
+        // the value is checked against the declared type, so that the element is created without unchecked cast
+        JMethod newElement = snapshot.method(JMod.PRIVATE | JMod.STATIC, codeModel.VOID, "newElement");
+        JTypeVar valueType = newElement.generify("T");
+        newElement.type(codeModel.ref(JAXBElement.class).narrow(valueType));
+        JVar elementName = newElement.param(JMod.FINAL, QName.class, "name");
+        JVar elementType = newElement.param(JMod.FINAL, codeModel.ref(Class.class).narrow(valueType), "declaredType");
+        JVar elementScope = newElement.param(JMod.FINAL, codeModel.ref(Class.class).narrow(codeModel.wildcard()), "scope");
+        JVar elementValue = newElement.param(JMod.FINAL, Object.class, "value");
+        newElement.body()._return(JExpr._new(codeModel.ref(JAXBElement.class).narrow(Collections.<JClass>emptyList()))
+                .arg(elementName).arg(elementType).arg(elementScope).arg(elementType.invoke("cast").arg(elementValue)));
+
+        JMethod method = snapshot.method(JMod.PUBLIC, Object.class, "readValue");
+        method.javadoc().append("Reads a field value. Used by the generated classes.");
+        JBlock body = method.body();
+        JVar tag = body.decl(JMod.FINAL, codeModel.BYTE, "tag", in.invoke("get"));
+        JSwitch tagSwitch = body._switch(tag);
+        tagSwitch._case(tags.get("NULL")).body()._return(JExpr._null());
+        tagSwitch._case(tags.get("STRING")).body()._return(JExpr.invoke(readString));
+        tagSwitch._case(tags.get("BOOLEAN")).body()._return(in.invoke("get").ne(JExpr.lit(0)));
+        tagSwitch._case(tags.get("BYTE")).body()._return(in.invoke("get"));
+        tagSwitch._case(tags.get("SHORT")).body()._return(in.invoke("getShort"));
+        tagSwitch._case(tags.get("INT")).body()._return(in.invoke("getInt"));
+        tagSwitch._case(tags.get("LONG")).body()._return(in.invoke("getLong"));
+        tagSwitch._case(tags.get("FLOAT")).body()._return(in.invoke("getFloat"));
+        tagSwitch._case(tags.get("DOUBLE")).body()._return(in.invoke("getDouble"));
+        tagSwitch._case(tags.get("BIG_INTEGER")).body()._return(JExpr._new(codeModel.ref(BigInteger.class)).arg(JExpr.invoke(readString)));
+        JBlock caseBody = tagSwitch._case(tags.get("BIG_DECIMAL")).body();
+        JVar scale = caseBody.decl(JMod.FINAL, codeModel.INT, "scale", in.invoke("getInt"));
+        caseBody._return(JExpr._new(codeModel.ref(BigDecimal.class)).arg(JExpr._new(codeModel.ref(BigInteger.class)).arg(JExpr.invoke(readString))).arg(scale));
+        caseBody = tagSwitch._case(tags.get("BYTES")).body();
+        JVar array = caseBody.decl(JMod.FINAL, codeModel.BYTE.array(), "array", JExpr.newArray(codeModel.BYTE, in.invoke("getInt")));
+        caseBody.add(in.invoke("get").arg(array));
+        caseBody._return(array);
+        tagSwitch._case(tags.get("QNAME")).body()._return(JExpr._new(codeModel.ref(QName.class))
+                .arg(JExpr.invoke(readString)).arg(JExpr.invoke(readString)).arg(JExpr.invoke(readString)));
+        tagSwitch._case(tags.get("CALENDAR")).body()._return(JExpr.invoke(getDatatypes).invoke("newXMLGregorianCalendar").arg(JExpr.invoke(readString)));
+        tagSwitch._case(tags.get("DURATION")).body()._return(JExpr.invoke(getDatatypes).invoke("newDuration").arg(JExpr.invoke(readString)));
+        tagSwitch._case(tags.get("OFFSET_DATE_TIME")).body()._return(codeModel.ref(OffsetDateTime.class).staticInvoke("parse").arg(JExpr.invoke(readString)));
+        tagSwitch._case(tags.get("LOCAL_DATE_TIME")).body()._return(codeModel.ref(LocalDateTime.class).staticInvoke("parse").arg(JExpr.invoke(readString)));
+        tagSwitch._case(tags.get("LOCAL_DATE")).body()._return(codeModel.ref(LocalDate.class).staticInvoke("parse").arg(JExpr.invoke(readString)));
+
+        caseBody = tagSwitch._case(tags.get("LIST")).body();
+        JVar size = caseBody.decl(JMod.FINAL, codeModel.INT, "size", in.invoke("getInt"));
+        JVar list = caseBody.decl(JMod.FINAL, codeModel.ref(List.class).narrow(Object.class), "list",
+                JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())).arg(size));
+        JForLoop loop = caseBody._for();
+        JVar i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(size));
+        loop.update(i.incr());
+        loop.body().add(list.invoke("add").arg(JExpr.invoke(method)));
+        caseBody._return(list);
+
+        caseBody = tagSwitch._case(tags.get("MAP")).body();
+        JVar entries = caseBody.decl(JMod.FINAL, codeModel.INT, "entries", in.invoke("getInt"));
+        JVar map = caseBody.decl(JMod.FINAL, codeModel.ref(Map.class).narrow(Object.class, Object.class), "map",
+                JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        loop = caseBody._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(entries));
+        loop.update(i.incr());
+        loop.body().add(map.invoke("put").arg(JExpr.invoke(method)).arg(JExpr.invoke(method)));
+        caseBody._return(map);
+
+        caseBody = tagSwitch._case(tags.get("ELEMENT")).body();
+        JClass wildcardClass = codeModel.ref(Class.class).narrow(codeModel.wildcard());
+        JVar name = caseBody.decl(JMod.FINAL, codeModel.ref(QName.class), "name", JExpr.cast(codeModel.ref(QName.class), JExpr.invoke(method)));
+        JVar declaredType = caseBody.decl(JMod.FINAL, wildcardClass, "declaredType", JExpr.invoke(readClass));
+        JVar scopeType = caseBody.decl(JMod.FINAL, wildcardClass, "scope", JExpr.invoke(readClass));
+        JVar nil = caseBody.decl(JMod.FINAL, codeModel.BOOLEAN, "nil", in.invoke("get").ne(JExpr.lit(0)));
+        JVar element = caseBody.decl(JMod.FINAL, codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard()), "element",
+                JExpr.invoke(newElement).arg(name).arg(declaredType).arg(scopeType).arg(JExpr.invoke(method)));
+        caseBody.add(element.invoke("setNil").arg(nil));
+        caseBody._return(element);
+
+        caseBody = tagSwitch._case(tags.get("ENUM")).body();
+        JSwitch enumSwitch = caseBody._switch(in.invoke("getShort"));
+        for (int id = readers.size(); id < idClasses.size(); id++) {
+            enumSwitch._case(JExpr.lit(id)).body()._return(idClasses.get(id).staticInvoke("values").component(in.invoke("getInt")));
+        }
+        caseBody._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Unknown enum."));
+
+        caseBody = tagSwitch._case(tags.get("OBJECT")).body();
+        JVar value = caseBody.decl(codeModel.ref(Object.class), "value");
+        JSwitch objectSwitch = caseBody._switch(in.invoke("getShort"));
+        for (int id = 0; id < readers.size(); id++) {
+            JBlock objectCase = objectSwitch._case(JExpr.lit(id)).body();
+            objectCase.assign(value, idClasses.get(id).staticInvoke(readers.get(idClasses.get(id))).arg(JExpr._this()));
+            objectCase._break();
+        }
+        objectSwitch._default().body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Unknown class."));
+        caseBody.add(read.invoke("add").arg(value));
+        caseBody._return(value);
+
+        tagSwitch._case(tags.get("REFERENCE")).body()._return(read.invoke("get").arg(in.invoke("getInt")));
+        body._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(JExpr.lit("Unknown value tag ").plus(tag)));
+    }
+
+    /**
+     * Creates a view interface for each class, implemented both by the class and by a flat buffer backed class, whose
+     * getters decode the fields from a buffer on each call, and the FlatViews class, which writes instances into flat
+     * buffers and reads views of them. Nothing is generated, if any of the names is taken.
+     */
+    private void addFlatViews(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return;
+        }
+        List<ClassOutline> classes = new ArrayList<>(model.getClasses());
+        classes.sort(Comparator.comparing(c -> c.implClass.fullName()));
+        for (ClassOutline clazz : classes) {
+            for (String name : Arrays.asList(getFlatBaseName(clazz.implClass) + VIEW_SUFFIX, FLAT_PREFIX + getFlatBaseName(clazz.implClass))) {
+                if (clazz.implClass._package()._getClass(name) != null) {
+                    log(Level.WARNING, "couldNotAddFlatViews", clazz.implClass._package().name() + "." + name);
+                    return;
+                }
+            }
+        }
+        JDefinedClass flatViews;
+        Map<JDefinedClass, JDefinedClass> views = new HashMap<>();
+        try {
+            flatViews = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, FLAT_VIEWS_CLASS_NAME);
+            for (ClassOutline clazz : classes) {
+                views.put(clazz.implClass, clazz.implClass._package()._interface(JMod.PUBLIC, getFlatBaseName(clazz.implClass) + VIEW_SUFFIX));
+            }
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddFlatViews", e.getExistingClass().fullName());
+            return;
+        }
+
+        for (ClassOutline clazz : classes) {
+            addFlatViewInterface(codeModel, clazz.implClass, views);
+            addFlatWriteMethod(codeModel, clazz.implClass, flatViews, views);
+        }
+        StringBuilder fingerprint = new StringBuilder();
+        Map<JDefinedClass, JDefinedClass> flatClasses = new LinkedHashMap<>();
+        for (ClassOutline clazz : classes) {
+            if (clazz.implClass.isAbstract()) {
+                continue;
+            }
+            try {
+                flatClasses.put(clazz.implClass, addFlatClass(codeModel, clazz.implClass, flatViews, views));
+            } catch (JClassAlreadyExistsException e) {
+                log(Level.WARNING, "couldNotAddFlatViews", e.getExistingClass().fullName());
+                return;
+            }
+            fingerprint.append(clazz.implClass.fullName()).append('(');
+            for (JFieldVar field : getFlatFields(clazz.implClass).keySet()) {
+                fingerprint.append(field.type().fullName()).append(' ').append(field.name()).append(',');
+            }
+            fingerprint.append(")\n");
+        }
+        model.getEnums().stream().map(e -> e.clazz).sorted(Comparator.comparing(JDefinedClass::fullName)).forEach(enumClass ->
+                fingerprint.append(enumClass.fullName()).append(enumClass.enumConstants().keySet()).append('\n'));
+        generateFlatViewsClass(codeModel, flatViews, flatClasses, getFingerprint(fingerprint.toString()));
+    }
+
+    private String getFlatBaseName(JDefinedClass clazz) {
+        String packageName = clazz._package().name();
+        return (packageName.isEmpty() ? clazz.fullName() : clazz.fullName().substring(packageName.length() + 1)).replace(".", "");
+    }
+
+    /**
+     * Returns property fields of the class and its superclasses together with the declaring classes, root class first.
+     * This is the order of the fields in a flat buffer.
+     */
+    private Map<JFieldVar, JDefinedClass> getFlatFields(JDefinedClass clazz) {
+        List<JDefinedClass> hierarchy = getSuperClasses(clazz);
+        Collections.reverse(hierarchy);
+        hierarchy.add(clazz);
+        Map<JFieldVar, JDefinedClass> fields = new LinkedHashMap<>();
+        for (JDefinedClass type : hierarchy) {
+            for (JFieldVar field : getPropertyFields(type)) {
+                fields.put(field, type);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Returns type of a getter of the view interface. Generated classes are replaced by their views, so that the getters
+     * of both the generated class and the flat class override it.
+     */
+    private JType getFlatViewType(JCodeModel codeModel, JType type, Map<JDefinedClass, JDefinedClass> views, boolean typeArgument) {
+        if (views.containsKey(type)) {
+            JDefinedClass view = views.get(type);
+            return typeArgument ? view.wildcard() : view;
+        }
+        if (type instanceof JClass && !((JClass) type).getTypeParameters().isEmpty()) {
+            List<JClass> typeArguments = new ArrayList<>();
+            for (JClass parameter : ((JClass) type).getTypeParameters()) {
+                typeArguments.add((JClass) getFlatViewType(codeModel, parameter, views, true));
+            }
+            if (!typeArguments.equals(((JClass) type).getTypeParameters())) {
+                return ((JClass) type).erasure().narrow(typeArguments);
+            }
+        }
+        return type;
+    }
+
+    private void addFlatViewInterface(JCodeModel codeModel, JDefinedClass implClass, Map<JDefinedClass, JDefinedClass> views) {
+        JDefinedClass view = views.get(implClass);
+        view.javadoc().append("Read-only view of {@link " + implClass.name() + "}, implemented by the class itself and by {@link "
+                + FLAT_PREFIX + getFlatBaseName(implClass) + "}, which reads the values from a flat buffer.");
+        if (views.containsKey(implClass._extends())) {
+            view._implements(views.get(implClass._extends()));
+        }
+        for (JFieldVar field : getPropertyFields(implClass)) {
+            JMethod getter = getGetterProperty(field, implClass);
+            if (getter != null) {
+                view.method(JMod.NONE, getFlatViewType(codeModel, getter.type(), views, false), getter.name());
+            }
+        }
+        implClass._implements(view);
+    }
+
+    /**
+     * Adds writeFlat method writing values of the fields into a flat buffer. The method returns the positions of the
+     * values, which the FlatViews class stores in the offset table of the instance.
+     */
+    private void addFlatWriteMethod(JCodeModel codeModel, JDefinedClass implClass, JDefinedClass flatViews, Map<JDefinedClass, JDefinedClass> views) {
+        JMethod method = implClass.method(JMod.PUBLIC, codeModel.INT.array(), "writeFlat");
+        method.javadoc().append("Writes values of the fields and returns their positions, root class fields first. Used by {@link "
+                + flatViews.fullName() + "}.");
+        JVar writer = method.param(JMod.FINAL, flatViews, "writer");
+        JBlock body = method.body();
+        int inherited = getFlatFields(implClass).size() - getPropertyFields(implClass).length;
+        JVar fields;
+        if (implClass._extends() instanceof JDefinedClass) {
+            method.annotate(Override.class);
+            fields = body.decl(JMod.FINAL, codeModel.INT.array(), "fields", codeModel.ref(Arrays.class).staticInvoke("copyOf")
+                    .arg(JExpr._super().invoke(method).arg(writer)).arg(JExpr.lit(inherited + getPropertyFields(implClass).length)));
+        } else {
+            fields = body.decl(JMod.FINAL, codeModel.INT.array(), "fields", JExpr.newArray(codeModel.INT, getPropertyFields(implClass).length));
+        }
+        int index = inherited;
+        for (JFieldVar field : getPropertyFields(implClass)) {
+            JFieldRef value = JExpr._this().ref(field);
+            JArrayCompRef slot = fields.component(JExpr.lit(index++));
+            JType type = field.type();
+            JExpression encoder = getFlatEncoder(codeModel, type, value, writer, views);
+            if (encoder != null && type.isPrimitive()) {
+                body.assign(slot, encoder);
+            } else if (encoder != null) {
+                body.assign(slot, JOp.cond(value.eq(JExpr._null()), JExpr.lit(-1), encoder));
+            } else if (isFlatSupported(type, views)) {
+                JConditional isNull = body._if(value.eq(JExpr._null()));
+                isNull._then().assign(slot, JExpr.lit(-1));
+                isNull._else().assign(slot, getFlatCompositeEncoder(codeModel, isNull._else(), (JClass) type, value, writer, views));
+            } else {
+                JExpression present = value.ne(JExpr._null());
+                if (isCollection(field)) {
+                    present = present.cand(value.invoke("isEmpty").not());
+                }
+                body._if(present)._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class))
+                        .arg("Field '" + field.name() + "' of type " + type.name() + " cannot be written into a flat buffer."));
+                body.assign(slot, JExpr.lit(-1));
+            }
+        }
+        body._return(fields);
+    }
+
+    private boolean isFlatSupported(JType type, Map<JDefinedClass, JDefinedClass> views) {
+        if (type.isPrimitive() || getFlatScalarKind(type, views) != null) {
+            return true;
+        }
+        if (!(type instanceof JClass) || ((JClass) type).getTypeParameters().isEmpty()) {
+            return false;
+        }
+        List<JClass> typeArguments = ((JClass) type).getTypeParameters();
+        String erasure = type.erasure().fullName();
+        if (erasure.equals(List.class.getName())) {
+            return getFlatScalarKind(typeArguments.get(0), views) != null;
+        }
+        if (erasure.equals(Map.class.getName()) || erasure.equals(JAXBElement.class.getName())) {
+            // values of maps and elements are copied, so they must not be views
+            return typeArguments.stream().allMatch(t -> getFlatScalarKind(t, views) != null && !views.containsKey(t));
+        }
+        return false;
+    }
+
+    /**
+     * Returns how a single value of given type is written: the name of the method writing the primitive value, "Object"
+     * for generated classes, "Enum", "String" for values written through their lexical representation or null, if the
+     * value cannot be written.
+     */
+    private String getFlatScalarKind(JType type, Map<JDefinedClass, JDefinedClass> views) {
+        JType primitive = type.unboxify();
+        if (primitive.isPrimitive() && primitive != primitive.owner().CHAR && primitive != primitive.owner().VOID) {
+            return StringUtils.capitalize(primitive.name());
+        }
+        if (views.containsKey(type)) {
+            return "Object";
+        }
+        if (type instanceof JDefinedClass && ((JDefinedClass) type).getClassType() == ClassType.ENUM) {
+            return "Enum";
+        }
+        if (type.fullName().equals(String.class.getName())) {
+            return "String";
+        }
+        if (type.fullName().equals("byte[]")) {
+            return "Bytes";
+        }
+        for (Class<?> lexical : Arrays.asList(BigInteger.class, BigDecimal.class, XMLGregorianCalendar.class, Duration.class, QName.class,
+                OffsetDateTime.class, LocalDate.class, Temporal.class)) {
+            if (type.fullName().equals(lexical.getName())) {
+                return "Lexical";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns expression writing a single non-null value and evaluating to its position or null, if the value is not a
+     * single value or cannot be written.
+     */
+    private JExpression getFlatEncoder(JCodeModel codeModel, JType type, JExpression value, JVar writer, Map<JDefinedClass, JDefinedClass> views) {
+        String kind = getFlatScalarKind(type, views);
+        if (kind == null) {
+            return null;
+        }
+        switch (kind) {
+            case "Enum":
+                return writer.invoke("writeInt").arg(value.invoke("ordinal"));
+            case "Lexical":
+                return writer.invoke("writeString").arg(value.invoke("toString"));
+            default:
+                return writer.invoke("write" + kind).arg(value);
+        }
+    }
+
+    /**
+     * Writes a non-null list, map or element using given block. Lists and maps are written as offset tables of their
+     * items and of their keys and values, elements as a table of the name, the value and the nil flag.
+     */
+    private JExpression getFlatCompositeEncoder(JCodeModel codeModel, JBlock block, JClass type, JExpression value, JVar writer,
+                                                Map<JDefinedClass, JDefinedClass> views) {
+        List<JClass> typeArguments = type.getTypeParameters();
+        if (type.erasure().fullName().equals(JAXBElement.class.getName())) {
+            JExpression elementValue = value.invoke("getValue");
+            return writer.invoke("writeOffsets").arg(JExpr.newArray(codeModel.INT)
+                    .add(writer.invoke("writeString").arg(value.invoke("getName").invoke("toString")))
+                    .add(JOp.cond(elementValue.eq(JExpr._null()), JExpr.lit(-1), getFlatEncoder(codeModel, typeArguments.get(0), elementValue, writer, views)))
+                    .add(JOp.cond(value.invoke("isNil"), JExpr.lit(1), JExpr.lit(0))));
+        }
+        boolean map = type.erasure().fullName().equals(Map.class.getName());
+        JVar items = block.decl(JMod.FINAL, codeModel.INT.array(), "items",
+                JExpr.newArray(codeModel.INT, map ? JExpr.lit(2).mul(value.invoke("size")) : value.invoke("size")));
+        JVar i = block.decl(codeModel.INT, "i", JExpr.lit(0));
+        if (map) {
+            JForEach entries = block.forEach(codeModel.ref(Map.Entry.class).narrow(typeArguments), "entry", value.invoke("entrySet"));
+            JVar key = entries.body().decl(JMod.FINAL, typeArguments.get(0), "key", entries.var().invoke("getKey"));
+            JVar entryValue = entries.body().decl(JMod.FINAL, typeArguments.get(1), "value", entries.var().invoke("getValue"));
+            entries.body().assign(items.component(i), JOp.cond(key.eq(JExpr._null()), JExpr.lit(-1), getFlatEncoder(codeModel, typeArguments.get(0), key, writer, views)));
+            entries.body().assign(items.component(i.plus(JExpr.lit(1))),
+                    JOp.cond(entryValue.eq(JExpr._null()), JExpr.lit(-1), getFlatEncoder(codeModel, typeArguments.get(1), entryValue, writer, views)));
+            entries.body().assignPlus(i, JExpr.lit(2));
+        } else {
+            JForEach list = block.forEach(typeArguments.get(0), "item", value);
+            list.body().assign(items.component(i), JOp.cond(list.var().eq(JExpr._null()), JExpr.lit(-1),
+                    getFlatEncoder(codeModel, typeArguments.get(0), list.var(), writer, views)));
+            list.body().assignPlus(i, JExpr.lit(1));
+        }
+        return writer.invoke("writeOffsets").arg(items);
+    }
+
+    /**
+     * Returns expression decoding a single value of given type written at the offset.
+     */
+    private JExpression getFlatDecoder(JCodeModel codeModel, JType type, JExpression buffer, JExpression offset, JDefinedClass flatViews,
+                                       Map<JDefinedClass, JDefinedClass> views) {
+        String kind = getFlatScalarKind(type, views);
+        switch (kind) {
+            case "Boolean":
+                return buffer.invoke("get").arg(offset).ne(JExpr.lit(0));
+            case "Byte":
+                return buffer.invoke("get").arg(offset);
+            case "Object":
+                return JExpr.cast(views.get(type), flatViews.staticInvoke("view").arg(buffer).arg(offset));
+            case "Enum":
+                return ((JClass) type).staticInvoke("values").component(buffer.invoke("getInt").arg(offset));
+            case "String":
+                return flatViews.staticInvoke("readString").arg(buffer).arg(offset);
+            case "Bytes":
+                return flatViews.staticInvoke("readBytes").arg(buffer).arg(offset);
+            case "Lexical":
+                JExpression lexical = flatViews.staticInvoke("readString").arg(buffer).arg(offset);
+                switch (type.fullName()) {
+                    case "javax.xml.datatype.XMLGregorianCalendar":
+                        return flatViews.staticInvoke("datatypes").invoke("newXMLGregorianCalendar").arg(lexical);
+                    case "javax.xml.datatype.Duration":
+                        return flatViews.staticInvoke("datatypes").invoke("newDuration").arg(lexical);
+                    case "javax.xml.namespace.QName":
+                        return ((JClass) type).staticInvoke("valueOf").arg(lexical);
+                    case "java.time.OffsetDateTime":
+                    case "java.time.LocalDate":
+                        return ((JClass) type).staticInvoke("parse").arg(lexical);
+                    case "java.time.temporal.Temporal":
+                        return flatViews.staticInvoke("parseDateTime").arg(lexical);
+                    default:
+                        return JExpr._new((JClass) type).arg(lexical);
+                }
+            default:
+                return buffer.invoke("get" + kind).arg(offset);
+        }
+    }
+
+    /**
+     * Creates the flat buffer backed implementation of the view of a non-abstract class. Instances hold only the buffer
+     * and the position of the offset table, whose slots point to the values of the fields or are negative for null.
+     */
+    private JDefinedClass addFlatClass(JCodeModel codeModel, JDefinedClass implClass, JDefinedClass flatViews,
+                                       Map<JDefinedClass, JDefinedClass> views) throws JClassAlreadyExistsException {
+        JDefinedClass flat = implClass._package()._class(JMod.PUBLIC | JMod.FINAL, FLAT_PREFIX + getFlatBaseName(implClass));
+        flat._implements(views.get(implClass));
+        flat.javadoc().append("Implementation of {@link " + views.get(implClass).name() + "} backed by a flat buffer written by {@link "
+                + flatViews.fullName() + "}. Getters decode the values on each call, nothing is copied on creation.");
+        JFieldVar buffer = flat.field(JMod.PRIVATE | JMod.FINAL, ByteBuffer.class, "buffer");
+        JFieldVar position = flat.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "position");
+        JMethod ctor = flat.constructor(JMod.PUBLIC);
+        ctor.body().assign(JExpr._this().ref(buffer), ctor.param(JMod.FINAL, ByteBuffer.class, "buffer"));
+        ctor.body().assign(JExpr._this().ref(position), ctor.param(JMod.FINAL, codeModel.INT, "position"));
+        JMethod slot = flat.method(JMod.PRIVATE, codeModel.INT, "offset");
+        JVar field = slot.param(JMod.FINAL, codeModel.INT, "field");
+        // the offset table follows the class id
+        slot.body()._return(buffer.invoke("getInt").arg(position.plus(JExpr.lit(4)).plus(JExpr.lit(4).mul(field))));
+
+        int index = 0;
+        for (Map.Entry<JFieldVar, JDefinedClass> entry : getFlatFields(implClass).entrySet()) {
+            JMethod getter = getGetterProperty(entry.getKey(), entry.getValue());
+            if (getter != null) {
+                addFlatGetter(codeModel, flat, getter, entry.getKey().type(), JExpr.invoke(slot).arg(JExpr.lit(index)), flatViews, views);
+            }
+            index++;
+        }
+        JMethod toString = flat.method(JMod.PUBLIC, String.class, "toString");
+        toString.annotate(Override.class);
+        toString.body()._return(JExpr.lit(flat.name() + "@").plus(position));
+        return flat;
+    }
+
+    private void addFlatGetter(JCodeModel codeModel, JDefinedClass flat, JMethod getter, JType type, JExpression slot, JDefinedClass flatViews,
+                               Map<JDefinedClass, JDefinedClass> views) {
+        JMethod method = flat.method(JMod.PUBLIC, getFlatViewType(codeModel, getter.type(), views, false), getter.name());
+        method.annotate(Override.class);
+        JBlock body = method.body();
+        JFieldVar buffer = flat.fields().get("buffer");
+        String getterType = getter.type().erasure().fullName();
+        boolean optional = getterType.equals(Optional.class.getName()) && !type.erasure().fullName().equals(Optional.class.getName());
+        JExpression absent;
+        if (optional) {
+            absent = codeModel.ref(Optional.class).staticInvoke("empty");
+        } else if (getterType.equals(List.class.getName())) {
+            absent = codeModel.ref(Collections.class).staticInvoke("emptyList");
+        } else if (getterType.equals(Map.class.getName())) {
+            absent = codeModel.ref(Collections.class).staticInvoke("emptyMap");
+        } else {
+            absent = JExpr._null();
+        }
+        if (!isFlatSupported(type, views) || !(optional || getterType.equals(type.erasure().fullName()))) {
+            // such values are never written
+            body._return(absent);
+            return;
+        }
+        if (type.isPrimitive()) {
+            body._return(getFlatDecoder(codeModel, type, buffer, slot, flatViews, views));
+            return;
+        }
+        JVar offset = body.decl(JMod.FINAL, codeModel.INT, "offset", slot);
+        body._if(offset.lt(JExpr.lit(0)))._then()._return(absent);
+        JExpression value;
+        String erasure = type.erasure().fullName();
+        if (erasure.equals(List.class.getName())) {
+            JType itemType = ((JClass) type).getTypeParameters().get(0);
+            JClass viewType = (JClass) getFlatViewType(codeModel, itemType, views, false);
+            JDefinedClass list = codeModel.anonymousClass(codeModel.ref(AbstractList.class).narrow(viewType));
+            JMethod size = list.method(JMod.PUBLIC, codeModel.INT, "size");
+            size.annotate(Override.class);
+            size.body()._return(buffer.invoke("getInt").arg(offset));
+            JMethod get = list.method(JMod.PUBLIC, viewType, "get");
+            get.annotate(Override.class);
+            JVar index = get.param(JMod.FINAL, codeModel.INT, "index");
+            get.body().add(codeModel.ref(Objects.class).staticInvoke("checkIndex").arg(index).arg(JExpr.invoke(size)));
+            JVar item = get.body().decl(JMod.FINAL, codeModel.INT, "item", buffer.invoke("getInt").arg(offset.plus(JExpr.lit(4)).plus(JExpr.lit(4).mul(index))));
+            get.body()._return(JOp.cond(item.lt(JExpr.lit(0)), JExpr._null(), getFlatDecoder(codeModel, itemType, buffer, item, flatViews, views)));
+            value = JExpr._new(list);
+        } else if (erasure.equals(Map.class.getName())) {
+            List<JClass> typeArguments = ((JClass) type).getTypeParameters();
+            JVar map = body.decl(JMod.FINAL, type, "map", JExpr._new(codeModel.ref(LinkedHashMap.class).narrow(Collections.<JClass>emptyList())));
+            JForLoop loop = body._for();
+            JVar i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+            loop.test(i.lt(buffer.invoke("getInt").arg(offset)));
+            loop.update(JExpr.assignPlus(i, JExpr.lit(2)));
+            JVar key = loop.body().decl(JMod.FINAL, codeModel.INT, "key", buffer.invoke("getInt").arg(offset.plus(JExpr.lit(4)).plus(JExpr.lit(4).mul(i))));
+            JVar entryValue = loop.body().decl(JMod.FINAL, codeModel.INT, "value", buffer.invoke("getInt").arg(offset.plus(JExpr.lit(8)).plus(JExpr.lit(4).mul(i))));
+            loop.body().add(map.invoke("put")
+                    .arg(JOp.cond(key.lt(JExpr.lit(0)), JExpr._null(), getFlatDecoder(codeModel, typeArguments.get(0), buffer, key, flatViews, views)))
+                    .arg(JOp.cond(entryValue.lt(JExpr.lit(0)), JExpr._null(), getFlatDecoder(codeModel, typeArguments.get(1), buffer, entryValue, flatViews, views))));
+            value = codeModel.ref(Collections.class).staticInvoke("unmodifiableMap").arg(map);
+        } else if (erasure.equals(JAXBElement.class.getName())) {
+            JClass valueType = ((JClass) type).getTypeParameters().get(0);
+            JVar valueOffset = body.decl(JMod.FINAL, codeModel.INT, "value", buffer.invoke("getInt").arg(offset.plus(JExpr.lit(8))));
+            JVar element = body.decl(JMod.FINAL, type, "element", JExpr._new(codeModel.ref(JAXBElement.class).narrow(Collections.<JClass>emptyList()))
+                    .arg(codeModel.ref(QName.class).staticInvoke("valueOf").arg(flatViews.staticInvoke("readString").arg(buffer)
+                            .arg(buffer.invoke("getInt").arg(offset.plus(JExpr.lit(4))))))
+                    .arg(valueType.dotclass())
+                    .arg(codeModel.ref(JAXBElement.GlobalScope.class).dotclass())
+                    .arg(JOp.cond(valueOffset.lt(JExpr.lit(0)), JExpr._null(), getFlatDecoder(codeModel, valueType, buffer, valueOffset, flatViews, views))));
+            body.add(element.invoke("setNil").arg(buffer.invoke("getInt").arg(offset.plus(JExpr.lit(12))).ne(JExpr.lit(0))));
+            value = element;
+        } else {
+            value = getFlatDecoder(codeModel, type, buffer, offset, flatViews, views);
+        }
+        body._return(optional ? codeModel.ref(Optional.class).staticInvoke("of").arg(value) : value);
+    }
+
+    private void generateFlatViewsClass(JCodeModel codeModel, JDefinedClass flatViews, Map<JDefinedClass, JDefinedClass> flatClasses, long fingerprint) {
+        flatViews.javadoc().append("Writes immutable object trees into flat buffers and reads views of them. Views decode values from the "
+                + "buffer, which may be memory mapped, on each access, so reading a buffer takes no time and almost no heap. A flat "
+                + "buffer starts with a header followed by the values, each instance is stored as its class id followed by an offset "
+                + "table pointing to the values of its fields. Instances referenced more than once are written once. A buffer can "
+                + "only be read by classes generated from the same schema.");
+        JFieldVar fingerprintField = flatViews.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, codeModel.LONG, "SCHEMA_FINGERPRINT", JExpr.lit(fingerprint));
+        fingerprintField.javadoc().append("Hash of the generated classes and their fields, written into and checked on reading of each buffer.");
+        JFieldVar magic = flatViews.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.INT, "MAGIC", JExpr.lit(0x494d4d46));
+        JFieldVar headerSize = flatViews.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.INT, "HEADER_SIZE", JExpr.lit(16));
+        JClass objectType = codeModel.ref(Object.class);
+        JClass idsType = codeModel.ref(Map.class).narrow(codeModel.ref(Class.class).narrow(codeModel.wildcard()), codeModel.ref(Integer.class));
+        JFieldVar ids = flatViews.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, idsType, "CLASS_IDS",
+                JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        List<JDefinedClass> idClasses = new ArrayList<>(flatClasses.keySet());
+        for (int i = 0; i < idClasses.size(); i++) {
+            flatViews.init().add(ids.invoke("put").arg(idClasses.get(i).dotclass()).arg(JExpr.lit(i)));
+        }
+        JFieldVar datatypes = flatViews.field(JMod.PRIVATE | JMod.STATIC | JMod.VOLATILE, DatatypeFactory.class, "datatypes");
+        JFieldVar out = flatViews.field(JMod.PRIVATE, ByteBuffer.class, "out",
+                codeModel.ref(ByteBuffer.class).staticInvoke("allocate").arg(JExpr.lit(1024)));
+        JFieldVar written = flatViews.field(JMod.PRIVATE | JMod.FINAL, codeModel.ref(Map.class).narrow(objectType, codeModel.ref(Integer.class)), "written",
+                JExpr._new(codeModel.ref(IdentityHashMap.class).narrow(Collections.<JClass>emptyList())));
+        flatViews.constructor(JMod.PRIVATE);
+
+        // write(root)
+        JMethod write = flatViews.method(JMod.PUBLIC | JMod.STATIC, ByteBuffer.class, "write");
+        write.javadoc().append("Writes given instance into a new heap buffer, which is returned ready to be read or written to a channel.");
+        JVar root = write.param(JMod.FINAL, objectType, "root");
+        JVar writer = write.body().decl(JMod.FINAL, flatViews, "writer", JExpr._new(flatViews));
+        write.body().add(writer.ref(out).invoke("putInt").arg(magic).invoke("putLong").arg(fingerprintField).invoke("putInt").arg(JExpr.lit(0)));
+        JVar rootPosition = write.body().decl(JMod.FINAL, codeModel.INT, "position", writer.invoke("writeObject").arg(root));
+        write.body().add(writer.ref(out).invoke("putInt").arg(JExpr.lit(12)).arg(rootPosition));
+        write.body().add(writer.ref(out).invoke("flip"));
+        write.body()._return(writer.ref(out));
+
+        // write(root, file)
+        JMethod writeFile = flatViews.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "write");
+        writeFile._throws(IOException.class);
+        writeFile.javadoc().append("Writes given instance into the file.");
+        root = writeFile.param(JMod.FINAL, objectType, "root");
+        JVar file = writeFile.param(JMod.FINAL, Path.class, "file");
+        JVar buffer = writeFile.body().decl(JMod.FINAL, codeModel.ref(ByteBuffer.class), "buffer", JExpr.invoke(write).arg(root));
+        JVar channel = writeFile.body().decl(JMod.FINAL, codeModel.ref(FileChannel.class), "channel", codeModel.ref(FileChannel.class).staticInvoke("open").arg(file)
+                .arg(codeModel.ref(StandardOpenOption.class).staticRef("WRITE"))
+                .arg(codeModel.ref(StandardOpenOption.class).staticRef("CREATE"))
+                .arg(codeModel.ref(StandardOpenOption.class).staticRef("TRUNCATE_EXISTING")));
+        JTryBlock tryWrite = writeFile.body()._try();
+        tryWrite.body()._while(buffer.invoke("hasRemaining")).body().add(channel.invoke("write").arg(buffer));
+        tryWrite._finally().add(channel.invoke("close"));
+
+        // read(buffer, type)
+        JMethod read = flatViews.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "read");
+        JTypeVar t = read.generify("T");
+        read.type(t);
+        read.javadoc().append("Returns view of the instance stored in the remaining bytes of given buffer, without changing its position. "
+                + "The buffer must not be modified while the view is in use.");
+        buffer = read.param(JMod.FINAL, ByteBuffer.class, "buffer");
+        JVar type = read.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        JVar in = read.body().decl(JMod.FINAL, codeModel.ref(ByteBuffer.class), "in",
+                buffer.invoke("slice").invoke("order").arg(codeModel.ref(ByteOrder.class).staticRef("BIG_ENDIAN")));
+        read.body()._if(in.invoke("remaining").lt(headerSize).cor(in.invoke("getInt").arg(JExpr.lit(0)).ne(magic)))._then()
+                ._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Not a flat buffer."));
+        read.body()._if(in.invoke("getLong").arg(JExpr.lit(4)).ne(fingerprintField))._then()
+                ._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Flat buffer was written by classes generated from a different schema."));
+        JVar position = read.body().decl(JMod.FINAL, codeModel.INT, "position", in.invoke("getInt").arg(JExpr.lit(12)));
+        read.body()._return(type.invoke("cast").arg(JOp.cond(position.lt(JExpr.lit(0)), JExpr._null(), JExpr.invoke("view").arg(in).arg(position))));
+
+        // read(file, type)
+        JMethod readFile = flatViews.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "read");
+        t = readFile.generify("T");
+        readFile.type(t);
+        readFile._throws(IOException.class);
+        readFile.javadoc().append("Returns view of the instance stored in given file mapped into memory. The file must not be modified "
+                + "while the view is in use.");
+        file = readFile.param(JMod.FINAL, Path.class, "file");
+        type = readFile.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        channel = readFile.body().decl(JMod.FINAL, codeModel.ref(FileChannel.class), "channel",
+                codeModel.ref(FileChannel.class).staticInvoke("open").arg(file).arg(codeModel.ref(StandardOpenOption.class).staticRef("READ")));
+        JTryBlock tryRead = readFile.body()._try();
+        tryRead.body()._return(JExpr.invoke(read).arg(channel.invoke("map")
+                .arg(codeModel.ref(FileChannel.MapMode.class).staticRef("READ_ONLY")).arg(JExpr.lit(0L)).arg(channel.invoke("size"))).arg(type));
+        tryRead._finally().add(channel.invoke("close"));
+
+        // view(buffer, position)
+        JMethod view = flatViews.method(JMod.PUBLIC | JMod.STATIC, objectType, "view");
+        view.javadoc().append("Returns view of the instance stored at given position. Used by the flat classes.");
+        buffer = view.param(JMod.FINAL, ByteBuffer.class, "buffer");
+        position = view.param(JMod.FINAL, codeModel.INT, "position");
+        JSwitch viewSwitch = view.body()._switch(buffer.invoke("getInt").arg(position));
+        for (int i = 0; i < idClasses.size(); i++) {
+            viewSwitch._case(JExpr.lit(i)).body()._return(JExpr._new(flatClasses.get(idClasses.get(i))).arg(buffer).arg(position));
+        }
+        view.body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(JExpr.lit("Unknown class at ").plus(position)));
+
+        // readString(buffer, offset), readBytes(buffer, offset)
+        JMethod readBytes = flatViews.method(JMod.PUBLIC | JMod.STATIC, codeModel.BYTE.array(), "readBytes");
+        readBytes.javadoc().append("Returns copy of the bytes stored at given offset. Used by the flat classes.");
+        buffer = readBytes.param(JMod.FINAL, ByteBuffer.class, "buffer");
+        JVar offset = readBytes.param(JMod.FINAL, codeModel.INT, "offset");
+        JVar bytes = readBytes.body().decl(JMod.FINAL, codeModel.BYTE.array(), "bytes", JExpr.newArray(codeModel.BYTE, buffer.invoke("getInt").arg(offset)));
+        JVar source = readBytes.body().decl(JMod.FINAL, codeModel.ref(ByteBuffer.class), "source", buffer.invoke("duplicate"));
+        readBytes.body().add(source.invoke("position").arg(offset.plus(JExpr.lit(4))));
+        readBytes.body().add(source.invoke("get").arg(bytes));
+        readBytes.body()._return(bytes);
+        JMethod readString = flatViews.method(JMod.PUBLIC | JMod.STATIC, String.class, "readString");
+        readString.javadoc().append("Returns string stored at given offset. Used by the flat classes.");
+        buffer = readString.param(JMod.FINAL, ByteBuffer.class, "buffer");
+        offset = readString.param(JMod.FINAL, codeModel.INT, "offset");
+        readString.body()._return(JExpr._new(codeModel.ref(String.class)).arg(JExpr.invoke(readBytes).arg(buffer).arg(offset))
+                .arg(codeModel.ref(StandardCharsets.class).staticRef("UTF_8")));
+
+        JMethod getDatatypes = flatViews.method(JMod.PUBLIC | JMod.STATIC, DatatypeFactory.class, "datatypes");
+        getDatatypes.javadoc().append("Returns the factory of XML datatypes. Used by the flat classes.");
+        JBlock create = getDatatypes.body()._if(datatypes.eq(JExpr._null()))._then();
+        JTryBlock tryFactory = create._try();
+        tryFactory.body().assign(datatypes, codeModel.ref(DatatypeFactory.class).staticInvoke("newInstance"));
+        JCatchBlock configuration = tryFactory._catch(codeModel.ref(DatatypeConfigurationException.class));
+        configuration.body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(configuration.param("e")));
+        getDatatypes.body()._return(datatypes);
+
+        JMethod parseDateTime = flatViews.method(JMod.PUBLIC | JMod.STATIC, Temporal.class, "parseDateTime");
+        parseDateTime.javadoc().append("Parses xs:dateTime value written with or without timezone. Used by the flat classes.");
+        JVar lexical = parseDateTime.param(JMod.FINAL, String.class, "value");
+        JVar parsed = parseDateTime.body().decl(JMod.FINAL, codeModel.ref(TemporalAccessor.class), "parsed",
+                codeModel.ref(DateTimeFormatter.class).staticRef("ISO_DATE_TIME").invoke("parse").arg(lexical));
+        parseDateTime.body()._return(JOp.cond(parsed.invoke("isSupported").arg(codeModel.ref(ChronoField.class).staticRef("OFFSET_SECONDS")),
+                codeModel.ref(OffsetDateTime.class).staticInvoke("from").arg(parsed),
+                codeModel.ref(LocalDateTime.class).staticInvoke("from").arg(parsed)));
+
+        generateFlatViewsWriteMethods(codeModel, flatViews, out, written, ids, idClasses);
+    }
+
+    private void generateFlatViewsWriteMethods(JCodeModel codeModel, JDefinedClass flatViews, JFieldVar out, JFieldVar written, JFieldVar ids,
+                                               List<JDefinedClass> idClasses) {
+        JMethod reserve = flatViews.method(JMod.PRIVATE, codeModel.INT, "reserve");
+        reserve.javadoc().append("Makes room for given number of bytes and returns the position of the first one.");
+        JVar size = reserve.param(JMod.FINAL, codeModel.INT, "size");
+        JBlock grow = reserve.body()._if(out.invoke("remaining").lt(size))._then();
+        JVar bigger = grow.decl(JMod.FINAL, codeModel.ref(ByteBuffer.class), "bigger", codeModel.ref(ByteBuffer.class).staticInvoke("allocate")
+                .arg(codeModel.ref(Math.class).staticInvoke("max").arg(JExpr.lit(2).mul(out.invoke("capacity"))).arg(out.invoke("position").plus(size))));
+        grow.add(out.invoke("flip"));
+        grow.assign(out, bigger.invoke("put").arg(out));
+        reserve.body()._return(out.invoke("position"));
+
+        Object[][] primitives = {
+                {codeModel.BOOLEAN, "Boolean", 1},
+                {codeModel.BYTE, "Byte", 1},
+                {codeModel.SHORT, "Short", 2},
+                {codeModel.INT, "Int", 4},
+                {codeModel.LONG, "Long", 8},
+                {codeModel.FLOAT, "Float", 4},
+                {codeModel.DOUBLE, "Double", 8}};
+        for (Object[] primitive : primitives) {
+            JMethod method = flatViews.method(JMod.PUBLIC, codeModel.INT, "write" + primitive[1]);
+            method.javadoc().append("Writes a value and returns its position. Used by the generated classes.");
+            JVar value = method.param(JMod.FINAL, (JType) primitive[0], "value");
+            JVar position = method.body().decl(JMod.FINAL, codeModel.INT, "position", JExpr.invoke(reserve).arg(JExpr.lit((Integer) primitive[2])));
+            if (primitive[0] == codeModel.BOOLEAN) {
+                method.body().add(out.invoke("put").arg(JOp.cond(value, JExpr.cast(codeModel.BYTE, JExpr.lit(1)), JExpr.cast(codeModel.BYTE, JExpr.lit(0)))));
+            } else {
+                method.body().add(out.invoke(primitive[0] == codeModel.BYTE ? "put" : "put" + primitive[1]).arg(value));
+            }
+            method.body()._return(position);
+        }
+        JMethod writeBytes = flatViews.method(JMod.PUBLIC, codeModel.INT, "writeBytes");
+        writeBytes.javadoc().append("Writes length of the bytes followed by the bytes and returns the position of the length. Used by the generated classes.");
+        JVar bytes = writeBytes.param(JMod.FINAL, codeModel.BYTE.array(), "value");
+        JVar position = writeBytes.body().decl(JMod.FINAL, codeModel.INT, "position", JExpr.invoke(reserve).arg(JExpr.lit(4).plus(bytes.ref("length"))));
+        writeBytes.body().add(out.invoke("putInt").arg(bytes.ref("length")).invoke("put").arg(bytes));
+        writeBytes.body()._return(position);
+        JMethod writeString = flatViews.method(JMod.PUBLIC, codeModel.INT, "writeString");
+        writeString.javadoc().append("Writes UTF-8 bytes of a string and returns their position. Used by the generated classes.");
+        JVar string = writeString.param(JMod.FINAL, String.class, "value");
+        writeString.body()._return(JExpr.invoke(writeBytes).arg(string.invoke("getBytes").arg(codeModel.ref(StandardCharsets.class).staticRef("UTF_8"))));
+        JMethod writeOffsets = flatViews.method(JMod.PUBLIC, codeModel.INT, "writeOffsets");
+        writeOffsets.javadoc().append("Writes number of the offsets followed by the offsets and returns the position of the number. Used by the generated classes.");
+        JVar offsets = writeOffsets.param(JMod.FINAL, codeModel.INT.array(), "offsets");
+        position = writeOffsets.body().decl(JMod.FINAL, codeModel.INT, "position", JExpr.invoke(reserve).arg(JExpr.lit(4).plus(JExpr.lit(4).mul(offsets.ref("length")))));
+        writeOffsets.body().add(out.invoke("putInt").arg(offsets.ref("length")));
+        JForEach each = writeOffsets.body().forEach(codeModel.INT, "offset", offsets);
+        each.body().add(out.invoke("putInt").arg(each.var()));
+        writeOffsets.body()._return(position);
+
+        JMethod writeObject = flatViews.method(JMod.PUBLIC, codeModel.INT, "writeObject");
+        writeObject.javadoc().append("Writes an instance of a generated class, unless it has been written already, and returns the position of its "
+                + "class id or -1 for null. Used by the generated classes.");
+        JVar value = writeObject.param(JMod.FINAL, Object.class, "value");
+        JBlock body = writeObject.body();
+        body._if(value.eq(JExpr._null()))._then()._return(JExpr.lit(-1));
+        JVar known = body.decl(JMod.FINAL, codeModel.ref(Integer.class), "known", written.invoke("get").arg(value));
+        JBlock reference = body._if(known.ne(JExpr._null()))._then();
+        reference._if(known.lt(JExpr.lit(0)))._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class))
+                .arg(JExpr.lit("Cannot write cyclic reference to ").plus(value)));
+        reference._return(known);
+        JVar id = body.decl(JMod.FINAL, codeModel.ref(Integer.class), "id", ids.invoke("get").arg(value.invoke("getClass")));
+        body._if(id.eq(JExpr._null()))._then()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class))
+                .arg(JExpr.lit("Cannot write value of ").plus(value.invoke("getClass"))));
+        body.add(written.invoke("put").arg(value).arg(JExpr.lit(-1)));
+        JVar fields = body.decl(JMod.FINAL, codeModel.INT.array(), "fields", null);
+        JSwitch dispatch = body._switch(id);
+        for (int i = 0; i < idClasses.size(); i++) {
+            JBlock caseBody = dispatch._case(JExpr.lit(i)).body();
+            caseBody.assign(fields, JExpr.cast(idClasses.get(i), value).invoke("writeFlat").arg(JExpr._this()));
+            caseBody._break();
+        }
+        dispatch._default().body()._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg("Unknown class."));
+        // children are written first, so the offset table is complete
+        position = body.decl(JMod.FINAL, codeModel.INT, "position", JExpr.invoke(reserve).arg(JExpr.lit(4).plus(JExpr.lit(4).mul(fields.ref("length")))));
+        body.add(out.invoke("putInt").arg(id));
+        each = body.forEach(codeModel.INT, "field", fields);
+        each.body().add(out.invoke("putInt").arg(each.var()));
+        body.add(written.invoke("put").arg(value).arg(position));
+        body._return(position);
+    }
+
+    /**
+     * Creates a columnar companion of a non-abstract class, which stores a list of instances as one array per field.
+     * Primitive fields are stored in primitive arrays, booleans in a bit set and other fields in lists. The companion is
+     * left out, if the property constructor does not take the fields in declaration order or a field has no getter.
+     */
+    private void addColumns(Outline model, ClassOutline clazz) {
+        JDefinedClass implClass = clazz.implClass;
+        if (implClass.isAbstract() || (!columnClassNames.isEmpty() && !columnClassNames.contains(implClass.name()))) {
+            return;
+        }
+        JCodeModel codeModel = model.getCodeModel();
+        Map<JFieldVar, JDefinedClass> fields = getFlatFields(implClass);
+        List<JVar> params = getPropertyConstructorParams(implClass);
+        if (!fields.keySet().stream().map(JFieldVar::name).collect(Collectors.toList()).equals(params.stream().map(JVar::name).collect(Collectors.toList()))) {
+            log(Level.WARNING, "couldNotAddColumns", implClass.binaryName());
+            return;
+        }
+        Map<JFieldVar, JMethod> getters = new LinkedHashMap<>();
+        for (Map.Entry<JFieldVar, JDefinedClass> entry : fields.entrySet()) {
+            JMethod getter = getGetterProperty(entry.getKey(), entry.getValue());
+            if (getter == null || !(getter.type().fullName().equals(entry.getKey().type().fullName())
+                    || getter.type().fullName().equals(codeModel.ref(Optional.class).narrow(entry.getKey().type().boxify()).fullName()))) {
+                log(Level.WARNING, "couldNotAddColumns", implClass.binaryName());
+                return;
+            }
+            getters.put(entry.getKey(), getter);
+        }
+        JDefinedClass columns;
+        try {
+            columns = implClass._package()._class(JMod.PUBLIC | JMod.FINAL, implClass.name() + COLUMNS_SUFFIX);
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddColumns", e.getExistingClass().fullName());
+            return;
+        }
+        columns.javadoc().append("Columnar representation of a list of {@link " + implClass.name() + "} instances, which stores the values "
+                + "of each field in a separate array. Scanning a column reads consecutive memory only, and a {@link Row} reads a row "
+                + "without creating an instance.");
+        JFieldVar rowCount = columns.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "rowCount");
+        JMethod ctor = columns.constructor(JMod.PRIVATE);
+        JVar ctorRowCount = ctor.param(JMod.FINAL, codeModel.INT, "rowCount");
+        ctor.body().assign(JExpr._this().ref(rowCount), ctorRowCount);
+        Map<JFieldVar, JFieldVar> columnFields = new LinkedHashMap<>();
+        for (JFieldVar field : fields.keySet()) {
+            JType type = field.type();
+            JFieldVar column;
+            if (type == codeModel.BOOLEAN) {
+                column = columns.field(JMod.PRIVATE | JMod.FINAL, BitSet.class, field.name());
+                ctor.body().assign(JExpr._this().ref(column), JExpr._new(codeModel.ref(BitSet.class)).arg(ctorRowCount));
+            } else if (type.isPrimitive()) {
+                column = columns.field(JMod.PRIVATE | JMod.FINAL, type.array(), field.name());
+                ctor.body().assign(JExpr._this().ref(column), JExpr.newArray(type, ctorRowCount));
+            } else {
+                column = columns.field(JMod.PRIVATE | JMod.FINAL, codeModel.ref(List.class).narrow(type), field.name());
+                ctor.body().assign(JExpr._this().ref(column), JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())).arg(ctorRowCount));
+            }
+            columnFields.put(field, column);
+        }
+
+        // of(items)
+        JMethod of = columns.method(JMod.PUBLIC | JMod.STATIC, columns, "of");
+        of.javadoc().append("Stores values of the fields of given instances in columns. Fields declared by subclasses are not stored.");
+        JVar items = of.param(JMod.FINAL, codeModel.ref(List.class).narrow(implClass.wildcard()), "items");
+        JVar result = of.body().decl(JMod.FINAL, columns, "columns", JExpr._new(columns).arg(items.invoke("size")));
+        JForLoop rows = of.body()._for();
+        JVar i = rows.init(codeModel.INT, "i", JExpr.lit(0));
+        rows.test(i.lt(result.ref(rowCount)));
+        rows.update(i.incr());
+        JVar item = rows.body().decl(JMod.FINAL, implClass, "item", codeModel.ref(Objects.class).staticInvoke("requireNonNull")
+                .arg(items.invoke("get").arg(i)).arg("Null items cannot be stored in columns."));
+        for (Map.Entry<JFieldVar, JFieldVar> entry : columnFields.entrySet()) {
+            JType type = entry.getKey().type();
+            JMethod getter = getters.get(entry.getKey());
+            JExpression value = item.invoke(getter);
+            if (!getter.type().fullName().equals(type.fullName())) {
+                value = value.invoke("orElse").arg(JExpr._null());
+            }
+            JFieldRef column = result.ref(entry.getValue());
+            if (type == codeModel.BOOLEAN) {
+                rows.body().add(column.invoke("set").arg(i).arg(value));
+            } else if (type.isPrimitive()) {
+                rows.body().assign(column.component(i), value);
+            } else {
+                rows.body().add(column.invoke("add").arg(value));
+            }
+        }
+        of.body()._return(result);
+
+        columns.method(JMod.PUBLIC, codeModel.INT, "size").body()._return(rowCount);
+
+        // get(index), toList()
+        JMethod get = columns.method(JMod.PUBLIC, implClass, "get");
+        get.javadoc().append("Creates the instance stored in given row.");
+        JVar index = get.param(JMod.FINAL, codeModel.INT, "index");
+        get.body().add(codeModel.ref(Objects.class).staticInvoke("checkIndex").arg(index).arg(rowCount));
+        JInvocation instance = JExpr._new(implClass);
+        for (JFieldVar column : columnFields.values()) {
+            if (column.type().isArray()) {
+                instance.arg(column.component(index));
+            } else {
+                instance.arg(column.invoke("get").arg(index));
+            }
+        }
+        get.body()._return(instance);
+        JMethod toList = columns.method(JMod.PUBLIC, codeModel.ref(List.class).narrow(implClass), "toList");
+        toList.javadoc().append("Creates instances stored in all rows.");
+        JVar list = toList.body().decl(JMod.FINAL, codeModel.ref(List.class).narrow(implClass), "items",
+                JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())).arg(rowCount));
+        rows = toList.body()._for();
+        i = rows.init(codeModel.INT, "i", JExpr.lit(0));
+        rows.test(i.lt(rowCount));
+        rows.update(i.incr());
+        rows.body().add(list.invoke("add").arg(JExpr.invoke(get).arg(i)));
+        toList.body()._return(codeModel.ref(Collections.class).staticInvoke("unmodifiableList").arg(list));
+
+        // column views
+        for (Map.Entry<JFieldVar, JFieldVar> entry : columnFields.entrySet()) {
+            JType type = entry.getKey().type();
+            JFieldVar column = entry.getValue();
+            String name = getters.get(entry.getKey()).name().replaceFirst("^(get|is)", "") + "Column";
+            JMethod view;
+            if (type == codeModel.BOOLEAN) {
+                view = columns.method(JMod.PUBLIC, BitSet.class, "get" + name);
+                view.javadoc().append("Returns copy of the " + entry.getKey().name() + " column, which has a bit set for each true value.");
+                view.body()._return(JExpr.cast(codeModel.ref(BitSet.class), column.invoke("clone")));
+            } else if (type.isPrimitive()) {
+                JClass nioType = codeModel.ref("java.nio." + StringUtils.capitalize(type.name()) + "Buffer");
+                view = columns.method(JMod.PUBLIC, nioType, "get" + name);
+                view.javadoc().append("Returns read-only view of the " + entry.getKey().name() + " column.");
+                view.body()._return(nioType.staticInvoke("wrap").arg(column).invoke("asReadOnlyBuffer"));
+            } else {
+                view = columns.method(JMod.PUBLIC, column.type(), "get" + name);
+                view.javadoc().append("Returns read-only view of the " + entry.getKey().name() + " column.");
+                view.body()._return(codeModel.ref(Collections.class).staticInvoke("unmodifiableList").arg(column));
+            }
+        }
+
+        addColumnsRow(codeModel, columns, implClass, columnFields, getters, rowCount, get);
+    }
+
+    private void addColumnsRow(JCodeModel codeModel, JDefinedClass columns, JDefinedClass implClass, Map<JFieldVar, JFieldVar> columnFields,
+                               Map<JFieldVar, JMethod> getters, JFieldVar rowCount, JMethod get) {
+        JDefinedClass row;
+        try {
+            row = columns._class(JMod.PUBLIC | JMod.FINAL, "Row");
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException(e);
+        }
+        row.javadoc().append("Cursor reading values of a single row. A cursor can be moved to any row, so that all rows can be read "
+                + "without allocation.");
+        JFieldVar index = row.field(JMod.PRIVATE, codeModel.INT, "index");
+        JMethod ctor = row.constructor(JMod.PRIVATE);
+        ctor.body().assign(JExpr._this().ref(index), ctor.param(JMod.FINAL, codeModel.INT, "index"));
+
+        JMethod create = columns.method(JMod.PUBLIC, row, "row");
+        create.javadoc().append("Returns a cursor positioned before the first row.");
+        create.body()._return(JExpr._new(row).arg(JExpr.lit(-1)));
+
+        row.method(JMod.PUBLIC, codeModel.INT, "getIndex").body()._return(index);
+        JMethod moveTo = row.method(JMod.PUBLIC, row, "moveTo");
+        moveTo.javadoc().append("Moves this cursor to given row.");
+        JVar target = moveTo.param(JMod.FINAL, codeModel.INT, "index");
+        moveTo.body().assign(JExpr._this().ref(index), codeModel.ref(Objects.class).staticInvoke("checkIndex").arg(target).arg(rowCount));
+        moveTo.body()._return(JExpr._this());
+        JMethod next = row.method(JMod.PUBLIC, codeModel.BOOLEAN, "next");
+        next.javadoc().append("Moves this cursor to the next row.\n\n@return false, if there is no next row");
+        next.body()._if(index.plus(JExpr.lit(1)).gte(rowCount))._then()._return(JExpr.FALSE);
+        next.body().assignPlus(index, JExpr.lit(1));
+        next.body()._return(JExpr.TRUE);
+        for (Map.Entry<JFieldVar, JFieldVar> entry : columnFields.entrySet()) {
+            JFieldVar column = entry.getValue();
+            JMethod getter = row.method(JMod.PUBLIC, entry.getKey().type(), getters.get(entry.getKey()).name());
+            getter.body()._return(column.type().isArray() ? column.component(index) : column.invoke("get").arg(index));
+        }
+        JMethod toItem = row.method(JMod.PUBLIC, implClass, "to" + implClass.name());
+        toItem.javadoc().append("Creates the instance stored in this row.");
+        toItem.body()._return(JExpr.invoke(get).arg(index));
+    }
+
+    /**
+     * Creates the Transformable interface implemented by all generated classes and the TreeTransformer class, which is
+     * extended by the callers to replace instances and which transforms large lists in parallel. Both are created in
+     * the first package of the model, so that classes of all packages share them.
+     *
+     * @return the interface and the class or null, if a class of the same name exists
+     */
+    private JDefinedClass[] addTransformClasses(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return null;
+        }
+        JDefinedClass transformable;
+        JDefinedClass transformer;
+        try {
+            transformable = pkg.get()._interface(JMod.PUBLIC, TRANSFORMABLE_CLASS_NAME);
+            transformer = pkg.get()._class(JMod.PUBLIC | JMod.ABSTRACT, TREE_TRANSFORMER_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddTransform", e.getExistingClass().fullName());
+            return null;
+        }
+        transformable.javadoc().append("Immutable instance, which can be rebuilt by a {@link " + TREE_TRANSFORMER_CLASS_NAME + "}.");
+        JMethod transform = transformable.method(JMod.NONE, Object.class, "transform");
+        transform.javadoc().append("Returns this instance with all generated instances below it and the instance itself passed through given transformer, "
+                + "children first. Only instances on the paths to replaced instances are rebuilt, unchanged subtrees are shared.");
+        transform.param(transformer, "transformer");
+
+        transformer.javadoc().append("Rewrites immutable object trees bottom up. Subclasses override {@link #transformNode} to replace instances. "
+                + "Lists of at least {@code parallelThreshold} items are transformed in parallel, so the transformer must be thread-safe.");
+        JFieldVar threshold = transformer.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, codeModel.INT, "DEFAULT_PARALLEL_THRESHOLD", JExpr.lit(1024));
+        threshold.javadoc().append("Default size of lists transformed in parallel.");
+        JFieldVar pool = transformer.field(JMod.PRIVATE | JMod.FINAL, ForkJoinPool.class, "pool");
+        JFieldVar parallelThreshold = transformer.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "parallelThreshold");
+        JMethod ctor = transformer.constructor(JMod.PROTECTED);
+        ctor.javadoc().append("Creates transformer using the common pool for lists of at least " + "{@link #DEFAULT_PARALLEL_THRESHOLD} items.");
+        ctor.body().invoke("this").arg(codeModel.ref(ForkJoinPool.class).staticInvoke("commonPool")).arg(threshold);
+        ctor = transformer.constructor(JMod.PROTECTED);
+        ctor.javadoc().append("Creates transformer using given pool for lists of at least given number of items.");
+        ctor.body().assign(JExpr._this().ref(pool), ctor.param(JMod.FINAL, ForkJoinPool.class, "pool"));
+        ctor.body().assign(JExpr._this().ref(parallelThreshold), ctor.param(JMod.FINAL, codeModel.INT, "parallelThreshold"));
+
+        JMethod transformNode = transformer.method(JMod.PUBLIC, Object.class, "transformNode");
+        transformNode.javadoc().append("Returns replacement of given instance, whose children have been transformed already, or the instance itself. "
+                + "The replacement must be an instance of the same class.");
+        transformNode.body()._return(transformNode.param(JMod.FINAL, Object.class, "node"));
+
+        JMethod transformItem = transformer.method(JMod.PRIVATE, Object.class, "transformItem");
+        JVar item = transformItem.param(JMod.FINAL, Object.class, "item");
+        transformItem.body()._return(JOp.cond(item._instanceof(transformable), JExpr.cast(transformable, item).invoke(transform).arg(JExpr._this()), item));
+
+        JDefinedClass task;
+        try {
+            task = transformer._class(JMod.PRIVATE | JMod.FINAL, "TransformTask");
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException(e);
+        }
+        task._extends(RecursiveAction.class);
+        task.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.LONG, "serialVersionUID", JExpr.lit(1L));
+        JClass listType = codeModel.ref(List.class).narrow(codeModel.wildcard());
+        JFieldVar items = task.field(JMod.PRIVATE | JMod.FINAL, listType, "items");
+        JFieldVar results = task.field(JMod.PRIVATE | JMod.FINAL, Object[].class, "results");
+        JFieldVar from = task.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "from");
+        JFieldVar to = task.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "to");
+        JFieldVar grain = task.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "grain");
+        JMethod taskCtor = task.constructor(JMod.NONE);
+        for (JFieldVar field : Arrays.asList(items, results, from, to, grain)) {
+            taskCtor.body().assign(JExpr._this().ref(field), taskCtor.param(JMod.FINAL, field.type(), field.name()));
+        }
+        JMethod compute = task.method(JMod.PROTECTED, codeModel.VOID, "compute");
+        compute.annotate(Override.class);
+        JConditional small = compute.body()._if(to.minus(from).lte(grain));
+        JForLoop loop = small._then()._for();
+        JVar i = loop.init(codeModel.INT, "i", from);
+        loop.test(i.lt(to));
+        loop.update(i.incr());
+        loop.body().assign(results.component(i), JExpr.invoke(transformItem).arg(items.invoke("get").arg(i)));
+        JVar middle = small._else().decl(JMod.FINAL, codeModel.INT, "middle", from.plus(to).shrz(JExpr.lit(1)));
+        small._else().add(JExpr.invoke("invokeAll")
+                .arg(JExpr._new(task).arg(items).arg(results).arg(from).arg(middle).arg(grain))
+                .arg(JExpr._new(task).arg(items).arg(results).arg(middle).arg(to).arg(grain)));
+
+        JMethod transformList = transformer.method(JMod.PUBLIC, codeModel.VOID, "transformList");
+        JTypeVar t = transformList.generify("T");
+        transformList.type(codeModel.ref(List.class).narrow(t));
+        transformList.annotate(SuppressWarnings.class).param("value", "unchecked");
+        transformList.javadoc().append("Returns given list with its items transformed or the list itself, if no item changed. Used by the generated classes.");
+        JVar list = transformList.param(JMod.FINAL, codeModel.ref(List.class).narrow(t), "items");
+        JBlock body = transformList.body();
+        body._if(list.eq(JExpr._null()).cor(list.invoke("isEmpty")))._then()._return(list);
+        JVar transformed = body.decl(JMod.FINAL, codeModel.ref(Object[].class), "results", JExpr.newArray(codeModel.ref(Object.class), list.invoke("size")));
+        JConditional parallel = body._if(transformed.ref("length").gte(parallelThreshold));
+        parallel._then().add(pool.invoke("invoke").arg(JExpr._new(task).arg(list).arg(transformed).arg(JExpr.lit(0)).arg(transformed.ref("length"))
+                .arg(codeModel.ref(Math.class).staticInvoke("max").arg(JExpr.lit(1))
+                        .arg(transformed.ref("length").div(JExpr.lit(4).mul(pool.invoke("getParallelism")))))));
+        loop = parallel._else()._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(transformed.ref("length")));
+        loop.update(i.incr());
+        loop.body().assign(transformed.component(i), JExpr.invoke(transformItem).arg(list.invoke("get").arg(i)));
+        loop = body._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(transformed.ref("length")));
+        loop.update(i.incr());
+        loop.body()._if(transformed.component(i).ne(list.invoke("get").arg(i)))._then()
+                ._return(JExpr.cast(codeModel.ref(List.class).narrow(t), codeModel.ref(Arrays.class).staticInvoke("asList").arg(transformed)));
+        body._return(list);
+        return new JDefinedClass[]{transformable, transformer};
+    }
+
+    /**
+     * Adds transformFields method collecting transformed values of the fields and transform method rebuilding the
+     * instance through its property constructor, if any of the values changed.
+     */
+    private void addTransform(Outline model, ClassOutline clazz, JDefinedClass transformable, JDefinedClass transformer) {
+        JCodeModel codeModel = model.getCodeModel();
+        JDefinedClass implClass = clazz.implClass;
+        boolean root = clazz.getSuperClass() == null;
+        if (root) {
+            implClass._implements(transformable);
+        }
+        Set<JType> generated = model.getClasses().stream().map(c -> (JType) c.implClass).collect(Collectors.toSet());
+        int inherited = getFlatFields(implClass).size() - getPropertyFields(implClass).length;
+
+        JMethod fieldsMethod = implClass.method(JMod.PROTECTED, codeModel.BOOLEAN, "transformFields");
+        fieldsMethod.javadoc().append("Stores transformed values of the fields into the array, root class fields first.\n\n"
+                + "@return true, if any of the values changed");
+        JVar transformerParam = fieldsMethod.param(JMod.FINAL, transformer, "transformer");
+        JVar values = fieldsMethod.param(JMod.FINAL, Object[].class, "values");
+        JVar changed = fieldsMethod.body().decl(codeModel.BOOLEAN, "changed",
+                root ? JExpr.FALSE : JExpr._super().invoke(fieldsMethod).arg(transformerParam).arg(values));
+        int index = inherited;
+        for (JFieldVar field : getPropertyFields(implClass)) {
+            JFieldRef value = JExpr._this().ref(field);
+            JArrayCompRef slot = values.component(JExpr.lit(index++));
+            JType type = field.type();
+            JExpression transformed = null;
+            if (generated.contains(type)) {
+                transformed = JOp.cond(value.eq(JExpr._null()), JExpr._null(), value.invoke("transform").arg(transformerParam));
+            } else if (type instanceof JClass && type.erasure().fullName().equals(List.class.getName())
+                    && generated.contains(((JClass) type).getTypeParameters().get(0))) {
+                transformed = transformerParam.invoke("transformList").arg(value);
+            }
+            if (transformed == null) {
+                fieldsMethod.body().assign(slot, value);
+            } else {
+                fieldsMethod.body().assign(slot, transformed);
+                fieldsMethod.body().assign(changed, changed.cor(slot.ne(value)));
+            }
+        }
+        fieldsMethod.body()._return(changed);
+
+        JMethod transform = implClass.method(implClass.isAbstract() ? JMod.PUBLIC | JMod.ABSTRACT : JMod.PUBLIC, implClass, "transform");
+        transform.annotate(Override.class);
+        transform.javadoc().append("Returns this instance with all generated instances below it and the instance itself passed through given transformer, "
+                + "children first. Only instances on the paths to replaced instances are rebuilt, unchanged subtrees are shared.");
+        JVar transformerArg = transform.param(JMod.FINAL, transformer, "transformer");
+        if (implClass.isAbstract()) {
+            return;
+        }
+        List<String> fieldNames = getFlatFields(implClass).keySet().stream().map(JFieldVar::name).collect(Collectors.toList());
+        List<JVar> params = getPropertyConstructorParams(implClass);
+        JExpression result = JExpr._this();
+        if (!fieldNames.equals(params.stream().map(JVar::name).collect(Collectors.toList()))) {
+            log(Level.WARNING, "couldNotAddTransform", implClass.binaryName());
+        } else if (!params.isEmpty()) {
+            transform.annotate(SuppressWarnings.class).param("value", "unchecked");
+            JVar transformedValues = transform.body().decl(JMod.FINAL, codeModel.ref(Object[].class), "values",
+                    JExpr.newArray(codeModel.ref(Object.class), params.size()));
+            JInvocation instance = JExpr._new(implClass);
+            for (int i = 0; i < params.size(); i++) {
+                instance.arg(JExpr.cast(params.get(i).type(), transformedValues.component(JExpr.lit(i))));
+            }
+            result = transform.body().decl(JMod.FINAL, implClass, "result",
+                    JOp.cond(JExpr.invoke(fieldsMethod).arg(transformerArg).arg(transformedValues), instance, JExpr._this()));
+        }
+        transform.body()._return(JExpr.cast(implClass, transformerArg.invoke("transformNode").arg(result)));
+    }
+
+    /**
+     * Creates the Flight Recorder event classes emitted by builders, copy constructors and defensive collection copies
+     * in the first package of the model.
+     *
+     * @return build, copy and collection copy event classes or null, if a class of the same name exists
+     */
+    private JDefinedClass[] addFlightRecorderEventClasses(Outline model) {
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return null;
+        }
+        try {
+            JDefinedClass build = addFlightRecorderEventClass(pkg.get(), BUILD_EVENT_CLASS_NAME, "Immutable Build",
+                    "Builder creating an immutable instance, including the defensive copies of its collections");
+            JDefinedClass copy = addFlightRecorderEventClass(pkg.get(), COPY_EVENT_CLASS_NAME, "Immutable Copy",
+                    "Builder created as a copy of an immutable instance");
+            JDefinedClass collectionCopy = addFlightRecorderEventClass(pkg.get(), COLLECTION_COPY_EVENT_CLASS_NAME, "Immutable Collection Copy",
+                    "Defensive copy of a collection passed to the constructor of an immutable class");
+            JFieldVar field = collectionCopy.field(JMod.PUBLIC, String.class, "field");
+            field.annotate(Label.class).param("value", "Field");
+            return new JDefinedClass[]{build, copy, collectionCopy};
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddFlightRecorderEvents", e.getExistingClass().fullName());
+            return null;
+        }
+    }
+
+    private JDefinedClass addFlightRecorderEventClass(JPackage pkg, String name, String label, String description) throws JClassAlreadyExistsException {
+        JDefinedClass event = pkg._class(JMod.PUBLIC | JMod.FINAL, name);
+        event._extends(Event.class);
+        event.javadoc().append(description + ". Committed only when it takes at least the threshold set in the recording settings, "
+                + flightRecorderThreshold + " microseconds by default.");
+        String eventName = name.substring(0, name.length() - "Event".length());
+        event.annotate(Name.class).param("value", pkg.isUnnamed() ? eventName : pkg.name() + "." + eventName);
+        event.annotate(Label.class).param("value", label);
+        event.annotate(Description.class).param("value", description + ".");
+        event.annotate(Category.class).paramArray("value").param("Immutable XJC");
+        event.annotate(Threshold.class).param("value", flightRecorderThreshold + " us");
+        JFieldVar className = event.field(JMod.PUBLIC, String.class, "className");
+        className.annotate(Label.class).param("value", "Class");
+        JFieldVar elements = event.field(JMod.PUBLIC, event.owner().INT, "elements");
+        elements.annotate(Label.class).param("value", "Collection Elements");
+        elements.annotate(Description.class).param("value", "Number of collection elements copied");
+        return event;
+    }
+
+    private JVar beginFlightRecorderEvent(JBlock block, JDefinedClass eventClass, String name) {
+        JVar event = block.decl(JMod.FINAL, eventClass, name, JExpr._new(eventClass));
+        block.invoke(event, "begin");
+        return event;
+    }
+
+    /**
+     * Fills and commits given event, if the recording takes it. The values are evaluated only in that case.
+     */
+    private void commitFlightRecorderEvent(JBlock block, JVar event, JDefinedClass clazz, List<JExpression> collections, String field) {
+        JBlock commit = block._if(event.invoke("shouldCommit"))._then();
+        commit.assign(event.ref("className"), JExpr.lit(clazz.fullName()));
+        JExpression elements = JExpr.lit(0);
+        for (int i = 0; i < collections.size(); i++) {
+            JExpression collection = collections.get(i);
+            JExpression size = JOp.cond(collection.eq(JExpr._null()), JExpr.lit(0), collection.invoke("size"));
+            elements = i == 0 ? size : elements.plus(size);
+        }
+        commit.assign(event.ref("elements"), elements);
+        if (field != null) {
+            commit.assign(event.ref("field"), JExpr.lit(field));
+        }
+        commit.invoke(event, "commit");
+    }
+
+    /**
+     * Collects the fields named by the lazy option, which hold a single instance of a generated class without
+     * subclasses, so that the XML they were read from can be unmarshalled into the declared type later.
+     */
+    private Set<JFieldVar> collectLazyFields(Outline model, List<? extends ClassOutline> classes) {
+        if (createSnapshots || createFlatViews || createStructuralDiff || createTransform || createColumns) {
+            log(Level.WARNING, "lazyIncompatible");
+            return Collections.emptySet();
+        }
+        Set<JType> leafTypes = new HashSet<>();
+        for (ClassOutline clazz : model.getClasses()) {
+            if (!clazz.implClass.isAbstract()) {
+                leafTypes.add(clazz.implClass);
+            }
+        }
+        for (ClassOutline clazz : model.getClasses()) {
+            if (clazz.getSuperClass() != null) {
+                leafTypes.remove(clazz.getSuperClass().implClass);
+            }
+        }
+        Set<JFieldVar> fields = new HashSet<>();
+        Set<String> unmatched = new TreeSet<>(lazyFieldNames);
+        for (ClassOutline clazz : classes) {
+            for (JFieldVar field : getDeclaredFields(clazz.implClass)) {
+                String name = clazz.implClass.name() + "." + field.name();
+                if (!unmatched.remove(name)) {
+                    continue;
+                }
+                if (leafTypes.contains(field.type()) && Stream.of(XmlAttribute.class, XmlElementRef.class, XmlAnyElement.class, XmlJavaTypeAdapter.class)
+                        .noneMatch(annotation -> getAnnotation(field.annotations(), annotation.getCanonicalName()).isPresent())) {
+                    fields.add(field);
+                } else {
+                    log(Level.WARNING, "couldNotMakeLazy", name);
+                }
+            }
+        }
+        for (String name : unmatched) {
+            log(Level.WARNING, "couldNotMakeLazy", name);
+        }
+        return fields;
+    }
+
+    /**
+     * Creates the LazyXml holder, the RawXml type capturing the content of a lazy element and the adapter between them
+     * in the first package of the model.
+     *
+     * @return the holder and the adapter class or null, if a class of the same name exists
+     */
+    private JDefinedClass[] addLazyXmlClasses(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return null;
+        }
+        JDefinedClass lazyClass;
+        JDefinedClass rawClass;
+        JDefinedClass adapterClass;
+        JDefinedClass handlerClass;
+        JDefinedClass readerClass;
+        try {
+            lazyClass = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, LAZY_XML_CLASS_NAME);
+            rawClass = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, RAW_XML_CLASS_NAME);
+            adapterClass = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, LAZY_XML_ADAPTER_CLASS_NAME);
+            handlerClass = rawClass._class(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, "Handler");
+            readerClass = adapterClass._class(JMod.STATIC | JMod.FINAL, "SlicingReader");
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddLazyXml", e.getExistingClass().fullName());
+            return null;
+        }
+        JClass bytes = codeModel.BYTE.array();
+        JClass charset = codeModel.ref(StandardCharsets.class);
+
+        // content of the element, each child element is kept as UTF-8 encoded XML declaring the namespaces in scope
+        rawClass.javadoc().append("Attributes and content of an element read by JAXB, which is unmarshalled on first access by {@link "
+                + LAZY_XML_CLASS_NAME + "}.");
+        rawClass.annotate(XmlAccessorType.class).param("value", XmlAccessType.FIELD);
+        rawClass.annotate(XmlType.class).param("name", "");
+        JFieldVar attributes = rawClass.field(JMod.PRIVATE, codeModel.ref(Map.class).narrow(QName.class, String.class), "attributes");
+        attributes.annotate(XmlAnyAttribute.class);
+        JFieldVar content = rawClass.field(JMod.PRIVATE, codeModel.ref(List.class).narrow(Object.class), "content");
+        content.annotate(XmlMixed.class);
+        content.annotate(XmlAnyElement.class).param("value", handlerClass);
+        JFieldVar slice = rawClass.field(JMod.NONE, bytes, "xml");
+        slice.annotate(XmlTransient.class);
+        slice.javadoc().append("The whole element as UTF-8 encoded XML, if it has been copied by {@link " + LAZY_XML_CLASS_NAME + "#unmarshal}.");
+
+        JMethod escape = rawClass.method(JMod.STATIC, String.class, "escape");
+        JVar text = escape.param(JMod.FINAL, String.class, "text");
+        JVar escaped = escape.body().decl(JMod.FINAL, codeModel.ref(StringBuilder.class), "sb", JExpr._new(codeModel.ref(StringBuilder.class)).arg(text.invoke("length")));
+        JForLoop loop = escape.body()._for();
+        JVar i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(text.invoke("length")));
+        loop.update(i.incr());
+        JSwitch escapes = loop.body()._switch(text.invoke("charAt").arg(i));
+        String[][] references = {{"&", "&amp;"}, {"<", "&lt;"}, {">", "&gt;"}, {"\"", "&quot;"}, {"\t", "&#9;"}, {"\n", "&#10;"}, {"\r", "&#13;"}};
+        for (String[] reference : references) {
+            JBlock body = escapes._case(JExpr.lit(reference[0].charAt(0))).body();
+            body.add(escaped.invoke("append").arg(reference[1]));
+            body._break();
+        }
+        escapes._default().body().add(escaped.invoke("append").arg(text.invoke("charAt").arg(i)));
+        escape.body()._return(escaped.invoke("toString"));
+
+        JMethod toBytes = rawClass.method(JMod.NONE, bytes, "toBytes");
+        toBytes.javadoc().append("Returns the element as UTF-8 encoded XML.");
+        JBlock body = toBytes.body();
+        body._if(slice.ne(JExpr._null()))._then()._return(slice);
+        JVar out = body.decl(JMod.FINAL, codeModel.ref(ByteArrayOutputStream.class), "out", JExpr._new(codeModel.ref(ByteArrayOutputStream.class)));
+        JVar start = body.decl(JMod.FINAL, codeModel.ref(StringBuilder.class), "start", JExpr._new(codeModel.ref(StringBuilder.class)).arg("<r"));
+        JBlock hasAttributes = body._if(attributes.ne(JExpr._null()))._then();
+        JVar prefix = hasAttributes.decl(codeModel.INT, "prefix", JExpr.lit(0));
+        JForEach attribute = hasAttributes.forEach(codeModel.ref(Map.Entry.class).narrow(QName.class, String.class), "attribute", attributes.invoke("entrySet"));
+        JVar name = attribute.body().decl(JMod.FINAL, codeModel.ref(QName.class), "name", attribute.var().invoke("getKey"));
+        attribute.body().add(start.invoke("append").arg(JExpr.lit(' ')));
+        JBlock qualified = attribute.body()._if(name.invoke("getNamespaceURI").invoke("isEmpty").not())._then();
+        qualified.add(start.invoke("append").arg("xmlns:a").invoke("append").arg(prefix).invoke("append").arg("=\"")
+                .invoke("append").arg(JExpr.invoke(escape).arg(name.invoke("getNamespaceURI"))).invoke("append").arg("\" a")
+                .invoke("append").arg(prefix).invoke("append").arg(JExpr.lit(':')));
+        qualified.assignPlus(prefix, JExpr.lit(1));
+        attribute.body().add(start.invoke("append").arg(name.invoke("getLocalPart")).invoke("append").arg("=\"")
+                .invoke("append").arg(JExpr.invoke(escape).arg(attribute.var().invoke("getValue"))).invoke("append").arg(JExpr.lit('"')));
+        body.add(start.invoke("append").arg(JExpr.lit('>')));
+        body.add(out.invoke("writeBytes").arg(start.invoke("toString").invoke("getBytes").arg(charset.staticRef("UTF_8"))));
+        JForEach item = body._if(content.ne(JExpr._null()))._then().forEach(codeModel.ref(Object.class), "item", content);
+        JConditional isBytes = item.body()._if(item.var()._instanceof(bytes));
+        isBytes._then().add(out.invoke("writeBytes").arg(JExpr.cast(bytes, item.var())));
+        isBytes._else().add(out.invoke("writeBytes").arg(JExpr.invoke(escape).arg(codeModel.ref(String.class).staticInvoke("valueOf").arg(item.var()))
+                .invoke("getBytes").arg(charset.staticRef("UTF_8"))));
+        body.add(out.invoke("writeBytes").arg(JExpr.lit("</r>").invoke("getBytes").arg(charset.staticRef("UTF_8"))));
+        body._return(out.invoke("toByteArray"));
+
+        JMethod of = rawClass.method(JMod.STATIC, rawClass, "of");
+        of.javadoc().append("Returns the attributes and content of given element. Namespaces declared by the element are declared by its child elements too, "
+                + "since they may be referred to by their content.");
+        JVar element = of.param(JMod.FINAL, Element.class, "element");
+        body = of.body();
+        JVar raw = body.decl(JMod.FINAL, rawClass, "raw", JExpr._new(rawClass));
+        body.assign(raw.ref(attributes), JExpr._new(codeModel.ref(HashMap.class).narrow(Collections.<JClass>emptyList())));
+        body.assign(raw.ref(content), JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+        JVar declarations = body.decl(JMod.FINAL, codeModel.ref(List.class).narrow(Attr.class), "declarations",
+                JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+        JVar nodes = body.decl(JMod.FINAL, codeModel.ref(NamedNodeMap.class), "nodes", element.invoke("getAttributes"));
+        loop = body._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(nodes.invoke("getLength")));
+        loop.update(i.incr());
+        JVar node = loop.body().decl(JMod.FINAL, codeModel.ref(Attr.class), "node", JExpr.cast(codeModel.ref(Attr.class), nodes.invoke("item").arg(i)));
+        JConditional declaration = loop.body()._if(codeModel.ref(XMLConstants.class).staticRef("XMLNS_ATTRIBUTE_NS_URI").invoke("equals").arg(node.invoke("getNamespaceURI")));
+        declaration._then().add(declarations.invoke("add").arg(node));
+        declaration._else().add(raw.ref(attributes).invoke("put").arg(JExpr._new(codeModel.ref(QName.class))
+                .arg(JOp.cond(node.invoke("getNamespaceURI").eq(JExpr._null()), JExpr.lit(""), node.invoke("getNamespaceURI"))).arg(node.invoke("getLocalName")))
+                .arg(node.invoke("getValue")));
+        JForLoop children = body._for();
+        JVar child = children.init(codeModel.ref(Node.class), "child", element.invoke("getFirstChild"));
+        children.test(child.ne(JExpr._null()));
+        children.update(JExpr.assign(child, child.invoke("getNextSibling")));
+        JConditional isElement = children.body()._if(child._instanceof(codeModel.ref(Element.class)));
+        JForEach declared = isElement._then().forEach(codeModel.ref(Attr.class), "declared", declarations);
+        declared.body()._if(JExpr.cast(codeModel.ref(Element.class), child).invoke("hasAttributeNS").arg(declared.var().invoke("getNamespaceURI"))
+                .arg(declared.var().invoke("getLocalName")).not())._then()
+                .add(JExpr.cast(codeModel.ref(Element.class), child).invoke("setAttributeNS").arg(declared.var().invoke("getNamespaceURI"))
+                        .arg(declared.var().invoke("getName")).arg(declared.var().invoke("getValue")));
+        isElement._then().add(raw.ref(content).invoke("add").arg(child));
+        isElement._elseif(child._instanceof(codeModel.ref(Text.class)))._then().add(raw.ref(content).invoke("add").arg(child.invoke("getNodeValue")));
+        body._return(raw);
+
+        JMethod beforeUnmarshal = rawClass.method(JMod.PRIVATE, codeModel.VOID, "beforeUnmarshal");
+        beforeUnmarshal.javadoc().append("Invoked by JAXB, lets the reader of {@link " + LAZY_XML_CLASS_NAME + "#unmarshal} copy this element.");
+        JVar unmarshaller = beforeUnmarshal.param(JMod.FINAL, Unmarshaller.class, "unmarshaller");
+        beforeUnmarshal.param(JMod.FINAL, Object.class, "parent");
+        JVar adapter = beforeUnmarshal.body().decl(JMod.FINAL, adapterClass, "adapter", unmarshaller.invoke("getAdapter").arg(adapterClass.dotclass()));
+        beforeUnmarshal.body()._if(adapter.ne(JExpr._null()))._then().add(adapter.invoke("capture").arg(JExpr._this()));
+
+        handlerClass.javadoc().append("Keeps each child element of a lazy element as UTF-8 encoded XML.");
+        handlerClass._implements(codeModel.ref(DomHandler.class).narrow(codeModel.ref(Object.class), codeModel.ref(StreamResult.class)));
+        JMethod createUnmarshaller = handlerClass.method(JMod.PUBLIC, StreamResult.class, "createUnmarshaller");
+        createUnmarshaller.annotate(Override.class);
+        createUnmarshaller.param(JMod.FINAL, ValidationEventHandler.class, "errorHandler");
+        createUnmarshaller.body()._return(JExpr._new(codeModel.ref(StreamResult.class)).arg(JExpr._new(codeModel.ref(ByteArrayOutputStream.class))));
+        JMethod getElement = handlerClass.method(JMod.PUBLIC, Object.class, "getElement");
+        getElement.annotate(Override.class);
+        JVar result = getElement.param(JMod.FINAL, StreamResult.class, "result");
+        body = getElement.body();
+        JVar xml = body.decl(JMod.FINAL, bytes, "xml", JExpr.cast(codeModel.ref(ByteArrayOutputStream.class), result.invoke("getOutputStream")).invoke("toByteArray"));
+        JVar offset = body.decl(codeModel.INT, "offset", JExpr.lit(0));
+        body.directStatement("// the XML declaration written by the transformer is dropped");
+        JBlock hasDeclaration = body._if(xml.ref("length").gt(JExpr.lit(1)).cand(xml.component(JExpr.lit(1)).eq(JExpr.lit('?'))))._then();
+        hasDeclaration._while(offset.lt(xml.ref("length")).cand(xml.component(offset).ne(JExpr.lit('>')))).body().assignPlus(offset, JExpr.lit(1));
+        hasDeclaration.assignPlus(offset, JExpr.lit(1));
+        body._return(codeModel.ref(Arrays.class).staticInvoke("copyOfRange").arg(xml).arg(offset).arg(xml.ref("length")));
+        JMethod marshal = handlerClass.method(JMod.PUBLIC, Source.class, "marshal");
+        marshal.annotate(Override.class);
+        JVar marshalled = marshal.param(JMod.FINAL, Object.class, "element");
+        marshal.param(JMod.FINAL, ValidationEventHandler.class, "errorHandler");
+        marshal.body()._return(JExpr._new(codeModel.ref(DOMSource.class)).arg(JExpr.cast(codeModel.ref(Node.class), marshalled)));
+
+        // copies lazy elements while JAXB reads the document, JAXB reads them as empty elements
+        readerClass.javadoc().append("Passes XML to JAXB and copies each lazy element, which JAXB starts reading, as a single slice of XML, "
+                + "so that JAXB reads it as an empty element.");
+        readerClass._extends(StreamReaderDelegate.class);
+        JClass constants = codeModel.ref(XMLStreamConstants.class);
+        JClass arrays = codeModel.ref(Arrays.class);
+        JClass objects = codeModel.ref(Objects.class);
+        JClass stringBuilder = codeModel.ref(StringBuilder.class);
+        JFieldVar prefixes = readerClass.field(JMod.PRIVATE, codeModel.ref(String.class).array(), "prefixes", JExpr.newArray(codeModel.ref(String.class), 8));
+        JFieldVar uris = readerClass.field(JMod.PRIVATE, codeModel.ref(String.class).array(), "uris", JExpr.newArray(codeModel.ref(String.class), 8));
+        JFieldVar scopes = readerClass.field(JMod.PRIVATE, codeModel.INT.array(), "scopes", JExpr.newArray(codeModel.INT, 8));
+        JFieldVar depth = readerClass.field(JMod.PRIVATE, codeModel.INT, "depth");
+        JFieldVar size = readerClass.field(JMod.PRIVATE, codeModel.INT, "size");
+        JFieldVar pending = readerClass.field(JMod.NONE, rawClass, "pending");
+
+        JMethod declare = readerClass.method(JMod.PRIVATE, codeModel.VOID, "declare");
+        declare.javadoc().append("Pushes the namespaces declared by the current element.");
+        body = declare.body();
+        body._if(depth.eq(scopes.ref("length")))._then().assign(scopes, arrays.staticInvoke("copyOf").arg(scopes).arg(depth.mul(JExpr.lit(2))));
+        body.assign(scopes.component(depth), size);
+        body.assignPlus(depth, JExpr.lit(1));
+        loop = body._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(JExpr.invoke("getNamespaceCount")));
+        loop.update(i.incr());
+        JBlock grow = loop.body()._if(size.eq(prefixes.ref("length")))._then();
+        grow.assign(prefixes, arrays.staticInvoke("copyOf").arg(prefixes).arg(size.mul(JExpr.lit(2))));
+        grow.assign(uris, arrays.staticInvoke("copyOf").arg(uris).arg(size.mul(JExpr.lit(2))));
+        loop.body().assign(prefixes.component(size), objects.staticInvoke("toString").arg(JExpr.invoke("getNamespacePrefix").arg(i)).arg(""));
+        loop.body().assign(uris.component(size), objects.staticInvoke("toString").arg(JExpr.invoke("getNamespaceURI").arg(i)).arg(""));
+        loop.body().assignPlus(size, JExpr.lit(1));
+
+        JMethod pop = readerClass.method(JMod.PRIVATE, codeModel.VOID, "pop");
+        pop.javadoc().append("Pops the namespaces declared by the element, which has ended.");
+        JBlock nested = pop.body()._if(depth.gt(JExpr.lit(0)))._then();
+        nested.assign(depth, depth.minus(JExpr.lit(1)));
+        nested.assign(size, scopes.component(depth));
+
+        JMethod appendName = readerClass.method(JMod.PRIVATE | JMod.STATIC, codeModel.VOID, "appendName");
+        JVar sb = appendName.param(JMod.FINAL, stringBuilder, "sb");
+        JVar namePrefix = appendName.param(JMod.FINAL, String.class, "prefix");
+        JVar localName = appendName.param(JMod.FINAL, String.class, "localName");
+        appendName.body()._if(namePrefix.ne(JExpr._null()).cand(namePrefix.invoke("isEmpty").not()))._then()
+                .add(sb.invoke("append").arg(namePrefix).invoke("append").arg(JExpr.lit(':')));
+        appendName.body().add(sb.invoke("append").arg(localName));
+
+        JMethod appendNamespace = readerClass.method(JMod.PRIVATE | JMod.STATIC, codeModel.VOID, "appendNamespace");
+        sb = appendNamespace.param(JMod.FINAL, stringBuilder, "sb");
+        namePrefix = appendNamespace.param(JMod.FINAL, String.class, "prefix");
+        JVar uri = appendNamespace.param(JMod.FINAL, String.class, "uri");
+        appendNamespace.body().add(sb.invoke("append").arg(" xmlns"));
+        appendNamespace.body()._if(namePrefix.ne(JExpr._null()).cand(namePrefix.invoke("isEmpty").not()))._then()
+                .add(sb.invoke("append").arg(JExpr.lit(':')).invoke("append").arg(namePrefix));
+        appendNamespace.body().add(sb.invoke("append").arg("=\"").invoke("append").arg(rawClass.staticInvoke(escape).arg(objects.staticInvoke("toString").arg(uri).arg("")))
+                .invoke("append").arg(JExpr.lit('"')));
+
+        JMethod appendAttributes = readerClass.method(JMod.PRIVATE | JMod.STATIC, codeModel.VOID, "appendAttributes");
+        appendAttributes.javadoc().append("Appends the attributes of the current element and closes its start tag.");
+        sb = appendAttributes.param(JMod.FINAL, stringBuilder, "sb");
+        JVar reader = appendAttributes.param(JMod.FINAL, XMLStreamReader.class, "reader");
+        loop = appendAttributes.body()._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(reader.invoke("getAttributeCount")));
+        loop.update(i.incr());
+        loop.body().add(sb.invoke("append").arg(JExpr.lit(' ')));
+        loop.body().invoke(appendName).arg(sb).arg(reader.invoke("getAttributePrefix").arg(i)).arg(reader.invoke("getAttributeLocalName").arg(i));
+        loop.body().add(sb.invoke("append").arg("=\"").invoke("append").arg(rawClass.staticInvoke(escape).arg(reader.invoke("getAttributeValue").arg(i)))
+                .invoke("append").arg(JExpr.lit('"')));
+        appendAttributes.body().add(sb.invoke("append").arg(JExpr.lit('>')));
+
+        JMethod copy = readerClass.method(JMod.PRIVATE, bytes, "copy");
+        copy.javadoc().append("Copies the current element up to its end as UTF-8 encoded XML.");
+        copy._throws(XMLStreamException.class);
+        body = copy.body();
+        reader = body.decl(JMod.FINAL, codeModel.ref(XMLStreamReader.class), "reader", JExpr.invoke("getParent"));
+        sb = body.decl(JMod.FINAL, stringBuilder, "sb", JExpr._new(stringBuilder).arg(JExpr.lit(256)));
+        body.add(sb.invoke("append").arg(JExpr.lit('<')));
+        body.invoke(appendName).arg(sb).arg(reader.invoke("getPrefix")).arg(reader.invoke("getLocalName"));
+        body.directStatement("// the slice declares all namespaces in scope, since its content may refer to them");
+        loop = body._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(size));
+        loop.update(i.incr());
+        JVar shadowed = loop.body().decl(codeModel.BOOLEAN, "shadowed", JExpr.FALSE);
+        JForLoop later = loop.body()._for();
+        JVar j = later.init(codeModel.INT, "j", i.plus(JExpr.lit(1)));
+        later.test(j.lt(size));
+        later.update(j.incr());
+        later.body().assign(shadowed, shadowed.cor(prefixes.component(j).invoke("equals").arg(prefixes.component(i))));
+        loop.body()._if(shadowed.not())._then().invoke(appendNamespace).arg(sb).arg(prefixes.component(i)).arg(uris.component(i));
+        body.invoke(appendAttributes).arg(sb).arg(reader);
+        JVar level = body.decl(codeModel.INT, "level", JExpr.lit(1));
+        JSwitch events = body._while(level.gt(JExpr.lit(0))).body()._switch(reader.invoke("next"));
+        JBlock started = events._case(constants.staticRef("START_ELEMENT")).body();
+        started.assignPlus(level, JExpr.lit(1));
+        started.add(sb.invoke("append").arg(JExpr.lit('<')));
+        started.invoke(appendName).arg(sb).arg(reader.invoke("getPrefix")).arg(reader.invoke("getLocalName"));
+        loop = started._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(reader.invoke("getNamespaceCount")));
+        loop.update(i.incr());
+        loop.body().invoke(appendNamespace).arg(sb).arg(reader.invoke("getNamespacePrefix").arg(i)).arg(reader.invoke("getNamespaceURI").arg(i));
+        started.invoke(appendAttributes).arg(sb).arg(reader);
+        started._break();
+        JBlock ended = events._case(constants.staticRef("END_ELEMENT")).body();
+        ended.assign(level, level.minus(JExpr.lit(1)));
+        ended.add(sb.invoke("append").arg("</"));
+        ended.invoke(appendName).arg(sb).arg(reader.invoke("getPrefix")).arg(reader.invoke("getLocalName"));
+        ended.add(sb.invoke("append").arg(JExpr.lit('>')));
+        ended._break();
+        events._case(constants.staticRef("CHARACTERS"));
+        events._case(constants.staticRef("CDATA"));
+        JBlock characters = events._case(constants.staticRef("SPACE")).body();
+        characters.add(sb.invoke("append").arg(rawClass.staticInvoke(escape).arg(reader.invoke("getText"))));
+        characters._break();
+        body._return(sb.invoke("toString").invoke("getBytes").arg(charset.staticRef("UTF_8")));
+
+        JMethod readerConstructor = readerClass.constructor(JMod.NONE);
+        reader = readerConstructor.param(JMod.FINAL, XMLStreamReader.class, "reader");
+        readerConstructor.body().invoke("super").arg(reader);
+        readerConstructor.body()._if(reader.invoke("getEventType").eq(constants.staticRef("START_ELEMENT")))._then().invoke(declare);
+
+        JMethod next = readerClass.method(JMod.PUBLIC, codeModel.INT, "next");
+        next.annotate(Override.class);
+        next._throws(XMLStreamException.class);
+        body = next.body();
+        JBlock capturing = body._if(pending.ne(JExpr._null()))._then();
+        JVar captured = capturing.decl(JMod.FINAL, rawClass, "raw", pending);
+        capturing.assign(pending, JExpr._null());
+        capturing.assign(captured.ref(slice), JExpr.invoke(copy));
+        capturing.invoke(pop);
+        capturing.directStatement("// the copied element has been read up to its end, which JAXB reads next");
+        capturing._return(constants.staticRef("END_ELEMENT"));
+        JVar event = body.decl(JMod.FINAL, codeModel.INT, "event", JExpr._super().invoke(next));
+        JConditional isStart = body._if(event.eq(constants.staticRef("START_ELEMENT")));
+        isStart._then().invoke(declare);
+        isStart._elseif(event.eq(constants.staticRef("END_ELEMENT")))._then().invoke(pop);
+        body._return(event);
+
+        // holder of the value or its XML
+        JTypeVar t = lazyClass.generify("T");
+        lazyClass.javadoc().append("Holds the value of a lazy element. Values read by JAXB are kept as XML, which is unmarshalled on first access. "
+                + "The holder is thread-safe, the XML is unmarshalled once and dropped then. The XML is unmarshalled by a fresh unmarshaller "
+                + "of the value type, so schema validation, event handlers, listeners and IDREF resolution of the original unmarshaller are not applied "
+                + "to it, and malformed content is reported by the getter as {@link DataBindingException}.");
+        JClass classValue = codeModel.ref(ClassValue.class).narrow(JAXBContext.class);
+        JDefinedClass contexts = codeModel.anonymousClass(classValue);
+        JMethod computeValue = contexts.method(JMod.PROTECTED, JAXBContext.class, "computeValue");
+        computeValue.annotate(Override.class);
+        JVar type = computeValue.param(JMod.FINAL, codeModel.ref(Class.class).narrow(codeModel.wildcard()), "type");
+        JTryBlock tryBlock = computeValue.body()._try();
+        tryBlock.body()._return(codeModel.ref(JAXBContext.class).staticInvoke("newInstance").arg(type));
+        JCatchBlock catchBlock = tryBlock._catch(codeModel.ref(JAXBException.class));
+        catchBlock.body()._throw(JExpr._new(codeModel.ref(DataBindingException.class)).arg(catchBlock.param("e")));
+        JFieldVar contextsField = lazyClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, classValue, "CONTEXTS", JExpr._new(contexts));
+        JFieldVar value = lazyClass.field(JMod.PRIVATE | JMod.VOLATILE, t, "value");
+        JFieldVar rawField = lazyClass.field(JMod.PRIVATE | JMod.VOLATILE, rawClass, "raw");
+        JMethod constructor = lazyClass.constructor(JMod.PRIVATE);
+        constructor.body().assign(JExpr._this().ref(value), constructor.param(JMod.FINAL, t, "value"));
+        constructor.body().assign(JExpr._this().ref(rawField), constructor.param(JMod.FINAL, rawClass, "raw"));
+
+        JMethod ofValue = lazyClass.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "of");
+        JTypeVar u = ofValue.generify("U");
+        ofValue.type(lazyClass.narrow(u));
+        ofValue.javadoc().append("Returns holder of given value or null, if the value is null.");
+        JVar ofParam = ofValue.param(JMod.FINAL, u, "value");
+        ofValue.body()._return(JOp.cond(ofParam.eq(JExpr._null()), JExpr._null(),
+                JExpr._new(lazyClass.narrow(Collections.<JClass>emptyList())).arg(ofParam).arg(JExpr._null())));
+
+        JMethod unmarshal = lazyClass.method(JMod.PUBLIC | JMod.STATIC, Object.class, "unmarshal");
+        unmarshal.javadoc().append("Unmarshals XML like {@link Unmarshaller#unmarshal(XMLStreamReader)}, while each lazy element is copied by the reader "
+                + "as a single slice of XML, which JAXB skips. Lazy elements unmarshalled from other sources are kept child by child through "
+                + "a {@code DomHandler}, which costs more than unmarshalling them.");
+        unmarshaller = unmarshal.param(JMod.FINAL, Unmarshaller.class, "unmarshaller");
+        reader = unmarshal.param(JMod.FINAL, XMLStreamReader.class, "reader");
+        unmarshal._throws(JAXBException.class);
+        body = unmarshal.body();
+        JVar previous = body.decl(JMod.FINAL, adapterClass, "previous", unmarshaller.invoke("getAdapter").arg(adapterClass.dotclass()));
+        JVar slicing = body.decl(JMod.FINAL, readerClass, "slicing", JExpr._new(readerClass).arg(reader));
+        body.add(unmarshaller.invoke("setAdapter").arg(adapterClass.dotclass()).arg(JExpr._new(adapterClass).arg(slicing)));
+        tryBlock = body._try();
+        tryBlock.body()._return(unmarshaller.invoke("unmarshal").arg(slicing));
+        tryBlock._finally().add(unmarshaller.invoke("setAdapter").arg(adapterClass.dotclass()).arg(previous));
+
+        JMethod unmarshalled = lazyClass.method(JMod.STATIC, lazyClass.narrow(Object.class), "unmarshalled");
+        unmarshalled.body()._return(JExpr._new(lazyClass.narrow(Collections.<JClass>emptyList())).arg(JExpr._null())
+                .arg(unmarshalled.param(JMod.FINAL, rawClass, "raw")));
+
+        JMethod materialize = lazyClass.method(JMod.PRIVATE | JMod.SYNCHRONIZED, t, "materialize");
+        JVar declaredType = materialize.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        JBlock missing = materialize.body()._if(value.eq(JExpr._null()))._then();
+        tryBlock = missing._try();
+        tryBlock.body().assign(value, contextsField.invoke("get").arg(declaredType).invoke("createUnmarshaller").invoke("unmarshal")
+                .arg(JExpr._new(codeModel.ref(StreamSource.class)).arg(JExpr._new(codeModel.ref(ByteArrayInputStream.class)).arg(rawField.invoke(toBytes))))
+                .arg(declaredType).invoke("getValue"));
+        catchBlock = tryBlock._catch(codeModel.ref(JAXBException.class));
+        catchBlock.body()._throw(JExpr._new(codeModel.ref(DataBindingException.class)).arg(catchBlock.param("e")));
+        missing.assign(rawField, JExpr._null());
+        materialize.body()._return(value);
+
+        JMethod get = lazyClass.method(JMod.PUBLIC, t, "get");
+        get.javadoc().append("Returns the value, which is unmarshalled as given type on first access.");
+        get.javadoc().addThrows(DataBindingException.class).append("if the kept XML cannot be unmarshalled");
+        JVar getType = get.param(JMod.FINAL, codeModel.ref(Class.class).narrow(t), "type");
+        JVar current = get.body().decl(JMod.FINAL, t, "current", value);
+        get.body()._return(JOp.cond(current.ne(JExpr._null()), current, JExpr.invoke(materialize).arg(getType)));
+
+        JMethod isMaterialized = lazyClass.method(JMod.PUBLIC, codeModel.BOOLEAN, "isMaterialized");
+        isMaterialized.javadoc().append("Returns true, if the value has been unmarshalled or the holder has been created from a value.");
+        isMaterialized.body()._return(value.ne(JExpr._null()));
+
+        JMethod toRawXml = lazyClass.method(JMod.NONE, rawClass, "toRawXml");
+        toRawXml.annotate(SuppressWarnings.class).param("value", "unchecked");
+        toRawXml.javadoc().append("Returns the XML kept by this holder or the value marshalled, if it has been unmarshalled already.");
+        body = toRawXml.body();
+        JVar currentRaw = body.decl(JMod.FINAL, rawClass, "current", rawField);
+        JVar factory = body.decl(JMod.FINAL, codeModel.ref(DocumentBuilderFactory.class), "factory",
+                codeModel.ref(DocumentBuilderFactory.class).staticInvoke("newInstance"));
+        body.add(factory.invoke("setNamespaceAware").arg(JExpr.TRUE));
+        tryBlock = body._try();
+        JBlock fromRaw = tryBlock.body()._if(currentRaw.ne(JExpr._null()))._then();
+        fromRaw._return(rawClass.staticInvoke(of).arg(factory.invoke("newDocumentBuilder").invoke("parse")
+                .arg(JExpr._new(codeModel.ref(ByteArrayInputStream.class)).arg(currentRaw.invoke(toBytes))).invoke("getDocumentElement")));
+        JVar document = tryBlock.body().decl(JMod.FINAL, codeModel.ref(Document.class), "document", factory.invoke("newDocumentBuilder").invoke("newDocument"));
+        JClass objectClass = codeModel.ref(Class.class).narrow(Object.class);
+        JVar valueClass = tryBlock.body().decl(JMod.FINAL, objectClass, "type", JExpr.cast(objectClass, value.invoke("getClass")));
+        tryBlock.body().add(contextsField.invoke("get").arg(valueClass).invoke("createMarshaller").invoke("marshal")
+                .arg(JExpr._new(codeModel.ref(JAXBElement.class).narrow(Object.class)).arg(JExpr._new(codeModel.ref(QName.class)).arg("r")).arg(valueClass).arg(value))
+                .arg(document));
+        tryBlock.body()._return(rawClass.staticInvoke(of).arg(document.invoke("getDocumentElement")));
+        for (Class<?> exception : Arrays.asList(JAXBException.class, ParserConfigurationException.class, SAXException.class, IOException.class)) {
+            catchBlock = tryBlock._catch(codeModel.ref(exception));
+            catchBlock.body()._throw(JExpr._new(codeModel.ref(DataBindingException.class)).arg(catchBlock.param("e")));
+        }
+
+        adapterClass.javadoc().append("Binds lazy elements to {@link " + RAW_XML_CLASS_NAME + "}, so that JAXB does not unmarshal their content.");
+        adapterClass._extends(codeModel.ref(XmlAdapter.class).narrow(rawClass, lazyClass.narrow(codeModel.wildcard())));
+        JFieldVar readerField = adapterClass.field(JMod.PRIVATE | JMod.FINAL, readerClass, "reader");
+        JMethod adapterConstructor = adapterClass.constructor(JMod.PUBLIC);
+        adapterConstructor.javadoc().append("Creates adapter, which keeps lazy elements child by child.");
+        adapterConstructor.body().assign(JExpr._this().ref(readerField), JExpr._null());
+        adapterConstructor = adapterClass.constructor(JMod.NONE);
+        adapterConstructor.javadoc().append("Creates adapter, which lets given reader copy lazy elements.");
+        adapterConstructor.body().assign(JExpr._this().ref(readerField), adapterConstructor.param(JMod.FINAL, readerClass, "reader"));
+        JMethod capture = adapterClass.method(JMod.NONE, codeModel.VOID, "capture");
+        capture.javadoc().append("Lets the reader copy the element, which JAXB has started reading into given instance.");
+        JVar capturedRaw = capture.param(JMod.FINAL, rawClass, "raw");
+        capture.body()._if(readerField.ne(JExpr._null()))._then().assign(readerField.ref(pending), capturedRaw);
+        JMethod unmarshalLazy = adapterClass.method(JMod.PUBLIC, lazyClass.narrow(codeModel.wildcard()), "unmarshal");
+        unmarshalLazy.annotate(Override.class);
+        unmarshalLazy.body()._return(lazyClass.staticInvoke(unmarshalled).arg(unmarshalLazy.param(JMod.FINAL, rawClass, "raw")));
+        JMethod marshalLazy = adapterClass.method(JMod.PUBLIC, rawClass, "marshal");
+        marshalLazy.annotate(Override.class);
+        JVar lazy = marshalLazy.param(JMod.FINAL, lazyClass.narrow(codeModel.wildcard()), "lazy");
+        marshalLazy.body()._return(JOp.cond(lazy.eq(JExpr._null()), JExpr._null(), lazy.invoke(toRawXml)));
+        return new JDefinedClass[]{lazyClass, adapterClass};
+    }
+
+    /**
+     * Replaces the type of the lazy fields of given class by the LazyXml holder bound through its adapter and makes
+     * their getters return the held value. Runs after the constructors and builders have been generated, since they
+     * keep the declared type.
+     */
+    private void makeFieldsLazy(ClassOutline clazz) {
+        JDefinedClass implClass = clazz.implClass;
+        JCodeModel codeModel = implClass.owner();
+        for (JFieldVar field : getDeclaredFields(implClass)) {
+            if (!lazyFields.contains(field)) {
+                continue;
+            }
+            JClass valueType = (JClass) field.type();
+            JMethod getter = getGetterProperty(field, implClass);
+            field.type(lazyClasses[0].narrow(valueType));
+            field.annotate(XmlJavaTypeAdapter.class).param("value", lazyClasses[1]);
+            if (getter == null) {
+                continue;
+            }
+            implClass.methods().remove(getter);
+            JMethod lazyGetter = implClass.method(getter.mods().getValue(), getter.type(), getter.name());
+            lazyGetter.javadoc().append("Gets the value of the " + field.name() + " property. The value read by JAXB is unmarshalled on first access.");
+            lazyGetter.javadoc().addThrows(DataBindingException.class).append("if the kept XML cannot be unmarshalled");
+            JFieldRef holder = JExpr._this().ref(field);
+            JExpression value = JOp.cond(holder.eq(JExpr._null()), JExpr._null(), holder.invoke("get").arg(valueType.dotclass()));
+            if (getter.type().erasure().equals(codeModel.ref(Optional.class))) {
+                value = codeModel.ref(Optional.class).staticInvoke("ofNullable").arg(value);
+            }
+            lazyGetter.body()._return(value);
+        }
+    }
+
+    /**
+     * Creates the Diffable interface implemented by all generated classes and the Difference class holding a single
+     * change together with the helpers comparing and patching field values. Both are created in the first package of
+     * the model, so that classes of all packages share them.
+     *
+     * @return the interface and the class or null, if a class of the same name exists
+     */
+    private JDefinedClass[] addStructuralDiffClasses(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return null;
+        }
+        JDefinedClass diffable;
+        JDefinedClass difference;
+        try {
+            diffable = pkg.get()._interface(JMod.PUBLIC, DIFFABLE_CLASS_NAME);
+            difference = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, DIFFERENCE_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddStructuralDiff", e.getExistingClass().fullName());
+            return null;
+        }
+        JClass objectType = codeModel.ref(Object.class);
+        JClass pathType = codeModel.ref(List.class).narrow(objectType);
+        JClass differencesType = codeModel.ref(List.class).narrow(difference);
+        JClass listType = codeModel.ref(List.class).narrow(codeModel.wildcard());
+        JClass collectionType = codeModel.ref(Collection.class).narrow(codeModel.wildcard());
+        JClass elementType = codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard());
+
+        diffable.javadoc().append("Immutable instance with a structural hash, which can be compared to and patched with the differences to another instance.");
+        diffable.method(JMod.NONE, codeModel.LONG, "structuralHash").javadoc()
+                .append("Returns hash of the content of this instance. Instances with different hashes differ, instances with equal hashes may differ too.");
+        JMethod sameContent = diffable.method(JMod.NONE, codeModel.BOOLEAN, "sameContent");
+        sameContent.javadoc().append("Returns true, if other instance of the same class has the same field values. "
+                + "Used by {@link " + DIFFERENCE_CLASS_NAME + "#diff} to confirm equal structural hashes.");
+        sameContent.param(objectType, "other");
+        JMethod collect = diffable.method(JMod.NONE, codeModel.VOID, "collectDifferences");
+        collect.javadoc().append("Adds differences to other instance of the same class to given list. Used by {@link " + DIFFERENCE_CLASS_NAME + "#diff}.");
+        collect.param(objectType, "other");
+        collect.param(pathType, "path");
+        collect.param(differencesType, "differences");
+        JMethod patch = diffable.method(JMod.NONE, diffable, "patch");
+        patch.javadoc().append("Returns a copy of this instance with given differences applied. Unchanged children are shared with this instance.");
+        patch.param(differencesType, "differences");
+
+        difference.javadoc().append("Single difference between two instances: the value found at a path of field names and list indexes "
+                + "in the old instance and the value in the new instance.");
+        JFieldVar pathField = difference.field(JMod.PRIVATE | JMod.FINAL, pathType, "path");
+        JFieldVar oldField = difference.field(JMod.PRIVATE | JMod.FINAL, objectType, "oldValue");
+        JFieldVar newField = difference.field(JMod.PRIVATE | JMod.FINAL, objectType, "newValue");
+        JMethod ctor = difference.constructor(JMod.NONE);
+        ctor.body().assign(JExpr._this().ref(pathField), codeModel.ref(List.class).staticInvoke("copyOf").arg(ctor.param(JMod.FINAL, pathType, "path")));
+        ctor.body().assign(JExpr._this().ref(oldField), ctor.param(JMod.FINAL, objectType, "oldValue"));
+        ctor.body().assign(JExpr._this().ref(newField), ctor.param(JMod.FINAL, objectType, "newValue"));
+        difference.method(JMod.PUBLIC, pathType, "getPath").body()._return(pathField);
+        difference.method(JMod.PUBLIC, objectType, "getOldValue").body()._return(oldField);
+        difference.method(JMod.PUBLIC, objectType, "getNewValue").body()._return(newField);
+
+        JMethod toString = difference.method(JMod.PUBLIC, String.class, "toString");
+        toString.annotate(Override.class);
+        JVar sb = toString.body().decl(codeModel.ref(StringBuilder.class), "sb", JExpr._new(codeModel.ref(StringBuilder.class)));
+        JForEach segments = toString.body().forEach(objectType, "segment", pathField);
+        JConditional isIndex = segments.body()._if(segments.var()._instanceof(codeModel.ref(Integer.class)));
+        isIndex._then().add(sb.invoke("append").arg(JExpr.lit('[')).invoke("append").arg(segments.var()).invoke("append").arg(JExpr.lit(']')));
+        isIndex._else()._if(sb.invoke("length").gt(JExpr.lit(0)))._then().add(sb.invoke("append").arg(JExpr.lit('.')));
+        isIndex._else().add(sb.invoke("append").arg(segments.var()));
+        toString.body()._return(sb.invoke("append").arg(": ").invoke("append").arg(oldField).invoke("append").arg(" -> ").invoke("append").arg(newField).invoke("toString"));
+
+        // diff(a, b)
+        JMethod diff = difference.method(JMod.PUBLIC | JMod.STATIC, differencesType, "diff");
+        diff.javadoc().append("Returns differences between two instances. Subtrees with different structural hashes are descended into, "
+                + "shared subtrees are skipped, and subtrees with equal hashes are compared field by field, since hashes may collide. "
+                + "Lists of equal size are compared item by item, other changes replace the whole value.");
+        JVar a = diff.param(JMod.FINAL, objectType, "a");
+        JVar b = diff.param(JMod.FINAL, objectType, "b");
+        JVar differences = diff.body().decl(differencesType, "differences", JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+        JInvocation diffSame = JExpr.invoke("same").arg(a).arg(b);
+        JInvocation diffDiffer = JExpr.invoke("differ").arg(codeModel.ref(Collections.class).staticInvoke("emptyList")).arg(a).arg(b).arg(differences);
+        diff.body()._if(diffSame.not())._then().add(diffDiffer);
+        diff.body()._return(differences);
+
+        // patch(root, differences)
+        JMethod patchRoot = difference.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "patch");
+        JTypeVar t = patchRoot.generify("T");
+        patchRoot.type(t);
+        patchRoot.annotate(SuppressWarnings.class).param("value", "unchecked");
+        patchRoot.javadoc().append("Returns a copy of given instance with the differences returned by {@link #diff} applied. "
+                + "Changed instances are created through their constructors, unchanged children are shared.");
+        JVar root = patchRoot.param(JMod.FINAL, t, "root");
+        differences = patchRoot.param(JMod.FINAL, differencesType, "differences");
+        JForEach rootDifferences = patchRoot.body().forEach(difference, "difference", differences);
+        rootDifferences.body()._if(rootDifferences.var().ref(pathField).invoke("isEmpty"))._then()._return(JExpr.cast(t, rootDifferences.var().ref(newField)));
+        patchRoot.body()._if(differences.invoke("isEmpty"))._then()._return(root);
+        patchRoot.body()._if(root._instanceof(diffable))._then()._return(JExpr.cast(t, JExpr.cast(diffable, root).invoke("patch").arg(differences)));
+        patchRoot.body()._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class)).arg("Differences can only be applied to generated classes."));
+
+        // hash(value)
+        JMethod hash = difference.method(JMod.PUBLIC | JMod.STATIC, codeModel.LONG, "hash");
+        hash.javadoc().append("Returns structural hash of a field value. Used by the generated classes.");
+        JVar value = hash.param(JMod.FINAL, objectType, "value");
+        JBlock body = hash.body();
+        body._if(value.eq(JExpr._null()))._then()._return(JExpr.lit(0L));
+        body._if(value._instanceof(diffable))._then()._return(JExpr.cast(diffable, value).invoke("structuralHash"));
+        // identity hash codes of enums differ between runs
+        body._if(value._instanceof(codeModel.ref(Enum.class)))._then()._return(JExpr.cast(codeModel.ref(Enum.class).narrow(codeModel.wildcard()), value).invoke("name").invoke("hashCode"));
+        body._if(value._instanceof(codeModel.BYTE.array()))._then()._return(codeModel.ref(Arrays.class).staticInvoke("hashCode").arg(JExpr.cast(codeModel.BYTE.array(), value)));
+        JBlock isElement = body._if(value._instanceof(codeModel.ref(JAXBElement.class)))._then();
+        JVar element = isElement.decl(JMod.FINAL, elementType, "element", JExpr.cast(elementType, value));
+        isElement._return(JExpr.lit(31L).mul(JExpr.lit(31L).mul(element.invoke("getName").invoke("hashCode"))
+                        .plus(codeModel.ref(Boolean.class).staticInvoke("hashCode").arg(element.invoke("isNil"))))
+                .plus(JExpr.invoke(hash).arg(element.invoke("getValue"))));
+        JBlock isCollection = body._if(value._instanceof(codeModel.ref(Collection.class)))._then();
+        JVar h = isCollection.decl(codeModel.LONG, "h", JExpr.lit(0L));
+        JForEach items = isCollection.forEach(objectType, "item", JExpr.cast(collectionType, value));
+        items.body().assign(h, JExpr.lit(31L).mul(h).plus(JExpr.invoke(hash).arg(items.var())).plus(JExpr.lit(1)));
+        isCollection._return(h);
+        body._return(value.invoke("hashCode"));
+
+        // isAbsent(value)
+        JMethod isAbsent = difference.method(JMod.PRIVATE | JMod.STATIC, codeModel.BOOLEAN, "isAbsent");
+        value = isAbsent.param(JMod.FINAL, objectType, "value");
+        isAbsent.body()._return(value.eq(JExpr._null())
+                .cor(value._instanceof(codeModel.ref(Collection.class)).cand(JExpr.cast(collectionType, value).invoke("isEmpty"))));
+
+        // same(a, b)
+        JMethod same = difference.method(JMod.PUBLIC | JMod.STATIC, codeModel.BOOLEAN, "same");
+        same.javadoc().append("Returns true, if two field values have the same content. Used by the generated classes.");
+        a = same.param(JMod.FINAL, objectType, "a");
+        b = same.param(JMod.FINAL, objectType, "b");
+        body = same.body();
+        body._if(a.eq(b).cor(JExpr.invoke(isAbsent).arg(a).cand(JExpr.invoke(isAbsent).arg(b))))._then()._return(JExpr.TRUE);
+        JBlock areLists = body._if(a._instanceof(codeModel.ref(List.class)).cand(b._instanceof(codeModel.ref(List.class))))._then();
+        JVar x = areLists.decl(JMod.FINAL, listType, "x", JExpr.cast(listType, a));
+        JVar y = areLists.decl(JMod.FINAL, listType, "y", JExpr.cast(listType, b));
+        areLists._if(x.invoke("size").ne(y.invoke("size")))._then()._return(JExpr.FALSE);
+        JForLoop loop = areLists._for();
+        JVar i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(x.invoke("size")));
+        loop.update(i.incr());
+        loop.body()._if(JExpr.invoke(same).arg(x.invoke("get").arg(i)).arg(y.invoke("get").arg(i)).not())._then()._return(JExpr.FALSE);
+        areLists._return(JExpr.TRUE);
+        body._if(a.eq(JExpr._null()).cor(b.eq(JExpr._null())).cor(a.invoke("getClass").ne(b.invoke("getClass"))))._then()._return(JExpr.FALSE);
+        // a hash mismatch proves a change, a match is confirmed field by field
+        body._if(a._instanceof(diffable))._then()._return(JExpr.cast(diffable, a).invoke("structuralHash").eq(JExpr.cast(diffable, b).invoke("structuralHash"))
+                .cand(JExpr.cast(diffable, a).invoke(sameContent).arg(b)));
+        body._if(a._instanceof(codeModel.BYTE.array()))._then()._return(codeModel.ref(Arrays.class).staticInvoke("equals")
+                .arg(JExpr.cast(codeModel.BYTE.array(), a)).arg(JExpr.cast(codeModel.BYTE.array(), b)));
+        JBlock areElements = body._if(a._instanceof(codeModel.ref(JAXBElement.class)))._then();
+        JVar e = areElements.decl(JMod.FINAL, elementType, "e", JExpr.cast(elementType, a));
+        JVar f = areElements.decl(JMod.FINAL, elementType, "f", JExpr.cast(elementType, b));
+        areElements._return(e.invoke("getName").invoke("equals").arg(f.invoke("getName"))
+                .cand(e.invoke("isNil").eq(f.invoke("isNil")))
+                .cand(JExpr.invoke(same).arg(e.invoke("getValue")).arg(f.invoke("getValue"))));
+        body._return(a.invoke("equals").arg(b));
+
+        // compare(path, segment, a, b, differences)
+        JMethod compare = difference.method(JMod.PUBLIC | JMod.STATIC, codeModel.VOID, "compare");
+        compare.javadoc().append("Adds differences between two values of a field to given list. Used by the generated classes.");
+        JVar path = compare.param(JMod.FINAL, pathType, "path");
+        JVar segment = compare.param(JMod.FINAL, objectType, "segment");
+        a = compare.param(JMod.FINAL, objectType, "a");
+        b = compare.param(JMod.FINAL, objectType, "b");
+        differences = compare.param(JMod.FINAL, differencesType, "differences");
+        JBlock differs = compare.body()._if(JExpr.invoke(same).arg(a).arg(b).not())._then();
+        JVar child = differs.decl(JMod.FINAL, pathType, "child", JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList()))
+                .arg(path.invoke("size").plus(JExpr.lit(1))));
+        differs.add(child.invoke("addAll").arg(path));
+        differs.add(child.invoke("add").arg(segment));
+        differs.invoke("differ").arg(child).arg(a).arg(b).arg(differences);
+
+        // differ(path, a, b, differences)
+        JMethod differ = difference.method(JMod.PRIVATE | JMod.STATIC, codeModel.VOID, "differ");
+        path = differ.param(JMod.FINAL, pathType, "path");
+        a = differ.param(JMod.FINAL, objectType, "a");
+        b = differ.param(JMod.FINAL, objectType, "b");
+        differences = differ.param(JMod.FINAL, differencesType, "differences");
+        JConditional nested = differ.body()._if(a._instanceof(diffable).cand(b.ne(JExpr._null())).cand(a.invoke("getClass").eq(b.invoke("getClass"))));
+        nested._then().add(JExpr.cast(diffable, a).invoke("collectDifferences").arg(b).arg(path).arg(differences));
+        JConditional sameSize = nested._elseif(a._instanceof(codeModel.ref(List.class)).cand(b._instanceof(codeModel.ref(List.class)))
+                .cand(JExpr.cast(listType, a).invoke("size").eq(JExpr.cast(listType, b).invoke("size"))));
+        loop = sameSize._then()._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(JExpr.cast(listType, a).invoke("size")));
+        loop.update(i.incr());
+        loop.body().invoke(compare).arg(path).arg(i).arg(JExpr.cast(listType, a).invoke("get").arg(i))
+                .arg(JExpr.cast(listType, b).invoke("get").arg(i)).arg(differences);
+        sameSize._else().add(differences.invoke("add").arg(JExpr._new(difference).arg(path).arg(a).arg(b)));
+
+        // patchValue(value, differences, segment)
+        JMethod patchValue = difference.method(JMod.PUBLIC | JMod.STATIC, objectType, "patchValue");
+        patchValue.javadoc().append("Returns a field value with the differences below given path segment applied. Used by the generated classes.");
+        value = patchValue.param(JMod.FINAL, objectType, "value");
+        differences = patchValue.param(JMod.FINAL, differencesType, "differences");
+        segment = patchValue.param(JMod.FINAL, objectType, "segment");
+        body = patchValue.body();
+        JVar below = body.decl(differencesType, "below", JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+        JForEach each = body.forEach(difference, "difference", differences);
+        JVar d = each.var();
+        each.body()._if(d.ref(pathField).invoke("isEmpty").cor(d.ref(pathField).invoke("get").arg(JExpr.lit(0)).invoke("equals").arg(segment).not()))._then()._continue();
+        each.body()._if(d.ref(pathField).invoke("size").eq(JExpr.lit(1)))._then()._return(d.ref(newField));
+        each.body().add(below.invoke("add").arg(JExpr._new(difference)
+                .arg(d.ref(pathField).invoke("subList").arg(JExpr.lit(1)).arg(d.ref(pathField).invoke("size")))
+                .arg(d.ref(oldField)).arg(d.ref(newField))));
+        body._if(below.invoke("isEmpty"))._then()._return(value);
+        body._if(value._instanceof(diffable))._then()._return(JExpr.cast(diffable, value).invoke("patch").arg(below));
+        JBlock isList = body._if(value._instanceof(codeModel.ref(List.class)))._then();
+        JVar patched = isList.decl(JMod.FINAL, pathType, "patched", JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList()))
+                .arg(JExpr.cast(listType, value)));
+        loop = isList._for();
+        i = loop.init(codeModel.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(patched.invoke("size")));
+        loop.update(i.incr());
+        loop.body().add(patched.invoke("set").arg(i).arg(JExpr.invoke(patchValue).arg(patched.invoke("get").arg(i)).arg(below).arg(i)));
+        isList._return(patched);
+        body._throw(JExpr._new(codeModel.ref(IllegalArgumentException.class)).arg(JExpr.lit("Cannot apply ").plus(below).plus(JExpr.lit(" to ")).plus(value)));
+        return new JDefinedClass[]{diffable, difference};
+    }
+
+    /**
+     * Adds the holder of marshalled XML to the lexically smallest package. It keeps the bytes softly reachable together
+     * with the context and element name they were marshalled with, and accounts them against the budget shared by all
+     * classes.
+     *
+     * @return the holder class or null, if it could not be added
+     */
+    private JDefinedClass addCachedXmlClass(Outline model) {
+        JCodeModel codeModel = model.getCodeModel();
+        Optional<JPackage> pkg = model.getClasses().stream().map(c -> c.implClass._package()).min(Comparator.comparing(JPackage::name));
+        if (!pkg.isPresent()) {
+            return null;
+        }
+        JDefinedClass cacheClass;
+        try {
+            cacheClass = pkg.get()._class(JMod.PUBLIC | JMod.FINAL, CACHED_XML_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            log(Level.WARNING, "couldNotAddCachedXml", e.getExistingClass().fullName());
+            return null;
+        }
+        cacheClass.javadoc().append("Marshalled XML of an immutable instance, released by the garbage collector under memory pressure. "
+                + "The context is referenced weakly, so that cached XML does not keep it reachable. All classes share the budget of "
+                + xmlCacheBudget + " cached bytes, once it is exceeded the XML cached first is released first. Used by the generated toXml and writeXml methods.");
+        JFieldVar budget = cacheClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.LONG, "BUDGET", JExpr.lit(xmlCacheBudget));
+        JFieldVar size = cacheClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, AtomicLong.class, "SIZE", JExpr._new(codeModel.ref(AtomicLong.class)));
+        JFieldVar queue = cacheClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, codeModel.ref(Queue.class).narrow(cacheClass), "CACHED",
+                JExpr._new(codeModel.ref(ConcurrentLinkedQueue.class).narrow(Collections.<JClass>emptyList())));
+        JClass referenceType = codeModel.ref(SoftReference.class).narrow(codeModel.BYTE.array());
+        JClass contextReferenceType = codeModel.ref(WeakReference.class).narrow(JAXBContext.class);
+        JFieldVar contextField = cacheClass.field(JMod.PRIVATE | JMod.FINAL, contextReferenceType, "context");
+        JFieldVar nameField = cacheClass.field(JMod.PRIVATE | JMod.FINAL, QName.class, "name");
+        JFieldVar bytesField = cacheClass.field(JMod.PRIVATE | JMod.FINAL, referenceType, "bytes");
+        JFieldVar sizeField = cacheClass.field(JMod.PRIVATE | JMod.FINAL, codeModel.INT, "size");
+        JMethod ctor = cacheClass.constructor(JMod.PRIVATE);
+        ctor.body().assign(JExpr._this().ref(contextField), JExpr._new(codeModel.ref(WeakReference.class).narrow(Collections.<JClass>emptyList()))
+                .arg(ctor.param(JMod.FINAL, JAXBContext.class, "context")));
+        ctor.body().assign(JExpr._this().ref(nameField), ctor.param(JMod.FINAL, QName.class, "name"));
+        JVar ctorBytes = ctor.param(JMod.FINAL, codeModel.BYTE.array(), "bytes");
+        ctor.body().assign(JExpr._this().ref(bytesField), JExpr._new(codeModel.ref(SoftReference.class).narrow(Collections.<JClass>emptyList())).arg(ctorBytes));
+        ctor.body().assign(JExpr._this().ref(sizeField), ctorBytes.ref("length"));
+
+        JMethod of = cacheClass.method(JMod.PUBLIC | JMod.STATIC, cacheClass, "of");
+        JVar context = of.param(JMod.FINAL, JAXBContext.class, "context");
+        JVar name = of.param(JMod.FINAL, QName.class, "name");
+        JVar bytes = of.param(JMod.FINAL, codeModel.BYTE.array(), "bytes");
+        of.javadoc().append("Caches given bytes, releasing the XML cached first by any class until the cached XML fits into the budget again. "
+                + "Racing threads may exceed the budget briefly.");
+        of.javadoc().addReturn().append("the cached XML or null, if the bytes alone exceed the budget");
+        of.body()._if(bytes.ref("length").gt(budget))._then()._return(JExpr._null());
+        JVar cached = of.body().decl(JMod.FINAL, cacheClass, "cached", JExpr._new(cacheClass).arg(context).arg(name).arg(bytes));
+        of.body().add(queue.invoke("add").arg(cached));
+        JVar total = of.body().decl(codeModel.LONG, "total", size.invoke("addAndGet").arg(bytes.ref("length")));
+        JBlock evict = of.body()._while(total.gt(budget)).body();
+        JVar evicted = evict.decl(JMod.FINAL, cacheClass, "evicted", queue.invoke("poll"));
+        evict._if(evicted.eq(JExpr._null()))._then()._break();
+        evict.add(evicted.ref(bytesField).invoke("clear"));
+        evict.assign(total, size.invoke("addAndGet").arg(JOp.minus(evicted.ref(sizeField))));
+        of.body()._return(cached);
+
+        JMethod get = cacheClass.method(JMod.PUBLIC, codeModel.BYTE.array(), "get");
+        context = get.param(JMod.FINAL, JAXBContext.class, "context");
+        name = get.param(JMod.FINAL, QName.class, "name");
+        get.javadoc().append("Returns the cached bytes or null, if they were marshalled differently or have been released.");
+        get.body()._return(JOp.cond(JExpr._this().ref(contextField).invoke("get").eq(context).cand(JExpr._this().ref(nameField).invoke("equals").arg(name)),
+                JExpr._this().ref(bytesField).invoke("get"), JExpr._null()));
+        return cacheClass;
+    }
+
+    /**
+     * Returns the per-package writer of XML spliced from pieces: JAXB marshals the start tag and the children without
+     * cached XML, while the cached XML of the other children is copied in between. Created on first use.
+     */
+    private JDefinedClass getSplicedXmlClass(JCodeModel codeModel, JPackage pkg) {
+        JDefinedClass splicedClass = pkg._getClass(SPLICED_XML_CLASS_NAME);
+        if (splicedClass != null) {
+            return splicedClass;
+        }
+        try {
+            splicedClass = pkg._class(JMod.FINAL, SPLICED_XML_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            return e.getExistingClass();
+        }
+        splicedClass.javadoc().append("UTF-8 encoded XML of an element, whose content is either marshalled or copied from the cached XML of its children.");
+        JClass exceptionType = codeModel.ref(MarshalException.class);
+        JFieldVar factory = splicedClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, XMLOutputFactory.class, "OUTPUT_FACTORY",
+                codeModel.ref(XMLOutputFactory.class).staticInvoke("newFactory"));
+        JFieldVar out = splicedClass.field(JMod.PRIVATE | JMod.FINAL, ByteArrayOutputStream.class, "out", JExpr._new(codeModel.ref(ByteArrayOutputStream.class)));
+        JFieldVar marshaller = splicedClass.field(JMod.PRIVATE | JMod.FINAL, Marshaller.class, "marshaller");
+        JFieldVar writer = splicedClass.field(JMod.PRIVATE | JMod.FINAL, XMLStreamWriter.class, "writer");
+
+        JMethod ctor = splicedClass.constructor(JMod.NONE);
+        ctor._throws(JAXBException.class);
+        JVar context = ctor.param(JMod.FINAL, JAXBContext.class, "context");
+        JVar element = ctor.param(JMod.FINAL, codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard()), "element");
+        ctor.javadoc().append("Writes the start tag of given element, which is left open for its content.");
+        ctor.body().assign(JExpr._this().ref(marshaller), context.invoke("createMarshaller"));
+        ctor.body().add(JExpr._this().ref(marshaller).invoke("setProperty").arg(codeModel.ref(Marshaller.class).staticRef("JAXB_FRAGMENT")).arg(JExpr.TRUE));
+        JTryBlock tryBlock = ctor.body()._try();
+        tryBlock.body().assign(JExpr._this().ref(writer), factory.invoke("createXMLStreamWriter").arg(JExpr._this().ref(out)).arg("UTF-8"));
+        JCatchBlock catchBlock = tryBlock._catch(codeModel.ref(XMLStreamException.class));
+        catchBlock.body()._throw(JExpr._new(exceptionType).arg(catchBlock.param("e")));
+        ctor.body().add(JExpr._this().ref(marshaller).invoke("marshal").arg(element)
+                .arg(JExpr._new(getOpenElementWriterClass(codeModel, pkg)).arg(JExpr._this().ref(writer))));
+
+        JMethod marshal = splicedClass.method(JMod.NONE, codeModel.VOID, "marshal");
+        marshal._throws(JAXBException.class);
+        element = marshal.param(JMod.FINAL, codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard()), "element");
+        marshal.javadoc().append("Appends given child marshalled by JAXB.");
+        marshal.body().add(JExpr._this().ref(marshaller).invoke("marshal").arg(element).arg(JExpr._this().ref(writer)));
+
+        JMethod splice = splicedClass.method(JMod.NONE, codeModel.VOID, "splice");
+        splice._throws(JAXBException.class);
+        JVar bytes = splice.param(JMod.FINAL, codeModel.BYTE.array(), "bytes");
+        splice.javadoc().append("Appends the cached XML of a child. The empty text closes the start tag of the element, "
+                + "which the writer would otherwise close after the copied bytes.");
+        tryBlock = splice.body()._try();
+        tryBlock.body().add(JExpr._this().ref(writer).invoke("writeCharacters").arg(""));
+        tryBlock.body().add(JExpr._this().ref(writer).invoke("flush"));
+        catchBlock = tryBlock._catch(codeModel.ref(XMLStreamException.class));
+        catchBlock.body()._throw(JExpr._new(exceptionType).arg(catchBlock.param("e")));
+        splice.body().add(JExpr._this().ref(out).invoke("write").arg(bytes).arg(JExpr.lit(0)).arg(bytes.ref("length")));
+
+        JMethod toByteArray = splicedClass.method(JMod.NONE, codeModel.BYTE.array(), "toByteArray");
+        toByteArray._throws(JAXBException.class);
+        toByteArray.javadoc().append("Closes the element and returns its XML.");
+        tryBlock = toByteArray.body()._try();
+        tryBlock.body().add(JExpr._this().ref(writer).invoke("writeEndElement"));
+        tryBlock.body().add(JExpr._this().ref(writer).invoke("flush"));
+        catchBlock = tryBlock._catch(codeModel.ref(XMLStreamException.class));
+        catchBlock.body()._throw(JExpr._new(exceptionType).arg(catchBlock.param("e")));
+        toByteArray.body()._return(JExpr._this().ref(out).invoke("toByteArray"));
+        return splicedClass;
+    }
+
+    /**
+     * Returns the per-package XMLStreamWriter, which passes everything except the end tag of the outermost element to
+     * the underlying writer, so that content can be appended to an element marshalled by JAXB. Created on first use.
+     */
+    private JDefinedClass getOpenElementWriterClass(JCodeModel codeModel, JPackage pkg) {
+        JDefinedClass writerClass = pkg._getClass(OPEN_ELEMENT_WRITER_CLASS_NAME);
+        if (writerClass != null) {
+            return writerClass;
+        }
+        try {
+            writerClass = pkg._class(JMod.FINAL, OPEN_ELEMENT_WRITER_CLASS_NAME);
+        } catch (JClassAlreadyExistsException e) {
+            return e.getExistingClass();
+        }
+        writerClass._implements(XMLStreamWriter.class);
+        writerClass.javadoc().append("Writer leaving the outermost element open, used to append streamed content to marshalled elements.");
+        JFieldVar delegate = writerClass.field(JMod.PRIVATE | JMod.FINAL, XMLStreamWriter.class, "delegate");
+        JFieldVar depth = writerClass.field(JMod.PRIVATE, codeModel.INT, "depth");
+        JMethod ctor = writerClass.constructor(JMod.NONE);
+        ctor.body().assign(JExpr._this().ref(delegate), ctor.param(JMod.FINAL, XMLStreamWriter.class, "delegate"));
+
+        Method[] methods = XMLStreamWriter.class.getMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::getName).thenComparing(m -> Arrays.toString(m.getParameterTypes())));
+        for (Method m : methods) {
+            JMethod method = writerClass.method(JMod.PUBLIC, codeModel._ref(m.getReturnType()), m.getName());
+            method.annotate(Override.class);
+            for (Class<?> exception : m.getExceptionTypes()) {
+                method._throws(exception.asSubclass(Throwable.class));
+            }
+            JInvocation invocation = delegate.invoke(m.getName());
+            for (int i = 0; i < m.getParameterCount(); i++) {
+                invocation.arg(method.param(JMod.FINAL, codeModel._ref(m.getParameterTypes()[i]), "arg" + i));
+            }
+            if ("writeEndElement".equals(m.getName())) {
+                method.body().assign(depth, depth.minus(JExpr.lit(1)));
+                method.body()._if(depth.gt(JExpr.lit(0)))._then().add(invocation);
+            } else if (m.getReturnType() == void.class) {
+                if ("writeStartElement".equals(m.getName())) {
+                    method.body().assign(depth, depth.plus(JExpr.lit(1)));
+                }
+                method.body().add(invocation);
+            } else {
+                method.body()._return(invocation);
+            }
+        }
+        return writerClass;
+    }
+
+    private JExpression getTagNameMatch(JVar reader, QName tagName) {
+        JExpression localName = JExpr.lit(tagName.getLocalPart()).invoke("equals").arg(reader.invoke("getLocalName"));
+        if (tagName.getNamespaceURI().isEmpty()) {
+            return localName.cand(reader.invoke("getNamespaceURI").eq(JExpr._null())
+                    .cor(reader.invoke("getNamespaceURI").invoke("isEmpty")));
+        }
+        return localName.cand(JExpr.lit(tagName.getNamespaceURI()).invoke("equals").arg(reader.invoke("getNamespaceURI")));
+    }
+
+    private void addChoiceViews(Outline model, ClassOutline clazz) {
+        JDefinedClass implClass = clazz.implClass;
+        JCodeModel codeModel = implClass.owner();
+        for (CPropertyInfo property : clazz.target.getProperties()) {
+            if (!property.isCollection() || property.getAdapter() != null) {
+                continue;
+            }
+            // alternatives told apart by type, and elements bound to JAXBElement told apart by name
+            Map<String, JClass> alternatives = new LinkedHashMap<>();
+            Map<String, QName> elementNames = new HashMap<>();
+            boolean distinctNames = true;
+            if (property instanceof CElementPropertyInfo && ((CElementPropertyInfo) property).getTypes().size() > 1) {
+                for (CTypeRef typeRef : ((CElementPropertyInfo) property).getTypes()) {
+                    distinctNames &= alternatives.put(typeRef.getTagName().getLocalPart(),
+                            typeRef.getTarget().toType(model, Aspect.EXPOSED).boxify()) == null;
+                }
+            } else if (property instanceof CReferencePropertyInfo && ((CReferencePropertyInfo) property).getElements().size() > 1) {
+                for (CElement element : ((CReferencePropertyInfo) property).getElements()) {
+                    String name = element.getElementName().getLocalPart();
+                    distinctNames &= alternatives.put(name, ((CTypeInfo) element).toType(model, Aspect.EXPOSED).boxify()) == null;
+                    if (element instanceof CElementInfo) {
+                        elementNames.put(name, element.getElementName());
+                    }
+                }
+            } else {
+                continue;
+            }
+            JFieldVar field = implClass.fields().get(property.getName(false));
+            if (field == null || !isCollection(field)) {
+                continue;
+            }
+            List<JClass> types = alternatives.entrySet().stream().filter(e -> !elementNames.containsKey(e.getKey()))
+                    .map(Map.Entry::getValue).collect(Collectors.toList());
+            if (!distinctNames || !areDisjoint(types)) {
+                // instanceof or the local name could not tell the alternatives apart
+                log(Level.WARNING, "couldNotAddChoiceViews", property.getName(false), implClass.binaryName());
+                continue;
+            }
+            String indexName = "index" + StringUtils.capitalize(field.name()) + "Views";
+            if (implClass.getMethod(indexName, NO_ARGS) != null) {
+                log(Level.WARNING, "couldNotAddChoiceView", indexName, implClass.binaryName());
+                continue;
+            }
+            JMethod index = implClass.method(JMod.PRIVATE, codeModel.VOID, indexName);
+            index.javadoc().append("Partitions the " + property.getName(false) + " list into the views of its alternatives.");
+            JBlock body = index.body();
+            JClass elementType = ((JClass) field.type()).getTypeParameters().get(0);
+            JClass elementRef = codeModel.ref(JAXBElement.class).narrow(codeModel.wildcard());
+            JForEach forEach = body._if(JExpr._this().ref(field).ne(JExpr._null()))._then().forEach(elementType, "item", JExpr._this().ref(field));
+            // lists and names are declared in front of the loop
+            body.pos(0);
+            JVar item = forEach.var();
+            JBlock lastMatch = null;
+            boolean unchecked = false;
+            Map<JFieldVar, JVar> views = new LinkedHashMap<>();
+            for (Map.Entry<String, JClass> alternative : alternatives.entrySet()) {
+                String baseName = model.getModel().getNameConverter().toVariableName(alternative.getKey());
+                String viewName = baseName + "List";
+                String getterName = "get" + StringUtils.capitalize(viewName);
+                if (implClass.fields().containsKey(viewName) || implClass.getMethod(getterName, NO_ARGS) != null) {
+                    log(Level.WARNING, "couldNotAddChoiceView", getterName, implClass.binaryName());
+                    continue;
+                }
+                JClass type = alternative.getValue();
+                JClass listType = codeModel.ref(List.class).narrow(type);
+                JFieldVar viewField = addCacheField(implClass, listType, viewName);
+                JVar items = body.decl(JMod.FINAL, listType, viewName, JExpr._new(codeModel.ref(ArrayList.class).narrow(Collections.<JClass>emptyList())));
+                views.put(viewField, items);
+                JExpression test;
+                if (elementNames.containsKey(alternative.getKey())) {
+                    QName name = elementNames.get(alternative.getKey());
+                    JVar nameVar = body.decl(JMod.FINAL, codeModel.ref(QName.class), baseName + "Name",
+                            JExpr._new(codeModel.ref(QName.class)).arg(name.getNamespaceURI()).arg(name.getLocalPart()));
+                    test = item._instanceof(codeModel.ref(JAXBElement.class)).cand(JExpr.cast(elementRef, item).invoke("getName").invoke("equals").arg(nameVar));
+                    unchecked |= !type.getTypeParameters().isEmpty();
+                } else {
+                    test = item._instanceof(type);
+                }
+                if (lastMatch != null) {
+                    lastMatch._continue();
+                }
+                lastMatch = forEach.body()._if(test)._then();
+                lastMatch.add(items.invoke("add").arg(JExpr.cast(type, item)));
+
+                JMethod getter = implClass.method(JMod.PUBLIC, listType, getterName);
+                getter.javadoc().append("Returns unmodifiable list of the '" + alternative.getKey() + "' elements of the "
+                        + property.getName(false) + " list, computed once the list is set.");
+                getter.body()._return(JExpr._this().ref(viewField));
+            }
+            if (views.isEmpty()) {
+                implClass.methods().remove(index);
+                continue;
+            }
+            if (unchecked) {
+                index.annotate(SuppressWarnings.class).param("value", "unchecked");
+            }
+            body.pos(body.getContents().size());
+            for (Map.Entry<JFieldVar, JVar> view : views.entrySet()) {
+                body.assign(JExpr._this().ref(view.getKey()), JOp.cond(view.getValue().invoke("isEmpty"),
+                        codeModel.ref(Collections.class).staticInvoke("emptyList"),
+                        codeModel.ref(Collections.class).staticInvoke("unmodifiableList").arg(view.getValue())));
+            }
+            // views are built once the fields are set, by constructors and after unmarshalling
+            for (Iterator<JMethod> it = implClass.constructors(); it.hasNext(); ) {
+                it.next().body().invoke(index);
+            }
+            getAfterUnmarshalBody(implClass).invoke(index);
+        }
+    }
+
+    /**
+     * Returns body of the afterUnmarshal callback of given class, which JAXB calls once the fields of an unmarshalled
+     * instance are set, adding the callback on first use.
+     */
+    private JBlock getAfterUnmarshalBody(JDefinedClass clazz) {
+        JCodeModel codeModel = clazz.owner();
+        JType[] paramTypes = {codeModel.ref(Unmarshaller.class), codeModel.ref(Object.class)};
+        JMethod callback = clazz.getMethod("afterUnmarshal", paramTypes);
+        if (callback == null) {
+            callback = clazz.method(JMod.PROTECTED, codeModel.VOID, "afterUnmarshal");
+            callback.javadoc().append("Called by JAXB once the fields of an unmarshalled instance are set.");
+            callback.param(JMod.FINAL, paramTypes[0], "unmarshaller");
+            callback.param(JMod.FINAL, paramTypes[1], "parent");
+        }
+        return callback.body();
+    }
+
+    /**
+     * JAXB calls only the afterUnmarshal callback declared closest to the class of the instance, so the generated
+     * callback starts with calling the one of its superclass.
+     */
+    private void linkAfterUnmarshal(JDefinedClass clazz) {
+        JCodeModel codeModel = clazz.owner();
+        JType[] paramTypes = {codeModel.ref(Unmarshaller.class), codeModel.ref(Object.class)};
+        JMethod callback = clazz.getMethod("afterUnmarshal", paramTypes);
+        if (callback == null) {
+            return;
+        }
+        for (JClass superClass = clazz._extends(); superClass instanceof JDefinedClass; superClass = superClass._extends()) {
+            if (((JDefinedClass) superClass).getMethod("afterUnmarshal", paramTypes) != null) {
+                callback.annotate(Override.class);
+                callback.body().pos(0);
+                callback.body().add(JExpr._super().invoke("afterUnmarshal").arg(callback.params().get(0)).arg(callback.params().get(1)));
+                return;
+            }
+        }
+    }
+
+    private boolean areDisjoint(Collection<JClass> types) {
+        for (JClass type : types) {
+            for (JClass other : types) {
+                if (type != other && type.isAssignableFrom(other)) {
+                    return false;
+                }
+            }
+        }
+        return types.size() == new HashSet<>(types).size();
+    }
+
+    private void addKeyIndexEntry(Outline model, JBlock block, JExpression current, IdentityConstraints.Path path,
+                                  JVar entries, IdentityConstraints.Constraint constraint) {
+        JCodeModel codeModel = entries.type().owner();
+        IdentityConstraints.Field field = path.getField();
+        JFieldVar keyField = getPropertyField(model, field.getOwner(), field.getProperty());
+        JVar key = block.decl(keyField.type(), "key", getPropertyValue(model, current, field.getOwner(), field.getProperty()));
+        JBlock put = block;
+        if (!keyField.type().isPrimitive()) {
+            if (constraint.isKey()) {
+                block._if(key.eq(JExpr._null()))._then()._throw(JExpr._new(codeModel.ref(IllegalStateException.class))
+                        .arg("Missing field value of key '" + constraint.getName() + "'"));
+            } else {
+                put = block._if(key.ne(JExpr._null()))._then();
+            }
+        }
+        put._if(entries.invoke("put").arg(key).arg(current).ne(JExpr._null()))._then()
+                ._throw(JExpr._new(codeModel.ref(IllegalStateException.class)).arg(JExpr.lit("Duplicate value '").plus(key)
+                        .plus(JExpr.lit("' of identity constraint '" + constraint.getName() + "'"))));
+    }
+
+    private List<IdentityConstraints.Path> getResolvablePaths(Outline model, IdentityConstraints.Constraint constraint) {
+        return constraint.getPaths().stream().filter(path -> isResolvable(model, path)).collect(Collectors.toList());
+    }
+
+    private JClass getKeyType(Outline model, List<IdentityConstraints.Path> paths) {
+        return getCommonType(model.getCodeModel(), paths.stream()
+                .map(p -> getPropertyField(model, p.getField().getOwner(), p.getField().getProperty()).type().boxify()));
+    }
+
+    private JClass getSelectedType(Outline model, List<IdentityConstraints.Path> paths) {
+        return getCommonType(model.getCodeModel(), paths.stream()
+                .map(p -> model.getClazz(p.getLastStep().getTarget()).implClass));
+    }
+
+    private boolean isResolvable(Outline model, IdentityConstraints.Path path) {
+        for (IdentityConstraints.Step step : path.getSteps()) {
+            if (getPropertyGetter(model, step.getOwner(), step.getProperty()) == null) {
+                return false;
+            }
+        }
+        return getPropertyGetter(model, path.getField().getOwner(), path.getField().getProperty()) != null;
+    }
+
+    private JFieldVar getPropertyField(Outline model, CClassInfo owner, CPropertyInfo property) {
+        return model.getClazz(owner).implClass.fields().get(property.getName(false));
+    }
+
+    private JMethod getPropertyGetter(Outline model, CClassInfo owner, CPropertyInfo property) {
+        JFieldVar field = getPropertyField(model, owner, property);
+        return field == null ? null : getGetterProperty(field, model.getClazz(owner).implClass);
+    }
+
+    private JExpression getPropertyValue(Outline model, JExpression target, CClassInfo owner, CPropertyInfo property) {
+        JMethod getter = getPropertyGetter(model, owner, property);
+        JInvocation value = JExpr.invoke(target, getter);
+        if (getter.type().erasure().equals(getter.type().owner().ref(Optional.class))) {
+            return value.invoke("orElse").arg(JExpr._null());
+        }
+        return value;
+    }
+
+    private JClass getCommonType(JCodeModel codeModel, Stream<JClass> types) {
+        Set<JClass> distinct = types.collect(Collectors.toCollection(LinkedHashSet::new));
+        return distinct.size() == 1 ? distinct.iterator().next() : codeModel.ref(Object.class);
+    }
+
+    private String getUniqueName(Set<String> names, String name) {
+        String unique = name;
+        for (int i = 2; !names.add(unique); i++) {
+            unique = name + i;
+        }
+        return unique;
+    }
+
+    private JExpression getOptionalWrappedExpression(JCodeModel codeModel, JExpression param) {
+        return codeModel.ref(Optional.class).staticInvoke("ofNullable").arg(param);
+    }
+
+    private void generateDefaultPropertyAssignment(JMethod method, JFieldVar field) {
+        JBlock block = method.body();
+        String propertyName = field.name();
+        block.assign(JExpr.refthis(propertyName), defaultValue(field));
+    }
+
+    private JExpression defaultValue(JFieldVar field) {
+        JType javaType = field.type();
+        if (setDefaultValuesInConstructor) {
+            Optional<JAnnotationUse> xmlElementAnnotation = getAnnotation(field.annotations(), XmlElement.class.getCanonicalName());
+            if (xmlElementAnnotation.isPresent()) {
+                JAnnotationValue annotationValue = xmlElementAnnotation.get().getAnnotationMembers().get("defaultValue");
+                if (annotationValue != null) {
+                    StringWriter sw = new StringWriter();
+                    JFormatter f = new JFormatter(sw);
+                    annotationValue.generate(f);
+                    return JExpr.lit(sw.toString().replaceAll("\"", ""));
+                }
+            }
+        }
+        if (javaType.isPrimitive()) {
             if (field.type().owner().BOOLEAN.equals(javaType)) {
                 return JExpr.lit(false);
             } else if (javaType.owner().SHORT.equals(javaType)) {
@@ -737,7 +5055,7 @@ public final class PluginImpl extends Plugin {
 
         for (JFieldVar field : declaredFields) {
             if (mustAssign(field)) {
-                generatePropertyAssignment(ctor, field, true);
+                generatePropertyAssignment(clazz, ctor, field, true);
             }
         }
         return ctor;
@@ -784,16 +5102,25 @@ public final class PluginImpl extends Plugin {
                             .arg("Cannot create a copy of '" + builderName + "' from 'null'."));
         }
         JCodeModel codeModel = clazz.owner();
+        JVar event = flightRecorderEvents == null ? null : beginFlightRecorderEvent(ctor.body(), flightRecorderEvents[1], "copyEvent");
+        List<JExpression> collections = new ArrayList<>();
 
         for (JFieldVar field : superclassFields) {
             String propertyName = field.name();
             JMethod getter = getGetterProperty(field, clazz);
             if (isCollection(field)) {
+                collections.add(JExpr.refthis(propertyName));
+            }
+            JInvocation supportInvocation;
+            if (isCollection(field) && (supportInvocation = getSupportInvocation(clazz, field, "mutableCopyOf")) != null) {
+                stats.collectionWrapper();
+                ctor.body().assign(JExpr.refthis(propertyName), supportInvocation.arg(JExpr.invoke(o, getter)));
+            } else if (isCollection(field)) {
                 JVar tmpVar = ctor.body().decl(0, getJavaType(field), "_" + propertyName, JExpr.invoke(o, getter));
                 JConditional conditional = ctor.body()._if(tmpVar.eq(JExpr._null()));
                 conditional._then().assign(JExpr.refthis(propertyName), getNewCollectionExpression(codeModel, getJavaType(field)));
                 conditional._else().assign(JExpr.refthis(propertyName), getDefensiveCopyExpression(codeModel, getJavaType(field), tmpVar));
-            } else if (optionalGetter && !isRequired(field)) {
+            } else if (optionalGetter && !isRequired(field) && !elementFactories.containsKey(field)) {
                 ctor.body().assign(JExpr.refthis(propertyName), JExpr.invoke(o, getter).invoke("orElse").arg(JExpr._null()));
             } else {
                 ctor.body().assign(JExpr.refthis(propertyName), JExpr.invoke(o, getter));
@@ -801,16 +5128,33 @@ public final class PluginImpl extends Plugin {
         }
         for (JFieldVar field : declaredFields) {
             String propertyName = field.name();
-
             if (isCollection(field)) {
+                collections.add(JExpr.refthis(propertyName));
+            }
+
+            JInvocation supportInvocation;
+            if (isCollection(field) && (supportInvocation = getSupportInvocation(clazz, field, "mutableCopyOf")) != null) {
+                stats.collectionWrapper();
+                ctor.body().assign(JExpr.refthis(propertyName), supportInvocation.arg(JExpr.ref(o, propertyName)));
+            } else if (isCollection(field)) {
                 JVar tmpVar = ctor.body().decl(0, getJavaType(field), "_" + propertyName, JExpr.ref(o, propertyName));
                 JConditional conditional = ctor.body()._if(tmpVar.eq(JExpr._null()));
                 conditional._then().assign(JExpr.refthis(propertyName), getNewCollectionExpression(codeModel, getJavaType(field)));
                 conditional._else().assign(JExpr.refthis(propertyName), getDefensiveCopyExpression(codeModel, getJavaType(field), tmpVar));
+            } else if (lazyFields.contains(field)) {
+                // the held value is unmarshalled, if it has not been yet
+                JInvocation getterInvocation = JExpr.invoke(o, getGetterProperty(field, clazz));
+                ctor.body().assign(JExpr.refthis(propertyName), optionalGetter && !isRequired(field) ? getterInvocation.invoke("orElse").arg(JExpr._null()) : getterInvocation);
+            } else if (elementFactories.containsKey(field)) {
+                // the element is built from the unwrapped value
+                ctor.body().assign(JExpr.refthis(propertyName), JExpr.invoke(o, getGetterProperty(field, clazz)));
             } else {
                 ctor.body().assign(JExpr.refthis(propertyName), JExpr.ref(o, propertyName));
             }
         }
+        if (event != null) {
+            commitFlightRecorderEvent(ctor.body(), event, clazz, collections, null);
+        }
         return ctor;
     }
 
@@ -824,17 +5168,19 @@ public final class PluginImpl extends Plugin {
     }
 
     private JType getJavaType(JFieldVar field) {
-        return field.type();
+        // constructors and builders take unwrapped elements as JAXBElement
+        ElementFactory factory = elementFactories.get(field);
+        return factory != null ? factory.getElementType() : field.type();
     }
 
     private JType[] getFieldTypes(JFieldVar[] declaredFields, JFieldVar[] superclassFields) {
         JType[] fieldTypes = new JType[declaredFields.length + superclassFields.length];
         int i = 0;
         for (JFieldVar field : superclassFields) {
-            fieldTypes[i++] = field.type();
+            fieldTypes[i++] = getJavaType(field);
         }
         for (JFieldVar field : declaredFields) {
-            fieldTypes[i++] = field.type();
+            fieldTypes[i++] = getJavaType(field);
         }
         return fieldTypes;
     }
@@ -917,11 +5263,18 @@ public final class PluginImpl extends Plugin {
     private void makePropertiesFinal(JDefinedClass clazz, JFieldVar[] declaredFields) {
         for (JFieldVar field : declaredFields) {
             String fieldName = field.name();
-            clazz.fields().get(fieldName).mods().setFinal(!(leaveCollectionsMutable && isCollection(field)));
+            // compact wildcard attribute maps are replaced after unmarshalling, unwrapped elements are set by JAXB
+            clazz.fields().get(fieldName).mods().setFinal(!(leaveCollectionsMutable && isCollection(field)) && !isCompactAnyAttributes(field)
+                    && !elementFactories.containsKey(field));
             clazz.fields().get(fieldName).init(null); // remove field assignment
         }
     }
 
+    private boolean isCompactAnyAttributes(JFieldVar field) {
+        return compactAnyAttributes && !leaveCollectionsMutable && isMap(field)
+                && getAnnotation(field.annotations(), XmlAnyAttribute.class.getCanonicalName()).isPresent();
+    }
+
     private boolean isCollection(JFieldVar field) {
         if (field.type() instanceof JClass) {
             return isCollection((JClass) field.type());
@@ -934,6 +5287,10 @@ public final class PluginImpl extends Plugin {
                 isMap(clazz);
     }
 
+    private boolean isBinary(JFieldVar field) {
+        return field.type().isArray() && field.type().elementType() == field.type().owner().BYTE;
+    }
+
     private boolean isMap(JFieldVar field) {
         if (field.type() instanceof JClass) {
             return isMap((JClass) field.type());
@@ -981,7 +5338,7 @@ public final class PluginImpl extends Plugin {
     }
 
     private JFieldVar[] getDeclaredFields(JDefinedClass clazz) {
-        return clazz.fields().values().stream().filter(f -> !(isFinal(f) && isStatic(f))).toArray(JFieldVar[]::new);
+        return clazz.fields().values().stream().filter(f -> !(isFinal(f) && isStatic(f)) && !elementNilFlags.contains(f)).toArray(JFieldVar[]::new);
     }
 
     private ClassField[] getSuperclassFields(JDefinedClass clazz) {
@@ -993,7 +5350,7 @@ public final class PluginImpl extends Plugin {
         for (JDefinedClass classOutline : superclasses) {
             Map<String, JFieldVar> fields = classOutline.fields();
             for (JFieldVar jFieldVar : fields.values()) {
-                if (!(isStatic(jFieldVar) && isFinal(jFieldVar))) {
+                if (!(isStatic(jFieldVar) && isFinal(jFieldVar)) && !elementNilFlags.contains(jFieldVar)) {
                     superclassFields.add(new ClassField(classOutline, jFieldVar));
                 }
             }
@@ -1078,6 +5435,58 @@ public final class PluginImpl extends Plugin {
         }
     }
 
+    /**
+     * Generates code for an element selected by an identity constraint selector.
+     */
+    private interface SelectedElementHandler {
+        void handle(JBlock block, JExpression element, IdentityConstraints.Path path);
+    }
+
+    private static class ElementFactory {
+
+        private final JDefinedClass objectFactory;
+        private final JMethod method;
+        private final QName elementName;
+        private final boolean required;
+        private final String nilFlagName;
+
+        public ElementFactory(JDefinedClass objectFactory, JMethod method, QName elementName, boolean required, String nilFlagName) {
+            this.objectFactory = objectFactory;
+            this.method = method;
+            this.elementName = elementName;
+            this.required = required;
+            this.nilFlagName = nilFlagName;
+        }
+
+        public JDefinedClass getObjectFactory() {
+            return objectFactory;
+        }
+
+        public JMethod getMethod() {
+            return method;
+        }
+
+        public JType getValueType() {
+            return method.params().get(0).type();
+        }
+
+        public JType getElementType() {
+            return method.type();
+        }
+
+        public QName getElementName() {
+            return elementName;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public String getNilFlagName() {
+            return nilFlagName;
+        }
+    }
+
     private static class ClassField {
 
         private final JDefinedClass clazz;
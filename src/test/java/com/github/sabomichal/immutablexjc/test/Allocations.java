@@ -0,0 +1,57 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures allocation of accessors of the generated classes with the per-thread allocation counter of the JVM around
+ * tight loops of accessor calls. Tests are skipped on JVMs without per-thread allocation counting.
+ */
+final class Allocations {
+
+    static final int ITERATIONS = 100_000;
+    // headroom for one-off allocations in the measuring thread, e.g. interpreter profiling data
+    private static final long TOLERANCE_BYTES = 4096;
+
+    private static long sink;
+
+    private Allocations() {
+    }
+
+    static void assertNonAllocating(String accessor, LongSupplier access) {
+        long allocated = measure(access);
+        assertTrue(allocated < TOLERANCE_BYTES,
+                accessor + " allocated " + allocated + " bytes in " + ITERATIONS + " calls");
+    }
+
+    static long measure(LongSupplier access) {
+        ThreadMXBean threadBean = threadBean();
+        // the first call may allocate for class initialization and call site linkage
+        long result = access.getAsLong();
+        long before = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result += access.getAsLong();
+        }
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - before;
+        sink += result;
+        return allocated;
+    }
+
+    private static ThreadMXBean threadBean() {
+        ThreadMXBean threadBean = null;
+        try {
+            threadBean = ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+        } catch (IllegalArgumentException e) {
+            // not a HotSpot compatible JVM
+        }
+        assumeTrue(threadBean != null, "Per-thread allocation counting not available");
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported(), "Per-thread allocation counting not supported");
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        return threadBean;
+    }
+}
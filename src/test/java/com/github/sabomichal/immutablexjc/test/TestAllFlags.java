@@ -6,6 +6,7 @@ import com.github.sabomichal.immutablexjc.test.allflags.DoLaundry;
 import com.github.sabomichal.immutablexjc.test.allflags.TidyBedroom;
 import com.github.sabomichal.immutablexjc.test.allflags.Model;
 import com.github.sabomichal.immutablexjc.test.allflags.NameExpression;
+import com.github.sabomichal.immutablexjc.test.allflags.Parameters;
 import com.github.sabomichal.immutablexjc.test.allflags.StatusType;
 import com.github.sabomichal.immutablexjc.test.allflags.Variable;
 import jakarta.xml.bind.JAXBContext;
@@ -16,8 +17,11 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import static com.github.sabomichal.immutablexjc.test.Allocations.assertNonAllocating;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -214,4 +218,22 @@ public class TestAllFlags {
         assertEquals(1, d.getURI().size());
         assertEquals("http://example.com", d.getURI().get(0));
     }
+
+    @Test
+    public void testMutableCollectionGettersDoNotAllocate() {
+        List<NameExpression> by = new ArrayList<>();
+        by.add(NameExpression.nameExpressionBuilder().withName("a").build());
+        Declaration d = Declaration.declarationBuilder().withName("x").withType("Double").withBy(by).build();
+        assertNonAllocating("getBy()", () -> d.getBy().size());
+        assertNonAllocating("getTags()", () -> d.getTags().size());
+    }
+
+    @Test
+    public void testTraversalDoesNotAllocate() {
+        Declaration d = Declaration.declarationBuilder().withName("x").withType("Double").build();
+        Parameters p = Parameters.parametersBuilder().withParameter(Arrays.asList(d)).build();
+        Model model = Model.modelBuilder().withParameters(p).build();
+        assertNonAllocating("getParameters().getParameter().get(0).getName()",
+                () -> model.getParameters().getParameter().get(0).getName().length());
+    }
 }
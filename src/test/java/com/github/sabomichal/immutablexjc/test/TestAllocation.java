@@ -0,0 +1,25 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import org.junit.jupiter.api.Test;
+
+import static com.github.sabomichal.immutablexjc.test.Allocations.ITERATIONS;
+import static com.github.sabomichal.immutablexjc.test.Allocations.measure;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the allocation measurement used by the tests guarding accessors of the generated classes which must not
+ * allocate. Those tests live in the test class of the package they cover.
+ */
+public class TestAllocation {
+
+    private static volatile Object escape;
+
+    @Test
+    public void testMeasurementDetectsAllocation() {
+        long allocated = measure(() -> {
+            escape = new long[2];
+            return 1;
+        });
+        assertTrue(allocated >= ITERATIONS * 16L, "Allocation of escaping arrays should be measured, got " + allocated);
+    }
+}
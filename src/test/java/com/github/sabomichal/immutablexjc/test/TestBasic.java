@@ -24,6 +24,7 @@ import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.util.*;
 
+import static com.github.sabomichal.immutablexjc.test.Allocations.assertNonAllocating;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -226,4 +227,33 @@ public class TestBasic {
         Variable v = new Variable(Collections.emptyList(), "n", null, "cid-abc", new HashMap<>(), Collections.emptyList(), Collections.emptyList(), null);
         assertEquals("cid-abc", v.getCID());
     }
+
+    @Test
+    public void testScalarGettersDoNotAllocate() {
+        Declaration d = new Declaration(Collections.emptyList(), "x", "desc", "cid", new HashMap<>(),
+                Collections.emptyList(), Collections.emptyList(), "comment", "doc", "Double");
+        assertNonAllocating("getName()", () -> d.getName().length());
+        assertNonAllocating("getType()", () -> d.getType().length());
+        assertNonAllocating("getCID()", () -> d.getCID().length());
+        assertNonAllocating("getDocumentation()", () -> d.getDocumentation().length());
+
+        Metadata m = new Metadata("author", "1.0", "2025-01-01", null, 3, true, (short) 5);
+        assertNonAllocating("getRevision()", m::getRevision);
+        assertNonAllocating("isActive()", () -> m.isActive() ? 1 : 0);
+        assertNonAllocating("getPriority()", m::getPriority);
+    }
+
+    @Test
+    public void testEmptyCollectionGettersDoNotAllocate() {
+        Variable v = new Variable(null, "n", null, null, null, null, null, null);
+        assertNonAllocating("getBy()", () -> v.getBy().size());
+        assertNonAllocating("getTags()", () -> v.getTags().size());
+        assertNonAllocating("getOtherAttributes()", () -> v.getOtherAttributes().size());
+    }
+
+    @Test
+    public void testEnumAccessorsDoNotAllocate() {
+        assertNonAllocating("StatusType.value()", () -> StatusType.PENDING.value().length());
+        assertNonAllocating("StatusType.fromValue(String)", () -> StatusType.fromValue("INACTIVE").ordinal());
+    }
 }
@@ -0,0 +1,93 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.binaryviews.Attachment;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-binaryviews.
+ * Binary fields are copied once on construction, getters return them without copying, read-only views are available.
+ */
+public class TestBinaryViews {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+
+    @Test
+    public void testConstructorCopies() {
+        byte[] content = {1, 2, 3};
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(content).build();
+        content[0] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, a.getContent());
+    }
+
+    @Test
+    public void testGetterDoesNotCopy() {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).build();
+        assertSame(a.getContent(), a.getContent());
+        assertArrayEquals(new byte[]{1, 2, 3}, a.getContent());
+    }
+
+    @Test
+    public void testReadOnlyBuffer() {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).build();
+        ByteBuffer buffer = a.getContentAsReadOnlyBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(3, buffer.remaining());
+        assertEquals(1, buffer.get(0));
+        assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 9));
+        // views are independent of each other
+        buffer.get();
+        assertEquals(3, a.getContentAsReadOnlyBuffer().remaining());
+        assertNull(a.getThumbnailAsReadOnlyBuffer());
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.writeContentTo(out);
+        a.writeThumbnailTo(out);
+        assertArrayEquals(new byte[]{1, 2, 3}, out.toByteArray());
+    }
+
+    @Test
+    public void testCopyBuilder() {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).build();
+        Attachment copy = Attachment.attachmentBuilder(a).withName("b").build();
+        assertArrayEquals(a.getContent(), copy.getContent());
+        assertEquals("b", copy.getName());
+    }
+
+    @Test
+    public void testMarshalRoundTrip() throws Exception {
+        Attachment a = Attachment.attachmentBuilder()
+                .withName("a")
+                .withContent(new byte[]{1, 2, 3})
+                .withDigest(new byte[]{(byte) 0xca, (byte) 0xfe})
+                .build();
+        Marshaller marshaller = JAXBContext.newInstance(Attachment.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName(NS, "attachment"), Attachment.class, a), writer);
+        String xml = writer.toString();
+        assertTrue(xml.contains("<content>AQID</content>"));
+        assertTrue(xml.contains("digest=\"CAFE\""));
+
+        Attachment copy = JAXBContext.newInstance(Attachment.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(xml)), Attachment.class).getValue();
+        assertArrayEquals(new byte[]{1, 2, 3}, copy.getContent());
+        assertArrayEquals(new byte[]{(byte) 0xca, (byte) 0xfe}, copy.getDigest());
+        assertNull(copy.getThumbnail());
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.binaryviewscopy.Attachment;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-optionalgetter -Ximm-binaryviews=copy.
+ * Getters of binary fields return copies on request.
+ */
+public class TestBinaryViewsCopy {
+
+    @Test
+    public void testGetterCopies() {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).build();
+        a.getContent()[0] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, a.getContent());
+        assertNotSame(a.getContent(), a.getContent());
+        assertEquals(3, a.getContentAsReadOnlyBuffer().remaining());
+    }
+
+    @Test
+    public void testOptionalGetterCopies() {
+        Attachment a = Attachment.attachmentBuilder().withName("a").withContent(new byte[]{1, 2, 3}).withThumbnail(new byte[]{4}).build();
+        Optional<byte[]> thumbnail = a.getThumbnail();
+        assertTrue(thumbnail.isPresent());
+        thumbnail.get()[0] = 9;
+        assertArrayEquals(new byte[]{4}, a.getThumbnail().get());
+        assertFalse(Attachment.attachmentBuilder().withName("b").withContent(new byte[0]).build().getThumbnail().isPresent());
+    }
+}
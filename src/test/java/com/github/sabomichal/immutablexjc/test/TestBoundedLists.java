@@ -0,0 +1,62 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.boundedlists.Route;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-boundedlists.
+ * Lists of elements with a small maxOccurs are copied into exact-size immutable lists and limited in size.
+ */
+public class TestBoundedLists {
+
+    @Test
+    public void testBoundedListCopied() {
+        List<String> waypoints = new ArrayList<>(Arrays.asList("a", "b"));
+        Route route = new Route(waypoints, null, null, null);
+        waypoints.add("c");
+        assertEquals(Arrays.asList("a", "b"), route.getWaypoint());
+        assertThrows(UnsupportedOperationException.class, () -> route.getWaypoint().add("d"));
+    }
+
+    @Test
+    public void testConstructorRejectsOverflow() {
+        List<String> waypoints = Arrays.asList("a", "b", "c", "d", "e");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> new Route(waypoints, null, null, null));
+        assertEquals("Field 'waypoint' can hold at most 4 values.", e.getMessage());
+    }
+
+    @Test
+    public void testBuilderRejectsOverflow() {
+        Route.RouteBuilder builder = Route.routeBuilder().addWaypoint("a").addWaypoint("b").addWaypoint("c").addWaypoint("d");
+        assertThrows(IllegalStateException.class, () -> builder.addWaypoint("e"));
+        assertThrows(IllegalArgumentException.class, () -> builder.withWaypoint(Arrays.asList("a", "b", "c", "d", "e")));
+        // the rejected values did not replace the previous ones
+        assertEquals(Arrays.asList("a", "b", "c", "d"), builder.build().getWaypoint());
+    }
+
+    @Test
+    public void testRepeatedGroupMultipliesBound() {
+        List<Integer> legs = IntStream.range(0, 6).boxed().collect(Collectors.toList());
+        Route route = Route.routeBuilder().withWaypoint(Arrays.asList("a", "b")).withLeg(legs).build();
+        assertEquals(legs, route.getLeg());
+        assertThrows(IllegalStateException.class, () -> Route.routeBuilder(route).addLeg(6));
+    }
+
+    @Test
+    public void testUnboundedAndLargeListsNotLimited() {
+        List<String> notes = Collections.nCopies(25, "n");
+        List<String> tags = Collections.nCopies(100, "t");
+        Route route = Route.routeBuilder().withWaypoint(Arrays.asList("a", "b")).withNote(notes).withTag(tags).build();
+        assertEquals(25, route.getNote().size());
+        assertEquals(100, route.getTag().size());
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.choiceviews.DoLaundry;
+import com.github.sabomichal.immutablexjc.test.choiceviews.Model;
+import com.github.sabomichal.immutablexjc.test.choiceviews.NoteList;
+import com.github.sabomichal.immutablexjc.test.choiceviews.ObjectFactory;
+import com.github.sabomichal.immutablexjc.test.choiceviews.Parameters;
+import com.github.sabomichal.immutablexjc.test.choiceviews.TaskList;
+import com.github.sabomichal.immutablexjc.test.choiceviews.TidyBedroom;
+import com.github.sabomichal.immutablexjc.test.choiceviews.WashCar;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-choiceviews.
+ * Typed views of the alternatives of the repeating TaskList choice and of the NoteList choice of JAXBElements,
+ * built by the constructors and after unmarshalling.
+ */
+public class TestChoiceViews {
+
+    @Test
+    public void testViewsOfUnmarshalledList() throws Exception {
+        TaskList tasks = unmarshal().getTasks();
+        assertEquals(1, tasks.getDoLaundryList().size());
+        assertEquals(5, tasks.getDoLaundryList().get(0).getCost());
+        assertEquals(1, tasks.getWashCarList().size());
+        assertEquals(10, tasks.getWashCarList().get(0).getCost());
+        assertEquals(1, tasks.getTidyBedroomList().size());
+        assertEquals(15, tasks.getTidyBedroomList().get(0).getExperiencePoints());
+    }
+
+    @Test
+    public void testViewsAreBuiltAfterUnmarshal() throws Exception {
+        TaskList tasks = unmarshal().getTasks();
+        Field field = TaskList.class.getDeclaredField("doLaundryList");
+        field.setAccessible(true);
+        assertEquals(1, ((List<?>) field.get(tasks)).size());
+    }
+
+    @Test
+    public void testViewsOfElementsByName() throws Exception {
+        ObjectFactory factory = new ObjectFactory();
+        JAXBElement<String> first = factory.createNoteListNote("a");
+        JAXBElement<String> warning = factory.createNoteListWarning("b");
+        JAXBElement<Integer> limit = factory.createNoteListLimit(3);
+        JAXBElement<String> second = factory.createNoteListNote("c");
+        NoteList notes = new NoteList(Arrays.asList(first, warning, limit, second));
+        assertEquals(Arrays.asList(first, second), notes.getNoteList());
+        assertEquals(Arrays.asList(warning), notes.getWarningList());
+        assertEquals(Integer.valueOf(3), notes.getLimitList().get(0).getValue());
+
+        String xml = "<noteList xmlns=\"http://immutablexjc.sabomichal.github.com/test\"><warning>w</warning><note>n1</note>"
+                + "<limit>7</limit><note>n2</note></noteList>";
+        NoteList unmarshalled = JAXBContext.newInstance(NoteList.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(xml)), NoteList.class).getValue();
+        assertEquals(Arrays.asList("n1", "n2"), unmarshalled.getNoteList().stream().map(JAXBElement::getValue).collect(Collectors.toList()));
+        assertEquals("w", unmarshalled.getWarningList().get(0).getValue());
+        assertEquals(Integer.valueOf(7), unmarshalled.getLimitList().get(0).getValue());
+    }
+
+    @Test
+    public void testViewsKeepOrderAndIdentity() {
+        DoLaundry first = DoLaundry.doLaundryBuilder().withCost(1).build();
+        WashCar car = WashCar.washCarBuilder().withCost(2).build();
+        DoLaundry second = DoLaundry.doLaundryBuilder().withCost(3).build();
+        TaskList tasks = TaskList.taskListBuilder()
+                .withDoLaundryOrWashCarOrTidyBedroom(Arrays.asList(first, car, second))
+                .build();
+        List<DoLaundry> laundry = tasks.getDoLaundryList();
+        assertEquals(2, laundry.size());
+        assertSame(first, laundry.get(0));
+        assertSame(second, laundry.get(1));
+        assertSame(car, tasks.getWashCarList().get(0));
+        assertTrue(tasks.getTidyBedroomList().isEmpty());
+    }
+
+    @Test
+    public void testViewsAreSharedAndUnmodifiable() {
+        TaskList tasks = TaskList.taskListBuilder()
+                .addDoLaundryOrWashCarOrTidyBedroom(DoLaundry.doLaundryBuilder().withCost(1).build())
+                .build();
+        assertSame(tasks.getDoLaundryList(), tasks.getDoLaundryList());
+        assertThrows(UnsupportedOperationException.class, () -> tasks.getDoLaundryList().clear());
+        assertThrows(UnsupportedOperationException.class,
+                () -> tasks.getWashCarList().add(WashCar.washCarBuilder().withCost(1).build()));
+    }
+
+    @Test
+    public void testViewsOfEmptyList() {
+        TaskList tasks = new TaskList(null);
+        assertTrue(tasks.getDoLaundryList().isEmpty());
+        assertTrue(tasks.getWashCarList().isEmpty());
+        assertTrue(tasks.getTidyBedroomList().isEmpty());
+    }
+
+    @Test
+    public void testCopiedListHasOwnViews() {
+        TaskList tasks = TaskList.taskListBuilder()
+                .addDoLaundryOrWashCarOrTidyBedroom(DoLaundry.doLaundryBuilder().withCost(1).build())
+                .build();
+        assertEquals(1, tasks.getDoLaundryList().size());
+        TaskList copy = TaskList.taskListBuilder(tasks)
+                .addDoLaundryOrWashCarOrTidyBedroom(TidyBedroom.tidyBedroomBuilder().withCost(2).build())
+                .build();
+        assertEquals(1, copy.getTidyBedroomList().size());
+        assertTrue(tasks.getTidyBedroomList().isEmpty());
+    }
+
+    @Test
+    public void testNoViewsForSingleAlternative() {
+        assertTrue(Arrays.stream(Parameters.class.getDeclaredMethods()).noneMatch(m -> m.getName().equals("getParameterList")));
+    }
+
+    @Test
+    public void testViewFieldsAreNotBound() throws Exception {
+        for (String name : new String[]{"doLaundryList", "washCarList", "tidyBedroomList"}) {
+            Field field = TaskList.class.getDeclaredField(name);
+            assertTrue(Modifier.isTransient(field.getModifiers()));
+        }
+        Model model = unmarshal();
+        model.getTasks().getDoLaundryList();
+        Marshaller marshaller = JAXBContext.newInstance(Model.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(model, writer);
+        assertFalse(writer.toString().contains("List"));
+    }
+
+    private Model unmarshal() throws Exception {
+        Unmarshaller unmarshaller = JAXBContext.newInstance(Model.class).createUnmarshaller();
+        return (Model) unmarshaller.unmarshal(this.getClass().getResourceAsStream("/model.xml"));
+    }
+}
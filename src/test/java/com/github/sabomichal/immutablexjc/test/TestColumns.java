@@ -0,0 +1,110 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.columns.ConfigurationColumns;
+import com.github.sabomichal.immutablexjc.test.columns.Declaration;
+import com.github.sabomichal.immutablexjc.test.columns.DeclarationColumns;
+import com.github.sabomichal.immutablexjc.test.columns.Metadata;
+import com.github.sabomichal.immutablexjc.test.columns.MetadataColumns;
+import com.github.sabomichal.immutablexjc.test.columns.WashCar;
+import com.github.sabomichal.immutablexjc.test.columns.WashCarColumns;
+import org.junit.jupiter.api.Test;
+
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-columns=Declaration,Metadata,Configuration,WashCar.
+ * Lists of instances are converted into columns and back, and read through column views and row cursors.
+ */
+public class TestColumns {
+
+    @Test
+    public void testOnlySelectedClasses() {
+        assertThrows(ClassNotFoundException.class, () -> Class.forName(ConfigurationColumns.class.getPackage().getName() + ".ModelColumns"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        List<Declaration> declarations = Arrays.asList(
+                Declaration.declarationBuilder().withName("a").withType("t").addTags("x").build(),
+                Declaration.declarationBuilder().withName("b").withType("u").withDocumentation("doc").build());
+        DeclarationColumns columns = DeclarationColumns.of(declarations);
+        assertEquals(2, columns.size());
+        List<Declaration> copy = columns.toList();
+        assertEquals(2, copy.size());
+        assertEquals("a", copy.get(0).getName());
+        assertEquals(List.of("x"), copy.get(0).getTags());
+        assertEquals("doc", copy.get(1).getDocumentation());
+        assertNull(copy.get(0).getDocumentation());
+        assertThrows(UnsupportedOperationException.class, () -> copy.add(declarations.get(0)));
+        assertEquals(Arrays.asList("t", "u"), columns.getTypeColumn());
+        assertThrows(UnsupportedOperationException.class, () -> columns.getTypeColumn().set(0, "v"));
+    }
+
+    @Test
+    public void testPrimitiveColumns() {
+        List<Metadata> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(metadata().withAuthor("a" + i).withRevision(i).withActive(i % 3 == 0).withPriority((short) -i).build());
+        }
+        MetadataColumns columns = MetadataColumns.of(items);
+        IntBuffer revisions = columns.getRevisionColumn();
+        assertEquals(100, revisions.remaining());
+        long sum = 0;
+        for (int i = 0; i < revisions.limit(); i++) {
+            sum += revisions.get(i);
+        }
+        assertEquals(4950, sum);
+        assertThrows(ReadOnlyBufferException.class, () -> revisions.put(0, 1));
+        assertEquals(-99, columns.getPriorityColumn().get(99));
+        BitSet active = columns.getActiveColumn();
+        assertEquals(34, active.cardinality());
+        active.clear();
+        assertEquals(34, columns.getActiveColumn().cardinality());
+        Metadata copy = columns.get(42);
+        assertEquals("a42", copy.getAuthor());
+        assertEquals(42, copy.getRevision());
+        assertTrue(copy.isActive());
+        assertThrows(IndexOutOfBoundsException.class, () -> columns.get(100));
+    }
+
+    @Test
+    public void testRowCursor() {
+        MetadataColumns columns = MetadataColumns.of(Arrays.asList(
+                metadata().withAuthor("a").withRevision(1).build(),
+                metadata().withAuthor("b").withRevision(2).withActive(true).build()));
+        MetadataColumns.Row row = columns.row();
+        StringBuilder sb = new StringBuilder();
+        while (row.next()) {
+            sb.append(row.getIndex()).append(row.getAuthor()).append(row.getRevision()).append(row.isActive());
+        }
+        assertEquals("0a1false1b2true", sb.toString());
+        assertSame(row, row.moveTo(0));
+        assertEquals("a", row.getAuthor());
+        assertEquals("b", row.moveTo(1).toMetadata().getAuthor());
+        assertThrows(IndexOutOfBoundsException.class, () -> row.moveTo(2));
+        assertEquals(1, row.getIndex());
+    }
+
+    @Test
+    public void testInheritedFields() {
+        WashCarColumns columns = WashCarColumns.of(Arrays.asList(new WashCar(5), new WashCar(7)));
+        assertEquals(7, columns.getCostColumn().get(1));
+        assertEquals(5, columns.toList().get(0).getCost());
+    }
+
+    @Test
+    public void testRejectsNullItems() {
+        assertThrows(NullPointerException.class, () -> MetadataColumns.of(Arrays.asList(metadata().build(), null)));
+    }
+
+    private static Metadata.MetadataBuilder metadata() {
+        return Metadata.metadataBuilder().withAuthor("author").withVersion("1").withCreated("2024-01-01");
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.compactanyattr.BaseEntity;
+import com.github.sabomichal.immutablexjc.test.compactanyattr.Variable;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-compactanyattr.
+ * Wildcard attribute maps are stored in compact immutable maps, by the constructors and after unmarshalling.
+ */
+public class TestCompactAnyAttributes {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+    private static final QName FOREIGN = new QName("urn:foreign", "extra");
+
+    @Test
+    public void testNoAttributesShareEmptyMap() throws Exception {
+        Variable v1 = Variable.variableBuilder().withName("a").build();
+        Variable v2 = Variable.variableBuilder().withName("b").build();
+        assertSame(otherAttributesField(v1), otherAttributesField(v2));
+        assertTrue(v1.getOtherAttributes().isEmpty());
+    }
+
+    @Test
+    public void testAttributesCopied() throws Exception {
+        Map<QName, String> attributes = new HashMap<>();
+        attributes.put(FOREIGN, "x");
+        Variable v = Variable.variableBuilder().withName("a").withOtherAttributes(attributes).build();
+        attributes.put(FOREIGN, "y");
+        assertEquals("x", v.getOtherAttributes().get(FOREIGN));
+        assertFalse(otherAttributesField(v) instanceof HashMap);
+        assertThrows(UnsupportedOperationException.class, () -> v.getOtherAttributes().put(FOREIGN, "z"));
+    }
+
+    @Test
+    public void testCopyBuilder() {
+        Variable v = Variable.variableBuilder().withName("a").addOtherAttributes(FOREIGN, "x").build();
+        Variable copy = Variable.variableBuilder(v).addOtherAttributes(new QName("other"), "y").build();
+        assertEquals("x", copy.getOtherAttributes().get(FOREIGN));
+        assertEquals(2, copy.getOtherAttributes().size());
+        assertEquals(1, v.getOtherAttributes().size());
+    }
+
+    @Test
+    public void testMarshalRoundTrip() throws Exception {
+        Variable v = Variable.variableBuilder().withName("a").addOtherAttributes(FOREIGN, "x").build();
+        Marshaller marshaller = JAXBContext.newInstance(Variable.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName(NS, "variable"), Variable.class, v), writer);
+        assertTrue(writer.toString().contains("=\"x\""));
+
+        Variable copy = JAXBContext.newInstance(Variable.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(writer.toString())), Variable.class).getValue();
+        assertEquals("a", copy.getName());
+        assertEquals("x", copy.getOtherAttributes().get(FOREIGN));
+    }
+
+    @Test
+    public void testUnmarshalledAttributesFrozen() throws Exception {
+        Variable v = JAXBContext.newInstance(Variable.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader("<variable xmlns=\"" + NS + "\" xmlns:f=\"urn:foreign\" name=\"a\" f:extra=\"x\"/>")),
+                        Variable.class).getValue();
+        assertEquals("x", v.getOtherAttributes().get(FOREIGN));
+        // the HashMap filled by JAXB is replaced after unmarshalling
+        assertFalse(otherAttributesField(v) instanceof HashMap);
+        assertEquals(Map.copyOf(Map.of(FOREIGN, "x")).getClass(), otherAttributesField(v).getClass());
+    }
+
+    @Test
+    public void testUnmarshalWithoutAttributes() throws Exception {
+        Variable v = JAXBContext.newInstance(Variable.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader("<variable xmlns=\"" + NS + "\" name=\"a\"/>")), Variable.class).getValue();
+        // JAXB creates the map only for wildcard attributes actually present
+        assertNull(otherAttributesField(v));
+        assertTrue(v.getOtherAttributes().isEmpty());
+    }
+
+    private static Object otherAttributesField(BaseEntity entity) throws Exception {
+        Field field = BaseEntity.class.getDeclaredField("otherAttributes");
+        field.setAccessible(true);
+        return field.get(entity);
+    }
+}
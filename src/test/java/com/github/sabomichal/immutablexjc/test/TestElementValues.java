@@ -0,0 +1,99 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.elementvalues.Contact;
+import com.github.sabomichal.immutablexjc.test.elementvalues.ObjectFactory;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-inheritbuilder -Ximm-elementvalues.
+ * Elements bound to JAXBElement are stored as their value and a nil flag, the JAXBElement is built for JAXB only.
+ */
+public class TestElementValues {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+
+    @Test
+    public void testBuilderAcceptsValue() {
+        Contact c = Contact.contactBuilder().withName("n").withEmailValue("a@b.c").withAgeValue(42).build();
+        assertEquals("a@b.c", c.getEmailValue());
+        assertEquals(42, c.getAgeValue());
+        assertEquals(new QName(NS, "email"), c.getEmail().getName());
+        assertFalse(c.isEmailNil());
+    }
+
+    @Test
+    public void testBuilderAcceptsJAXBElement() {
+        JAXBElement<String> email = new ObjectFactory().createContactEmail("a@b.c");
+        Contact c = Contact.contactBuilder().withName("n").withEmail(email).build();
+        assertEquals("a@b.c", c.getEmailValue());
+        assertEquals(email.getName(), c.getEmail().getName());
+        assertEquals(email.getValue(), c.getEmail().getValue());
+    }
+
+    @Test
+    public void testValuesStoredUnwrapped() throws Exception {
+        for (Field field : Contact.class.getDeclaredFields()) {
+            assertNotEquals(JAXBElement.class, field.getType(), field.getName());
+        }
+        assertEquals(String.class, Contact.class.getDeclaredField("email").getType());
+        assertEquals(boolean.class, Contact.class.getDeclaredField("emailNil").getType());
+    }
+
+    @Test
+    public void testAbsentAndNil() {
+        Contact absent = Contact.contactBuilder().withName("n").withEmailValue(null).build();
+        assertNull(absent.getEmail());
+        assertNull(absent.getEmailValue());
+        assertFalse(absent.isEmailNil());
+
+        Contact nil = Contact.contactBuilder().withName("n").withEmail(new ObjectFactory().createContactEmail(null)).build();
+        assertNull(nil.getEmailValue());
+        assertTrue(nil.isEmailNil());
+    }
+
+    @Test
+    public void testUnmarshal() throws Exception {
+        String xml = "<contact xmlns=\"" + NS + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                + "<name>n</name><email xsi:nil=\"true\"/><age>7</age></contact>";
+        Contact c = JAXBContext.newInstance(Contact.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(xml)), Contact.class).getValue();
+        assertTrue(c.isEmailNil());
+        assertNull(c.getEmailValue());
+        assertEquals(7, c.getAgeValue());
+    }
+
+    @Test
+    public void testNilRoundTrip() throws Exception {
+        Contact c = Contact.contactBuilder().withName("n").withEmail(new ObjectFactory().createContactEmail(null)).build();
+        assertTrue(c.getEmail().isNil());
+        JAXBContext jc = JAXBContext.newInstance(Contact.class);
+        StringWriter writer = new StringWriter();
+        jc.createMarshaller().marshal(new JAXBElement<>(new QName(NS, "contact"), Contact.class, c), writer);
+        assertTrue(writer.toString().contains("nil=\"true\""), writer.toString());
+        Contact read = jc.createUnmarshaller().unmarshal(new StreamSource(new StringReader(writer.toString())), Contact.class).getValue();
+        assertTrue(read.isEmailNil());
+        assertNull(read.getEmailValue());
+        assertNull(read.getAge());
+    }
+
+    @Test
+    public void testMarshal() throws Exception {
+        Contact c = Contact.contactBuilder().withName("n").withAgeValue(7).build();
+        Marshaller marshaller = JAXBContext.newInstance(Contact.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName(NS, "contact"), Contact.class, c), writer);
+        assertTrue(writer.toString().contains("<age>7</age>"));
+        assertFalse(writer.toString().contains("email"));
+    }
+}
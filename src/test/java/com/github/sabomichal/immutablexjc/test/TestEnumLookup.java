@@ -0,0 +1,59 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.enumlookup.CurrencyCode;
+import com.github.sabomichal.immutablexjc.test.enumlookup.PriorityLevel;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.github.sabomichal.immutablexjc.test.Allocations.assertNonAllocating;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-enumlookup.
+ * fromValue of enums looks values up in a static map, or scans cached constants for primitive values.
+ */
+public class TestEnumLookup {
+
+    @Test
+    public void testFromValueLookup() {
+        for (CurrencyCode c : CurrencyCode.values()) {
+            assertSame(c, CurrencyCode.fromValue(c.value()));
+        }
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CurrencyCode.fromValue("EUR"));
+        assertEquals("EUR", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> CurrencyCode.fromValue(null));
+        assertTrue(hasStaticField(CurrencyCode.class, Map.class));
+    }
+
+    @Test
+    public void testPrimitiveFromValue() throws Exception {
+        assertEquals(int.class, PriorityLevel.class.getMethod("fromValue", int.class).getParameterTypes()[0]);
+        for (PriorityLevel p : PriorityLevel.values()) {
+            assertSame(p, PriorityLevel.fromValue(p.value()));
+        }
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> PriorityLevel.fromValue(2));
+        assertEquals("2", e.getMessage());
+        // no boxed keys
+        assertFalse(hasStaticField(PriorityLevel.class, Map.class));
+        assertTrue(hasStaticField(PriorityLevel.class, PriorityLevel[].class));
+    }
+
+    @Test
+    public void testNotReplacedWithoutOption() {
+        assertFalse(hasStaticField(com.github.sabomichal.immutablexjc.test.basic.CurrencyCode.class, Map.class));
+    }
+
+    @Test
+    public void testLookupDoesNotAllocate() {
+        assertNonAllocating("CurrencyCode.fromValue(String)", () -> CurrencyCode.fromValue("chf").ordinal());
+        assertNonAllocating("PriorityLevel.fromValue(int)", () -> PriorityLevel.fromValue(10).ordinal());
+    }
+
+    private static boolean hasStaticField(Class<?> enumClass, Class<?> type) {
+        return Arrays.stream(enumClass.getDeclaredFields())
+                .anyMatch(f -> Modifier.isStatic(f.getModifiers()) && !f.isSynthetic() && type.isAssignableFrom(f.getType()));
+    }
+}
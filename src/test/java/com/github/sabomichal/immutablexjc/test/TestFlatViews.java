@@ -0,0 +1,164 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.flatviews.Attachment;
+import com.github.sabomichal.immutablexjc.test.flatviews.AttachmentView;
+import com.github.sabomichal.immutablexjc.test.flatviews.Contact;
+import com.github.sabomichal.immutablexjc.test.flatviews.ContactView;
+import com.github.sabomichal.immutablexjc.test.flatviews.Declaration;
+import com.github.sabomichal.immutablexjc.test.flatviews.DeclarationView;
+import com.github.sabomichal.immutablexjc.test.flatviews.FlatModel;
+import com.github.sabomichal.immutablexjc.test.flatviews.FlatViews;
+import com.github.sabomichal.immutablexjc.test.flatviews.Model;
+import com.github.sabomichal.immutablexjc.test.flatviews.ModelView;
+import com.github.sabomichal.immutablexjc.test.flatviews.ObjectFactory;
+import com.github.sabomichal.immutablexjc.test.flatviews.Parameters;
+import com.github.sabomichal.immutablexjc.test.flatviews.ParametersView;
+import com.github.sabomichal.immutablexjc.test.flatviews.Schedule;
+import com.github.sabomichal.immutablexjc.test.flatviews.ScheduleView;
+import com.github.sabomichal.immutablexjc.test.flatviews.WashCarView;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-flatviews.
+ * Views read from flat buffers return the same values as the instances they were written from.
+ */
+public class TestFlatViews {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+
+    @Test
+    public void testModelThroughMappedFile(@TempDir Path dir) throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(getClass().getResourceAsStream("/model.xml"));
+        Path file = dir.resolve("model.flat");
+        FlatViews.write(model, file);
+
+        ModelView view = FlatViews.read(file, ModelView.class);
+        assertInstanceOf(FlatModel.class, view);
+        assertSameValues(ModelView.class, model, view);
+        assertFalse(view.getTasks().getDoLaundryOrWashCarOrTidyBedroom().isEmpty());
+        assertThrows(UnsupportedOperationException.class, () -> view.getParameters().getParameter().clear());
+    }
+
+    @Test
+    public void testRepresentationsAreInterchangeable() {
+        Parameters parameters = Parameters.parametersBuilder()
+                .addParameter(Declaration.declarationBuilder().withName("a").withType("t").build())
+                .addParameter(Declaration.declarationBuilder().withName("b").withType("u").addTags("x").build())
+                .build();
+        ParametersView view = FlatViews.read(FlatViews.write(parameters), ParametersView.class);
+        assertEquals("a,t;b,u;", describe(parameters));
+        assertEquals(describe(parameters), describe(view));
+        assertEquals(List.of("x"), view.getParameter().get(1).getTags());
+        assertThrows(IndexOutOfBoundsException.class, () -> view.getParameter().get(2));
+    }
+
+    @Test
+    public void testValueTypes() throws Exception {
+        Attachment attachment = Attachment.attachmentBuilder()
+                .withName("a")
+                .withContent(new byte[]{1, 2, 3})
+                .withDigest(new byte[]{(byte) 0xca, (byte) 0xfe})
+                .build();
+        AttachmentView attachmentView = FlatViews.read(FlatViews.write(attachment), AttachmentView.class);
+        assertSameValues(AttachmentView.class, attachment, attachmentView);
+        assertNull(attachmentView.getThumbnail());
+
+        DatatypeFactory datatypes = DatatypeFactory.newInstance();
+        Schedule schedule = Schedule.scheduleBuilder()
+                .withStart(datatypes.newXMLGregorianCalendar("2024-02-29T10:15:30+01:00"))
+                .withDue(datatypes.newXMLGregorianCalendar("2024-03-01"))
+                .addCheckpoint(datatypes.newXMLGregorianCalendar("2024-03-02"))
+                .build();
+        assertSameValues(ScheduleView.class, schedule, FlatViews.read(FlatViews.write(schedule), ScheduleView.class));
+
+        ObjectFactory factory = new ObjectFactory();
+        JAXBElement<String> nilEmail = factory.createContactEmail(null);
+        nilEmail.setNil(true);
+        Contact contact = Contact.contactBuilder().withName("n").withEmail(nilEmail).withAge(factory.createContactAge(7)).build();
+        ContactView contactView = FlatViews.read(FlatViews.write(contact), ContactView.class);
+        assertEquals(new QName(NS, "email"), contactView.getEmail().getName());
+        assertTrue(contactView.getEmail().isNil());
+        assertEquals(7, contactView.getAge().getValue());
+        assertEquals(Integer.class, contactView.getAge().getDeclaredType());
+    }
+
+    @Test
+    public void testSharedInstancesWrittenOnce() {
+        Declaration shared = Declaration.declarationBuilder().withName("shared").withType("t").build();
+        ByteBuffer once = FlatViews.write(Parameters.parametersBuilder().addParameter(shared).build());
+        ByteBuffer twice = FlatViews.write(Parameters.parametersBuilder().addParameter(shared).addParameter(shared).build());
+        // only the second item offset is added
+        assertEquals(once.remaining() + 4, twice.remaining());
+        ParametersView view = FlatViews.read(twice, ParametersView.class);
+        assertEquals(view.getParameter().get(0).toString(), view.getParameter().get(1).toString());
+    }
+
+    @Test
+    public void testRejectsBufferOfOtherSchema() {
+        ByteBuffer buffer = FlatViews.write(Parameters.parametersBuilder().build());
+        buffer.put(4, (byte) (buffer.get(4) ^ 1));
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> FlatViews.read(buffer, ParametersView.class));
+        assertTrue(e.getMessage().contains("different schema"));
+        assertThrows(IllegalStateException.class, () -> FlatViews.read(ByteBuffer.wrap(new byte[]{1, 2, 3}), ParametersView.class));
+    }
+
+    @Test
+    public void testReadFromDirectBufferAtPosition() {
+        ByteBuffer heap = FlatViews.write(Declaration.declarationBuilder().withName("d").withType("t").build());
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining() + 3);
+        direct.position(3);
+        direct.put(heap);
+        direct.position(3);
+        DeclarationView view = FlatViews.read(direct, DeclarationView.class);
+        assertEquals(3, direct.position());
+        assertEquals("d", view.getName());
+        assertEquals("t", view.getType());
+        assertThrows(ClassCastException.class, () -> FlatViews.read(direct, WashCarView.class));
+    }
+
+    private static String describe(ParametersView parameters) {
+        StringBuilder sb = new StringBuilder();
+        for (DeclarationView declaration : parameters.getParameter()) {
+            sb.append(declaration.getName()).append(',').append(declaration.getType()).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameValues(Class<?> viewType, Object expected, Object actual) throws Exception {
+        for (Method getter : viewType.getMethods()) {
+            assertSameValue(getter.invoke(expected), getter.invoke(actual), getter.getName());
+        }
+    }
+
+    private static void assertSameValue(Object expected, Object actual, String path) throws Exception {
+        if (expected == null || actual == null) {
+            assertEquals(expected, actual, path);
+        } else if (expected instanceof List) {
+            assertEquals(((List<?>) expected).size(), ((List<?>) actual).size(), path);
+            for (int i = 0; i < ((List<?>) expected).size(); i++) {
+                assertSameValue(((List<?>) expected).get(i), ((List<?>) actual).get(i), path + "[" + i + "]");
+            }
+        } else if (expected instanceof byte[]) {
+            assertArrayEquals((byte[]) expected, (byte[]) actual, path);
+        } else if (expected instanceof Map || expected.getClass().getPackage() != Model.class.getPackage() || expected instanceof Enum) {
+            assertEquals(expected, actual, path);
+        } else {
+            Class<?> viewType = Class.forName(expected.getClass().getName() + "View");
+            assertTrue(viewType.isInstance(actual), path);
+            assertSameValues(viewType, expected, actual);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.jfr.BuildEvent;
+import com.github.sabomichal.immutablexjc.test.jfr.CollectionCopyEvent;
+import com.github.sabomichal.immutablexjc.test.jfr.CopyEvent;
+import com.github.sabomichal.immutablexjc.test.jfr.Declaration;
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-jfr=250.
+ * Builders, copy constructors and defensive collection copies emit Flight Recorder events.
+ */
+public class TestFlightRecorderEvents {
+
+    private static final String DECLARATION = Declaration.class.getName();
+    private static final String VARIABLE = DECLARATION.replace("Declaration", "Variable");
+
+    @Test
+    public void testEventTypes() {
+        EventType build = EventType.getEventType(BuildEvent.class);
+        assertEquals(Declaration.class.getPackage().getName() + ".Build", build.getName());
+        assertEquals(List.of("Immutable XJC"), build.getCategoryNames());
+        assertTrue(build.getSettingDescriptors().stream().anyMatch(s -> s.getName().equals("threshold") && s.getDefaultValue().equals("250 us")));
+        assertNotNull(EventType.getEventType(CollectionCopyEvent.class).getField("field"));
+    }
+
+    @Test
+    public void testEventsRecorded(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("events.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(BuildEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(CopyEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(CollectionCopyEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+            Declaration declaration = Declaration.declarationBuilder().withName("a").withType("t").addTags("x").addTags("y").addUri("u").build();
+            Declaration.declarationBuilder(declaration).build();
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith(Declaration.class.getPackage().getName()))
+                .collect(Collectors.toList());
+
+        List<RecordedEvent> builds = byName(events, "Build");
+        assertEquals(2, builds.size());
+        assertEquals(DECLARATION, builds.get(0).getString("className"));
+        assertEquals(3, builds.get(0).getInt("elements"));
+        assertFalse(builds.get(0).getDuration().isNegative());
+
+        List<RecordedEvent> copies = byName(events, "Copy");
+        assertEquals(1, copies.size());
+        assertEquals(DECLARATION, copies.get(0).getString("className"));
+        assertEquals(3, copies.get(0).getInt("elements"));
+
+        List<RecordedEvent> collectionCopies = byName(events, "CollectionCopy");
+        assertTrue(collectionCopies.stream().anyMatch(e -> e.getString("field").equals("tags") && e.getInt("elements") == 2));
+        assertTrue(collectionCopies.stream().anyMatch(e -> e.getString("className").equals(VARIABLE) && e.getString("field").equals("uri")
+                && e.getInt("elements") == 1));
+        assertNotNull(collectionCopies.get(0).getStackTrace());
+    }
+
+    @Test
+    public void testNothingCommittedBelowThreshold(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("events.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(BuildEvent.class).withThreshold(Duration.ofHours(1));
+            recording.start();
+            Declaration.declarationBuilder().withName("a").withType("t").build();
+            recording.stop();
+            recording.dump(file);
+        }
+        assertTrue(RecordingFile.readAllEvents(file).stream().noneMatch(e -> e.getEventType().getName().endsWith(".Build")));
+    }
+
+    private static List<RecordedEvent> byName(List<RecordedEvent> events, String name) {
+        String eventName = Declaration.class.getPackage().getName() + "." + name;
+        return events.stream().filter(e -> e.getEventType().getName().equals(eventName)).collect(Collectors.toList());
+    }
+}
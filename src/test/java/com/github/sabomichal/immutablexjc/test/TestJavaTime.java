@@ -0,0 +1,110 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.javatime.Schedule;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.ParameterizedType;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.Temporal;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-javatime.
+ * xs:dateTime and xs:date values are bound to java.time types through generated adapters, xs:dateTime values with timezone
+ * to OffsetDateTime and without it to LocalDateTime.
+ */
+public class TestJavaTime {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+    private static final String XML = "<schedule xmlns=\"" + NS + "\" created=\"2025-03-01T08:15:30.5+02:00\" day=\"2025-03-02Z\">"
+            + "<start> 2025-03-01T10:00:00Z </start><due>2025-04-30</due>"
+            + "<checkpoint>2025-03-15T12:00:00-05:00</checkpoint><checkpoint>2025-03-20T12:00:00</checkpoint>"
+            + "<alarm>06:30:00</alarm></schedule>";
+
+    @Test
+    public void testTypes() throws Exception {
+        assertEquals(Temporal.class, Schedule.class.getDeclaredField("start").getType());
+        assertEquals(LocalDate.class, Schedule.class.getDeclaredField("due").getType());
+        assertEquals(Temporal.class, ((ParameterizedType) Schedule.class.getDeclaredField("checkpoint").getGenericType())
+                .getActualTypeArguments()[0]);
+        assertEquals(Temporal.class, Schedule.class.getDeclaredField("created").getType());
+        assertEquals(LocalDate.class, Schedule.class.getDeclaredField("day").getType());
+        // no lossless java.time counterpart
+        assertEquals(XMLGregorianCalendar.class, Schedule.class.getDeclaredField("alarm").getType());
+    }
+
+    @Test
+    public void testUnmarshal() throws Exception {
+        Schedule s = unmarshal(XML);
+        assertEquals(OffsetDateTime.of(2025, 3, 1, 10, 0, 0, 0, ZoneOffset.UTC), s.getStart());
+        assertEquals(LocalDate.of(2025, 4, 30), s.getDue());
+        assertEquals(OffsetDateTime.of(2025, 3, 1, 8, 15, 30, 500_000_000, ZoneOffset.ofHours(2)), s.getCreated());
+        assertEquals(LocalDate.of(2025, 3, 2), s.getDay());
+        assertEquals(Arrays.asList(
+                OffsetDateTime.of(2025, 3, 15, 12, 0, 0, 0, ZoneOffset.ofHours(-5)),
+                LocalDateTime.of(2025, 3, 20, 12, 0, 0, 0)), s.getCheckpoint());
+        assertEquals(6, s.getAlarm().getHour());
+    }
+
+    @Test
+    public void testMarshalRoundTrip() throws Exception {
+        Schedule s = Schedule.scheduleBuilder()
+                .withStart(OffsetDateTime.of(2025, 1, 1, 9, 0, 0, 0, ZoneOffset.ofHours(1)))
+                .withDue(LocalDate.of(2025, 1, 31))
+                .addCheckpoint(OffsetDateTime.of(2025, 1, 15, 9, 0, 0, 0, ZoneOffset.UTC))
+                .build();
+        String xml = marshal(s);
+        // seconds are always written, as required by xs:dateTime
+        assertTrue(xml.contains("<start>2025-01-01T09:00:00+01:00</start>"));
+        assertTrue(xml.contains("<due>2025-01-31</due>"));
+        assertTrue(xml.contains("<checkpoint>2025-01-15T09:00:00Z</checkpoint>"));
+        assertFalse(xml.contains("created="));
+
+        Schedule copy = unmarshal(xml);
+        assertEquals(s.getStart(), copy.getStart());
+        assertEquals(s.getDue(), copy.getDue());
+        assertEquals(s.getCheckpoint(), copy.getCheckpoint());
+        assertNull(copy.getCreated());
+    }
+
+    @Test
+    public void testValuesWithoutTimezoneRoundTrip() throws Exception {
+        Schedule s = unmarshal(XML);
+        String xml = marshal(s);
+        assertTrue(xml.contains("<checkpoint>2025-03-15T12:00:00-05:00</checkpoint>"));
+        assertTrue(xml.contains("<checkpoint>2025-03-20T12:00:00</checkpoint>"));
+        assertEquals(s.getCheckpoint(), unmarshal(xml).getCheckpoint());
+
+        xml = marshal(Schedule.scheduleBuilder()
+                .withStart(LocalDateTime.of(2025, 1, 1, 9, 0, 0, 250_000_000))
+                .withDue(LocalDate.of(2025, 1, 31))
+                .build());
+        assertTrue(xml.contains("<start>2025-01-01T09:00:00.25</start>"));
+        assertEquals(LocalDateTime.of(2025, 1, 1, 9, 0, 0, 250_000_000), unmarshal(xml).getStart());
+    }
+
+    private String marshal(Schedule s) throws Exception {
+        Marshaller marshaller = JAXBContext.newInstance(Schedule.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName(NS, "schedule"), Schedule.class, s), writer);
+        return writer.toString();
+    }
+
+    private Schedule unmarshal(String xml) throws Exception {
+        return JAXBContext.newInstance(Schedule.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(xml)), Schedule.class).getValue();
+    }
+}
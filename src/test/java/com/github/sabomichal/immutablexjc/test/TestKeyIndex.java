@@ -0,0 +1,135 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.keyindex.Declaration;
+import com.github.sabomichal.immutablexjc.test.keyindex.DoLaundry;
+import com.github.sabomichal.immutablexjc.test.keyindex.Model;
+import com.github.sabomichal.immutablexjc.test.keyindex.Parameters;
+import com.github.sabomichal.immutablexjc.test.keyindex.TaskList;
+import com.github.sabomichal.immutablexjc.test.keyindex.WashCar;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-optionalgetter -Ximm-keyindex.
+ * Lookup methods backed by indexes of the 'name' (xs:unique) and 'taskCost' (xs:key) constraints of the model element.
+ */
+public class TestKeyIndex {
+
+    @Test
+    public void testFindUnmarshalled() throws Exception {
+        Model model = unmarshal();
+        Declaration x = model.findParameterByName("x");
+        assertNotNull(x);
+        assertSame(model.getParameters().getParameter().get(0), x);
+        assertSame(x, model.findParameterByName("x"));
+        assertNull(model.findParameterByName("y"));
+    }
+
+    @Test
+    public void testFindChoiceAlternatives() throws Exception {
+        Model model = unmarshal();
+        assertNotNull(model.findDoLaundryByCost(5));
+        assertNotNull(model.findWashCarByCost(10));
+        assertNotNull(model.findTidyBedroomByCost(3));
+        // key values are shared by all alternatives, but lookups are typed
+        assertNull(model.findWashCarByCost(5));
+        assertNull(model.findDoLaundryByCost(42));
+    }
+
+    @Test
+    public void testFindWithoutOptionalContent() {
+        Model model = Model.modelBuilder().withParameters(Parameters.parametersBuilder().build()).build();
+        assertNull(model.findParameterByName("x"));
+        assertNull(model.findDoLaundryByCost(5));
+    }
+
+    @Test
+    public void testBuildRejectsDuplicateUniqueValue() {
+        Parameters parameters = Parameters.parametersBuilder()
+                .addParameter(Declaration.declarationBuilder().withName("x").withType("Double").build())
+                .addParameter(Declaration.declarationBuilder().withName("x").withType("Integer").build())
+                .build();
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> Model.modelBuilder().withParameters(parameters).build());
+        assertTrue(e.getMessage().contains("'x'"));
+        assertTrue(e.getMessage().contains("'name'"));
+    }
+
+    @Test
+    public void testBuildRejectsDuplicateKeyValue() {
+        TaskList tasks = TaskList.taskListBuilder()
+                .addDoLaundryOrWashCarOrTidyBedroom(DoLaundry.doLaundryBuilder().withCost(5).build())
+                .addDoLaundryOrWashCarOrTidyBedroom(WashCar.washCarBuilder().withCost(5).build())
+                .build();
+        assertThrows(IllegalStateException.class,
+                () -> Model.modelBuilder().withParameters(Parameters.parametersBuilder().build()).withTasks(tasks).build());
+    }
+
+    @Test
+    public void testUniqueConstraintSkipsMissingValues() {
+        Parameters parameters = Parameters.parametersBuilder()
+                .addParameter(Declaration.declarationBuilder().withType("Double").build())
+                .addParameter(Declaration.declarationBuilder().withType("Integer").build())
+                .build();
+        Model model = Model.modelBuilder().withParameters(parameters).build();
+        assertNull(model.findParameterByName(null));
+    }
+
+    @Test
+    public void testUnmarshalledDuplicatesDetectedOnLookup() throws Exception {
+        String xml = "<model xmlns=\"http://immutablexjc.sabomichal.github.com/test\"><parameters>"
+                + "<parameter name=\"x\" type=\"Double\"/><parameter name=\"x\" type=\"Double\"/>"
+                + "</parameters></model>";
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(new StringReader(xml));
+        assertThrows(IllegalStateException.class, () -> model.findParameterByName("x"));
+    }
+
+    @Test
+    public void testIndexFieldsAreNotBound() throws Exception {
+        for (String name : new String[]{"nameIndex", "taskCostIndex"}) {
+            Field field = Model.class.getDeclaredField(name);
+            assertTrue(Modifier.isPrivate(field.getModifiers()));
+            assertTrue(Modifier.isTransient(field.getModifiers()));
+            assertTrue(Modifier.isVolatile(field.getModifiers()));
+        }
+        Model model = unmarshal();
+        model.findParameterByName("x");
+        Marshaller marshaller = JAXBContext.newInstance(Model.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(model, writer);
+        assertFalse(writer.toString().contains("Index"));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        Model model = unmarshal();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompletableFuture<?>[] lookups = new CompletableFuture<?>[16];
+            for (int i = 0; i < lookups.length; i++) {
+                lookups[i] = CompletableFuture.supplyAsync(() -> model.findParameterByName("x"), executor)
+                        .thenAccept(d -> assertSame(model.getParameters().getParameter().get(0), d));
+            }
+            CompletableFuture.allOf(lookups).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Model unmarshal() throws Exception {
+        Unmarshaller unmarshaller = JAXBContext.newInstance(Model.class).createUnmarshaller();
+        return (Model) unmarshaller.unmarshal(this.getClass().getResourceAsStream("/model.xml"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.keyref.Declaration;
+import com.github.sabomichal.immutablexjc.test.keyref.Model;
+import com.github.sabomichal.immutablexjc.test.keyref.NameExpression;
+import com.github.sabomichal.immutablexjc.test.keyref.Parameters;
+import jakarta.xml.bind.JAXBContext;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-optionalgetter -Ximm-keyref.
+ * Resolver of the 'byRef' keyref of the model element, which refers to the 'name' constraint.
+ */
+public class TestKeyRef {
+
+    private static final String XML = "<model xmlns=\"http://immutablexjc.sabomichal.github.com/test\"><parameters>"
+            + "<parameter name=\"x\" type=\"Double\"><by name=\"y\"/><by name=\"z\"/></parameter>"
+            + "<parameter name=\"y\" type=\"Double\"><by name=\"x\"/></parameter>"
+            + "</parameters></model>";
+
+    @Test
+    public void testResolveUnmarshalled() throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(new StringReader(XML));
+        Declaration x = model.findParameterByName("x");
+        Declaration y = model.findParameterByName("y");
+        assertSame(y, model.resolveByRef(x.getBy().get(0)));
+        assertSame(x, model.resolveByRef(y.getBy().get(0)));
+        // repeated navigation returns the cached target
+        assertSame(y, model.resolveByRef(x.getBy().get(0)));
+    }
+
+    @Test
+    public void testUnresolvableReference() throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(new StringReader(XML));
+        // 'z' does not name any parameter
+        assertNull(model.resolveByRef(model.findParameterByName("x").getBy().get(1)));
+    }
+
+    @Test
+    public void testForeignReference() throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(new StringReader(XML));
+        // references are resolved by identity, equal references outside of the document are not resolved
+        assertNull(model.resolveByRef(NameExpression.nameExpressionBuilder().withName("y").build()));
+        assertNull(model.resolveByRef(null));
+    }
+
+    @Test
+    public void testResolveBuilt() {
+        NameExpression ref = NameExpression.nameExpressionBuilder().withName("b").build();
+        Declaration a = Declaration.declarationBuilder().withName("a").withType("Double").addBy(ref).build();
+        Declaration b = Declaration.declarationBuilder().withName("b").withType("Double").build();
+        Model model = Model.modelBuilder()
+                .withParameters(Parameters.parametersBuilder().addParameter(a).addParameter(b).build())
+                .build();
+        assertSame(b, model.resolveByRef(a.getBy().get(0)));
+    }
+
+    @Test
+    public void testTargetsFieldIsNotBound() throws Exception {
+        Field field = Model.class.getDeclaredField("byRefTargets");
+        assertTrue(Modifier.isTransient(field.getModifiers()));
+        assertTrue(Modifier.isVolatile(field.getModifiers()));
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.lazy.Configuration;
+import com.github.sabomichal.immutablexjc.test.lazy.LazyXml;
+import com.github.sabomichal.immutablexjc.test.lazy.LazyXmlAdapter;
+import com.github.sabomichal.immutablexjc.test.lazy.Metadata;
+import com.github.sabomichal.immutablexjc.test.lazy.Model;
+import com.github.sabomichal.immutablexjc.test.lazy.StatusType;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-lazy=Model.metadata,Model.configuration.
+ * Designated child elements are kept as XML and unmarshalled on first access to their getter.
+ */
+public class TestLazySubtrees {
+
+    @Test
+    public void testUnmarshalledOnFirstAccess() throws Exception {
+        Model model = unmarshal();
+        assertFalse(holder(model, "metadata").isMaterialized());
+        assertNull(holder(model, "configuration"));
+        assertNull(model.getConfiguration());
+        assertEquals(StatusType.ACTIVE, model.getStatus());
+        assertEquals(3, model.getTasks().getDoLaundryOrWashCarOrTidyBedroom().size());
+        assertFalse(holder(model, "metadata").isMaterialized());
+
+        Metadata metadata = model.getMetadata();
+        assertTrue(holder(model, "metadata").isMaterialized());
+        assertSame(metadata, model.getMetadata());
+        assertEquals("Test Author", metadata.getAuthor());
+        assertEquals("1.0", metadata.getVersion());
+        assertEquals("2025-01-01", metadata.getCreated());
+        assertEquals(1, metadata.getRevision());
+        assertTrue(metadata.isActive());
+        assertEquals(5, metadata.getPriority());
+    }
+
+    @Test
+    public void testMarshalWithoutUnmarshalling() throws Exception {
+        Model model = unmarshal();
+        Model copy = unmarshal(marshal(model));
+        assertFalse(holder(model, "metadata").isMaterialized());
+        assertEquals("Test Author", copy.getMetadata().getAuthor());
+        assertEquals(5, copy.getMetadata().getPriority());
+        assertEquals(1, copy.getParameters().getParameter().size());
+    }
+
+    @Test
+    public void testBuiltValues() throws Exception {
+        Metadata metadata = Metadata.metadataBuilder().withAuthor("a & <b>").withVersion("2").withCreated("2024-01-01").withRevision(3).build();
+        Configuration configuration = Configuration.configurationBuilder().withName("c").withStatus(StatusType.ACTIVE).withEnabled(true).addLabels("x").addLabels("y").build();
+        Model model = Model.modelBuilder(unmarshal()).withMetadata(metadata).withConfiguration(configuration).build();
+        assertSame(metadata, model.getMetadata());
+        assertTrue(holder(model, "metadata").isMaterialized());
+
+        Model copy = unmarshal(marshal(model));
+        assertEquals("a & <b>", copy.getMetadata().getAuthor());
+        assertEquals(3, copy.getMetadata().getRevision());
+        assertEquals(List.of("x", "y"), copy.getConfiguration().getLabels());
+        assertTrue(copy.getConfiguration().isEnabled());
+        // marshalled again from the kept XML
+        assertEquals("a & <b>", unmarshal(marshal(unmarshal(marshal(copy)))).getMetadata().getAuthor());
+    }
+
+    @Test
+    public void testCopyBuilder() throws Exception {
+        Model model = unmarshal();
+        Model copy = Model.modelBuilder(model).withStatus(StatusType.INACTIVE).build();
+        assertSame(model.getMetadata(), copy.getMetadata());
+        assertEquals(StatusType.INACTIVE, copy.getStatus());
+    }
+
+    @Test
+    public void testConcurrentFirstAccess() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                Model model = unmarshal();
+                List<Callable<Metadata>> tasks = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    tasks.add(model::getMetadata);
+                }
+                List<Future<Metadata>> results = executor.invokeAll(tasks);
+                for (Future<Metadata> result : results) {
+                    assertSame(results.get(0).get(), result.get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReaderCopiesLazyElements() throws Exception {
+        Unmarshaller unmarshaller = JAXBContext.newInstance(Model.class).createUnmarshaller();
+        Map<String, Integer> created = new HashMap<>();
+        unmarshaller.setListener(new Unmarshaller.Listener() {
+            @Override
+            public void beforeUnmarshal(Object target, Object parent) {
+                created.merge(target.getClass().getSimpleName(), 1, Integer::sum);
+            }
+        });
+        Model model = (Model) LazyXml.unmarshal(unmarshaller, XMLInputFactory.newFactory().createXMLStreamReader(getClass().getResourceAsStream("/model.xml")));
+        assertNull(unmarshaller.getAdapter(LazyXmlAdapter.class));
+        // the lazy element is read as a single slice, JAXB creates neither its value nor any of its children
+        assertEquals(1, created.get("RawXml"));
+        assertNull(created.get("Metadata"));
+        assertFalse(holder(model, "metadata").isMaterialized());
+        assertEquals(3, model.getTasks().getDoLaundryOrWashCarOrTidyBedroom().size());
+
+        assertEquals("Test Author", model.getMetadata().getAuthor());
+        assertEquals(5, model.getMetadata().getPriority());
+        assertEquals("Test Author", unmarshal(marshal(model)).getMetadata().getAuthor());
+    }
+
+    @Test
+    public void testReaderDeclaresNamespacesInScope() throws Exception {
+        String xml = "<t:model xmlns:t='http://immutablexjc.sabomichal.github.com/test' xmlns:u='urn:unused' status='ACTIVE'>"
+                + "<t:parameters/>"
+                + "<t:metadata><t:author>a &amp; b</t:author><t:version>1</t:version><t:created>c</t:created>"
+                + "<t:revision>2</t:revision><t:active>false</t:active></t:metadata>"
+                + "<configuration xmlns='http://immutablexjc.sabomichal.github.com/test'><name>n</name><enabled>true</enabled>"
+                + "<maxRetries>3</maxRetries><status>INACTIVE</status><labels><![CDATA[<x>]]></labels></configuration>"
+                + "</t:model>";
+        Unmarshaller unmarshaller = JAXBContext.newInstance(Model.class).createUnmarshaller();
+        Model model = (Model) LazyXml.unmarshal(unmarshaller, XMLInputFactory.newFactory().createXMLStreamReader(new StringReader(xml)));
+        assertEquals(StatusType.ACTIVE, model.getStatus());
+        assertFalse(holder(model, "configuration").isMaterialized());
+        assertEquals("a & b", model.getMetadata().getAuthor());
+        assertEquals(2, model.getMetadata().getRevision());
+        assertEquals(3, model.getConfiguration().getMaxRetries());
+        assertEquals(List.of("<x>"), model.getConfiguration().getLabels());
+        assertEquals(StatusType.INACTIVE, unmarshal(marshal(model)).getConfiguration().getStatus());
+    }
+
+    private Model unmarshal() throws Exception {
+        return (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(getClass().getResourceAsStream("/model.xml"));
+    }
+
+    private static Model unmarshal(String xml) throws Exception {
+        return (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(new StringReader(xml));
+    }
+
+    private static String marshal(Model model) throws Exception {
+        Marshaller marshaller = JAXBContext.newInstance(Model.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(model, writer);
+        return writer.toString();
+    }
+
+    private static LazyXml<?> holder(Model model, String name) throws Exception {
+        Field field = Model.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (LazyXml<?>) field.get(model);
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.narrownumbers.Measurement;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-narrownumbers.
+ * Integer types bounded by their facets are bound to int or long.
+ */
+public class TestNarrowNumbers {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+    private static final String XML = "<measurement xmlns=\"" + NS + "\" level=\"2\" sequence=\"99999999999999999999\">"
+            + "<count>+0999</count><serial>123456789012345</serial><samples>0</samples><samples>100</samples>"
+            + "<total>12345678901234567890</total><huge>18446744073709551615</huge></measurement>";
+
+    @Test
+    public void testBoundedTypesNarrowed() throws Exception {
+        assertEquals(int.class, Measurement.class.getDeclaredField("count").getType());
+        assertEquals(int.class, Measurement.class.getDeclaredField("level").getType());
+        // optional values stay nullable
+        assertEquals(Long.class, Measurement.class.getDeclaredField("serial").getType());
+        assertEquals(Integer.class, ((ParameterizedType) Measurement.class.getDeclaredField("samples").getGenericType())
+                .getActualTypeArguments()[0]);
+    }
+
+    @Test
+    public void testUnboundedTypesNotNarrowed() throws Exception {
+        assertEquals(BigInteger.class, Measurement.class.getDeclaredField("total").getType());
+        assertEquals(BigInteger.class, Measurement.class.getDeclaredField("sequence").getType());
+        // unsignedLong exceeds the long range
+        assertEquals(BigInteger.class, Measurement.class.getDeclaredField("huge").getType());
+    }
+
+    @Test
+    public void testUnmarshal() throws Exception {
+        Measurement m = unmarshal(XML);
+        assertEquals(999, m.getCount());
+        assertEquals(2, m.getLevel());
+        assertEquals(123456789012345L, m.getSerial());
+        assertEquals(Arrays.asList(0, 100), m.getSamples());
+        assertEquals(new BigInteger("12345678901234567890"), m.getTotal());
+        assertEquals(new BigInteger("99999999999999999999"), m.getSequence());
+    }
+
+    @Test
+    public void testMarshalRoundTrip() throws Exception {
+        Measurement m = Measurement.measurementBuilder()
+                .withCount(7)
+                .withLevel(3)
+                .withSamples(Arrays.asList(1, 2))
+                .withTotal(BigInteger.TEN)
+                .build();
+        Marshaller marshaller = JAXBContext.newInstance(Measurement.class).createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName(NS, "measurement"), Measurement.class, m), writer);
+        String xml = writer.toString();
+        assertTrue(xml.contains("<count>7</count>"));
+        assertTrue(xml.contains("level=\"3\""));
+        assertFalse(xml.contains("<serial>"));
+
+        Measurement copy = unmarshal(xml);
+        assertEquals(7, copy.getCount());
+        assertEquals(3, copy.getLevel());
+        assertNull(copy.getSerial());
+        assertEquals(Arrays.asList(1, 2), copy.getSamples());
+    }
+
+    private Measurement unmarshal(String xml) throws Exception {
+        return JAXBContext.newInstance(Measurement.class).createUnmarshaller()
+                .unmarshal(new StreamSource(new StringReader(xml)), Measurement.class).getValue();
+    }
+}
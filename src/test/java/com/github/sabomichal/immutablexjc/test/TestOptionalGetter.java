@@ -19,6 +19,7 @@ import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.util.Optional;
 
+import static com.github.sabomichal.immutablexjc.test.Allocations.assertNonAllocating;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -261,4 +262,12 @@ public class TestOptionalGetter {
         Method getURI = Variable.class.getMethod("getURI");
         assertEquals(java.util.List.class, getURI.getReturnType());
     }
+
+    @Test
+    public void testEmptyOptionalGettersDoNotAllocate() {
+        Declaration d = Declaration.declarationBuilder().withName("x").withType("Double").build();
+        assertNonAllocating("getComment()", () -> d.getComment().isPresent() ? 1 : 0);
+        assertNonAllocating("getDescription()", () -> d.getDescription().isPresent() ? 1 : 0);
+        assertNonAllocating("getDocumentation()", () -> d.getDocumentation().isPresent() ? 1 : 0);
+    }
 }
@@ -0,0 +1,124 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.snapshot.Attachment;
+import com.github.sabomichal.immutablexjc.test.snapshot.Contact;
+import com.github.sabomichal.immutablexjc.test.snapshot.Declaration;
+import com.github.sabomichal.immutablexjc.test.snapshot.Model;
+import com.github.sabomichal.immutablexjc.test.snapshot.ObjectFactory;
+import com.github.sabomichal.immutablexjc.test.snapshot.Parameters;
+import com.github.sabomichal.immutablexjc.test.snapshot.Schedule;
+import com.github.sabomichal.immutablexjc.test.snapshot.Snapshot;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-snapshot.
+ * Instances written into binary snapshots are read back equal to the original.
+ */
+public class TestSnapshot {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+
+    @Test
+    public void testModelRoundTripThroughMappedFile(@TempDir Path dir) throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Model.class);
+        Model model = (Model) context.createUnmarshaller().unmarshal(getClass().getResourceAsStream("/model.xml"));
+        Path file = dir.resolve("model.snapshot");
+        Snapshot.write(model, file);
+
+        Model copy = Snapshot.read(file, Model.class);
+        assertNotSame(model, copy);
+        assertEquals(marshal(context, new JAXBElement<>(new QName(NS, "model"), Model.class, model)),
+                marshal(context, new JAXBElement<>(new QName(NS, "model"), Model.class, copy)));
+        assertThrows(UnsupportedOperationException.class, () -> copy.getParameters().getParameter().clear());
+    }
+
+    @Test
+    public void testValueTypes() throws Exception {
+        Attachment attachment = Attachment.attachmentBuilder()
+                .withName("a")
+                .withContent(new byte[]{1, 2, 3})
+                .withDigest(new byte[]{(byte) 0xca, (byte) 0xfe})
+                .build();
+        Attachment attachmentCopy = roundTrip(attachment, Attachment.class);
+        assertArrayEquals(new byte[]{1, 2, 3}, attachmentCopy.getContent());
+        assertArrayEquals(new byte[]{(byte) 0xca, (byte) 0xfe}, attachmentCopy.getDigest());
+        assertNull(attachmentCopy.getThumbnail());
+
+        DatatypeFactory datatypes = DatatypeFactory.newInstance();
+        Schedule schedule = Schedule.scheduleBuilder()
+                .withStart(datatypes.newXMLGregorianCalendar("2024-02-29T10:15:30+01:00"))
+                .withDue(datatypes.newXMLGregorianCalendar("2024-03-01"))
+                .build();
+        Schedule scheduleCopy = roundTrip(schedule, Schedule.class);
+        assertEquals(schedule.getStart(), scheduleCopy.getStart());
+        assertEquals(schedule.getDue(), scheduleCopy.getDue());
+
+        ObjectFactory factory = new ObjectFactory();
+        JAXBElement<String> nilEmail = factory.createContactEmail(null);
+        nilEmail.setNil(true);
+        Contact contact = Contact.contactBuilder().withName("n").withEmail(nilEmail).withAge(factory.createContactAge(7)).build();
+        Contact contactCopy = roundTrip(contact, Contact.class);
+        assertEquals(new QName(NS, "email"), contactCopy.getEmail().getName());
+        assertTrue(contactCopy.getEmail().isNil());
+        assertEquals(7, contactCopy.getAge().getValue());
+        assertEquals(Integer.class, contactCopy.getAge().getDeclaredType());
+    }
+
+    @Test
+    public void testSharedInstancesStayShared() throws Exception {
+        Declaration shared = Declaration.declarationBuilder().withName("shared").withType("t").build();
+        Parameters parameters = Parameters.parametersBuilder().addParameter(shared).addParameter(shared).build();
+        Parameters copy = roundTrip(parameters, Parameters.class);
+        assertEquals(2, copy.getParameter().size());
+        assertSame(copy.getParameter().get(0), copy.getParameter().get(1));
+        assertEquals("shared", copy.getParameter().get(0).getName());
+    }
+
+    @Test
+    public void testRejectsSnapshotOfOtherSchema() throws Exception {
+        Parameters parameters = Parameters.parametersBuilder().build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Snapshot.write(parameters, out);
+        byte[] bytes = out.toByteArray();
+        bytes[4] ^= 1;
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> Snapshot.read(ByteBuffer.wrap(bytes), Parameters.class));
+        assertTrue(e.getMessage().contains("different schema"));
+        assertThrows(IllegalStateException.class, () -> Snapshot.read(ByteBuffer.wrap(new byte[]{1, 2, 3}), Parameters.class));
+    }
+
+    @Test
+    public void testReadDoesNotMoveBufferPosition() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Snapshot.write(Parameters.parametersBuilder().build(), out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        assertNotNull(Snapshot.read(buffer, Parameters.class));
+        assertEquals(0, buffer.position());
+        assertThrows(ClassCastException.class, () -> Snapshot.read(buffer, Model.class));
+    }
+
+    private static <T> T roundTrip(T value, Class<T> type) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Snapshot.write(value, out);
+        return Snapshot.read(ByteBuffer.wrap(out.toByteArray()), type);
+    }
+
+    private static String marshal(JAXBContext context, Object value) throws Exception {
+        Marshaller marshaller = context.createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(value, writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm-stats=file written by the 'test-optional' and 'test-structuraldiff' generation runs.
+ */
+public class TestStats {
+
+    private static final Path STATS_FILE = Paths.get("target", "immutable-xjc-stats.json");
+    private static final Path STRUCTURALDIFF_STATS_FILE = Paths.get("target", "immutable-xjc-structuraldiff-stats.json");
+
+    @Test
+    public void testStatsFileWritten() {
+        assertTrue(Files.isRegularFile(STATS_FILE), "Stats file should be written by the plugin");
+    }
+
+    @Test
+    public void testAllPhasesReported() throws Exception {
+        String json = Files.readString(STATS_FILE, StandardCharsets.UTF_8);
+        for (String phase : new String[]{"sorting", "constructors", "setterRemoval", "getterReplacement", "builderGeneration", "copyConstructors"}) {
+            assertTrue(json.contains("\"" + phase + "\": {\"invocations\": "), "Phase " + phase + " should be reported");
+        }
+        assertTrue(json.contains("\"allocationTracking\": "));
+    }
+
+    @Test
+    public void testClassCountersReported() throws Exception {
+        String json = Files.readString(STATS_FILE, StandardCharsets.UTF_8);
+        // Parameters declares the 'parameter' list, which is wrapped in the getter,
+        // copied in the property constructor and copied in the builder copy constructor
+        assertTrue(json.contains("{\"name\": \"com.github.sabomichal.immutablexjc.test.optional.Parameters\", \"fields\": 1, \"generatedMethods\": 10, \"collectionWrappers\": 3}"));
+        // classes are sorted by name, so the output is stable between runs
+        assertTrue(json.indexOf("optional.BaseEntity\"") < json.indexOf("optional.Declaration\""));
+    }
+
+    @Test
+    public void testMethodsOfLaterOptionsCounted() throws Exception {
+        String json = Files.readString(STRUCTURALDIFF_STATS_FILE, StandardCharsets.UTF_8);
+        // besides the constructors, getter and builder, Parameters gets structuralHash, computeStructuralHash,
+        // sameContent, collectDifferences, patchedValue and patch after the per-class pass
+        assertTrue(json.contains("{\"name\": \"com.github.sabomichal.immutablexjc.test.structuraldiff.Parameters\", \"fields\": 1, \"generatedMethods\": 13, "));
+    }
+}
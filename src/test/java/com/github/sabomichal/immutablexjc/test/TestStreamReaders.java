@@ -0,0 +1,85 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.streamreaders.Declaration;
+import com.github.sabomichal.immutablexjc.test.streamreaders.Parameters;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-streamreaders.
+ * Children of unbounded element lists are handed over one by one while reading.
+ */
+public class TestStreamReaders {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+
+    @Test
+    public void testStreamsChildrenInOrder() throws Exception {
+        StringBuilder xml = new StringBuilder("<parameters xmlns=\"" + NS + "\">");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<parameter name=\"p").append(i).append("\" type=\"t\"/>");
+        }
+        xml.append("</parameters>");
+        XMLStreamReader reader = startReader(xml.toString());
+
+        List<String> names = new ArrayList<>();
+        Parameters.streamParameter(reader, unmarshaller(), d -> names.add(d.getName()));
+        assertEquals(1000, names.size());
+        assertEquals("p0", names.get(0));
+        assertEquals("p999", names.get(999));
+        assertEquals(XMLStreamConstants.END_ELEMENT, reader.getEventType());
+        assertEquals("parameters", reader.getLocalName());
+    }
+
+    @Test
+    public void testSkipsOtherElements() throws Exception {
+        String xml = "<root xmlns=\"" + NS + "\"><parameters>"
+                + "<parameter name=\"a\" type=\"t\"><documentation>doc</documentation></parameter>"
+                + "<unknown><parameter name=\"nested\" type=\"t\"/></unknown>"
+                + "<parameter xmlns=\"urn:other\" name=\"foreign\"/>"
+                + "text<parameter name=\"b\" type=\"t\"/>"
+                + "</parameters><after/></root>";
+        XMLStreamReader reader = startReader(xml);
+        reader.nextTag();
+
+        List<Declaration> declarations = new ArrayList<>();
+        Parameters.streamParameter(reader, unmarshaller(), declarations::add);
+        assertEquals(2, declarations.size());
+        assertEquals("a", declarations.get(0).getName());
+        assertEquals("doc", declarations.get(0).getDocumentation());
+        assertEquals("b", declarations.get(1).getName());
+        assertEquals("parameters", reader.getLocalName());
+        assertEquals("after", nextTagName(reader));
+    }
+
+    @Test
+    public void testRequiresStartElement() throws Exception {
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader("<parameters xmlns=\"" + NS + "\"/>"));
+        assertThrows(IllegalStateException.class, () -> Parameters.streamParameter(reader, unmarshaller(), d -> fail()));
+    }
+
+    private static XMLStreamReader startReader(String xml) throws Exception {
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+        reader.nextTag();
+        return reader;
+    }
+
+    private static String nextTagName(XMLStreamReader reader) throws Exception {
+        reader.nextTag();
+        return reader.getLocalName();
+    }
+
+    private static Unmarshaller unmarshaller() throws Exception {
+        return JAXBContext.newInstance(Parameters.class).createUnmarshaller();
+    }
+}
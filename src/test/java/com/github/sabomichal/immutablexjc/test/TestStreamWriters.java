@@ -0,0 +1,119 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.streamwriters.Declaration;
+import com.github.sabomichal.immutablexjc.test.streamwriters.Parameters;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Marshaller;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-streamwriters.
+ * Children of trailing unbounded element lists are marshalled one by one as they are pulled from an Iterator or Stream.
+ */
+public class TestStreamWriters {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+    private static final QName PARAMETERS = new QName(NS, "parameters");
+
+    @Test
+    public void testWriteFromIterator() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        Iterator<Declaration> children = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return pulled.get() < 1000;
+            }
+
+            @Override
+            public Declaration next() {
+                return declaration("p" + pulled.getAndIncrement());
+            }
+        };
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        Parameters.writeParameter(writer, context().createMarshaller(), PARAMETERS, Parameters.parametersBuilder().build(), children);
+        writer.close();
+
+        assertEquals(1000, pulled.get());
+        List<Declaration> parameters = unmarshal(out.toString()).getParameter();
+        assertEquals(1000, parameters.size());
+        assertEquals("p0", parameters.get(0).getName());
+        assertEquals("p999", parameters.get(999).getName());
+        assertEquals("t", parameters.get(999).getType());
+    }
+
+    @Test
+    public void testParentContentWrittenFirst() throws Exception {
+        Parameters parent = Parameters.parametersBuilder().addParameter(declaration("first")).build();
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        writer.writeStartDocument();
+        Parameters.writeParameter(writer, context().createMarshaller(), PARAMETERS, parent,
+                IntStream.range(0, 3).mapToObj(i -> declaration("s" + i)));
+        writer.writeEndDocument();
+        writer.close();
+
+        List<Declaration> parameters = unmarshal(out.toString()).getParameter();
+        assertEquals(List.of("first", "s0", "s1", "s2"), parameters.stream().map(Declaration::getName).toList());
+    }
+
+    @Test
+    public void testEmptyIterator() throws Exception {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        Parameters.writeParameter(writer, context().createMarshaller(), PARAMETERS, Parameters.parametersBuilder().build(),
+                List.<Declaration>of().iterator());
+        writer.close();
+        assertTrue(unmarshal(out.toString()).getParameter().isEmpty());
+    }
+
+    @Test
+    public void testFragmentModeRestored() throws Exception {
+        Marshaller marshaller = context().createMarshaller();
+        assertEquals(Boolean.FALSE, marshaller.getProperty(Marshaller.JAXB_FRAGMENT));
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter());
+        Parameters.writeParameter(writer, marshaller, PARAMETERS, Parameters.parametersBuilder().build(), List.of(declaration("a")).iterator());
+        assertEquals(Boolean.FALSE, marshaller.getProperty(Marshaller.JAXB_FRAGMENT));
+
+        Iterator<Declaration> failing = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Declaration next() {
+                throw new IllegalStateException("source failed");
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> Parameters.writeParameter(
+                XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter()), marshaller, PARAMETERS,
+                Parameters.parametersBuilder().build(), failing));
+        assertEquals(Boolean.FALSE, marshaller.getProperty(Marshaller.JAXB_FRAGMENT));
+    }
+
+    private static Declaration declaration(String name) {
+        return Declaration.declarationBuilder().withName(name).withType("t").build();
+    }
+
+    private static Parameters unmarshal(String xml) throws Exception {
+        return context().createUnmarshaller().unmarshal(new StreamSource(new StringReader(xml)), Parameters.class).getValue();
+    }
+
+    private static JAXBContext context() throws Exception {
+        return JAXBContext.newInstance(Parameters.class);
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.structuraldiff.Declaration;
+import com.github.sabomichal.immutablexjc.test.structuraldiff.Difference;
+import com.github.sabomichal.immutablexjc.test.structuraldiff.Model;
+import com.github.sabomichal.immutablexjc.test.structuraldiff.Parameters;
+import com.github.sabomichal.immutablexjc.test.structuraldiff.StatusType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-structuraldiff.
+ * Structural hashes, diff and patch of immutable trees.
+ */
+public class TestStructuralDiff {
+
+    @Test
+    public void testStructuralHash() {
+        Model a = model(100, -1);
+        Model b = model(100, -1);
+        assertNotSame(a, b);
+        assertEquals(a.structuralHash(), b.structuralHash());
+        assertNotEquals(a.structuralHash(), model(100, 42).structuralHash());
+        assertNotEquals(declaration("a", "t").structuralHash(), declaration("a", "u").structuralHash());
+    }
+
+    @Test
+    public void testEqualTreesHaveNoDifferences() {
+        assertTrue(Difference.diff(model(50, -1), model(50, -1)).isEmpty());
+        Model a = model(50, -1);
+        assertTrue(Difference.diff(a, a).isEmpty());
+    }
+
+    @Test
+    public void testCollidingHashesAreComparedByFields() {
+        // "Aa" and "BB" share String.hashCode
+        Declaration a = declaration("Aa", "t");
+        Declaration b = declaration("BB", "t");
+        assertEquals(a.structuralHash(), b.structuralHash());
+        assertFalse(a.sameContent(b));
+        List<Difference> differences = Difference.diff(a, b);
+        assertEquals(1, differences.size());
+        assertEquals("name: Aa -> BB", differences.get(0).toString());
+        assertEquals(b.getName(), a.patch(differences).getName());
+    }
+
+    @Test
+    public void testDiffFindsChangedLeaf() {
+        Model a = model(100, -1);
+        Model b = model(100, 42);
+        List<Difference> differences = Difference.diff(a, b);
+        assertEquals(1, differences.size());
+        Difference difference = differences.get(0);
+        assertEquals(List.of("parameters", "parameter", 42, "name"), difference.getPath());
+        assertEquals("p42", difference.getOldValue());
+        assertEquals("changed", difference.getNewValue());
+        assertEquals("parameters.parameter[42].name: p42 -> changed", difference.toString());
+    }
+
+    @Test
+    public void testDiffReplacesResizedList() {
+        Model a = model(3, -1);
+        Model b = model(4, -1);
+        List<Difference> differences = Difference.diff(a, b);
+        assertEquals(1, differences.size());
+        assertEquals(List.of("parameters", "parameter"), differences.get(0).getPath());
+
+        Model patched = Difference.patch(a, differences);
+        assertEquals(4, patched.getParameters().getParameter().size());
+        assertEquals(b.structuralHash(), patched.structuralHash());
+    }
+
+    @Test
+    public void testPatchSharesUnchangedSubtrees() {
+        Model a = model(100, -1);
+        Model b = Model.modelBuilder().withParameters(model(100, 7).getParameters()).withStatus(StatusType.INACTIVE).build();
+        List<Difference> differences = Difference.diff(a, b);
+        assertEquals(2, differences.size());
+
+        Model patched = Difference.patch(a, differences);
+        assertNotSame(a, patched);
+        assertTrue(Difference.diff(patched, b).isEmpty());
+        assertEquals(b.structuralHash(), patched.structuralHash());
+        assertEquals(StatusType.INACTIVE, patched.getStatus());
+        assertEquals("changed", patched.getParameters().getParameter().get(7).getName());
+        assertSame(a.getParameters().getParameter().get(6), patched.getParameters().getParameter().get(6));
+        assertSame(a.getParameters().getParameter().get(8), patched.getParameters().getParameter().get(8));
+        // the original is left unchanged
+        assertEquals("p7", a.getParameters().getParameter().get(7).getName());
+    }
+
+    @Test
+    public void testPatchWithoutDifferencesReturnsSameInstance() {
+        Model a = model(10, -1);
+        assertSame(a, Difference.patch(a, new ArrayList<>()));
+        assertSame(a, a.patch(new ArrayList<>()));
+    }
+
+    @Test
+    public void testRootReplacement() {
+        Declaration a = declaration("a", "t");
+        List<Difference> differences = Difference.diff(a, null);
+        assertEquals(1, differences.size());
+        assertTrue(differences.get(0).getPath().isEmpty());
+        assertNull(Difference.patch(a, differences));
+    }
+
+    private static Model model(int size, int changed) {
+        Parameters.ParametersBuilder parameters = Parameters.parametersBuilder();
+        for (int i = 0; i < size; i++) {
+            parameters.addParameter(declaration(i == changed ? "changed" : "p" + i, "t"));
+        }
+        return Model.modelBuilder().withParameters(parameters.build()).withStatus(StatusType.ACTIVE).build();
+    }
+
+    private static Declaration declaration(String name, String type) {
+        return Declaration.declarationBuilder().withName(name).withType(type).build();
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.supportclass.Declaration;
+import com.github.sabomichal.immutablexjc.test.supportclass.ImmutableSupport;
+import com.github.sabomichal.immutablexjc.test.supportclass.Model;
+import com.github.sabomichal.immutablexjc.test.supportclass.NameExpression;
+import com.github.sabomichal.immutablexjc.test.supportclass.Parameters;
+import com.github.sabomichal.immutablexjc.test.supportclass.Variable;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-supportclass.
+ * Collection handling delegated to the generated per-package support class.
+ */
+public class TestSupportClass {
+
+    @Test
+    public void testUnmarshal() throws Exception {
+        JAXBContext jc = JAXBContext.newInstance(Model.class);
+        Unmarshaller unmarshaller = jc.createUnmarshaller();
+        Model model = (Model) unmarshaller.unmarshal(this.getClass().getResourceAsStream("/model.xml"));
+        assertNotNull(model);
+        Declaration decl = model.getParameters().getParameter().get(0);
+        assertEquals("x", decl.getName());
+        assertEquals(2, decl.getBy().size());
+        assertThrows(UnsupportedOperationException.class, () -> decl.getBy().add(null));
+    }
+
+    @Test
+    public void testSupportClassIsFinalWithPrivateConstructor() throws Exception {
+        assertTrue(Modifier.isFinal(ImmutableSupport.class.getModifiers()));
+        Constructor<?>[] constructors = ImmutableSupport.class.getDeclaredConstructors();
+        assertEquals(1, constructors.length);
+        assertTrue(Modifier.isPrivate(constructors[0].getModifiers()));
+    }
+
+    @Test
+    public void testSupportMethods() throws Exception {
+        for (String name : new String[]{"unmodifiableList", "copyOfList", "mutableCopyOfList",
+                "unmodifiableMap", "copyOfMap", "mutableCopyOfMap"}) {
+            int modifiers = Arrays.stream(ImmutableSupport.class.getDeclaredMethods())
+                    .filter(m -> m.getName().equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new AssertionError(name + " should be generated"))
+                    .getModifiers();
+            assertTrue(Modifier.isPublic(modifiers) && Modifier.isStatic(modifiers));
+        }
+    }
+
+    @Test
+    public void testEmptyCollectionForNull() {
+        Variable v = new Variable(null, "n", null, null, null, null, null, null);
+        assertTrue(v.getBy().isEmpty());
+        assertTrue(v.getTags().isEmpty());
+        assertTrue(v.getOtherAttributes().isEmpty());
+    }
+
+    @Test
+    public void testDefensiveCopy() {
+        List<Declaration> list = new ArrayList<>();
+        list.add(Declaration.declarationBuilder().withName("a").withType("Double").build());
+        Parameters p = new Parameters(list);
+        list.add(Declaration.declarationBuilder().withName("b").withType("Double").build());
+        assertEquals(1, p.getParameter().size());
+        assertThrows(UnsupportedOperationException.class, () -> p.getParameter().clear());
+    }
+
+    @Test
+    public void testBuilderCopyConstructor() {
+        Variable v = Variable.variableBuilder()
+                .withName("v")
+                .addBy(NameExpression.nameExpressionBuilder().withName("a").build())
+                .build();
+        Variable copy = Variable.variableBuilder(v)
+                .addBy(NameExpression.nameExpressionBuilder().withName("b").build())
+                .build();
+        assertEquals(1, v.getBy().size());
+        assertEquals(2, copy.getBy().size());
+        assertEquals("a", copy.getBy().get(0).getName());
+    }
+}
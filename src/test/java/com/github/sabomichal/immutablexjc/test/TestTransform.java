@@ -0,0 +1,105 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.transform.Declaration;
+import com.github.sabomichal.immutablexjc.test.transform.Model;
+import com.github.sabomichal.immutablexjc.test.transform.Parameters;
+import com.github.sabomichal.immutablexjc.test.transform.TreeTransformer;
+import com.github.sabomichal.immutablexjc.test.transform.WashCar;
+import jakarta.xml.bind.JAXBContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-cc -Ximm-transform.
+ * Trees are rebuilt only on the paths to replaced instances and large lists are transformed in parallel.
+ */
+public class TestTransform {
+
+    @Test
+    public void testChangedPathsRebuilt() throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(getClass().getResourceAsStream("/model.xml"));
+        Model copy = model.transform(new UpperCaseNames());
+        assertNotSame(model, copy);
+        assertNotSame(model.getParameters(), copy.getParameters());
+        assertEquals(model.getParameters().getParameter().size(), copy.getParameters().getParameter().size());
+        for (int i = 0; i < copy.getParameters().getParameter().size(); i++) {
+            assertEquals(model.getParameters().getParameter().get(i).getName().toUpperCase(), copy.getParameters().getParameter().get(i).getName());
+        }
+        assertSame(model.getTasks(), copy.getTasks());
+        assertSame(model.getMetadata(), copy.getMetadata());
+        assertSame(model.getStatus(), copy.getStatus());
+    }
+
+    @Test
+    public void testUnchangedTreeShared() throws Exception {
+        Model model = (Model) JAXBContext.newInstance(Model.class).createUnmarshaller().unmarshal(getClass().getResourceAsStream("/model.xml"));
+        assertSame(model, model.transform(new TreeTransformer() {
+        }));
+    }
+
+    @Test
+    public void testInheritedFields() {
+        TreeTransformer doubleCost = new TreeTransformer() {
+            @Override
+            public Object transformNode(Object node) {
+                return node instanceof WashCar ? new WashCar(((WashCar) node).getCost() * 2) : node;
+            }
+        };
+        assertEquals(10, new WashCar(5).transform(doubleCost).getCost());
+    }
+
+    @Test
+    public void testLargeListsInParallel() {
+        Parameters.ParametersBuilder builder = Parameters.parametersBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.addParameter(Declaration.declarationBuilder().withName("p" + i).withType("t").build());
+        }
+        Parameters parameters = builder.build();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            Parameters copy = parameters.transform(new UpperCaseNames(pool, 100) {
+                @Override
+                public Object transformNode(Object node) {
+                    if (node instanceof Declaration) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return super.transformNode(node);
+                }
+            });
+            assertEquals(5000, copy.getParameter().size());
+            for (int i = 0; i < 5000; i++) {
+                assertEquals("P" + i, copy.getParameter().get(i).getName());
+                assertSame(parameters.getParameter().get(i).getType(), copy.getParameter().get(i).getType());
+            }
+            assertTrue(threads.stream().allMatch(t -> t instanceof ForkJoinWorkerThread));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class UpperCaseNames extends TreeTransformer {
+
+        UpperCaseNames() {
+        }
+
+        UpperCaseNames(ForkJoinPool pool, int parallelThreshold) {
+            super(pool, parallelThreshold);
+        }
+
+        @Override
+        public Object transformNode(Object node) {
+            if (node instanceof Declaration) {
+                Declaration declaration = (Declaration) node;
+                return Declaration.declarationBuilder(declaration).withName(declaration.getName().toUpperCase()).build();
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.sabomichal.immutablexjc.test;
+
+import com.github.sabomichal.immutablexjc.test.xmlcache.CachedXml;
+import com.github.sabomichal.immutablexjc.test.xmlcache.Declaration;
+import com.github.sabomichal.immutablexjc.test.xmlcache.NameExpression;
+import com.github.sabomichal.immutablexjc.test.xmlcache.Parameters;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBElement;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests -Ximm -Ximm-builder -Ximm-xmlcache=4096.
+ * Marshalled XML of instances is cached and reused by subsequent calls and by their parents.
+ */
+public class TestXmlCache {
+
+    private static final String NS = "http://immutablexjc.sabomichal.github.com/test";
+    private static final QName PARAMETER = new QName(NS, "parameter");
+    private static final QName PARAMETERS = new QName(NS, "parameters");
+
+    @Test
+    public void testCachedOnFirstUse() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration d = declaration("a");
+        assertNull(cachedXml(d));
+        byte[] xml = bytes(d.toXml(context, PARAMETER));
+        Object cached = cachedXml(d);
+        assertNotNull(cached);
+        assertArrayEquals(xml, bytes(d.toXml(context, PARAMETER)));
+        assertSame(cached, cachedXml(d));
+
+        String text = new String(xml, StandardCharsets.UTF_8);
+        assertFalse(text.startsWith("<?xml"));
+        assertTrue(text.contains("name=\"a\""));
+    }
+
+    @Test
+    public void testReturnedBufferIsReadOnly() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration d = declaration("a");
+        ByteBuffer xml = d.toXml(context, PARAMETER);
+        assertTrue(xml.isReadOnly());
+        assertThrows(ReadOnlyBufferException.class, () -> xml.put(0, (byte) 'x'));
+        xml.get();
+        assertEquals('<', d.toXml(context, PARAMETER).get());
+    }
+
+    @Test
+    public void testDifferentNameOrContextMarshalsAgain() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration d = declaration("a");
+        d.toXml(context, PARAMETER);
+        Object cached = cachedXml(d);
+        String other = new String(bytes(d.toXml(context, new QName(NS, "other"))), StandardCharsets.UTF_8);
+        assertTrue(other.contains("other"));
+        assertNotSame(cached, cachedXml(d));
+        d.toXml(JAXBContext.newInstance(Parameters.class), new QName(NS, "other"));
+        assertNotSame(cached, cachedXml(d));
+    }
+
+    @Test
+    public void testWriteXmlSplicesFragments() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration a = declaration("a");
+        Declaration b = declaration("b");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("<parameters xmlns=\"" + NS + "\">").getBytes(StandardCharsets.UTF_8));
+        a.writeXml(out, context, PARAMETER);
+        b.writeXml(out, context, PARAMETER);
+        a.writeXml(out, context, PARAMETER);
+        out.write("</parameters>".getBytes(StandardCharsets.UTF_8));
+
+        Parameters parameters = context.createUnmarshaller()
+                .unmarshal(new StreamSource(new ByteArrayInputStream(out.toByteArray())), Parameters.class).getValue();
+        assertEquals(3, parameters.getParameter().size());
+        assertEquals("b", parameters.getParameter().get(1).getName());
+        assertEquals("a", parameters.getParameter().get(2).getName());
+    }
+
+    @Test
+    public void testParentSplicesCachedXmlOfChildren() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration a = declaration("a");
+        Declaration b = declaration("b");
+        // cached XML differing from the instance shows, that the parent copies it instead of marshalling the child
+        setCachedXml(a, CachedXml.of(context, PARAMETER,
+                ("<parameter xmlns=\"" + NS + "\" name=\"spliced\" type=\"t\"/>").getBytes(StandardCharsets.UTF_8)));
+        Parameters parameters = Parameters.parametersBuilder().addParameter(a).addParameter(b).build();
+        assertNull(cachedXml(b));
+
+        Parameters unmarshalled = unmarshal(context, bytes(parameters.toXml(context, PARAMETERS)));
+        assertEquals("spliced", unmarshalled.getParameter().get(0).getName());
+        assertEquals("b", unmarshalled.getParameter().get(1).getName());
+        assertNotNull(cachedXml(b));
+    }
+
+    @Test
+    public void testSplicedXmlEqualsMarshalledXml() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration a = Declaration.declarationBuilder().withName("a").withType("t").withDescription("d").addTags("x").addTags("y")
+                .addBy(NameExpression.nameExpressionBuilder().withName("n").build()).addUri("u").withDocumentation("doc").build();
+        Parameters parameters = Parameters.parametersBuilder().addParameter(a).addParameter(declaration("b")).build();
+        a.toXml(context, PARAMETER);
+
+        assertEquals(marshal(context, parameters), marshal(context, unmarshal(context, bytes(parameters.toXml(context, PARAMETERS)))));
+    }
+
+    @Test
+    public void testBudgetReleasesXmlCachedFirst() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Declaration first = declaration("first");
+        first.toXml(context, PARAMETER);
+        assertNotNull(((CachedXml) cachedXml(first)).get(context, PARAMETER));
+        Declaration last = null;
+        for (int i = 0; i < 100; i++) {
+            last = declaration("d" + i);
+            last.toXml(context, PARAMETER);
+        }
+        assertNull(((CachedXml) cachedXml(first)).get(context, PARAMETER));
+        assertNotNull(((CachedXml) cachedXml(last)).get(context, PARAMETER));
+    }
+
+    @Test
+    public void testXmlOverBudgetNotCached() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Parameters.class);
+        Parameters.ParametersBuilder builder = Parameters.parametersBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.addParameter(declaration("p" + i));
+        }
+        Parameters parameters = builder.build();
+        assertTrue(parameters.toXml(context, PARAMETERS).remaining() > 4096);
+        assertNull(cachedXml(parameters));
+    }
+
+    private static Declaration declaration(String name) {
+        return Declaration.declarationBuilder().withName(name).withType("t").build();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static Parameters unmarshal(JAXBContext context, byte[] xml) throws Exception {
+        return context.createUnmarshaller().unmarshal(new StreamSource(new ByteArrayInputStream(xml)), Parameters.class).getValue();
+    }
+
+    private static String marshal(JAXBContext context, Parameters parameters) throws Exception {
+        StringWriter writer = new StringWriter();
+        context.createMarshaller().marshal(new JAXBElement<>(PARAMETERS, Parameters.class, parameters), writer);
+        return writer.toString();
+    }
+
+    private static Object cachedXml(Object instance) throws Exception {
+        return cachedXmlField(instance).get(instance);
+    }
+
+    private static void setCachedXml(Object instance, CachedXml cachedXml) throws Exception {
+        cachedXmlField(instance).set(instance, cachedXml);
+    }
+
+    private static Field cachedXmlField(Object instance) throws Exception {
+        Field field = instance.getClass().getDeclaredField("cachedXml");
+        field.setAccessible(true);
+        return field;
+    }
+}